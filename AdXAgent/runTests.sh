@@ -0,0 +1,13 @@
+#!/bin/bash
+#
+# Usage
+#   sh ./runTests.sh
+#
+# Compiles the agent and the tests in test/ into a temporary folder and runs every test.
+
+OUT=`mktemp -d`
+javac -nowarn -d $OUT -cp "lib/*" `find soton test -name '*.java'` || exit 1
+java -cp "$OUT:lib/*" soton.intagts.TestRunner
+STATUS=$?
+rm -rf $OUT
+exit $STATUS
@@ -0,0 +1,340 @@
+package soton.intagts;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import se.sics.tasim.props.StartInfo;
+import tau.tac.adx.props.AdxBidBundle;
+import tau.tac.adx.props.AdxQuery;
+import tau.tac.adx.report.demand.AdNetworkDailyNotification;
+import tau.tac.adx.report.demand.CampaignOpportunityMessage;
+import tau.tac.adx.report.demand.InitialCampaignMessage;
+
+/**
+ * Micro benchmarks for the agent's hot paths, parameterized by history size and number of concurrent campaigns.
+ *
+ * Each fixture writes a synthetic history (see SyntheticData) to a temporary working directory, starts an agent on
+ * it and plays the opening messages of a game, so the measured methods run on the same state they see in a real
+ * game. Every benchmark is warmed up and then measured in several rounds; the table reports the median time per
+ * operation and the spread between rounds ((max - min) / median). The median, because one round hit by a
+ * collection or a recompilation moved the mean by tens of percent. Console output of the agent is discarded while
+ * it runs.
+ *
+ * Usage (classes compiled with the jars in lib on the classpath):
+ *   java -Xmx4g soton.intagts.AgentBenchmark [--sizes 8000,100000,1000000] [--campaigns 1,8,32]
+ *       [--history BHFull.csv] [--campaign-log CmpLog.csv] [--millis 1000] [--rounds 5] [--seed 1]
+ */
+class AgentBenchmark {
+
+	private static final String AGENT_NAME = "bench";
+
+	/* Results are accumulated here so the JIT cannot drop the measured calls */
+	static volatile double sink;
+
+	private final SyntheticData data;
+	private final long millis;
+	private final int rounds;
+	private final PrintStream out;
+
+	AgentBenchmark(SyntheticData data, long millis, int rounds, PrintStream out) {
+		this.data = data;
+		this.millis = millis;
+		this.rounds = rounds;
+		this.out = out;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String sizes = "8000,100000,1000000";
+		String campaigns = "1,8,32";
+		File history = new File("BHFull.csv");
+		File campaignLog = new File("CmpLog.csv");
+		long millis = 1000;
+		int rounds = 5;
+		long seed = 1;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (args[i].equals("--sizes")) { sizes = args[i + 1]; }
+			else if (args[i].equals("--campaigns")) { campaigns = args[i + 1]; }
+			else if (args[i].equals("--history")) { history = new File(args[i + 1]); }
+			else if (args[i].equals("--campaign-log")) { campaignLog = new File(args[i + 1]); }
+			else if (args[i].equals("--millis")) { millis = Long.parseLong(args[i + 1]); }
+			else if (args[i].equals("--rounds")) { rounds = Integer.parseInt(args[i + 1]); }
+			else if (args[i].equals("--seed")) { seed = Long.parseLong(args[i + 1]); }
+			else { throw new IllegalArgumentException("Unknown option " + args[i]); }
+		}
+
+		AgentBenchmark benchmark = new AgentBenchmark(SyntheticData.fit(history, campaignLog, seed), millis, rounds,
+				System.out);
+		benchmark.out.printf("%-24s %10s %9s %14s %14s%n", "benchmark", "history", "campaigns", "ns/op", "spread %");
+		for (String size : sizes.split(",")) {
+			for (String count : campaigns.split(",")) {
+				benchmark.run(Integer.parseInt(size.trim()), Integer.parseInt(count.trim()));
+			}
+		}
+	}
+
+	/**
+	 * Runs every benchmark against one fixture.
+	 */
+	void run(int historySize, int campaigns) throws Exception {
+		File dir = createHistoryDir(historySize);
+		PrintStream stdout = System.out;
+		PrintStream stderr = System.err;
+		PrintStream quiet = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		});
+		System.setOut(quiet);
+		System.setErr(quiet);
+		try {
+			final Fixture fixture = new Fixture(data, dir, campaigns);
+			final AgentNAMM agent = fixture.agent;
+			final AdxQuery[] queries = agent.queries;
+			final List<AgentNAMM.CampaignData> ours = new ArrayList<AgentNAMM.CampaignData>(agent.myCampaigns.values());
+			final ImpressionHistoryStore.Builder gameBatch = new ImpressionHistoryStore.Builder();
+			data.impressions(data.rowsPerGame(), 1000000, gameBatch);
+			final int[] next = new int[1];
+			checkImpressionTargets(agent, ours);
+
+			report("ImpressionCostEstimator", historySize, campaigns, measure(new Runnable() {
+				public void run() {
+					sink += agent.ImpressionCostEstimator();
+				}
+			}));
+			report("getStatsPerAllCriteria", historySize, campaigns, measure(new Runnable() {
+				public void run() {
+					AdxQuery query = queries[next[0]++ % queries.length];
+					sink += agent.impressionBidHistory.getStatsPerAllCriteria(query).mean;
+				}
+			}));
+			report("setImpressionTargets", historySize, campaigns, measure(new Runnable() {
+				public void run() {
+					AgentNAMM.CampaignData campaign = ours.get(next[0]++ % ours.size());
+					campaign.setImpressionTargets();
+					sink += campaign.impressionTarget;
+				}
+			}));
+			report("impressionTargetSweep", historySize, campaigns, measure(new Runnable() {
+				public void run() {
+					AgentNAMM.CampaignData campaign = ours.get(next[0]++ % ours.size());
+					sink += campaign.sweepImpressionTargets();
+				}
+			}));
+			report("campaignCost", historySize, campaigns, measure(new Runnable() {
+				public void run() {
+					AgentNAMM.CampaignData campaign = ours.get(next[0]++ % ours.size());
+					sink += agent.campaignCost(campaign, campaign.reachImps, false);
+				}
+			}));
+			report("expectedLowBid", historySize, campaigns, measure(new Runnable() {
+				public void run() {
+					sink += agent.historicCampaigns.expectedLowBid(30);
+				}
+			}));
+			report("expectedHighBid", historySize, campaigns, measure(new Runnable() {
+				public void run() {
+					sink += agent.historicCampaigns.expectedHighBid(95);
+				}
+			}));
+			report("buildBidBundle", historySize, campaigns, measure(new Runnable() {
+				public void run() {
+					AdxBidBundle bundle = agent.buildBidBundle(Long.MAX_VALUE);
+					sink += bundle.hashCode();
+				}
+			}));
+			report("loadHistory", historySize, campaigns, measure(new Runnable() {
+				public void run() {
+					try {
+						// Uncached, so every round reads the files as the first agent of a JVM does
+						SharedHistory snapshot = SharedHistory.read(agent.historyJournal);
+						agent.impressionBidHistory.reset();
+						agent.impressionBidHistory.install(snapshot);
+						sink += snapshot.impressionCount();
+						snapshot.release();
+					} catch (IOException ex) {
+						throw new IllegalStateException(ex);
+					}
+				}
+			}));
+			// Another agent of the JVM starting on the history this one already holds
+			report("acquireSharedHistory", historySize, campaigns, measure(new Runnable() {
+				public void run() {
+					try {
+						SharedHistory snapshot = SharedHistory.acquire(agent.historyJournal);
+						sink += snapshot.impressionCount();
+						snapshot.release();
+					} catch (IOException ex) {
+						throw new IllegalStateException(ex);
+					}
+				}
+			}));
+			// Last: the journal compacts in the background once enough game segments are saved
+			report("saveHistory (1 game)", historySize, campaigns, measure(new Runnable() {
+				public void run() {
+					agent.impressionBidHistory.saveFile(gameBatch, 1);
+					sink += gameBatch.size();
+				}
+			}));
+			agent.historyJournal.awaitCompaction();
+			agent.releaseHistory();
+		} finally {
+			AgentLog.flush();
+			System.setOut(stdout);
+			System.setErr(stderr);
+			delete(dir);
+		}
+	}
+
+	/**
+	 * Checks the impression target optimizer against brute force for each of our campaigns: its profit must match
+	 * the full estimate of AgentNAMM, and its target must be at least as profitable as the best target of the sweep
+	 * and the best of every target in its range. Prints a summary line, throws on a mismatch.
+	 */
+	private void checkImpressionTargets(AgentNAMM agent, List<AgentNAMM.CampaignData> ours) {
+		double maxError = 0;
+		double gain = 0;
+		for (AgentNAMM.CampaignData campaign : ours) {
+			ImpressionTargetOptimizer optimizer = agent.impressionTargetOptimizer(campaign);
+			long target = optimizer.optimize();
+			double profit = optimizer.profit(target);
+			double tolerance = 1e-9 * Math.max(1, Math.abs(profit));
+
+			double full = campaign.estimateProfit(target);
+			double swept = campaign.estimateProfit(campaign.sweepImpressionTargets());
+			double best = Double.NEGATIVE_INFINITY;
+			for (long t = optimizer.lowest(); t <= optimizer.highest(); t++) {
+				best = Math.max(best, optimizer.profit(t));
+			}
+			if (Math.abs(full - profit) > tolerance || profit < swept - tolerance || profit < best - tolerance) {
+				throw new IllegalStateException(String.format("Impression target of campaign %d: optimizer %d with "
+						+ "profit %s (full estimate %s), sweep profit %s, best profit %s", campaign.id, target, profit,
+						full, swept, best));
+			}
+			maxError = Math.max(maxError, Math.abs(full - profit) / Math.max(1, Math.abs(profit)));
+			gain += profit - swept;
+		}
+		out.printf("# impression targets of %d campaigns match brute force (relative error %.1e, %+.4f profit "
+				+ "over the sweep)%n", ours.size(), maxError, gain);
+	}
+
+	/**
+	 * Warms op up for the configured time, then measures it in rounds of the same length.
+	 * Returns the nanoseconds per operation of each round.
+	 */
+	private double[] measure(Runnable op) {
+		runFor(op, millis);
+		double[] nanosPerOp = new double[rounds];
+		for (int r = 0; r < rounds; r++) {
+			long start = System.nanoTime();
+			long ops = runFor(op, millis);
+			nanosPerOp[r] = (double) (System.nanoTime() - start) / ops;
+		}
+		return nanosPerOp;
+	}
+
+	private static long runFor(Runnable op, long millis) {
+		long deadline = System.nanoTime() + millis * 1000000;
+		long ops = 0;
+		do {
+			op.run();
+			ops++;
+		} while (System.nanoTime() < deadline);
+		return ops;
+	}
+
+	private void report(String name, int historySize, int campaigns, double[] nanosPerOp) {
+		double[] sorted = nanosPerOp.clone();
+		Arrays.sort(sorted);
+		int n = sorted.length;
+		double median = n % 2 == 1 ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+		out.printf("%-24s %10d %9d %14.1f %14.1f%n", name, historySize, campaigns, median,
+				100 * (sorted[n - 1] - sorted[0]) / median);
+	}
+
+	/**
+	 * Working directory with historySize synthetic impression records and a matching campaign log.
+	 */
+	private File createHistoryDir(int historySize) throws IOException {
+		File dir = File.createTempFile("namm-bench", "");
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		ImpressionHistoryStore.Builder builder = new ImpressionHistoryStore.Builder();
+		data.impressions(historySize, 1, builder);
+		builder.write(new File(dir, "BHFull.bin"));
+
+		// About ten of our campaigns per game, as in the real log
+		int games = Math.max(1, historySize / data.rowsPerGame());
+		Writer log = new OutputStreamWriter(new FileOutputStream(new File(dir, "CmpLog.csv")), StandardCharsets.UTF_8);
+		try {
+			log.write(SyntheticData.CAMPAIGN_LOG_HEADER + System.lineSeparator());
+			for (String row : data.campaignLogRows(10 * games, 1)) {
+				log.write(row + System.lineSeparator());
+			}
+		} finally {
+			log.close();
+		}
+		return dir;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * An agent whose history was loaded from dir and that has played the opening of a game: the initial campaign
+	 * on day 0, then on day 2 the opportunities for campaigns concurrent campaigns, every other one (at least one)
+	 * won by us and the rest by competitors, all running from day 2.
+	 */
+	static class Fixture {
+		final CapturingAgent agent;
+
+		Fixture(SyntheticData data, File dir, int campaigns) throws Exception {
+			String userDir = System.getProperty("user.dir");
+			System.setProperty("user.dir", dir.getAbsolutePath());
+			try {
+				agent = new CapturingAgent(AGENT_NAME);
+			} finally {
+				System.setProperty("user.dir", userDir);
+			}
+			// Setup installs the prefetched history only if it is done, and then drops the future
+			agent.pendingHistory.get();
+			agent.simulationSetup();
+
+			agent.deliver(new StartInfo(1, 0, SyntheticData.GAME_DAYS, 10));
+			agent.deliver(data.catalog());
+			SyntheticData.Campaign initial = data.campaign(1, 1);
+			agent.deliver(new InitialCampaignMessage(initial.id, initial.reachImps, initial.dayStart, initial.dayEnd,
+					initial.targetSegment, initial.videoCoef, initial.mobileCoef, (long) (initial.budget * 1000)));
+
+			int day = 2;
+			for (int k = 0; k < campaigns; k++) {
+				SyntheticData.Campaign campaign = data.campaign(2 + k, day);
+				boolean won = k % 2 == 0;
+				agent.deliver(new CampaignOpportunityMessage(campaign.id, campaign.reachImps, campaign.dayStart,
+						campaign.dayEnd, campaign.targetSegment, campaign.videoCoef, campaign.mobileCoef, day));
+				agent.deliver(new AdNetworkDailyNotification(day + 1, 0.9, 0.1, 1.0, campaign.id,
+						won ? AGENT_NAME : "competitor", won ? (long) (campaign.budget * 1000) : 0));
+			}
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package soton.intagts;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import se.sics.isl.util.ConfigManager;
+import tau.tac.adx.agentware.SimClient;
+
+/**
+ * Runs several agents in one JVM, each with its own agentware configuration, instead of one JVM per agent as
+ * runCAgents.bat does.
+ *
+ * Every config file (config/namm1.conf, PrevAgent_jar/comp01.conf, ...) starts an agentware client exactly as
+ * tau.tac.adx.agentware.Main would: the client connects to the server, creates the agentImpl of its config and
+ * auto-joins games on its own threads, so all agents play their games in parallel against the local server. The
+ * agents share the history of the working directory (see SharedHistory) and nothing else: an AgentNAMM keeps the
+ * state of a game in its own fields and resets it when the next game starts. Each client logs to files prefixed
+ * with its agent name; agentware's handlers sit on the root logger, so each of those files has every agent's
+ * records.
+ *
+ * Every --report seconds the host prints one line per AgentNAMM instance: games finished, messages per second
+ * since the last report, mean game time, allocation per game and the records held on top of the shared history,
+ * followed by the heap in use. Allocation is measured on each agent's event pipeline thread, which does the
+ * agent's work; the agentware threads receiving the messages are not included.
+ *
+ * Usage:
+ *   java -cp "lib/*" soton.intagts.AgentHost [--report 60] config/namm1.conf PrevAgent_jar/comp01.conf ...
+ */
+class AgentHost {
+
+	private static final String DEFAULT_HOST = "localhost";
+	private static final int DEFAULT_PORT = 6502;
+
+	private final PrintStream out;
+	/* Instance to the config it was started from */
+	private final Map<AgentStats, String> configs = new HashMap<AgentStats, String>();
+	/* Messages of each instance at the previous report */
+	private final Map<AgentStats, Long> lastMessages = new HashMap<AgentStats, Long>();
+	private final List<SimClient> clients = new ArrayList<SimClient>();
+
+	AgentHost(PrintStream out) {
+		this.out = out;
+	}
+
+	public static void main(String[] args) throws Exception {
+		long reportSeconds = 60;
+		List<File> configFiles = new ArrayList<File>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--report")) { reportSeconds = Long.parseLong(args[++i]); }
+			else if (args[i].startsWith("--")) { throw new IllegalArgumentException("Unknown option " + args[i]); }
+			else { configFiles.add(new File(args[i])); }
+		}
+		if (configFiles.isEmpty()) {
+			throw new IllegalArgumentException("No agentware config files given");
+		}
+
+		AgentHost host = new AgentHost(System.out);
+		for (File config : configFiles) {
+			host.start(config);
+		}
+		// The clients' threads keep the JVM running
+		long lastReport = System.nanoTime();
+		while (true) {
+			Thread.sleep(reportSeconds * 1000);
+			long now = System.nanoTime();
+			host.report((now - lastReport) / 1e9);
+			lastReport = now;
+		}
+	}
+
+	/**
+	 * Starts the client of one agentware config file. Like agentware's Main, the client exits the JVM if it cannot
+	 * create its agent.
+	 */
+	void start(File configFile) throws Exception {
+		ConfigManager config = new ConfigManager();
+		if (!config.loadConfiguration(configFile.getPath())) {
+			throw new IllegalArgumentException("Cannot read config " + configFile);
+		}
+		String agentName = config.getProperty("agentName");
+		String password = config.getProperty("agentPassword");
+		String agentImpl = config.getProperty("agentImpl");
+		if (agentName == null || password == null || agentImpl == null) {
+			throw new IllegalArgumentException(configFile + " needs agentName, agentPassword and agentImpl");
+		}
+		config.setProperty("log.prefix", agentName);
+
+		// The client creates its agent before returning, so the instances registered meanwhile are its agent's
+		int before = AgentStats.instances().size();
+		SimClient client = new SimClient(config, config.getProperty("serverHost", DEFAULT_HOST),
+				config.getPropertyAsInt("serverPort", DEFAULT_PORT), agentName, password, agentImpl);
+		clients.add(client);
+		List<AgentStats> instances = AgentStats.instances();
+		synchronized (configs) {
+			for (AgentStats stats : instances.subList(Math.min(before, instances.size()), instances.size())) {
+				configs.put(stats, configFile.getName());
+			}
+		}
+		out.println("Started " + agentName + " (" + agentImpl + ") from " + configFile);
+	}
+
+	/**
+	 * Prints the statistics of every instance, with message rates over the last seconds.
+	 */
+	void report(double seconds) {
+		out.printf("%-12s %-14s %7s %9s %10s %12s %14s %9s%n", "agent", "config", "games", "messages", "msgs/s",
+				"mean game s", "alloc MB/game", "overlay");
+		synchronized (configs) {
+			for (AgentStats stats : AgentStats.instances()) {
+				String config = configs.get(stats);
+				if (config == null) {
+					continue;
+				}
+				long messages = stats.messages();
+				Long last = lastMessages.put(stats, messages);
+				long games = stats.games();
+				out.printf("%-12s %-14s %7d %9d %10.1f %12.1f %14.1f %9d%n", stats.name(), config, games, messages,
+						(messages - (last == null ? 0 : last)) / seconds,
+						games == 0 ? 0 : stats.gameNanos() / 1e9 / games,
+						games == 0 ? 0 : stats.allocatedBytesTotal() / 1e6 / games, stats.overlayRecords());
+			}
+		}
+		Runtime runtime = Runtime.getRuntime();
+		out.printf("heap %.1f MB used of %.1f MB, %d clients, %d threads%n",
+				(runtime.totalMemory() - runtime.freeMemory()) / 1e6, runtime.maxMemory() / 1e6, clients.size(),
+				Thread.activeCount());
+	}
+}
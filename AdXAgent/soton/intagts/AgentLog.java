@@ -0,0 +1,366 @@
+package soton.intagts;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+/**
+ * Console and daily record logging for the agent, kept off the message handlers' critical path.
+ *
+ * Every category has its own level, read from config/namm1.conf (namm.log.level for the default, namm.log.bid,
+ * namm.log.campaign, ... per category). A call below the level returns after one comparison; hot paths with costly
+ * arguments check {@link #on(Level)} first so they do not even box them. Enabled calls only put the format and its
+ * arguments on a bounded lock-free queue: formatting and writing happen on the "namm-log" daemon thread. When the
+ * queue is full the record is dropped and counted instead of making the caller wait.
+ *
+ * Daily records are JSON lines (one object per record) written to the file named by namm.log.daily, for analysis
+ * of whole seasons without parsing the console output.
+ */
+class AgentLog {
+
+	static final AgentLog AGENT = new AgentLog("agent");
+	static final AgentLog CAMPAIGN = new AgentLog("campaign");
+	static final AgentLog UCS = new AgentLog("ucs");
+	static final AgentLog BID = new AgentLog("bid");
+	static final AgentLog REPORT = new AgentLog("report");
+	static final AgentLog STATS = new AgentLog("stats");
+	static final AgentLog HISTORY = new AgentLog("history");
+
+	private static final AgentLog[] CATEGORIES = { AGENT, CAMPAIGN, UCS, BID, REPORT, STATS, HISTORY };
+
+	/* Configuration file, relative to the working directory; the system property of the same name overrides it */
+	private static final String CONFIG = "config/namm1.conf";
+
+	private static final int DEFAULT_CAPACITY = 8192;
+
+	private static final Queue<Record> queue = new ConcurrentLinkedQueue<Record>();
+	private static final AtomicInteger queued = new AtomicInteger();
+	private static final AtomicLong accepted = new AtomicLong();
+	private static final AtomicLong dropped = new AtomicLong();
+	private static volatile long written;
+	private static volatile boolean writerParked;
+	private static int capacity = DEFAULT_CAPACITY;
+	private static Writer daily;
+	private static volatile File timings;
+	private static volatile Properties settings = new Properties();
+	private static final Thread writer;
+
+	static {
+		Properties config = new Properties();
+		File file = new File(System.getProperty("namm.log.config",
+				new File(System.getProperty("user.dir"), CONFIG).getPath()));
+		if (file.isFile()) {
+			try {
+				InputStream in = new FileInputStream(file);
+				try {
+					config.load(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException ex) {
+				System.err.println("Could not read log configuration " + file + ": " + ex);
+			}
+		}
+		configure(config);
+
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "namm-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private final String name;
+	private volatile int threshold = Level.INFO.intValue();
+
+	private AgentLog(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Applies levels, queue capacity, the daily record file and the handler timings folder from config. Missing
+	 * keys keep INFO, 8192 records, no daily file and no timings.
+	 */
+	static synchronized void configure(Properties config) {
+		settings = config;
+		Level defaultLevel = Level.parse(config.getProperty("namm.log.level", "INFO").trim());
+		for (AgentLog category : CATEGORIES) {
+			String level = config.getProperty("namm.log." + category.name);
+			category.threshold = (level == null ? defaultLevel : Level.parse(level.trim())).intValue();
+		}
+		capacity = Integer.parseInt(config.getProperty("namm.log.queue", String.valueOf(DEFAULT_CAPACITY)).trim());
+
+		String timingsDir = config.getProperty("namm.log.timings");
+		timings = timingsDir == null || timingsDir.trim().isEmpty() ? null : resolve(timingsDir.trim());
+
+		String dailyFile = config.getProperty("namm.log.daily");
+		Writer old = daily;
+		daily = null;
+		if (old != null) {
+			try {
+				old.close();
+			} catch (IOException ignored) {
+			}
+		}
+		if (dailyFile != null && !dailyFile.trim().isEmpty()) {
+			File file = resolve(dailyFile.trim());
+			try {
+				file.getAbsoluteFile().getParentFile().mkdirs();
+				daily = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+			} catch (IOException ex) {
+				System.err.println("Could not open daily log " + file + ": " + ex);
+			}
+		}
+	}
+
+	/**
+	 * Every key of the configuration applied last, for the agent settings kept in the same file (see
+	 * HistoryRetention). Do not modify.
+	 */
+	static Properties configuration() {
+		return settings;
+	}
+
+	/**
+	 * Folder for the per-game handler timing tables, null when they are not written.
+	 */
+	static File timingsDirectory() {
+		return timings;
+	}
+
+	/* Relative paths are relative to the working directory */
+	private static File resolve(String path) {
+		File file = new File(path);
+		return file.isAbsolute() ? file : new File(System.getProperty("user.dir"), path);
+	}
+
+	/**
+	 * Sets the level of every category, e.g. Level.OFF for tools that do not want the agent's output.
+	 */
+	static void setLevel(Level level) {
+		for (AgentLog category : CATEGORIES) {
+			category.threshold = level.intValue();
+		}
+	}
+
+	boolean on(Level level) {
+		return level.intValue() >= threshold && threshold != Level.OFF.intValue();
+	}
+
+	boolean fine() {
+		return on(Level.FINE);
+	}
+
+	/**
+	 * Logs format (String.format syntax, or a plain message without arguments). The arguments are formatted on the
+	 * writer thread, so they must not be changed after the call.
+	 */
+	void log(Level level, String format, Object... args) {
+		if (on(level)) {
+			enqueue(new Record(null, format, args, null));
+		}
+	}
+
+	void info(String format, Object... args) {
+		log(Level.INFO, format, args);
+	}
+
+	void fine(String format, Object... args) {
+		log(Level.FINE, format, args);
+	}
+
+	void warning(String format, Object... args) {
+		log(Level.WARNING, format, args);
+	}
+
+	/**
+	 * Logs message with the stack trace of thrown.
+	 */
+	void warning(String message, Throwable thrown) {
+		if (on(Level.WARNING)) {
+			enqueue(new Record(null, message, null, thrown));
+		}
+	}
+
+	/**
+	 * Daily record of type with alternating field names and values, written as a JSON object together with the
+	 * agent, game and day (several agents may share the file and the game). Only written when this category is
+	 * enabled at INFO and a daily file is configured.
+	 */
+	void daily(String agent, int game, int day, String type, Object... fields) {
+		if (daily != null && on(Level.INFO)) {
+			Object[] all = new Object[fields.length + 8];
+			all[0] = "type";
+			all[1] = type;
+			all[2] = "agent";
+			all[3] = agent;
+			all[4] = "game";
+			all[5] = game;
+			all[6] = "day";
+			all[7] = day;
+			System.arraycopy(fields, 0, all, 8, fields.length);
+			enqueue(new Record(name, null, all, null));
+		}
+	}
+
+	/**
+	 * Waits until every record accepted so far has been written. Used at the end of a game and by tools before they
+	 * restore the console.
+	 */
+	static void flush() {
+		long target = accepted.get();
+		while (written < target) {
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(100000);
+		}
+	}
+
+	/**
+	 * Records dropped because the queue was full.
+	 */
+	static long dropped() {
+		return dropped.get();
+	}
+
+	private static void enqueue(Record record) {
+		if (queued.incrementAndGet() > capacity) {
+			queued.decrementAndGet();
+			dropped.incrementAndGet();
+			return;
+		}
+		accepted.incrementAndGet();
+		queue.offer(record);
+		if (writerParked) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+	private static void drain() {
+		long reportedDrops = 0;
+		while (true) {
+			Record record = queue.poll();
+			if (record == null) {
+				flushDaily();
+				long drops = dropped.get();
+				if (drops != reportedDrops) {
+					System.out.println("#####LOG##### " + (drops - reportedDrops) + " log records dropped, queue full");
+					reportedDrops = drops;
+				}
+				writerParked = true;
+				if (queue.isEmpty()) {
+					LockSupport.parkNanos(50000000);
+				}
+				writerParked = false;
+				continue;
+			}
+			queued.decrementAndGet();
+			try {
+				write(record);
+			} catch (RuntimeException ex) {
+				System.out.println("#####LOG##### Could not write record " + record.format + ": " + ex);
+			}
+			written++;
+		}
+	}
+
+	private static void write(Record record) {
+		if (record.category != null) {
+			writeDaily(record.args);
+			return;
+		}
+		// Resolved per record: tools swap the console while the agent runs
+		PrintStream out = System.out;
+		if (record.args == null || record.args.length == 0) {
+			out.println(record.format);
+		} else {
+			String text = String.format(record.format, record.args);
+			if (text.endsWith("\n")) {
+				out.print(text);
+			} else {
+				out.println(text);
+			}
+		}
+		if (record.thrown != null) {
+			record.thrown.printStackTrace(out);
+		}
+	}
+
+	private static synchronized void writeDaily(Object[] fields) {
+		if (daily == null) {
+			return;
+		}
+		StringBuilder json = new StringBuilder("{");
+		for (int i = 0; i + 1 < fields.length; i += 2) {
+			if (i > 0) {
+				json.append(',');
+			}
+			json.append('"').append(fields[i]).append("\":");
+			Object value = fields[i + 1];
+			if (value == null) {
+				json.append("null");
+			} else if (value instanceof Number && !isNonFinite((Number) value)) {
+				json.append(value);
+			} else if (value instanceof Boolean) {
+				json.append(value);
+			} else {
+				json.append('"').append(value.toString().replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+			}
+		}
+		json.append('}');
+		try {
+			daily.write(json.toString());
+			daily.write('\n');
+		} catch (IOException ex) {
+			System.out.println("#####LOG##### Could not write daily record: " + ex);
+		}
+	}
+
+	private static synchronized void flushDaily() {
+		if (daily != null) {
+			try {
+				daily.flush();
+			} catch (IOException ex) {
+				System.out.println("#####LOG##### Could not flush daily records: " + ex);
+			}
+		}
+	}
+
+	private static boolean isNonFinite(Number value) {
+		return (value instanceof Double || value instanceof Float)
+				&& (Double.isNaN(value.doubleValue()) || Double.isInfinite(value.doubleValue()));
+	}
+
+	/**
+	 * A queued console line (category null) or daily record (args holds the fields).
+	 */
+	private static class Record {
+		final String category;
+		final String format;
+		final Object[] args;
+		final Throwable thrown;
+
+		Record(String category, String format, Object[] args, Throwable thrown) {
+			this.category = category;
+			this.format = format;
+			this.args = args;
+			this.thrown = thrown;
+		}
+	}
+}
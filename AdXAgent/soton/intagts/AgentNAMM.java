@@ -4,13 +4,10 @@ import com.sun.org.omg.CORBA.ValueDefPackage.FullValueDescription;
 import edu.umich.eecs.tac.props.Ad;
 import edu.umich.eecs.tac.props.BankStatus;
 import edu.umich.eecs.tac.props.Query;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 
 // Includes for file handling
 import java.io.*;
-import java.io.BufferedReader;
 import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.InputStream;
 
 import java.util.ArrayList;
@@ -22,6 +19,9 @@ import java.util.Map;
 import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -45,9 +45,6 @@ import tau.tac.adx.report.demand.*;
 import tau.tac.adx.report.demand.campaign.auction.CampaignAuctionReport;
 import tau.tac.adx.report.publisher.AdxPublisherReport;
 import tau.tac.adx.report.publisher.AdxPublisherReportEntry;
-import tau.tac.adx.users.properties.Age;
-import tau.tac.adx.users.properties.Gender;
-import tau.tac.adx.users.properties.Income;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -99,7 +96,7 @@ public class AgentNAMM extends Agent {
 	 * we maintain a list of queries - each characterized by the web site (the
 	 * publisher), the device type, the ad type, and the user market segment
 	 */
-	private AdxQuery[] queries;
+	AdxQuery[] queries;
 
 	/**
 	 * Information regarding the latest campaign opportunity announced
@@ -110,19 +107,47 @@ public class AgentNAMM extends Agent {
 	 * We maintain a collection (mapped by the campaign id) of the campaigns won
 	 * by our agent.
 	 */
-	private Map<Integer, CampaignData> myCampaigns;
+	Map<Integer, CampaignData> myCampaigns;
 
 	////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 	// Collection of campaigns thrown in the game
 	//private List<CampaignData> campaignsInGame;
 	private Map<Integer, CampaignData> campaignsInGame;
+
+	/*
+	 * Day indexes over myCampaigns and campaignsInGame, maintained as campaigns are allocated, so the
+	 * per-day loops only visit the campaigns relevant to the day.
+	 */
+	private CampaignDayIndex<CampaignData> myCampaignDays;
+	private CampaignDayIndex<CampaignData> gameCampaignDays;
+	// Bid per reach impression of our unprofitable campaigns this game, added as they end
+	private final BidPercentiles unprofitableBids = new BidPercentiles();
 	////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
 	/*
-	 * the bidBundle to be sent daily to the AdX
+	 * the bidBundle to be sent daily to the AdX (the last one sent, also the fallback when a build overruns)
 	 */
 	private AdxBidBundle bidBundle;
 
+	/*
+	 * Speculative bid bundle for tomorrow, built as soon as the day's inputs have arrived so SimulationStatus only
+	 * has to send it. Every input handler bumps bidInputsVersion; a speculative bundle built from an older
+	 * version is stale and is rebuilt.
+	 */
+	private static final int BID_INPUT_ADNET_REPORT = 1;
+	private static final int BID_INPUT_CAMPAIGN_REPORT = 1 << 1;
+	private static final int BID_INPUT_DAILY_NOTIFICATION = 1 << 2;
+	private static final int BID_INPUT_OPPORTUNITY = 1 << 3;
+	private static final int BID_INPUTS_ALL = BID_INPUT_ADNET_REPORT | BID_INPUT_CAMPAIGN_REPORT
+			| BID_INPUT_DAILY_NOTIFICATION | BID_INPUT_OPPORTUNITY;
+	// Time allowed to build the bundle once SimulationStatus has arrived
+	private static final long BID_BUILD_BUDGET_MILLIS = 150;
+	private int bidInputsReceived;
+	private int bidInputsVersion;
+	private AdxBidBundle speculativeBundle;
+	private int speculativeDay = -1;
+	private int speculativeVersion;
+
 	/*
 	*  Perceptrons
 	 */
@@ -139,9 +164,13 @@ public class AgentNAMM extends Agent {
 	double ucsBid;
 
 	/*
-	 * Defines the minimum fraction of learnt data coming from historic data over game data
+	 * Constants of the bidding strategies, DEFAULTS unless namm.parameters or a sweep sets others
 	 */
-	final double HISTORIC_FRAC = 0.5;
+	private StrategyParameters parameters = StrategyParameters.fromSystemProperty();
+	/*
+	 * Whether finished games are added to the history; sweeps keep it fixed so every game sees the same history
+	 */
+	private boolean historyWritable = true;
 
 	/*
 	 * The targeted service level for the user classification service
@@ -161,13 +190,31 @@ public class AgentNAMM extends Agent {
 	 *  Note it is not reset each day on purpose so there is a default value in case we fail to calculate a bid in time.
 	 */
 	double cmpBid;
-	double cmpBidPerImp = 0.8;
+	double cmpBidPerImp = parameters.get(StrategyParameters.Key.CMP_BID_PER_IMP);
+
+	/*
+	 * Source of randomness for the bidding strategies. Seeded by the replay harness so replays are repeatable.
+	 */
+	private Random random = new Random();
 
 	/*
 	 * current day of simulation
 	 */
 	private int day;
 	private String[] publisherNames;
+	// Campaign queries per target segment, built once from the publisher names
+	private QueryTemplates queryTemplates;
+	// Reuses the bundle and its entries while the bids stay the same
+	private final BidBundleBuilder bidBundles = new BidBundleBuilder();
+	// Matching campaigns of every query, rebuilt for each bundle
+	private QueryCampaignMatrix queryMatrix;
+	// Campaigns in the bundle being built, with their segment, impressions to go, entries so far and bid; reused
+	// between builds
+	private final List<CampaignData> biddingCampaigns = new ArrayList<CampaignData>();
+	private int[] biddingMasks = new int[8];
+	private int[] biddingImpsTogo = new int[8];
+	private int[] biddingEntries = new int[8];
+	private double[] biddingBids = new double[8];
 	private CampaignData currCampaign;
 
 	/* Saving Historic Campaigns as global variable */
@@ -180,27 +227,122 @@ public class AgentNAMM extends Agent {
 	 * Basically this is storing entries returned during the AdNetworkReport keeping record if the last bids were
 	 * successful, so it can be used as reference for later impresssion bids.
 	 */
-	private ImpressionHistory impressionBidHistory;
+	ImpressionHistory impressionBidHistory;
+
+	/**
+	 * Append-only storage for the impression history and the campaign log. Each game adds one segment per file
+	 * instead of rewriting everything, and segments are merged back into the base files in the background. Shared
+	 * with the other agents of the JVM that run in the same directory.
+	 */
+	HistoryJournal historyJournal;
+
+	/**
+	 * Background thread for history loads and saves, so no message handler waits on the disk. The history for the
+	 * next game is prefetched as soon as the agent is created and again right after each game is saved.
+	 */
+	private HistoryIO historyIO;
+	Future<SharedHistory> pendingHistory;
+	// Shared history installed for the current game, null while it is still being read. The agent holds one
+	// reference to it until the next game starts.
+	private SharedHistory historySnapshot;
+	private boolean historicCampaignsLoaded;
+
+	// Throughput and memory of this instance, read by the multi-agent host
+	final AgentStats instanceStats = new AgentStats();
+	// Time spent per message type and before the bid bundle goes out, exposed through JMX
+	final HandlerTimings handlerTimings = new HandlerTimings();
+
+	/*
+	 * Messages and game starts and ends are applied to the agent's state by the pipeline's consumer thread, in
+	 * arrival order, so the agentware thread that receives them never waits for a handler.
+	 */
+	private enum Lifecycle { SETUP, FINISHED }
+	private final EventPipeline events;
 
 	public AgentNAMM() {
+		this(true);
+	}
+
+	/**
+	 * @param threaded false to handle every message on the thread that delivers it, as the offline tools do
+	 */
+	AgentNAMM(boolean threaded) {
+		events = new EventPipeline(new EventPipeline.Handler() {
+			@Override
+			public void apply(Object event, long arrivedNanos) {
+				if (event == Lifecycle.SETUP) {
+					setupGame();
+				} else if (event == Lifecycle.FINISHED) {
+					finishGame();
+				} else {
+					handleMessage((Transportable) event, arrivedNanos);
+				}
+			}
+		}, threaded, "namm-events");
+		handlerTimings.setPipeline(events);
 		campaignReports = new LinkedList<CampaignReport>();
 		// Initializes impression bid history variable when a new Agent instance is created
 		impressionBidHistory = new ImpressionHistory();
+		historyJournal = HistoryJournal.forDirectory(new File(System.getProperty("user.dir")));
+		historyIO = new HistoryIO();
+		prefetchHistory();
 		//campaignsInGame = new ArrayList<CampaignData>();
 	}
 
 	/**
-	 * Upon recieving a message from the server handle the information with the appropriate method
+	 * Restarts the strategies' random sequence from seed
+	 */
+	void setRandomSeed(long seed) {
+		random = new Random(seed);
+	}
+
+	/**
+	 * Waits until every message received so far has been handled, including the derived work it asked for
+	 */
+	void awaitEvents() {
+		events.awaitIdle();
+	}
+
+	/**
+	 * Strategy constants for the games that start from now on
+	 */
+	void setParameters(StrategyParameters parameters) {
+		this.parameters = parameters;
+	}
+
+	StrategyParameters getParameters() {
+		return parameters;
+	}
+
+	/**
+	 * With false, finished games are no longer saved to the history
+	 */
+	void setHistoryWritable(boolean writable) {
+		historyWritable = writable;
+	}
+
+	/**
+	 * Upon recieving a message from the server queue it for handling
 	 * @param message
 	 */
 	@Override
 	protected void messageReceived(Message message) {
+		events.publish(message.getContent());
+	}
+
+	/**
+	 * Handle the information of a message, received at System.nanoTime() arrivedNanos, with the appropriate method
+	 */
+	private void handleMessage(Transportable content, long arrivedNanos) {
+		long start = System.nanoTime();
+		handlerTimings.queued(start - arrivedNanos);
 		try {
-			Transportable content = message.getContent();
+			instanceStats.messageReceived();
+			installHistoryIfReady();
 
 			// Dumps all received messages to log
-			log.fine(message.getContent().getClass().toString());
-			this.log.log(Level.ALL, message.getContent().getClass().toString());
+			log.fine(content.getClass().toString());
+			this.log.log(Level.ALL, content.getClass().toString());
 
 			if (content instanceof InitialCampaignMessage) {
 				handleInitialCampaignMessage((InitialCampaignMessage) content);
@@ -213,6 +355,7 @@ public class AgentNAMM extends Agent {
 			} else if (content instanceof AdxPublisherReport) {
 				handleAdxPublisherReport((AdxPublisherReport) content);
 			} else if (content instanceof SimulationStatus) {
+				handlerTimings.statusArrived(arrivedNanos);
 				handleSimulationStatus((SimulationStatus) content);
 			} else if (content instanceof PublisherCatalog) {
 				handlePublisherCatalog((PublisherCatalog) content);
@@ -226,16 +369,17 @@ public class AgentNAMM extends Agent {
 				hadnleCampaignAuctionReport((CampaignAuctionReport) content);
 			}
 			else {
-				System.out.println("UNKNOWN Message Received: " + content);
+				AgentLog.AGENT.warning("UNKNOWN Message Received: %s", content);
 			}
 
 		} catch (NullPointerException e) {
-			System.out.println(e.getMessage());
-			e.printStackTrace();
 			this.log.log(Level.SEVERE,
 					"Exception thrown while trying to parse message." + e);
-			System.out.println(e.getMessage());
-			e.printStackTrace();
+			AgentLog.AGENT.warning("Exception thrown while handling " + content.getClass().getSimpleName(), e);
+		} finally {
+			if (content != null) {
+				handlerTimings.handled(content.getClass(), start);
+			}
 		}
 	}
 
@@ -244,7 +388,7 @@ public class AgentNAMM extends Agent {
 	}
 
 	private void handleBankStatus(BankStatus content) {
-		System.out.println("Day " + day + ": " + content.toString());
+		AgentLog.REPORT.info("Day %d: %s", day, content);
 	}
 
 	/**
@@ -255,7 +399,14 @@ public class AgentNAMM extends Agent {
 	 */
 	protected void handleStartInfo(StartInfo startInfo) {
 		this.startInfo = startInfo;
-		System.out.println("Game Starting:" + startInfo);
+		AgentLog.AGENT.info("Game Starting:%s", startInfo);
+	}
+
+	/**
+	 * Simulation id for the daily log records, -1 before StartInfo arrives
+	 */
+	private int gameId() {
+		return startInfo == null ? -1 : startInfo.getSimulationID();
 	}
 
 	/**
@@ -267,6 +418,10 @@ public class AgentNAMM extends Agent {
 		this.publisherCatalog = publisherCatalog;
 		generateAdxQuerySpace();
 		getPublishersNames();
+		if (queryTemplates == null && publisherNames != null) {
+			queryTemplates = new QueryTemplates(publisherNames, queries);
+			queryMatrix = new QueryCampaignMatrix(queryTemplates);
+		}
 
 	}
 
@@ -279,7 +434,7 @@ public class AgentNAMM extends Agent {
 	 */
 	private void handleInitialCampaignMessage(
 			InitialCampaignMessage campaignMessage) {
-		System.out.println(campaignMessage.toString());
+		AgentLog.CAMPAIGN.info("%s", String.valueOf(campaignMessage));
 
 		day = 0;
 
@@ -299,18 +454,14 @@ public class AgentNAMM extends Agent {
 		 * The initial campaign is already allocated to our agent so we add it
 		 * to our allocated-campaigns list.
 		 */
-		System.out.println("Day " + day + ": Allocated campaign - " + campaignData);
-		myCampaigns.put(initialCampaignMessage.getId(), campaignData);
+		AgentLog.CAMPAIGN.info("Day %d: Allocated campaign - %s", day, String.valueOf(campaignData));
+		addMyCampaign(campaignData);
 
 		/////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
-		campaignsInGame.put(initialCampaignMessage.getId(), campaignData);
+		addGameCampaign(campaignData);
 		////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
-		// Load historic campaigns into a list
-		String workingDir = System.getProperty("user.dir");
-		System.out.println("Loading Historic Campaigns...");
-		historicCampaigns.loadDataFromFile(workingDir + "/cmpLog.csv");
-		System.out.println("Number of Campaigns loaded:" + historicCampaigns.getNumberOfRecords());
+		installHistoryIfReady();
 	}
 
 	/**
@@ -326,81 +477,90 @@ public class AgentNAMM extends Agent {
 		//campaignsInGame.add(pendingCampaign);
 		////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 		// For campaigns that finished yesterday set performance metrics.
-		for (Map.Entry<Integer, CampaignData> entry : myCampaigns.entrySet()) {
-			CampaignData campaign = entry.getValue();
-			if ((entry.getValue().dayEnd == day - 1)) {
-				System.out.println("...");
-				long imps = (long)(campaign.stats.getOtherImps() + campaign.stats.getTargetedImps());
-				double revenue = campaign.budget * ERRcalc(campaign, imps);
-				// Update ended campaign
-				campaign.update(revenue);
-
-				// Update performance data
-				performanceData.updateData(campaign);
-				// TODO: ALUN ALUN
-				// update perceptrons
-				//profitablePerceptron *= profitAlpha*(campaign.revenue - campaign.stats.getCost() - 0.2);
-				//reachPerceptron += reachAlpha*campaign.reachFulfillment;
-				profitablePerceptron = 1;
-				reachPerceptron = (1 + ((1 - campaign.impTargetFulfillment) / 10));
-				if(reachPerceptron > 2){
-					reachPerceptron = 2;
-				}
-				else if (reachPerceptron < 0.5) {
-					reachPerceptron = 0.5;
-				}
-				else{
-					reachPerceptron = 1;
-				}
-				ucsPerceptron += ucsAlpha*campaign.ucsCost;
-
-				System.out.println("### PERCEPTRON - ProfPerceptron: " + profitablePerceptron + ", reachPerceptron:" + reachPerceptron + ", UCSPerceptron:" + ucsPerceptron);
-
-				// Print relevant performance statistics
-				System.out.printf(
-						"Day %d: Campaign(%d) Completed________________________________\n" +
-								"    Day Start:%d End:%d Duration:%d days \n" +
-								"    Reach:%d (per day:%.2f) Impression Target:%d \n" +
-								"    Impressions:%d Targeted:%d Untargeted:%d \n" +
-								"    Target Fulfillment:%d%% Reach Fulfillment:%d%% \n" +
-								"    Revenue:%.3f Budget:%.3f Bid:%.3f \n" +
-								"    Bid:2nd Ratio: %.2f \n" +
-								"    Impression Cost:%.2f Estimate:%.2f Accuracy:%d%% \n" +
-								"    UCS Cost:%.2f Estimated:%.2f Accuracy:%d%% \n" + /* UCS cost estimate approximates with non-overlapping campaigns */
-								"    Profit:%.2f  (Per Impression, millis:%d) \n" +   /* Above gives underestimate for profit */
-								"    Profit: Estimated:%.2f Accuracy:%d%% | uncorrected:%.2f Accuracy:%d%%)\n" +
-								"    Quality Change:%.2f Estimate:%.2f Accuracy:%d%% \n",
-						day, campaign.id,
-						campaign.dayStart, campaign.dayEnd, campaign.dayEnd - campaign.dayStart,
-						campaign.reachImps, (double)(campaign.reachImps / (campaign.dayEnd - campaign.dayStart)), campaign.impressionTarget,
-						(long)(campaign.stats.getTargetedImps() + campaign.stats.getOtherImps()),
-						(long)campaign.stats.getTargetedImps(), (long)campaign.stats.getOtherImps(),
-						(long)(campaign.impTargetFulfillment*100), (long)(campaign.reachFulfillment*100),
-						campaign.revenue, campaign.budget, campaign.cmpBid,
-						campaign.bidVs2ndRatio,
-						campaign.stats.getCost(), campaign.estImpCost ,(long)(campaign.estCostAcc*100),
-						campaign.ucsCost, campaign.estUcsCost, (long)(campaign.estUcsCostAcc*100),
-						campaign.profit, (long)((campaign.profit/(campaign.stats.getOtherImps() + campaign.stats.getTargetedImps()))*1000),
-						campaign.profitEstimate, (long)(campaign.estProfitAcc*100), campaign.uncorrectedProfitEstimate,
-						(long)(campaign.uncorrectedProfitAcc*100),
-						campaign.qualityChange, campaign.estQualityChange, (long)(campaign.estQualityChangeAcc*100));
-
-				/* Currently not properly implemented game overview
-				System.out.printf(
-					"Day %d: Performance Report (%d Campaigns complete)_____________________________\n" +
-					"    Revenue:%.3f \n" +
-					"    Profit:%.3f (per Imp(millis):%.3f) Estimated profit accuracy:%.3f (uncorrected:%.3f)\n" +
-					"    bid vs 2nd price ratio: %.2f \n" +
-					"    Estimated cost accuracy: %d%% (impressions:%d%%. Ucs:%d%%) \n" +
-					"    Impression Target Fulfillment:%d%% Reach Fulfillment:%d%% \n",
-					day,performanceData.numCamps,
-					performanceData.revenue,
-					performanceData.profit, performanceData.profitPerImpression*1000, performanceData.estProfitAcc, performanceData.uncorrectedProfitEstimateAcc,
-					performanceData.avBidVs2ndRatio,
-					(long)(performanceData.estCostAcc*100), (long)(performanceData.estImpCostAcc*100), (long)(performanceData.estUcsCostAcc*100),
-					(long)(performanceData.impTargetFulfillment*100), (long)(performanceData.reachFulfillment*100)
-					);*/
+		for (CampaignData campaign : myCampaignDays.endedOn(day - 1)) {
+			long imps = (long)(campaign.stats.getOtherImps() + campaign.stats.getTargetedImps());
+			double revenue = campaign.budget * ERRcalc(campaign, imps);
+			// Update ended campaign
+			campaign.update(revenue);
+			if (campaign.profit < 0) {
+				unprofitableBids.add(campaign.cmpBid/campaign.reachImps);
+			}
+
+			// Update performance data
+			performanceData.updateData(campaign);
+			// TODO: ALUN ALUN
+			// update perceptrons
+			//profitablePerceptron *= profitAlpha*(campaign.revenue - campaign.stats.getCost() - 0.2);
+			//reachPerceptron += reachAlpha*campaign.reachFulfillment;
+			profitablePerceptron = 1;
+			reachPerceptron = (1 + ((1 - campaign.impTargetFulfillment) / 10));
+			if(reachPerceptron > parameters.get(StrategyParameters.Key.REACH_PERCEPTRON_MAX)){
+				reachPerceptron = parameters.get(StrategyParameters.Key.REACH_PERCEPTRON_MAX);
 			}
+			else if (reachPerceptron < parameters.get(StrategyParameters.Key.REACH_PERCEPTRON_MIN)) {
+				reachPerceptron = parameters.get(StrategyParameters.Key.REACH_PERCEPTRON_MIN);
+			}
+			else{
+				reachPerceptron = 1;
+			}
+			ucsPerceptron += ucsAlpha*campaign.ucsCost;
+
+			if (AgentLog.CAMPAIGN.fine()) {
+				AgentLog.CAMPAIGN.fine("### PERCEPTRON - ProfPerceptron: %s, reachPerceptron:%s, UCSPerceptron:%s",
+						String.valueOf(profitablePerceptron), String.valueOf(reachPerceptron),
+						String.valueOf(ucsPerceptron));
+			}
+
+			// Print relevant performance statistics, formatted on the log thread
+			AgentLog.CAMPAIGN.info(
+					"Day %d: Campaign(%d) Completed________________________________\n" +
+							"    Day Start:%d End:%d Duration:%d days \n" +
+							"    Reach:%d (per day:%.2f) Impression Target:%d \n" +
+							"    Impressions:%d Targeted:%d Untargeted:%d \n" +
+							"    Target Fulfillment:%d%% Reach Fulfillment:%d%% \n" +
+							"    Revenue:%.3f Budget:%.3f Bid:%.3f \n" +
+							"    Bid:2nd Ratio: %.2f \n" +
+							"    Impression Cost:%.2f Estimate:%.2f Accuracy:%d%% \n" +
+							"    UCS Cost:%.2f Estimated:%.2f Accuracy:%d%% \n" + /* UCS cost estimate approximates with non-overlapping campaigns */
+							"    Profit:%.2f  (Per Impression, millis:%d) \n" +   /* Above gives underestimate for profit */
+							"    Profit: Estimated:%.2f Accuracy:%d%% | uncorrected:%.2f Accuracy:%d%%)\n" +
+							"    Quality Change:%.2f Estimate:%.2f Accuracy:%d%% \n",
+					day, campaign.id,
+					campaign.dayStart, campaign.dayEnd, campaign.dayEnd - campaign.dayStart,
+					campaign.reachImps, (double)(campaign.reachImps / (campaign.dayEnd - campaign.dayStart)), campaign.impressionTarget,
+					(long)(campaign.stats.getTargetedImps() + campaign.stats.getOtherImps()),
+					(long)campaign.stats.getTargetedImps(), (long)campaign.stats.getOtherImps(),
+					(long)(campaign.impTargetFulfillment*100), (long)(campaign.reachFulfillment*100),
+					campaign.revenue, campaign.budget, campaign.cmpBid,
+					campaign.bidVs2ndRatio,
+					campaign.stats.getCost(), campaign.estImpCost ,(long)(campaign.estCostAcc*100),
+					campaign.ucsCost, campaign.estUcsCost, (long)(campaign.estUcsCostAcc*100),
+					campaign.profit, (long)((campaign.profit/(campaign.stats.getOtherImps() + campaign.stats.getTargetedImps()))*1000),
+					campaign.profitEstimate, (long)(campaign.estProfitAcc*100), campaign.uncorrectedProfitEstimate,
+					(long)(campaign.uncorrectedProfitAcc*100),
+					campaign.qualityChange, campaign.estQualityChange, (long)(campaign.estQualityChangeAcc*100));
+			AgentLog.CAMPAIGN.daily(getName(), gameId(), day, "campaignCompleted", "campaign", campaign.id,
+					"reachImps", campaign.reachImps, "impressionTarget", campaign.impressionTarget,
+					"targetedImps", campaign.stats.getTargetedImps(), "untargetedImps", campaign.stats.getOtherImps(),
+					"budget", campaign.budget, "revenue", campaign.revenue, "impCost", campaign.stats.getCost(),
+					"estImpCost", campaign.estImpCost, "ucsCost", campaign.ucsCost, "profit", campaign.profit,
+					"profitEstimate", campaign.profitEstimate, "qualityChange", campaign.qualityChange);
+
+			/* Currently not properly implemented game overview
+			System.out.printf(
+				"Day %d: Performance Report (%d Campaigns complete)_____________________________\n" +
+				"    Revenue:%.3f \n" +
+				"    Profit:%.3f (per Imp(millis):%.3f) Estimated profit accuracy:%.3f (uncorrected:%.3f)\n" +
+				"    bid vs 2nd price ratio: %.2f \n" +
+				"    Estimated cost accuracy: %d%% (impressions:%d%%. Ucs:%d%%) \n" +
+				"    Impression Target Fulfillment:%d%% Reach Fulfillment:%d%% \n",
+				day,performanceData.numCamps,
+				performanceData.revenue,
+				performanceData.profit, performanceData.profitPerImpression*1000, performanceData.estProfitAcc, performanceData.uncorrectedProfitEstimateAcc,
+				performanceData.avBidVs2ndRatio,
+				(long)(performanceData.estCostAcc*100), (long)(performanceData.estImpCostAcc*100), (long)(performanceData.estUcsCostAcc*100),
+				(long)(performanceData.impTargetFulfillment*100), (long)(performanceData.reachFulfillment*100)
+				);*/
 		}
 
 
@@ -411,37 +571,44 @@ public class AgentNAMM extends Agent {
 		 * evaluating and sending both campaign and ucs bids
 		 */
 		pendingCampaign = new CampaignData(com);
-		System.out.println("Day " + day + ": Campaign opportunity" + pendingCampaign);
+		AgentLog.CAMPAIGN.info("Day %d: Campaign opportunity%s", day, String.valueOf(pendingCampaign));
 
 		ImpressionCostEstimator();
 
 		// TODO ALUN ALUN
-		ucsPerceptron += ucsAlpha*(0.8-adNetworkDailyNotification.getServiceLevel())/0.8;
+		// No service level is known before the game's first daily notification
+		if (adNetworkDailyNotification != null) {
+			ucsPerceptron += ucsAlpha*(0.8-adNetworkDailyNotification.getServiceLevel())/0.8;
+		}
 
 
-		System.out.println(" ~~ UCS perceptron: " + ucsPerceptron + " Reach perceptron: " + reachPerceptron + " Profitable Perceptron: " + profitablePerceptron);
+		if (AgentLog.CAMPAIGN.fine()) {
+			AgentLog.CAMPAIGN.fine(" ~~ UCS perceptron: %s Reach perceptron: %s Profitable Perceptron: %s",
+					String.valueOf(ucsPerceptron), String.valueOf(reachPerceptron),
+					String.valueOf(profitablePerceptron));
+		}
 		long cmpimps = com.getReachImps();
-		int startDays = 5;
+		int startDays = parameters.getInt(StrategyParameters.Key.START_DAYS);
 		// Starting strategy for first few days
 		if (day <= startDays) {
 			cmpBid = campaignStartingStrategy();
 		}
 		// Quality recovery when quality is too low
-		else if (adNetworkDailyNotification.getQualityScore() < 1) { // Condition for Quality strategy
+		else if (qualityScore() < 1) { // Condition for Quality strategy
 			cmpBid = campaignQualityRecoveryStrategy();
 		}
 		else cmpBid = campaignProfitStrategy();
-		System.out.println("Day " + day + ": Campaign - Bid: " + (long)(cmpBid*1000));
+		AgentLog.CAMPAIGN.fine("Day %d: Campaign - Bid: %d", day, (long)(cmpBid*1000));
 		// If bid is too high, just bid the maximum value.
-		if (cmpBid >= bidTooHigh(cmpimps, 95)) {
-			cmpBid = 0.001 * cmpimps * adNetworkDailyNotification.getQualityScore() - 0.001;
-			System.out.print(" " + (long)(cmpBid*1000) + "-too high!");
+		if (cmpBid >= bidTooHigh(cmpimps, parameters.getInt(StrategyParameters.Key.HIGH_BID_FAILURE))) {
+			cmpBid = 0.001 * cmpimps * qualityScore() - 0.001;
+			AgentLog.CAMPAIGN.fine(" %d-too high!", (long)(cmpBid*1000));
 		}
 		// If bid is too low, bid the "minimum value"
-		double lowBid = bidTooLow(cmpimps, 30);
+		double lowBid = bidTooLow(cmpimps, parameters.getInt(StrategyParameters.Key.LOW_BID_CONFIDENCE));
 		if (cmpBid <= lowBid) {
 			cmpBid = lowBid + 0.001;
-			System.out.println(" " + (long)(cmpBid*1000) + "-too low!");
+			AgentLog.CAMPAIGN.fine(" %d-too low!", (long)(cmpBid*1000));
 		}
 		/*
 		 * The campaign requires com.getReachImps() impressions. The competing
@@ -463,20 +630,23 @@ public class AgentNAMM extends Agent {
 			double ucsLevel = adNetworkDailyNotification.getServiceLevel();
 			//ucsBid = 0.1 + random.nextDouble()/10.0;
 			ucsBid = ucsBidCalculator(1);
-			System.out.println("Day " + day + ": ucs level reported: " + ucsLevel);
+			AgentLog.UCS.info("Day %d: ucs level reported: %s", day, ucsLevel);
 		} else {
-			System.out.println("Day " + day + ": Initial ucs bid is " + ucsBid);
+			AgentLog.UCS.info("Day %d: Initial ucs bid is %s", day, ucsBid);
 		}
 
 		/* Note: Campaign bid is in millis */
-		System.out.println("Day " + day + ": Submitting Campaign bid (millis): " + (long)(cmpBid*1000));
-		System.out.println("Day " + day + ": Submitting UCS service bid: " + ucsBid);
+		AgentLog.CAMPAIGN.info("Day %d: Submitting Campaign bid (millis): %d", day, (long)(cmpBid*1000));
+		AgentLog.UCS.info("Day %d: Submitting UCS service bid: %s", day, ucsBid);
+		AgentLog.CAMPAIGN.daily(getName(), gameId(), day, "campaignBid", "campaign", pendingCampaign.id,
+				"reachImps", pendingCampaign.reachImps, "cmpBidMillis", (long)(cmpBid*1000), "ucsBid", ucsBid);
 		AdNetBidMessage bids = new AdNetBidMessage(ucsBid, pendingCampaign.id, (long)(cmpBid*1000));
 		sendMessage(demandAgentAddress, bids);
 		/* TODO ALUN: Fix bug where day 0 isn't bid for
 		 *	- Harder than expected the error moves position on the first day of each run
 		 */
 
+		bidInputArrived(BID_INPUT_OPPORTUNITY);
 	}
 
 	/**
@@ -489,12 +659,12 @@ public class AgentNAMM extends Agent {
 			AdNetworkDailyNotification notificationMessage) {
 
 		////////////////////////////////////////////////////////////////////////////////////////////////////////////
-		campaignsInGame.put(pendingCampaign.id, pendingCampaign);
+		addGameCampaign(pendingCampaign);
 		/////////////////////////////////////////////////////////////////////////////////////////////////////////
 
 		adNetworkDailyNotification = notificationMessage;
-		System.out.println("Day " + day + ": Daily notification for campaign "
-				+ adNetworkDailyNotification.getCampaignId());
+		AgentLog.REPORT.info("Day %d: Daily notification for campaign %d", day,
+				adNetworkDailyNotification.getCampaignId());
 
 		String campaignAllocatedTo = " allocated to "
 				+ notificationMessage.getWinner();
@@ -510,7 +680,7 @@ public class AgentNAMM extends Agent {
 			genCampaignQueries(currCampaign);
 			// Test for impressionTarget function
 			pendingCampaign.setImpressionTargets();
-			myCampaigns.put(pendingCampaign.id, pendingCampaign);
+			addMyCampaign(pendingCampaign);
 
 			campaignAllocatedTo = " WON at cost (Millis)"
 					+ notificationMessage.getCostMillis();
@@ -518,29 +688,37 @@ public class AgentNAMM extends Agent {
 
 		}
 
-		System.out.println("Day " + day + ": " + campaignAllocatedTo
-				+ ". UCS Level set to " + notificationMessage.getServiceLevel()
-				+ " at price " + notificationMessage.getPrice()
-				+ " Quality Score is: " + notificationMessage.getQualityScore());
+		AgentLog.REPORT.info("Day %d: %s. UCS Level set to %s at price %s Quality Score is: %s", day,
+				campaignAllocatedTo, notificationMessage.getServiceLevel(), notificationMessage.getPrice(),
+				notificationMessage.getQualityScore());
+		AgentLog.REPORT.daily(getName(), gameId(), day, "dailyNotification", "campaign", notificationMessage.getCampaignId(),
+				"winner", notificationMessage.getWinner(), "costMillis", notificationMessage.getCostMillis(),
+				"ucsLevel", notificationMessage.getServiceLevel(), "ucsPrice", notificationMessage.getPrice(),
+				"quality", notificationMessage.getQualityScore());
 
 		// Attribute the ucs cost to any running campaigns.
-		int ongoingCamps = 0;
-		// count the number of ongoing campaigns
-		for (Map.Entry<Integer, CampaignData> entry : myCampaigns.entrySet()) {
-			CampaignData campaign = entry.getValue();
-			if( (day <= campaign.dayEnd) && (day >= campaign.dayStart)){
-				ongoingCamps ++;
-			}
-		}
+		List<CampaignData> ongoingCamps = myCampaignDays.activeOn(day);
 		// send each campaign an even split of ucs cost
-		for (Map.Entry<Integer, CampaignData> entry : myCampaigns.entrySet()) {
-			CampaignData campaign = entry.getValue();
-			if( (day <= campaign.dayEnd) && (day >= campaign.dayStart)){
-				campaign.ucsCost += notificationMessage.getPrice() / ongoingCamps;
-			}
+		for (CampaignData campaign : ongoingCamps) {
+			campaign.ucsCost += notificationMessage.getPrice() / ongoingCamps.size();
 		}
 
+		bidInputArrived(BID_INPUT_DAILY_NOTIFICATION);
+	}
+
+	/**
+	 * Quality score of the last daily notification; 1.0, the score every agent starts a game with, until the first
+	 * notification of the game arrives.
+	 */
+	private double qualityScore() {
+		return adNetworkDailyNotification == null ? 1.0 : adNetworkDailyNotification.getQualityScore();
+	}
 
+	/**
+	 * User classification service level of the last daily notification, 1.0 before the first one.
+	 */
+	private double serviceLevel() {
+		return adNetworkDailyNotification == null ? 1.0 : adNetworkDailyNotification.getServiceLevel();
 	}
 
 	/**
@@ -549,13 +727,52 @@ public class AgentNAMM extends Agent {
 	 * to the AdX.
 	 */
 	private void handleSimulationStatus(SimulationStatus simulationStatus) {
-		System.out.println("Day " + day + " : Simulation Status Received");
-		System.out.println("###SIMSTAT### " + simulationStatus.toString());
+		AgentLog.AGENT.info("Day %d : Simulation Status Received", day);
+		AgentLog.AGENT.fine("###SIMSTAT### %s", simulationStatus);
 		sendBidAndAds();
-		System.out.println("Day " + day + " ended. Starting next day");
+		AgentLog.AGENT.info("Day %d ended. Starting next day", day);
 		++day;
+		bidInputsReceived = 0;
+	}
+
+	/**
+	 * Records that one of the messages the bid bundle depends on has arrived. Once all of them are in for the
+	 * day, tomorrow's bundle is built right away; any later input rebuilds it, so the bundle waiting for
+	 * SimulationStatus always reflects the latest data.
+	 */
+	private void bidInputArrived(int input) {
+		bidInputsReceived |= input;
+		bidInputsVersion++;
+		if ((bidInputsReceived & BID_INPUTS_ALL) == BID_INPUTS_ALL) {
+			events.derive(speculativeBuild);
+		}
 	}
 
+	/*
+	 * Derived stage of the event pipeline: runs once the messages received so far have been handled, so a burst of
+	 * inputs builds the bundle once. By then SimulationStatus may have ended the day, or the bundle be up to date.
+	 */
+	private final Runnable speculativeBuild = new Runnable() {
+		@Override
+		public void run() {
+			if ((bidInputsReceived & BID_INPUTS_ALL) != BID_INPUTS_ALL
+					|| speculativeBundle != null && speculativeDay == day && speculativeVersion == bidInputsVersion) {
+				return;
+			}
+			long start = System.nanoTime();
+			try {
+				speculativeBundle = buildBidBundle(Long.MAX_VALUE);
+				speculativeDay = day;
+				speculativeVersion = bidInputsVersion;
+				AgentLog.BID.info("#####BIDBUNDLE##### Day %d: speculative bundle built in %d ms", day,
+						(System.nanoTime() - start) / 1000000);
+			} catch (RuntimeException ex) {
+				// Left to SimulationStatus, which builds the bundle again
+				AgentLog.BID.warning("#####BIDBUNDLE##### Day %d: speculative build failed: %s", day, ex);
+			}
+		}
+	};
+
 	/**
 	 * Miguel
 	 * Wrote additional code to the existing one to apply the impression bid strategy.
@@ -564,6 +781,54 @@ public class AgentNAMM extends Agent {
 	 * a baseline gathered from test games with dummy agents and previous version of this agent.
 	 */
 	protected void sendBidAndAds() {
+		long start = System.nanoTime();
+		String used;
+		if (speculativeBundle != null && speculativeDay == day && speculativeVersion == bidInputsVersion) {
+			bidBundle = speculativeBundle;
+			used = "speculative";
+		} else {
+			AdxBidBundle built = buildBidBundle(start + BID_BUILD_BUDGET_MILLIS * 1000000);
+			if (built != null) {
+				bidBundle = built;
+				used = "full";
+			} else if (speculativeBundle != null && speculativeDay == day) {
+				// Built from slightly older inputs of the same day
+				bidBundle = speculativeBundle;
+				used = "fallback (stale speculative)";
+			} else if (bidBundle != null) {
+				used = "fallback (previous day)";
+			} else {
+				// Nothing to fall back on: finish the build late rather than not bidding
+				bidBundle = buildBidBundle(Long.MAX_VALUE);
+				used = "full (over budget)";
+			}
+		}
+		speculativeBundle = null;
+		long millis = (System.nanoTime() - start) / 1000000;
+		AgentLog.BID.info("#####BIDBUNDLE##### Day %d: sending %s bundle after %d ms", day, used, millis);
+		AgentLog.BID.daily(getName(), gameId(), day, "bidBundle", "source", used, "millis", millis,
+				"entries", bidBundle == null ? 0 : bidBundle.size(), "ucsBid", ucsBid,
+				"activeCampaigns", myCampaignDays == null ? 0 : myCampaignDays.activeOn(day).size());
+
+		if (bidBundle != null) {
+			AgentLog.BID.info("Day %d: Sending BidBundle", day);
+			bidBundles.sent(bidBundle);
+			sendMessage(adxAgentAddress, bidBundle);
+			handlerTimings.bundleSent();
+		}
+	}
+
+	/**
+	 * Builds the bid bundle for tomorrow from the current state. Does not change any agent state (only the bundle
+	 * builder's cache), so it can be called speculatively. The bundle may be the one returned by the previous call,
+	 * updated or unchanged. Returns null if System.nanoTime() passes deadline before every query is priced.
+	 *
+	 * Strategy: each campaign bids only on the queries of its own target segment, and a campaign without today's
+	 * impression cost estimate (one starting tomorrow) does not bid. The agent of the competition put an entry for
+	 * every campaign active today on the queries of the current campaign, so it bid for campaigns outside their
+	 * segment; replays of games with several campaigns running at once (113, 114, 117) differ from it.
+	 */
+	AdxBidBundle buildBidBundle(long deadline) {
 
 		/**
 		 * Block below was not used. Instead, other blocks were used to store the AdNet report.
@@ -573,48 +838,88 @@ public class AgentNAMM extends Agent {
 		// csvWriter = new FileWriter("c:\\temp\\queries.csv");
 		// StringBuilder csvLine = new StringBuilder();
 
-		bidBundle = new AdxBidBundle();
+		bidBundles.begin();
 		int dayBiddingFor = day + 1;
-		double rbid = 10000.0;
 
 		/**
-		 * add bid entries w.r.t. each active campaign with remaining contracted cmpBidMillis
-		 * impressions.
-		 *
-		 * for now, a single entry per active campaign is added for queries of
-		 * matching target segment.
+		 * add bid entries w.r.t. each campaign running tomorrow with remaining contracted
+		 * impressions, for the queries of its own target segment. The query x campaign match
+		 * matrix gives the matching campaigns of every query, so a single pass over the
+		 * matching queries builds the bundle for all campaigns.
 		 */
+		biddingCampaigns.clear();
+		List<CampaignData> runningTomorrow = myCampaignDays.activeOn(dayBiddingFor);
+		for (int i = 0; i < runningTomorrow.size(); i++) {
+			CampaignData campaign = runningTomorrow.get(i);
+			// Campaigns starting tomorrow have no impression cost estimate yet and would only bid 0
+			if (campaign.impsTogo() > 0 && campaign.impCostEstThisDay > 0) {
+				biddingCampaigns.add(campaign);
+			}
+		}
+		int nBidding = biddingCampaigns.size();
+		if (nBidding > 0) {
+			if (biddingMasks.length < nBidding) {
+				biddingMasks = new int[2 * nBidding];
+				biddingImpsTogo = new int[2 * nBidding];
+				biddingEntries = new int[2 * nBidding];
+				biddingBids = new double[2 * nBidding];
+			}
+			double impBidFactor = parameters.get(StrategyParameters.Key.IMP_BID_FACTOR);
+			for (int c = 0; c < nBidding; c++) {
+				CampaignData campaign = biddingCampaigns.get(c);
+				biddingMasks[c] = campaign.segmentMask;
+				biddingImpsTogo[c] = campaign.impsTogo();
+				biddingEntries[c] = 0;
+				// This code was changed during the competition. Originally rbid was assigned the outcome of
+				// ImpressionBidCalculator that actually reads from the bid history file to determine a reasonable price
+				// During the competition this was changing too often and calculated prices were not the most accurate.
+				// It is only logged now.
+				// During the competition this was changed to get an initial value similar to the inherited agent
+				// and then adjusted some parameters to have higher chances to win more impression bids.
+				// Part of this implementation was the creation of an algorithm similar to Perceptron.
+				// The bid depends on the campaign only, so it is computed once per campaign.
+				// TODO: ALUN ALUN
+				biddingBids[c] = (campaign.impCostEstThisDay * impBidFactor) * (reachPerceptron * profitablePerceptron);
+			}
+			queryMatrix.build(biddingMasks, nBidding);
 
-		if ((dayBiddingFor >= currCampaign.dayStart)
-				&& (dayBiddingFor <= currCampaign.dayEnd)
-				&& (currCampaign.impsTogo() > 0)) {
-
-			int entCount = 0;
-			int qryCount = 0;
-
+			int entries = 0;
 			/**
 			 * TODO: MB, Consider overachieving campaigns when quality < 1. This was attempted by using the history bid file.
 			 */
-			for (AdxQuery query : currCampaign.campaignQueries) {
-				if (currCampaign.impsTogo() - entCount > 0) {
-					//System.out.println("###QUERY### " + query.toString());
+			for (int row = 0; row < queryMatrix.rows(); row++) {
+				// Every 8 rows: reading the clock costs as much as pricing a row
+				if ((row & 7) == 0 && System.nanoTime() > deadline) {
+					return null;
+				}
+				int queryIndex = queryMatrix.query(row);
+				AdxQuery query = queryTemplates.query(queryIndex);
+				boolean pc = queryTemplates.pc(queryIndex);
+				boolean text = queryTemplates.text(queryIndex);
+				for (int k = queryMatrix.start(row); k < queryMatrix.end(row); k++) {
+					int c = queryMatrix.column(k);
+					if (biddingImpsTogo[c] - biddingEntries[c] <= 0) {
+						continue;
+					}
+					CampaignData campaign = biddingCampaigns.get(c);
+					int qryCount = biddingEntries[c];
 					/**
 					 * among matching entries with the same campaign id, the AdX
 					 * randomly chooses an entry according to the designated
 					 * weight. by setting a constant weight 1, we create a
-					 * uniform probability over active campaigns(irrelevant because we are bidding only on one campaign)
+					 * uniform probability over the campaign's entries
 					 */
-					if (query.getDevice() == Device.pc) {
-						if (query.getAdType() == AdType.text) {
-							entCount++;
+					if (pc) {
+						if (text) {
+							biddingEntries[c]++;
 						} else {
-							entCount += currCampaign.videoCoef;
+							biddingEntries[c] += campaign.videoCoef;
 						}
 					} else {
-						if (query.getAdType() == AdType.text) {
-							entCount+=currCampaign.mobileCoef;
+						if (text) {
+							biddingEntries[c] += campaign.mobileCoef;
 						} else {
-							entCount += currCampaign.videoCoef + currCampaign.mobileCoef;
+							biddingEntries[c] += campaign.videoCoef + campaign.mobileCoef;
 						}
 					}
 					/*
@@ -646,55 +951,46 @@ public class AgentNAMM extends Agent {
 					}
 					double proportionReachMet = reachMet/reachUnmet; */
 
-
-
-					for (Map.Entry<Integer, CampaignData> entry : myCampaigns.entrySet()) {
-						CampaignData campaign = entry.getValue();
-						if ((campaign.dayStart <= day) & (campaign.dayEnd >= day)) {
-							// This code was changed during the competition. Originally rbid was assigned the outcome of
-							// ImpressionBidCalculator that actually reads from the bid history file to determine a reasonable price
-							// During the competition this was changing too often and calculated prices were not the most accurate.
-							double rbidOld = ImpressionBidCalculator(entCount - qryCount, query);
-							// During the competition this was changed to get an initial value similar to the inherited agent
-							// and then adjusted some parameters to have higher chances to win more impression bids.
-							// Part of this implementation was the creation of an algorithm similar to Perceptron.
-							rbid = campaign.impCostEstThisDay * 500;
-							// TODO: ALUN ALUN
-							rbid = rbid * (reachPerceptron * profitablePerceptron);
-							System.out.println("old " + rbidOld + " new " + rbid);
-							bidBundle.addQuery(query, rbid, new Ad(null), campaign.id, 1);
-							System.out.println("#####SENDBIDANDADS##### BidVal:" + rbid + " PPM:" + rbid / (entCount - qryCount) + ", IMPCOSTEST:" + campaign.impCostEstThisDay);
-
-							double impressionLimit = campaign.impsTogo();
-							double budgetLimit = campaign.budget;
-							bidBundle.setCampaignDailyLimit(campaign.id,
-									(int) impressionLimit, budgetLimit);
-						}
+					double rbid = biddingBids[c];
+					bidBundles.bid(query, rbid, campaign.id, 1);
+					entries++;
+					if (AgentLog.BID.fine()) {
+						int impressions = biddingEntries[c] - qryCount;
+						AgentLog.BID.fine("old %s new %s", ImpressionBidCalculator(impressions, query), rbid);
+						AgentLog.BID.fine("#####SENDBIDANDADS##### BidVal:%s PPM:%s, IMPCOSTEST:%s", rbid,
+								rbid / impressions, campaign.impCostEstThisDay);
 					}
-					//System.out.println("###QUERY### " + query.toString() + ", CampaingId: " + currCampaign.id);
-					qryCount = entCount;
 				}
 			}
 
+			for (int c = 0; c < nBidding; c++) {
+				if (biddingEntries[c] > 0) {
+					CampaignData campaign = biddingCampaigns.get(c);
+					double impressionLimit = biddingImpsTogo[c];
+					double budgetLimit = campaign.budget;
+					bidBundles.campaignLimit(campaign.id,
+							(int) impressionLimit, budgetLimit);
+				}
+			}
 
-			System.out.println("Day " + day + " Bid Bundle: Updated " + entCount
-					+ " Bid Bundle entries for Campaign id " + currCampaign.id);
-			log.log(Level.ALL, "## Bid Bundle ##; currCampaign: " + currCampaign.id + "; " + (long)currCampaign.budget);
+			// Guarded: the boxed arguments and the concatenation were all a rebuilt bundle allocated
+			if (AgentLog.BID.on(Level.INFO)) {
+				AgentLog.BID.info("Day %d Bid Bundle: Updated %d Bid Bundle entries for %d campaigns", day, entries,
+						nBidding);
+			}
+			if (log.isLoggable(Level.ALL)) {
+				log.log(Level.ALL, "## Bid Bundle ##; campaigns: " + nBidding + "; entries: " + entries);
+			}
 		}
 
-		if (bidBundle != null) {
-			System.out.println("Day " + day + ": Sending BidBundle");
-			sendMessage(adxAgentAddress, bidBundle);
-
-			/*for (Map.Entry<Integer, CampaignData> campaign : myCampaigns.entrySet()) {
-				System.out.println("-----------------------------------------------------------------------------------------------------------------");
-				System.out.println("CAMPAIGN" + campaign.getValue().id + "-->"+ "reachImps = "+campaign.getValue().reachImps +";  dayStart = " + campaign.getValue().dayStart + ";  dayEnd = "+ campaign.getValue().dayEnd + ";  TargetSegmentSize = " + MarketSegment.usersInMarketSegments().get(campaign.getValue().targetSegment));//  campaign.getValue().targetSegment.hashCode() );
-				System.out.println("----CAMPAIGN" + campaign.getValue().id + "-->  Popularity:" + campaign.getValue().popInSegmentOfOurCampaign + ". ReservePrice Estimated:" + campaign.getValue().ReservePriceEstimated + ", ReservePrice Today" + campaign.getValue().ReservePriceThisDay + ". IMPRESSION COST ESTIMATE TODAY:" + campaign.getValue().impCostEstThisDay + "------");
-				System.out.println("-----------------------------------------------------------------------------------------------------------------");
-			}*/
-
+		/*for (Map.Entry<Integer, CampaignData> campaign : myCampaigns.entrySet()) {
+			System.out.println("-----------------------------------------------------------------------------------------------------------------");
+			System.out.println("CAMPAIGN" + campaign.getValue().id + "-->"+ "reachImps = "+campaign.getValue().reachImps +";  dayStart = " + campaign.getValue().dayStart + ";  dayEnd = "+ campaign.getValue().dayEnd + ";  TargetSegmentSize = " + MarketSegment.usersInMarketSegments().get(campaign.getValue().targetSegment));//  campaign.getValue().targetSegment.hashCode() );
+			System.out.println("----CAMPAIGN" + campaign.getValue().id + "-->  Popularity:" + campaign.getValue().popInSegmentOfOurCampaign + ". ReservePrice Estimated:" + campaign.getValue().ReservePriceEstimated + ", ReservePrice Today" + campaign.getValue().ReservePriceThisDay + ". IMPRESSION COST ESTIMATE TODAY:" + campaign.getValue().impCostEstThisDay + "------");
+			System.out.println("-----------------------------------------------------------------------------------------------------------------");
+		}*/
 
-		}
+		return bidBundles.finish();
 	}
 
 	/**
@@ -713,21 +1009,23 @@ public class AgentNAMM extends Agent {
 					campaignKey).getCampaignStats();
 			myCampaigns.get(cmpId).setStats(cstats);
 
-			System.out.println("Day " + day + ": Updating campaign " + cmpId + " stats: "
-					+ cstats.getTargetedImps() + " tgtImps "
-					+ cstats.getOtherImps() + " nonTgtImps. Cost of imps is "
-					+ cstats.getCost());
+			AgentLog.REPORT.info("Day %d: Updating campaign %d stats: %s tgtImps %s nonTgtImps. Cost of imps is %s",
+					day, cmpId, cstats.getTargetedImps(), cstats.getOtherImps(), cstats.getCost());
 		}
+		bidInputArrived(BID_INPUT_CAMPAIGN_REPORT);
 	}
 	/**
 	 * Users and Publishers statistics: popularity and ad type orientation
 	 */
 	private void handleAdxPublisherReport(AdxPublisherReport adxPublisherReport) {
-		System.out.println("Publishers Report: ");
+		if (!AgentLog.REPORT.fine()) {
+			return;
+		}
+		AgentLog.REPORT.fine("Publishers Report: ");
 		for (PublisherCatalogEntry publisherKey : adxPublisherReport.keys()) {
 			AdxPublisherReportEntry entry = adxPublisherReport
 					.getEntry(publisherKey);
-			System.out.println(entry.toString());
+			AgentLog.REPORT.fine(entry.toString());
 		}
 	}
 
@@ -737,44 +1035,218 @@ public class AgentNAMM extends Agent {
 	 */
 	private void handleAdNetworkReport(AdNetworkReport adnetReport) {
 		AdNetworkReportEntry repEntry;
-		System.out.println("Day " + day + " : AdNetworkReport:   ");
+		AgentLog.REPORT.info("Day %d : AdNetworkReport:   ", day);
 		for (AdNetworkKey adKey : adnetReport.keys()) {
 			repEntry = adnetReport.getEntry(adKey);
 			if(repEntry.getCost() > 0.0001) {
-				impressionBidHistory.impressionList.add(new ImpressionRecord(repEntry));
+				impressionBidHistory.add(repEntry);
 			}
 		}
-		System.out.println("#####BIDIMPRHISTORY##### NItems " + impressionBidHistory.impressionList.size() +
-				"\n   ### Male stats: " + impressionBidHistory.getStatsPerSegment(MarketSegment.MALE, null, null).toString() +
-				"\n   ### Female-HighIncome stats: " + impressionBidHistory.getStatsPerSegment(MarketSegment.FEMALE, null, MarketSegment.HIGH_INCOME).toString());
+		if (AgentLog.STATS.fine()) {
+			AgentLog.STATS.fine("#####BIDIMPRHISTORY##### NItems %d\n   ### Male stats: %s\n   ### Female-HighIncome stats: %s",
+					impressionBidHistory.size(),
+					impressionBidHistory.getStatsPerSegment(MarketSegment.MALE, null, null).toString(),
+					impressionBidHistory.getStatsPerSegment(MarketSegment.FEMALE, null, MarketSegment.HIGH_INCOME).toString());
+		}
+		bidInputArrived(BID_INPUT_ADNET_REPORT);
 	}
 
 	@Override
 	protected void simulationSetup() {
+		events.publish(Lifecycle.SETUP);
+	}
+
+	private void setupGame() {
+		instanceStats.gameStarted(getName());
+		handlerTimings.register(getName());
+		resetGameState();
+		log.fine("AdNet " + getName() + " simulationSetup");
+
+		// The impression bid history is the baseline for game bids. It was prefetched in the background; if it is
+		// not ready yet the game starts with an empty history (default bid statistics) and the snapshot is
+		// installed by the first message received after it arrives.
+		impressionBidHistory.reset();
+		if (historySnapshot != null) {
+			historySnapshot.release();
+			historySnapshot = null;
+		}
+		historicCampaignsLoaded = false;
+		if (pendingHistory == null) {
+			prefetchHistory();
+		}
+		installHistoryIfReady();
+		if (historySnapshot == null) {
+			AgentLog.HISTORY.info("#####HISTORYIO##### History not ready at setup, using defaults until it arrives");
+		}
+	}
+
+	/**
+	 * Puts every field that describes one game back to its state before the first game, so a game plays the same
+	 * whatever this instance played before. What is kept between games is the history and buffers reused for
+	 * speed. The query space is rebuilt from each game's publisher catalog, which is not the same in every game.
+	 */
+	private void resetGameState() {
+		startInfo = null;
+		publisherCatalog = null;
+		publisherNames = null;
+		queries = null;
+		queryTemplates = null;
+		queryMatrix = null;
+		initialCampaignMessage = null;
+		adNetworkDailyNotification = null;
+		demandAgentAddress = null;
+		adxAgentAddress = null;
+		campaignReports.clear();
 
 		day = 0;
-		bidBundle = new AdxBidBundle();
+		bidBundle = null;
+		speculativeBundle = null;
+		speculativeDay = -1;
+		bidInputsReceived = 0;
 
 		/* initial bid between 0.1 and 0.2 */
 		ucsBid = 0.2;
-
+		ucsTargetLevel = 0;
+		ucsPerceptron = 0;
+		profitablePerceptron = 0;
+		reachPerceptron = 1;
+		quality = 1;
+		cmpBid = 0;
+		cmpBidPerImp = parameters.get(StrategyParameters.Key.CMP_BID_PER_IMP);
+
+		pendingCampaign = null;
+		currCampaign = null;
+		performanceData = null;
 		myCampaigns = new HashMap<Integer, CampaignData>();
+		unprofitableBids.clear();
 		campaignsInGame = new HashMap<Integer, CampaignData>();
-		log.fine("AdNet " + getName() + " simulationSetup");
-
-		// As soon as the simulation starts, the first action is to read the impression bid history to have
-		// a baseline for game bids.
-		impressionBidHistory.loadFile();
+		myCampaignDays = new CampaignDayIndex<CampaignData>();
+		gameCampaignDays = new CampaignDayIndex<CampaignData>();
 	}
 
 	@Override
 	protected void simulationFinished() {
-		// Saves the impression bid history file with updates from the current game
-		impressionBidHistory.saveFile();
-		
-		campaignSaveFile();
+		events.publish(Lifecycle.FINISHED);
+	}
+
+	private void finishGame() {
+		// Collects this game's impression records and campaigns here, then writes them on the I/O thread so the
+		// next game can connect meanwhile. The next prefetch is queued behind the save and will include them.
+		final int simId = startInfo.getSimulationID();
+		final ImpressionHistoryStore.Builder impressions = impressionBidHistory.takeUnsaved();
+		final CampaignLogStore.Builder campaigns = campaignLog();
+		if (historyWritable) {
+			historyIO.submit("save", new Callable<Void>() {
+				@Override
+				public Void call() {
+					impressionBidHistory.saveFile(impressions, simId);
+					campaignSaveFile(campaigns, simId);
+					return null;
+				}
+			});
+		}
+		prefetchHistory();
+		AgentLog.HISTORY.info("#####HISTORYIO##### Phase times:%n%s", historyIO.summary());
+		AgentLog.BID.info("#####BIDBUNDLE##### Bundles: %s", bidBundles.summary());
+		final String timings = handlerTimings.finishGame();
+		AgentLog.STATS.info("#####TIMINGS##### Game %d handler times:%n%s", simId, timings);
+		AgentLog.STATS.info("#####PIPELINE##### Game %d: max queue depth %d, ring stalls %d, speculative builds %d"
+				+ " (%d coalesced)", simId, events.maxDepth(), events.stalls(), events.derivedRuns(),
+				events.derivedReplaced());
+		events.resetMaxDepth();
+		final File timingsDir = AgentLog.timingsDirectory();
+		if (timingsDir != null) {
+			historyIO.submit("timings", new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					HandlerTimings.write(new File(timingsDir, "game" + simId + "-" + getName() + ".tsv"), timings);
+					return null;
+				}
+			});
+		}
+
 		campaignReports.clear();
 		bidBundle = null;
+		instanceStats.gameFinished(impressionBidHistory.gameRecords.size());
+	}
+
+	/**
+	 * Queues the acquisition of the shared history (impressions and campaign log) on the I/O thread. A previous
+	 * prefetch that was never installed is released once the new one has been acquired, so a history that did not
+	 * change is not read again.
+	 */
+	void prefetchHistory() {
+		Future<SharedHistory> previous = pendingHistory;
+		pendingHistory = historyIO.submit("load", new Callable<SharedHistory>() {
+			@Override
+			public SharedHistory call() throws IOException {
+				return SharedHistory.acquire(historyJournal);
+			}
+		});
+		if (previous != null) {
+			releaseWhenDone(previous);
+		}
+	}
+
+	/**
+	 * Gives back the shared history and the JMX registration, for an agent that will not play again. The installed
+	 * history is released at once and a prefetch still being read is released by the I/O thread when it completes.
+	 */
+	void releaseHistory() {
+		handlerTimings.unregister();
+		impressionBidHistory.reset();
+		if (historySnapshot != null) {
+			historySnapshot.release();
+			historySnapshot = null;
+		}
+		if (pendingHistory != null) {
+			releaseWhenDone(pendingHistory);
+			pendingHistory = null;
+		}
+	}
+
+	private void releaseWhenDone(final Future<SharedHistory> pending) {
+		historyIO.submit("release", new Callable<Void>() {
+			@Override
+			public Void call() throws InterruptedException {
+				try {
+					// Tasks run in order, so the load is complete by now
+					pending.get().release();
+				} catch (ExecutionException ex) {
+					// The load failed and holds nothing
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Installs the prefetched history as soon as it is available, without ever waiting for it. Called from the
+	 * message loop, so the snapshot is only touched on the agent thread. If the load failed the game carries on
+	 * with whatever history it collects itself.
+	 */
+	void installHistoryIfReady() {
+		if (historySnapshot == null && pendingHistory != null && pendingHistory.isDone()) {
+			long start = System.nanoTime();
+			try {
+				historySnapshot = pendingHistory.get();
+			} catch (InterruptedException | ExecutionException ex) {
+				AgentLog.HISTORY.warning("#####LOADFILE##### EXCEPTION WHEN READING THE HISTORY FILE!!!!!!", ex);
+				historySnapshot = SharedHistory.empty();
+			}
+			pendingHistory = null;
+			impressionBidHistory.install(historySnapshot);
+			historyIO.record("install impressions", System.nanoTime() - start);
+			AgentLog.HISTORY.info("#####LOADFILE##### Load file complete: %d (%d older records evicted)",
+					impressionBidHistory.size(), historySnapshot.evictedCount());
+		}
+		if (historySnapshot != null && !historicCampaignsLoaded) {
+			long start = System.nanoTime();
+			historicCampaigns.load(historySnapshot);
+			historicCampaignsLoaded = true;
+			historyIO.record("install campaigns", System.nanoTime() - start);
+			AgentLog.HISTORY.info("Number of Campaigns loaded:%d", historicCampaigns.getNumberOfRecords());
+		}
 	}
 
 	/**
@@ -789,7 +1261,8 @@ public class AgentNAMM extends Agent {
 	 */
 	private void generateAdxQuerySpace() {
 		if (publisherCatalog != null && queries == null) {
-			Set<AdxQuery> querySet = new HashSet<AdxQuery>();
+			// Insertion ordered, so the query order (and what depends on it) is the same in every run
+			Set<AdxQuery> querySet = new LinkedHashSet<AdxQuery>();
 
 			/*
 			 * for each web site (publisher) we generate all possible variations
@@ -851,36 +1324,42 @@ public class AgentNAMM extends Agent {
 		}
 	}
 	/*
-	 * generates the campaign queries relevant for the specific campaign, and assign them as the campaigns campaignQueries field
+	 * Registers a campaign allocated to our agent, keeping myCampaignDays in step with myCampaigns
 	 */
-	private void genCampaignQueries(CampaignData campaignData) {
-		Set<AdxQuery> campaignQueriesSet = new HashSet<AdxQuery>();
-		for (String PublisherName : publisherNames) {
-			campaignQueriesSet.add(new AdxQuery(PublisherName,
-					campaignData.targetSegment, Device.mobile, AdType.text));
-			campaignQueriesSet.add(new AdxQuery(PublisherName,
-					campaignData.targetSegment, Device.mobile, AdType.video));
-			campaignQueriesSet.add(new AdxQuery(PublisherName,
-					campaignData.targetSegment, Device.pc, AdType.text));
-			campaignQueriesSet.add(new AdxQuery(PublisherName,
-					campaignData.targetSegment, Device.pc, AdType.video));
+	private void addMyCampaign(CampaignData campaignData) {
+		if (myCampaigns.put(campaignData.id, campaignData) == null) {
+			myCampaignDays.add(campaignData, campaignData.dayStart, campaignData.dayEnd);
+		}
+	}
+
+	/*
+	 * Registers a campaign announced in the game, keeping gameCampaignDays in step with campaignsInGame
+	 */
+	private void addGameCampaign(CampaignData campaignData) {
+		if (campaignsInGame.put(campaignData.id, campaignData) == null) {
+			gameCampaignDays.add(campaignData, campaignData.dayStart, campaignData.dayEnd);
 		}
+	}
 
-		campaignData.campaignQueries = new AdxQuery[campaignQueriesSet.size()];
-		campaignQueriesSet.toArray(campaignData.campaignQueries);
-		//System.out.println("!!!!!!!!!!!!!!!!!!!!!!"+Arrays.toString(campaignData.campaignQueries)+"!!!!!!!!!!!!!!!!");
+	/*
+	 * generates the campaign queries relevant for the specific campaign, and assign them as the campaigns campaignQueries field
+	 */
+	private void genCampaignQueries(CampaignData campaignData) {
+		// Shared by every campaign with the same target segment; the order is fixed, bids are accumulated query by query
+		campaignData.campaignQueries = queryTemplates.forSegment(campaignData.targetSegment);
 	}
 
 	/**
 	 * Definition of class Campaign Data which stores all variables and statistics associated with campaigns.
 	 */
-	private class CampaignData {
+	class CampaignData {
 		/* campaign attributes as set by server */
 		int game;
 		Long reachImps;
 		long dayStart;
 		long dayEnd;
 		Set<MarketSegment> targetSegment;
+		int segmentMask; // targetSegment encoded by SegmentMask
 		double videoCoef;
 		double mobileCoef;
 		int id;
@@ -925,6 +1404,7 @@ public class AgentNAMM extends Agent {
 			dayStart = icm.getDayStart();
 			dayEnd = icm.getDayEnd();
 			targetSegment = icm.getTargetSegment();
+			segmentMask = SegmentMask.of(targetSegment);
 			videoCoef = icm.getVideoCoef();
 			mobileCoef = icm.getMobileCoef();
 			id = icm.getId();
@@ -973,6 +1453,7 @@ public class AgentNAMM extends Agent {
 			this.dayStart = dayStart;
 			this.dayEnd = dayEnd;
 			this.targetSegment = targetSegment;
+			this.segmentMask = SegmentMask.of(targetSegment);
 			this.videoCoef = videoCoef;
 			this.mobileCoef = mobileCoef;
 			this.id = id;
@@ -1007,6 +1488,7 @@ public class AgentNAMM extends Agent {
 			id = com.getId();
 			reachImps = com.getReachImps();
 			targetSegment = com.getTargetSegment();
+			segmentMask = SegmentMask.of(targetSegment);
 			mobileCoef = com.getMobileCoef();
 			videoCoef = com.getVideoCoef();
 			stats = new CampaignStats(0, 0, 0);
@@ -1057,15 +1539,11 @@ public class AgentNAMM extends Agent {
 		public void setQualityChange() {
 			// Detects change in quality score from yesterday,
 			// attributes change equally to all campaigns ended in that time
-			System.out.println("Quality:" + adNetworkDailyNotification.getQualityScore() + "yesterday's quality" + quality
-					+ "estimated quality change:" + this.estQualityChange);
-			int count=0;
-			for (Map.Entry<Integer, CampaignData> entry : myCampaigns.entrySet()) {
-				long end = entry.getValue().dayEnd;
-				if (end == day - 1) {count++;}
-			}
-			qualityChange = (adNetworkDailyNotification.getQualityScore() - quality)/count;
-			quality = adNetworkDailyNotification.getQualityScore();
+			AgentLog.CAMPAIGN.fine("Quality:%s yesterday's quality%s estimated quality change:%s",
+					qualityScore(), quality, this.estQualityChange);
+			int count = myCampaignDays.endedOn(day - 1).size();
+			qualityChange = (qualityScore() - quality)/count;
+			quality = qualityScore();
 
 		}
 		public void setEstQualityChangeAcc() {
@@ -1093,7 +1571,7 @@ public class AgentNAMM extends Agent {
 			impTargetFulfillment = (stats.getTargetedImps() + stats.getOtherImps()) / impressionTarget;
 		}
 		public void setBidVs2ndRatio(){
-			bidVs2ndRatio = this.cmpBid * adNetworkDailyNotification.getQualityScore() / budget;
+			bidVs2ndRatio = this.cmpBid * qualityScore() / budget;
 		}
 		public void setProfit(){
 			profit = revenue - stats.getCost();
@@ -1109,25 +1587,72 @@ public class AgentNAMM extends Agent {
 					+ dayEnd + " " + targetSegment + ", reach: " + reachImps
 					+ " coefs: (v=" + videoCoef + ", m=" + mobileCoef + ")";
 		}
-		// ToWrite returns all the stats for writing to CSV files
-		public String toWrite() {
-			return startInfo.getSimulationID() + "," + id + "," + dayStart + "," + dayEnd + "," + reachImps + ","
-					+ targetSegment.toString().replace(',',':') + "," + videoCoef + ","
-					+ mobileCoef + "," + stats.getCost() + "," + stats.getTargetedImps() + "," + stats.getOtherImps() + ","
-					+ budget + "," + revenue  + "," + profitEstimate  + "," + cmpBid + "," + impressionTarget  + "," +
-					uncorrectedProfitEstimate + "," + costEstimate  + "," + estImpCost  + "," +
-					estUcsCost  + "," + qualityChange  + "," + estQualityChange  + "," + ucsCost  + "," + estCostAcc
-					+ "," +estProfitAcc  + "," + uncorrectedProfitAcc + "," + estQualityChangeAcc + "," + impTargetFulfillment
-					+ "," + bidVs2ndRatio + "," + profit + "," + profitPerImpression + "," + reachFulfillment  + "," +
-					estUcsCostAcc;
-		}
-
-		//CSV file header
-		final String FILE_HEADER = "id,dayStart,dayEnd,reachImps,targetSegment,videoCoef,mobileCoef," +
-				"adxCost,targetedImps,untargetedImps,budget,revenue,profitEstimate,cmpBid,impressionTarget," +
-				"uncorrectedProfitEstimate,costEstimate,estImpCost,estUcsCost,qualityChange,estQualityChange," +
-				"ucsCost,estCostAcc,estProfitAcc,uncorrectedProffitAcc,estQualityChangeAcc,impTargetFulfillment," +
-				"bidVs2ndRatio,profit,profitPerImpression,reachFulfillment,estUcsCostAcc";
+		// Adds all the stats as a row of the campaign log
+		public void addTo(CampaignLogStore.Builder log) {
+			double[] values = new double[CampaignLogStore.DOUBLES];
+			values[CampaignLogStore.VIDEO_COEF] = videoCoef;
+			values[CampaignLogStore.MOBILE_COEF] = mobileCoef;
+			values[CampaignLogStore.ADX_COST] = stats.getCost();
+			values[CampaignLogStore.TARGETED_IMPS] = stats.getTargetedImps();
+			values[CampaignLogStore.UNTARGETED_IMPS] = stats.getOtherImps();
+			values[CampaignLogStore.BUDGET] = budget;
+			values[CampaignLogStore.REVENUE] = revenue;
+			values[CampaignLogStore.PROFIT_ESTIMATE] = profitEstimate;
+			values[CampaignLogStore.CMP_BID] = cmpBid;
+			values[CampaignLogStore.UNCORRECTED_PROFIT_ESTIMATE] = uncorrectedProfitEstimate;
+			values[CampaignLogStore.COST_ESTIMATE] = costEstimate;
+			values[CampaignLogStore.EST_IMP_COST] = estImpCost;
+			values[CampaignLogStore.EST_UCS_COST] = estUcsCost;
+			values[CampaignLogStore.QUALITY_CHANGE] = qualityChange;
+			values[CampaignLogStore.EST_QUALITY_CHANGE] = estQualityChange;
+			values[CampaignLogStore.UCS_COST] = ucsCost;
+			values[CampaignLogStore.EST_COST_ACC] = estCostAcc;
+			values[CampaignLogStore.EST_PROFIT_ACC] = estProfitAcc;
+			values[CampaignLogStore.UNCORRECTED_PROFIT_ACC] = uncorrectedProfitAcc;
+			values[CampaignLogStore.EST_QUALITY_CHANGE_ACC] = estQualityChangeAcc;
+			values[CampaignLogStore.IMP_TARGET_FULFILLMENT] = impTargetFulfillment;
+			values[CampaignLogStore.BID_VS_2ND_RATIO] = bidVs2ndRatio;
+			values[CampaignLogStore.PROFIT] = profit;
+			values[CampaignLogStore.PROFIT_PER_IMPRESSION] = profitPerImpression;
+			values[CampaignLogStore.REACH_FULFILLMENT] = reachFulfillment;
+			values[CampaignLogStore.EST_UCS_COST_ACC] = estUcsCostAcc;
+			log.add(startInfo.getSimulationID(), id, dayStart, dayEnd, reachImps, segmentMask, impressionTarget, values);
+		}
+
+		/* Impressions required per day per user of the target segment */
+		double dailyDemandPerUser() {
+			return reachImps / ((double) (dayEnd - dayStart) * SegmentMask.population(segmentMask));
+		}
+
+		/**
+		 * Estimated profit of reaching target, every term evaluated in full: revenue from the ERR,
+		 * effect of the resulting quality change on the rest of the game and cost of the days left.
+		 */
+		double estimateProfit(long target) {
+			double lRate = ImpressionTargetOptimizer.QUALITY_RATE;
+			double ERR = ERRcalc(this, target);
+			double estQuality = (1 - lRate) * qualityScore() + lRate * ERR;
+			return budget * ERR + qualityEffect(this, estQuality) - campaignCost(this, target, false);
+		}
+
+		/**
+		 * Brute force reference for setImpressionTargets: the most profitable of the targets 0.6 to 2
+		 * times the reach in steps of 0.02. Used to check the optimizer.
+		 */
+		long sweepImpressionTargets() {
+			long target = 0;
+			double estProfit = -99999;
+			for (double multiplier = ImpressionTargetOptimizer.MIN_MULTIPLIER;
+					multiplier <= ImpressionTargetOptimizer.MAX_MULTIPLIER; multiplier += 0.02) {
+				long tempTarget = (long)(this.reachImps*multiplier);
+				double tempEstProfit = estimateProfit(tempTarget);
+				if (tempEstProfit > estProfit) {
+					target = tempTarget;
+					estProfit = tempEstProfit;
+				}
+			}
+			return target;
+		}
 
 		int impsTogo() {
 			return (int) Math.max(0, reachImps - stats.getTargetedImps());
@@ -1146,43 +1671,33 @@ public class AgentNAMM extends Agent {
 		/**
 		 * Calculates an estimate for impression targets (and profit) to maximise estimated profit.
 		 * Considers the effect of short term cost of the campaign, long term effect of quality change
-		 * and inaccuracies in previous predictions. By evaluating estimated profits for a variety of
-		 * different impression targets.
+		 * and inaccuracies in previous predictions. The target is chosen to one impression by
+		 * {@link ImpressionTargetOptimizer}, from the cost and quality terms of today, while the cost
+		 * estimators have the form it assumes (see closedFormApplies); otherwise by the sweep.
 		 */
-		private void setImpressionTargets() {
-			long target = 0;
-			double estProfit = -99999, ERR, estQuality = 0, estCost = 0;
-			// Consider a range of possible impression targets
-			for (double multiplier = 0.6; multiplier <= 2; multiplier+= 0.02){ // loop over range of impression targets
-				long tempTarget = (long)(this.reachImps*multiplier);
-
-				// Estimate quality change
-				double currentQuality = adNetworkDailyNotification.getQualityScore();
-				double lRate = 0.6, Budget;
-				ERR = ERRcalc(this, target);
-				double tempEstQuality = (1 - lRate)*currentQuality + lRate*ERR;
-
-				// If we haven't won the campaign yet estimate the budget.
-				if (this.budget != 0){ Budget = this.budget; }
-				else Budget = 0; //TODO ALUN: mean budget/impression from past * impressions;
-				// Budget = sliding scale of historic average budget to game average budget
-				// Go from 100% historical to 50% historical
-				// Evaluate per impression then multiply by number of impressions
-				// Loop over entries in the game and calculate an average
-				// Loop over entries in the history and take an average
-
-
-				// Estimate cost to run campaign at this level
-				double tempEstCost = campaignCost(this, tempTarget, false);
-				double tempEstProfit = Budget * ERR + qualityEffect(this, estQuality) - tempEstCost;
-
-				// Decide which impression target is most cost efficient
-				if (tempEstProfit > estProfit) {
-					target = tempTarget;
-					estProfit = tempEstProfit;
-					estCost = tempEstCost;
-					estQuality = tempEstQuality;
-				}
+		void setImpressionTargets() {
+			ImpressionTargetOptimizer optimizer = impressionTargetOptimizer(this);
+			long target;
+			double estProfit;
+			double estQuality;
+			double estCost;
+			if (closedFormApplies(this, optimizer)) {
+				target = optimizer.optimize();
+				estProfit = optimizer.profit(target);
+				estQuality = optimizer.quality(target);
+				estCost = optimizer.cost(target);
+			} else {
+				target = sweepImpressionTargets();
+				estProfit = estimateProfit(target);
+				estQuality = (1 - ImpressionTargetOptimizer.QUALITY_RATE) * qualityScore()
+						+ ImpressionTargetOptimizer.QUALITY_RATE * ERRcalc(this, target);
+				estCost = campaignCost(this, target, false);
+			}
+			if (!(estProfit > -99999)) {
+				target = 0;
+				estProfit = -99999;
+				estQuality = 0;
+				estCost = 0;
 			}
 
 			// Save ucs cost and impression cost estimate to the campaign.
@@ -1193,12 +1708,9 @@ public class AgentNAMM extends Agent {
 			double cumProfitEstimate = 0.0;
 			double cumProfit = 0.0;
 			// calculate total profit and estimated profit from ended campaigns.
-			for (Map.Entry<Integer, CampaignData> entry : myCampaigns.entrySet()) {
-				if (entry.getValue().dayEnd < day){
-					CampaignData campaign = entry.getValue();
-					cumProfit += campaign.profit;
-					cumProfitEstimate += campaign.uncorrectedProfitEstimate;
-				}
+			for (CampaignData campaign : myCampaignDays.endedBefore(day)) {
+				cumProfit += campaign.profit;
+				cumProfitEstimate += campaign.uncorrectedProfitEstimate;
 			}
 			// error factor: ratio between average profit and average estimated profit
 			double profitError = cumProfit / cumProfitEstimate;
@@ -1213,48 +1725,28 @@ public class AgentNAMM extends Agent {
 	/**
 	 * Class for storing campaign data from previous games to be used in historic calculations
 	 */
-	private class historicCampaignData {
+	class historicCampaignData {
 
-		public ArrayList<CampaignData> historicCampaigns;
-
-		public historicCampaignData() {
-			historicCampaigns = new ArrayList<>();
-		}
+		/* Bid per delivered impression of unprofitable campaigns, and bid per reach impression of campaigns won by
+		 * bidding, taken from the shared history */
+		private BidPercentiles unprofitableBids = new BidPercentiles();
+		private BidPercentiles wonBids = new BidPercentiles();
+		private int records;
 
 		public int getNumberOfRecords() {
-			return historicCampaigns.size();
-		}
-
-		public CampaignData getValue(int i) {
-			return historicCampaigns.get(i);
+			return records;
 		}
 
 		// Calculates the Xth% quantile
 		// Allows for flexible conservatism
 		public double expectedLowBid(int confidence){
-			DescriptiveStatistics statsCalc = new DescriptiveStatistics();
-
-			for (CampaignData rEntry : historicCampaigns) {
-				if (rEntry.profit < 0) {
-					statsCalc.addValue(rEntry.cmpBid/(rEntry.stats.getTargetedImps()+rEntry.stats.getOtherImps()));
-				}
-			}
-			double quantile = statsCalc.getPercentile(confidence);
-			double mean = statsCalc.getMean();
+			double quantile = unprofitableBids.percentile(confidence);
 			return quantile*pendingCampaign.reachImps;
 		}
 
 		// Sets the maximum bid price to be 1.1 * the average of top 10% of successful historic campaigns
 		public double expectedHighBid(double confidence){
-			DescriptiveStatistics statsCalc = new DescriptiveStatistics();
-
-			for (CampaignData rEntry : historicCampaigns) {
-				// for non randomly assigned campaigns
-				if((rEntry.budget - rEntry.cmpBid) > 0.001){
-					statsCalc.addValue(rEntry.cmpBid/rEntry.reachImps);
-				}
-			}
-			double quantile = statsCalc.getPercentile(confidence);
+			double quantile = wonBids.percentile(confidence);
 			return quantile*pendingCampaign.reachImps;
 		}
 
@@ -1272,68 +1764,12 @@ public class AgentNAMM extends Agent {
 		return mean;
 	} */
 		/**
-		 * Loads the historic campaign data from the csv file in filepath
+		 * Uses the campaigns of the given history, which computed their bid percentiles once for every agent.
 		 */
-		public void loadDataFromFile(String filepath) {
-			try {
-				Scanner scanner = new Scanner(new FileReader(filepath));
-				String line;
-				line = scanner.nextLine();
-				CampaignData record;
-
-				scanner.nextLine();
-				while(scanner.hasNextLine()) {
-					line = scanner.nextLine();
-					String[] results = line.split(",");
-
-					int game = Integer.parseInt(results[0]);
-					int id = Integer.parseInt( results[1] );
-					long dayStart = Long.parseLong(( results[2] ));
-					long dayEnd = Long.parseLong(( results[3] ));
-					Long reachImps = Long.parseLong(( results[4] ));
-					String targetSegment = results[5]; //TODO ALUN: store target segment as correct type
-					double videoCoef = Double.parseDouble((results[6]));
-					double mobileCoef = Double.parseDouble((results[7]));
-					double adxCost = Double.parseDouble((results[8]));
-					double targetedImps = Double.parseDouble((results[9]));
-					double untargetedImps = Double.parseDouble((results[10]));
-					double budget = Double.parseDouble((results[11]));
-					double revenue = Double.parseDouble((results[12]));
-					double profitEstimate = Double.parseDouble((results[13]));
-					double cmpBid = Double.parseDouble((results[14]));
-					long impressionTarget = Long.parseLong(( results[15] ));
-					double uncorrectedProfitEstimate = Double.parseDouble((results[16]));
-					double costEstimate = Double.parseDouble((results[17]));
-					double estImpCost = Double.parseDouble((results[18]));
-					double estUcsCost = Double.parseDouble((results[19]));
-					double qualityChange = Double.parseDouble((results[20]));
-					double estQualityChange = Double.parseDouble((results[21]));
-					double ucsCost = Double.parseDouble((results[22]));
-					double estCostAcc = Double.parseDouble((results[23]));
-					double estProfitAcc = Double.parseDouble((results[24]));
-					double uncorrectedProfitAcc = Double.parseDouble((results[25]));
-					double estQualityChangeAcc = Double.parseDouble((results[26]));
-					double impTargetFulfillment = Double.parseDouble((results[27]));
-					double bidVs2ndRatio = Double.parseDouble((results[28]));
-					double profit = Double.parseDouble((results[29]));
-					double profitPerImpression = Double.parseDouble((results[30]));
-					double reachFulfillment = Double.parseDouble((results[31]));
-					double estUcsCostAcc = Double.parseDouble((results[32]));
-
-					//TODO ALUN: fix target segment and campaign queries
-					record = new CampaignData(game,reachImps, dayStart, dayEnd, currCampaign.targetSegment, videoCoef, mobileCoef, id,
-							currCampaign.campaignQueries, new CampaignStats(targetedImps,untargetedImps,adxCost),budget, revenue, profitEstimate, cmpBid,
-							impressionTarget, uncorrectedProfitEstimate, costEstimate, estImpCost, estUcsCost,
-							qualityChange, estQualityChange, ucsCost, estCostAcc, estProfitAcc, uncorrectedProfitAcc,
-							estQualityChangeAcc, impTargetFulfillment, bidVs2ndRatio, profit, profitPerImpression,
-							reachFulfillment, estUcsCostAcc);
-
-					historicCampaigns.add(record);
-				}
-				scanner.close();
-			} catch (Exception e) {
-				System.out.println("Error: " + e.getMessage());
-			}
+		public void load(SharedHistory history) {
+			unprofitableBids = history.unprofitableBids();
+			wonBids = history.wonBids();
+			records = history.campaignCount();
 		}
 
 	}
@@ -1347,44 +1783,24 @@ public class AgentNAMM extends Agent {
 	 * ALUN: different methods for each campaign strategy
      */
 
+	// Unprofitable campaigns of ours in this game
 	public double expectedLowBid(double confidence){
-		DescriptiveStatistics statsCalc = new DescriptiveStatistics();
-		int numUnprofitable = 0;
-
-		// only list unprofitable campaigns
-		for (Map.Entry<Integer, CampaignData> entry : myCampaigns.entrySet()) {
-			CampaignData campaign = entry.getValue();
-			if (campaign.profit < 0) {
-				numUnprofitable++;
-				statsCalc.addValue(campaign.cmpBid/campaign.reachImps);
-			}
-		}
-		double lowBid = statsCalc.getPercentile(confidence);
+		double lowBid = unprofitableBids.percentile(confidence);
 		// Only returns a value if there are enough datapoints
-		if (numUnprofitable <= 3) {lowBid = 0;}
+		if (unprofitableBids.count() <= 3) {lowBid = 0;}
 		return lowBid*pendingCampaign.reachImps;
 	}
 
 	// Returns maximum value in the current game
 	public double expectedHighBid(){
-		DescriptiveStatistics statsCalc = new DescriptiveStatistics();
-
 		// only list non-randomly given campaigns
-		for (Map.Entry<Integer, CampaignData> entry : myCampaigns.entrySet()) {
-			CampaignData campaign = entry.getValue();
-			if (campaign.profit < 0) {
-				statsCalc.addValue(campaign.cmpBid/campaign.reachImps);
-			}
-		}
-		double highBid = statsCalc.getMax();
+		double highBid = unprofitableBids.max();
 		return highBid*pendingCampaign.reachImps;
 	}
 
 	// Method for calculating an ERR value for a specific target.
 	private double ERRcalc(CampaignData campaign, long target) {
-		double a = 4.08577, b = 3.08577, fracComplete = (double)target/(double)campaign.reachImps;
-		double ERR = (2/a) * (( Math.atan((a*fracComplete) - b )) - Math.atan(-b));
-		return ERR;
+		return ImpressionTargetOptimizer.effectiveReachRatio(target, campaign.reachImps);
 	}
 	/**
 	 Goes through historical (previously trained) data and evaluates when the bid is too low to be profitable
@@ -1401,11 +1817,12 @@ public class AgentNAMM extends Agent {
 		double bidLowHistoric = historicCampaigns.expectedLowBid(confidence);
 		int length = startInfo.getNumberOfDays();
 		if(bidLowCurrent == 0) bidLowCurrent = bidLowHistoric;
-		double bidLow = (HISTORIC_FRAC * bidLowHistoric * (length - day)/length) +
-				((1-HISTORIC_FRAC) * bidLowCurrent * day/length);
-		double reserve = cmpimps * 0.0001 / adNetworkDailyNotification.getQualityScore();
+		double historicFrac = parameters.get(StrategyParameters.Key.HISTORIC_FRAC);
+		double bidLow = (historicFrac * bidLowHistoric * (length - day)/length) +
+				((1-historicFrac) * bidLowCurrent * day/length);
+		double reserve = cmpimps * 0.0001 / qualityScore();
 		if (bidLow < reserve) {bidLow = reserve;}
-		System.out.println(" Min: " + (long)(bidLow*1000));
+		AgentLog.CAMPAIGN.fine(" Min: %d", (long)(bidLow*1000));
 		return bidLow;
 	}
 
@@ -1415,20 +1832,17 @@ public class AgentNAMM extends Agent {
 	 *campaign in this game (or reserve price).
 	 */
 	private double bidTooHigh(long cmpimps, int percentFailure) {
-		double bidHighCurrent;
-		double bidHighHistoric;
-		if (historicCampaigns.expectedHighBid(percentFailure) > 0){
-			bidHighHistoric = historicCampaigns.expectedHighBid(percentFailure);
-		} else bidHighHistoric = 0;
-		if (expectedHighBid() > 0) {bidHighCurrent = expectedHighBid();}
-		else bidHighCurrent = 0;
+		double bidHighHistoric = historicCampaigns.expectedHighBid(percentFailure);
+		if (!(bidHighHistoric > 0)) {bidHighHistoric = 0;}
+		double bidHighCurrent = expectedHighBid();
+		if (!(bidHighCurrent > 0)) {bidHighCurrent = 0;}
 		double reserve = (0.001*cmpimps*percentFailure)/100;
 		double bidHigh = Math.min(1.1*Math.max(bidHighHistoric, bidHighCurrent), reserve);
-		System.out.println("bidHighHistoric, " + bidHighHistoric + " bidHighCurrent " + bidHighCurrent + " reserve, " + reserve);
+		AgentLog.CAMPAIGN.fine("bidHighHistoric, %s bidHighCurrent %s reserve, %s", bidHighHistoric, bidHighCurrent, reserve);
 		// Make sure bid is still below maximum price.
-		double bidMax = 0.001 * cmpimps * adNetworkDailyNotification.getQualityScore();
+		double bidMax = 0.001 * cmpimps * qualityScore();
 		if(bidHigh >= reserve) {bidHigh = bidMax;}
-		System.out.print(" MaxBid: " + (long)(1000*bidMax) + " MinMax: " + (long)(1000*reserve) + " Bid " + bidHigh + "@@@");
+		AgentLog.CAMPAIGN.fine(" MaxBid: %d MinMax: %d Bid %s@@@", (long)(1000*bidMax), (long)(1000*reserve), bidHigh);
 		return bidHigh;
 	}
 
@@ -1439,7 +1853,6 @@ public class AgentNAMM extends Agent {
 	 * Not great because it creates a system where we assign our value based on other agents value.
 	 */
 	private double campaignProfitStrategy() {
-		Random random = new Random();
 		double bid, bidFactor;
 		double totalCostPerImp = 0.0;
 		if (myCampaigns.size() >= 3) {
@@ -1456,7 +1869,7 @@ public class AgentNAMM extends Agent {
 			cmpBidPerImp *= 0.9;
 			bid = cmpBidPerImp * pendingCampaign.reachImps;
 		}
-		System.out.println("Day " + day + ": Campaign - Base bid(millis): " + (long)(1000*bid));
+		AgentLog.CAMPAIGN.fine("Day %d: Campaign - Base bid(millis): %d", day, (long)(1000*bid));
 		return bid;
 
 		/* Main strategy
@@ -1476,8 +1889,8 @@ public class AgentNAMM extends Agent {
 	 * the reduced number of won campaigns.
 	 */
 	private double campaignQualityRecoveryStrategy() {
-		double bid =  campaignProfitStrategy() * Math.pow(adNetworkDailyNotification.getQualityScore(),2);
-		System.out.println("Day " + day + ": Campaign - Quality Recovery Strategy");
+		double bid =  campaignProfitStrategy() * Math.pow(qualityScore(),2);
+		AgentLog.CAMPAIGN.info("Day %d: Campaign - Quality Recovery Strategy", day);
 		/*
 		TODO ALUN: Historic Data
 		TODO: ferocity of quality recovery should be based on our ability to complete the campaigns and the number of campaigns we currently have.
@@ -1500,15 +1913,15 @@ public class AgentNAMM extends Agent {
 		long campaignLength = pendingCampaign.dayEnd - pendingCampaign.dayStart + 1;
 		if(campaignLength == 10){ // long campaign
 			cmpBid = campaignProfitStrategy()*0.8;
-			System.out.println("Day " + day +  ": Campaign - Long campaign Starting Strategy");
+			AgentLog.CAMPAIGN.info("Day %d: Campaign - Long campaign Starting Strategy", day);
 		}
 		else if (campaignLength == 5){ // medium campaign
 			cmpBid = campaignProfitStrategy()*1.5;
-			System.out.println("Day: " + day + " Campaign - Medium campaign Starting Strategy");
+			AgentLog.CAMPAIGN.info("Day: %d Campaign - Medium campaign Starting Strategy", day);
 		}
 		else { // short campaign
 			cmpBid = campaignProfitStrategy()*2;
-			System.out.println("Day " + day + ": Short campaign Starting Strategy");
+			AgentLog.CAMPAIGN.info("Day %d: Short campaign Starting Strategy", day);
 		}
 		return cmpBid;
 	}
@@ -1517,32 +1930,102 @@ public class AgentNAMM extends Agent {
 	 * Evaluates the effect of estimated quality change on future revenue.
 	 */
 	private double qualityEffect(CampaignData Campaign, double estQuality) {
+		double qualityChange = estQuality - qualityScore();
+		// todo use a more accurate model than linear quality change * revenueRemaining
+		return qualityChange * revenueRemaining(Campaign);
+	}
+
+	/**
+	 * Revenue expected for the rest of the game after Campaign ends, per unit of quality.
+	 */
+	private long revenueRemaining(CampaignData Campaign) {
 		// Days remaining after campaign ends
 		long daysRemaining = 60 - Campaign.dayEnd;
 		double pastIncome = 0.0;
-		for (Map.Entry<Integer, CampaignData> entry : myCampaigns.entrySet()) {
-			CampaignData campaign = entry.getValue();
-			if (campaign.dayEnd < day)
-				pastIncome += campaign.revenue;
-			else { // Smooths out estimate by adding fractional completeness of ongoing campaigns (approximated by budget)
-				pastIncome += campaign.budget * (1 - campaign.impsTogo()/campaign.reachImps);
-			}
+		for (CampaignData campaign : myCampaignDays.endedBefore(day)) {
+			pastIncome += campaign.revenue;
+		}
+		// Smooths out estimate by adding fractional completeness of ongoing campaigns (approximated by budget)
+		for (CampaignData campaign : myCampaignDays.overlapping(day, Long.MAX_VALUE)) {
+			pastIncome += campaign.budget * (1 - campaign.impsTogo()/campaign.reachImps);
 		}
 		double historicDailyIncome = 1;// TODO ALUN: machine learning
 		double pastDailyIncome = pastIncome / day;
 		// Linearly reduces reliance on historic data --> dynamic data over time
 		long revenueRemaining = (long)((daysRemaining/60)*daysRemaining*historicDailyIncome
 				+ pastDailyIncome*(1-daysRemaining/60)*daysRemaining);
-		double qualityChange = estQuality - adNetworkDailyNotification.getQualityScore();
-		// todo use a more accurate model than linear quality change * revenueRemaining
-		return qualityChange * revenueRemaining;
+		return revenueRemaining;
+	}
+
+	/**
+	 * The impression target optimizer of Campaign for today. The terms of the profit that do not depend
+	 * on the target are evaluated here, as campaignCost and qualityEffect would for every target: the
+	 * cost paid so far, the UCS cost and the cost per impression of daily target of each day left (the
+	 * impression cost estimate is linear in the daily target), and the revenue for the rest of the game.
+	 * Only valid while closedFormApplies.
+	 */
+	ImpressionTargetOptimizer impressionTargetOptimizer(CampaignData Campaign) {
+		double fixedCost = 0;
+		double dailyTargetCost = 0;
+		if (Campaign.dayEnd < day) {
+			fixedCost = Campaign.stats.getCost();
+		} else {
+			long firstDay = Campaign.dayStart;
+			if (firstDay < day) {
+				// Reports are cumulative: the cost so far, then estimates from yesterday on as in campaignCost
+				fixedCost = Campaign.stats.getCost();
+				firstDay = day - 1;
+			}
+			int ucsLevel = bestImpUcsCombination(Campaign.reachImps);
+			for (long Day = firstDay; Day <= Campaign.dayEnd; Day++) {
+				dailyTargetCost += impressionCostEstimate(1, Day, ucsLevel);
+				fixedCost += ucsCostEstimate(ucsLevel);
+			}
+		}
+		return new ImpressionTargetOptimizer(Campaign.reachImps, Campaign.budget,
+				qualityScore(), revenueRemaining(Campaign), fixedCost, dailyTargetCost,
+				Campaign.dayEnd - Campaign.dayStart);
+	}
+
+	/**
+	 * Whether the estimators have the form the optimizer of Campaign assumes on the days it sums over: the UCS
+	 * level the same for every target in its range, and impressionCostEstimate linear in the daily target, without
+	 * a constant term. Checked at both ends of the range, a few estimator calls a day; when it fails the targets
+	 * are chosen by the sweep, which makes no assumption.
+	 */
+	boolean closedFormApplies(CampaignData Campaign, ImpressionTargetOptimizer optimizer) {
+		if (Campaign.dayEnd < day) {
+			return true;
+		}
+		long length = Campaign.dayEnd - Campaign.dayStart;
+		int ucsLevel = bestImpUcsCombination(Campaign.reachImps);
+		if (bestImpUcsCombination(optimizer.lowest()) != ucsLevel
+				|| bestImpUcsCombination(optimizer.highest()) != ucsLevel) {
+			return false;
+		}
+		long lowDaily = optimizer.lowest() / length;
+		long highDaily = optimizer.highest() / length;
+		long firstDay = Campaign.dayStart < day ? day - 1 : Campaign.dayStart;
+		for (long Day = firstDay; Day <= Campaign.dayEnd; Day++) {
+			double perImpression = impressionCostEstimate(1, Day, ucsLevel);
+			if (impressionCostEstimate(0, Day, ucsLevel) != 0
+					|| !nearlyEqual(impressionCostEstimate(lowDaily, Day, ucsLevel), lowDaily * perImpression)
+					|| !nearlyEqual(impressionCostEstimate(highDaily, Day, ucsLevel), highDaily * perImpression)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean nearlyEqual(double a, double b) {
+		return Math.abs(a - b) <= 1e-9 * Math.max(1, Math.max(Math.abs(a), Math.abs(b)));
 	}
 
 	/*
 	 * Estimates the total cost of running a campaign based on the sum UCS and impression estimation functions.
 	 * Total cost = impression cost of campaign + ucs cost
 	 */
-	private double campaignCost(CampaignData Campaign, long targetImp, boolean save) {
+	double campaignCost(CampaignData Campaign, long targetImp, boolean save) {
 		double totalCost = 0;
 		double impressionCost = 0;
 		double ucsCost = 0;
@@ -1702,318 +2185,76 @@ public class AgentNAMM extends Agent {
 	 *  May include functionality to recall past actual costs / estimates.
 	 *  USE: use this function for campaign bids by evaluating the best impression/UCS combination then summing over
 	 *  all days of the prospective campaign to evaluate total cost to complete campaign.
+	 *  Contract: ImpressionTargetOptimizer assumes the cost is proportional to impTarget (0 for 0 impressions);
+	 *  a change that breaks this makes setImpressionTargets fall back to the sweep (see closedFormApplies).
 	 */
 	private double impressionCostEstimate(long impTarget, long day, int ucsTargetLevel) {
 		return 0.0006*impTarget;
 	}
-	private double ImpressionCostEstimator() {
+	/**
+	 * Estimates today's impression cost for each of our active campaigns from the popularity of its segment:
+	 * the daily reach demanded per user by our campaign plus every other active campaign in the game competing
+	 * for the same users (see {@link SegmentMask#competes}).
+	 * Competing campaigns are first flattened into primitive arrays so the pairwise check is a table lookup.
+	 */
+	double ImpressionCostEstimator() {
 		double EstimateCostOfImpressionsToday = 0;
-		CampaignData itemFor1, itemFor2;
-		// TODO;
+		CampaignData itemFor1;
 		try {
-			/*for (CampaignData itemFor2 : campaignsInGame) {
-				System.out.println("##################################3   " + day);
-
-				System.out.println(itemFor2);
-			}*/
-			/*for (Map.Entry<Integer, CampaignData> campaignInGame : campaignsInGame.entrySet()) {
-				System.out.println("algo???");
-				System.out.println(campaignInGame.getValue().dayStart);
-			}*/
-
-			for (Map.Entry<Integer, CampaignData> campaign : myCampaigns.entrySet()) {
-
-				itemFor1 = campaign.getValue();
-				if (itemFor1.dayStart <= day) {
-					if (itemFor1.dayEnd >= day) {
-						itemFor1.popInSegmentOfOurCampaign = 1;
-						itemFor1.popInSegmentOfOurCampaign = itemFor1.reachImps / ((double) (itemFor1.dayEnd - itemFor1.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-						//System.out.println("Popularity of our campaign: " + itemFor1.popInSegmentOfOurCampaign);
-						/*itemFor1.popInSegmentOfOurCampaign = itemFor1.reachImps / ((itemFor1.dayEnd - itemFor1.dayStart));
-						System.out.println("Popularity of our campaign (1): "  + itemFor1.popInSegmentOfOurCampaign);
-						itemFor1.popInSegmentOfOurCampaign = itemFor1.reachImps / (MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-						System.out.println("Popularity of our campaign (2): "  + itemFor1.popInSegmentOfOurCampaign);
-						itemFor1.popInSegmentOfOurCampaign = 1 / ((double)(itemFor1.dayEnd - itemFor1.dayStart) * (double)MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-						System.out.println("Popularity of our campaign (3): "  + itemFor1.popInSegmentOfOurCampaign);
-					*/
-						for (Map.Entry<Integer, CampaignData> campInGame : campaignsInGame.entrySet()) {
-
-							itemFor2 = campInGame.getValue();
-							/*System.out.println("Campaigns thrown by the game  " + itemFor2.id);*/
-							if (itemFor2.dayStart <= day) {
-								if (itemFor2.dayEnd >= day) {
-									if (itemFor2.id != itemFor1.id) {
-										if (itemFor1.targetSegment.contains(MarketSegment.MALE)) {
-											if (!itemFor2.targetSegment.contains(MarketSegment.FEMALE)) {
-												//System.out.println("Competing campaign: " + itemFor2.id + "not female");
-												if (itemFor1.targetSegment.contains(MarketSegment.OLD)) {
-													if (!itemFor2.targetSegment.contains(MarketSegment.YOUNG)) {
-
-														if (itemFor1.targetSegment.contains(MarketSegment.HIGH_INCOME)) {
-															if (!itemFor2.targetSegment.contains(MarketSegment.LOW_INCOME)) {
-																itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-																/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA");
-																System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-															*/
-															}
-														} else if (itemFor1.targetSegment.contains(MarketSegment.LOW_INCOME)) {
-															if (!itemFor2.targetSegment.contains(MarketSegment.HIGH_INCOME)) {
-																itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-																/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA");
-																System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-															*/
-															}
-														} else {
-															itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-															/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA");
-															System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-														*/
-														}
-
-													}
-												} else if (itemFor1.targetSegment.contains(MarketSegment.YOUNG)) {
-													if (!itemFor2.targetSegment.contains(MarketSegment.OLD)) {
-
-														if (itemFor1.targetSegment.contains(MarketSegment.HIGH_INCOME)) {
-															if (!itemFor2.targetSegment.contains(MarketSegment.LOW_INCOME)) {
-																itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-																/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA");
-																System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-															*/
-															}
-														} else if (itemFor1.targetSegment.contains(MarketSegment.LOW_INCOME)) {
-															if (!itemFor2.targetSegment.contains(MarketSegment.HIGH_INCOME)) {
-																itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-																/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA");
-																System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-															*/
-															}
-														} else {
-															itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-															/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA");
-															System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-														*/
-														}
-
-													}
-												} else {
-													if (itemFor1.targetSegment.contains(MarketSegment.HIGH_INCOME)) {
-														if (!itemFor2.targetSegment.contains(MarketSegment.LOW_INCOME)) {
-															itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-															/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA");
-															System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-														*/
-														}
-													} else if (itemFor1.targetSegment.contains(MarketSegment.LOW_INCOME)) {
-														if (!itemFor2.targetSegment.contains(MarketSegment.HIGH_INCOME)) {
-															itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-															/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA");
-															System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-														*/
-														}
-													} else {
-
-														itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-														/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA");
-														System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-													*/
-													}
-												}
-											}
-										} else if (itemFor1.targetSegment.contains(MarketSegment.FEMALE)) {
-											if (!itemFor2.targetSegment.contains(MarketSegment.MALE)) {
-
-												if (itemFor1.targetSegment.contains(MarketSegment.OLD)) {
-													if (!itemFor2.targetSegment.contains(MarketSegment.YOUNG)) {
-
-														if (itemFor1.targetSegment.contains(MarketSegment.HIGH_INCOME)) {
-															if (!itemFor2.targetSegment.contains(MarketSegment.LOW_INCOME)) {
-																itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-																/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA");
-																System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-															*/
-															}
-														} else if (itemFor1.targetSegment.contains(MarketSegment.LOW_INCOME)) {
-															if (!itemFor2.targetSegment.contains(MarketSegment.HIGH_INCOME)) {
-																itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-																/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA");
-																System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-															*/
-															}
-														} else {
-															itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-															/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA               F,O nuestra,    notM, notY");
-															System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-														*/
-														}
-													}
-												} else if (itemFor1.targetSegment.contains(MarketSegment.YOUNG)) {
-													if (!itemFor2.targetSegment.contains(MarketSegment.OLD)) {
-
-														if (itemFor1.targetSegment.contains(MarketSegment.HIGH_INCOME)) {
-															if (!itemFor2.targetSegment.contains(MarketSegment.LOW_INCOME)) {
-																itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-																/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA");
-																System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-															*/
-															}
-														} else if (itemFor1.targetSegment.contains(MarketSegment.LOW_INCOME)) {
-															if (!itemFor2.targetSegment.contains(MarketSegment.HIGH_INCOME)) {
-																itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-																/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA");
-																System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-															*/
-															}
-														} else {
-															itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-															/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA");
-															System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-														*/
-														}
-													}
-												} else {
-													if (itemFor1.targetSegment.contains(MarketSegment.HIGH_INCOME)) {
-														if (!itemFor2.targetSegment.contains(MarketSegment.LOW_INCOME)) {
-															itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-															/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA");
-															System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-														*/
-														}
-													} else if (itemFor1.targetSegment.contains(MarketSegment.LOW_INCOME)) {
-														if (!itemFor2.targetSegment.contains(MarketSegment.HIGH_INCOME)) {
-															itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-															/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA");
-															System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-														*/
-														}
-													} else {
-
-														itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-														/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA");
-														System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-													*/
-													}
-												}
-											}
-										} else {
-											if (itemFor1.targetSegment.contains(MarketSegment.OLD)) {
-												if (!itemFor2.targetSegment.contains(MarketSegment.YOUNG)) {
-
-													if (itemFor1.targetSegment.contains(MarketSegment.HIGH_INCOME)) {
-														if (!itemFor2.targetSegment.contains(MarketSegment.LOW_INCOME)) {
-															itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-															/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA    O,H nuestra,  notY,notL");
-															System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-														*/
-														}
-													} else if (itemFor1.targetSegment.contains(MarketSegment.LOW_INCOME)) {
-														if (!itemFor2.targetSegment.contains(MarketSegment.HIGH_INCOME)) {
-															itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-															/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA     O,L nuestra,   notY, not H");
-															System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-														*/
-														}
-													} else {
-
-														itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-														/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA          O nuestra,     notY");
-														System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-													*/
-													}
-												}
-											} else if (itemFor1.targetSegment.contains(MarketSegment.YOUNG)) {
-												if (!itemFor2.targetSegment.contains(MarketSegment.OLD)) {
-
-													if (itemFor1.targetSegment.contains(MarketSegment.HIGH_INCOME)) {
-														if (!itemFor2.targetSegment.contains(MarketSegment.LOW_INCOME)) {
-															itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-															/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA");
-															System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-														*/
-														}
-													} else if (itemFor1.targetSegment.contains(MarketSegment.LOW_INCOME)) {
-														if (!itemFor2.targetSegment.contains(MarketSegment.HIGH_INCOME)) {
-															itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-															/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA");
-															System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-														*/
-														}
-													} else {
-														itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-
-														/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA");
-														System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-													*/
-													}
-												}
-											} else {
-												if (itemFor1.targetSegment.contains(MarketSegment.HIGH_INCOME)) {
-													if (!itemFor2.targetSegment.contains(MarketSegment.LOW_INCOME)) {
-
-														itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-														/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA");
-														System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-													*/
-													}
-												} else if (itemFor1.targetSegment.contains(MarketSegment.LOW_INCOME)) {
-													if (!itemFor2.targetSegment.contains(MarketSegment.HIGH_INCOME)) {
-
-														itemFor1.popInSegmentOfOurCampaign = itemFor1.popInSegmentOfOurCampaign + itemFor2.reachImps / ((double) (itemFor2.dayEnd - itemFor2.dayStart) * (double) MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment));
-														/*System.out.println("PRUEBA PRUEBA PRUEBA PRUEBA PRUEAB PRUEBA");
-														System.out.println("Campaign competing: " + campInGame + "size of MARKET SEGMENT" + MarketSegment.usersInMarketSegments().get(itemFor2.targetSegment) + "; with OUR campaign: " + campaign + "size of OUR marketSegment" + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-													*/
-													}
-												}
-											}
-										}
-									}
-								}
-							}
-						}
-
-						if (itemFor1.dayStart == day) {
-							///// Initial Reserve Price (between 0 and 0.005) -> Set as Maximum
-							itemFor1.ReservePriceEstimated = 0.005;
-						} else {
-							//   Trying with average value of impressions in a game:  0.0012
-							itemFor1.ReservePriceEstimated = (0.2 * (double) itemFor1.ReservePriceEstimated + 0.8 * (0.0012) * (double) itemFor1.popInSegmentOfOurCampaign);
-						}
-						//int randomNumber = random.nextInt(2) - 1;  add random number between 0.04 and -0.04 -> Set as Maximum
-						itemFor1.ReservePriceThisDay = itemFor1.ReservePriceEstimated + 0.04;
-
-						// Cost Estimate by a factor of 0.0012
-						itemFor1.impCostEstThisDay = itemFor1.ReservePriceEstimated + (0.1) * itemFor1.popInSegmentOfOurCampaign / adNetworkDailyNotification.getServiceLevel();
-						//itemFor1.impressionCostEstimate = itemFor1.impCostEstThisDay*(60-day)/60 + itemFor1.impCostAvg*(day)/60;
-
-						EstimateCostOfImpressionsToday = EstimateCostOfImpressionsToday + itemFor1.impCostEstThisDay;
-						// Correct with days: at the end there is less competence *60/(60+day)
-
-						//System.out.println("####################################################################");
-						System.out.println("Active Campaigns NAMM: " + campaign.getValue().id +";  Estimation: " +itemFor1.impCostEstThisDay);
-						//System.out.println("####################################################################");
+			// Active campaigns of the game, in allocation order
+			List<CampaignData> activeInGame = gameCampaignDays.activeOn(day);
+			int nActive = activeInGame.size();
+			int[] activeIds = new int[nActive];
+			int[] activeMasks = new int[nActive];
+			double[] activeDemand = new double[nActive];
+			for (int j = 0; j < nActive; j++) {
+				CampaignData itemFor2 = activeInGame.get(j);
+				activeIds[j] = itemFor2.id;
+				activeMasks[j] = itemFor2.segmentMask;
+				activeDemand[j] = itemFor2.dailyDemandPerUser();
+			}
 
+			for (CampaignData campaign : myCampaignDays.activeOn(day)) {
 
-						/*System.out.println("&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&");
-						System.out.println("CAMPAIGN" + itemFor1.id + "-->" + "reachImps = " + itemFor1.reachImps + ";  dayStart = " + itemFor1.dayStart + ";  dayEnd = " + itemFor1.dayEnd + ";  TargetSegmentSize = " + MarketSegment.usersInMarketSegments().get(itemFor1.targetSegment));
-						System.out.println("----CAMPAIGN" + itemFor1.id + "-->  Popularity:" + itemFor1.popInSegmentOfOurCampaign + ". IMPRESSION COST ESTIMATE TODAY:" +itemFor1.impCostEstThisDay + "------");
-						System.out.println("&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&&");
-					*/
+				itemFor1 = campaign;
+				double popularity = itemFor1.dailyDemandPerUser();
+				int ourMask = itemFor1.segmentMask;
+				for (int j = 0; j < nActive; j++) {
+					if (activeIds[j] != itemFor1.id && SegmentMask.competes(ourMask, activeMasks[j])) {
+						popularity = popularity + activeDemand[j];
+					}
+				}
+				itemFor1.popInSegmentOfOurCampaign = popularity;
+
+				if (itemFor1.dayStart == day) {
+					///// Initial Reserve Price (between 0 and 0.005) -> Set as Maximum
+					itemFor1.ReservePriceEstimated = 0.005;
+				} else {
+					//   Trying with average value of impressions in a game:  0.0012
+					itemFor1.ReservePriceEstimated = (0.2 * (double) itemFor1.ReservePriceEstimated + 0.8 * (0.0012) * (double) itemFor1.popInSegmentOfOurCampaign);
+				}
+				//int randomNumber = random.nextInt(2) - 1;  add random number between 0.04 and -0.04 -> Set as Maximum
+				itemFor1.ReservePriceThisDay = itemFor1.ReservePriceEstimated + 0.04;
 
+				// Cost Estimate by a factor of 0.0012
+				itemFor1.impCostEstThisDay = itemFor1.ReservePriceEstimated + (0.1) * itemFor1.popInSegmentOfOurCampaign / serviceLevel();
+				//itemFor1.impressionCostEstimate = itemFor1.impCostEstThisDay*(60-day)/60 + itemFor1.impCostAvg*(day)/60;
 
+				EstimateCostOfImpressionsToday = EstimateCostOfImpressionsToday + itemFor1.impCostEstThisDay;
+				// Correct with days: at the end there is less competence *60/(60+day)
 
-					}
+				if (AgentLog.STATS.fine()) {
+					AgentLog.STATS.fine("Active Campaigns NAMM: %d;  Estimation: %s", campaign.id,
+							itemFor1.impCostEstThisDay);
 				}
-
-				/*System.out.println("################################################  Prueba 2");
-				System.out.println("Campañas activas de NAMM: " + campaign.getValue().id);
-				*/
 			}
 		}
 		catch(Exception ex){
-			System.out.println(ex.getMessage());
-			ex.printStackTrace();
+			AgentLog.STATS.warning("Impression cost estimate failed", ex);
+		}
+		if (AgentLog.STATS.fine()) {
+			AgentLog.STATS.fine("Estimate Cost of all impressions: %s", EstimateCostOfImpressionsToday);
 		}
-		System.out.println("Estimate Cost of all impressions: " + EstimateCostOfImpressionsToday);
 		return EstimateCostOfImpressionsToday;
 	}
 
@@ -2024,6 +2265,8 @@ public class AgentNAMM extends Agent {
 	 * This function estimates the cost to achieve a specific ucs tier. Note that ucsTarget is the integer tier not the
 	 * percentage of users classified. (1 = 100%, 2 = 90%, 3 = 81% ...).
 	 * Expansion: Factor in changes to unknown and known impression costs.
+	 * Contract: depends on the tier only, not on the impression target; ImpressionTargetOptimizer counts it as a
+	 * fixed cost.
 	 */
 	private double ucsCostEstimate(int ucsTargetLevel) {
 		// TODO;
@@ -2034,6 +2277,8 @@ public class AgentNAMM extends Agent {
 	 * Nicola: Best UCS impression cost combination
 	 * This function queries impression and UCS cost estimations over the entire range of UCS costs to evaluate the
 	 * cheapest cost to achieve our impression target.
+	 * Contract: ImpressionTargetOptimizer evaluates it once, at the campaign reach; while it returns another tier
+	 * for some target in the optimizer's range, setImpressionTargets falls back to the sweep.
 	 */
 	private int bestImpUcsCombination(long targetImpressions){
 		// TODO Return desired UCS classification;
@@ -2054,15 +2299,10 @@ public class AgentNAMM extends Agent {
 
 	//TODO ALUN ALUN
 	private double ucsBid(){
-		double initbid = 0.25;
-		double scale = 0.17;
+		double initbid = parameters.get(StrategyParameters.Key.UCS_INIT_BID);
+		double scale = parameters.get(StrategyParameters.Key.UCS_SCALE);
 		double ucsbid = 0;
-		int numRunningCampaings = 0;
-		for (Map.Entry<Integer, CampaignData> entry : myCampaigns.entrySet()) {
-			if ((entry.getValue().dayEnd >= day) & (entry.getValue().dayStart <= day))	{
-				numRunningCampaings ++;
-			}
-		}
+		int numRunningCampaings = myCampaignDays.activeOn(day).size();
 		if (numRunningCampaings != 0)
 		{
 			if (day <= 10)
@@ -2100,86 +2340,90 @@ public class AgentNAMM extends Agent {
 	 * Class to keep a record of all historic bid results coming from the server. This is useful for
 	 * future estimates and support in general the campaigns and impressions bidding strategy.
 	 */
-	private class ImpressionHistory {
-		// Main collection. Record list of type ImpressionRecord defined below
-		public List<ImpressionRecord> impressionList;
+	class ImpressionHistory {
+		// Records of this agent's games since the shared history was installed (the historic records stay in the
+		// shared history's files), in primitive columns
+		public ImpressionRecords gameRecords;
+		// Running aggregates per criteria combination over the shared history and gameRecords, the recent games
+		// weighing most (see HistoryRetention). Starts as the shared history's own index and is copied on the
+		// first record added, so agents never write to it.
+		private ImpressionStatsIndex statsIndex;
+		private boolean ownsStatsIndex;
+		// Records in the shared history, counted before gameRecords
+		private int historicCount;
+		// Records before this position are already persisted in the history journal
+		private int flushedCount;
+		// Number of the game being played in statsIndex, after every game of the shared history
+		private int gameNumber;
 
 		/**
 		 * Constructor method. Basically initializes the ArrayList at the beginning of the game when
 		 * an instance of AgentNAMM is created
 		 */
 		public ImpressionHistory(){
-			impressionList = new ArrayList<ImpressionRecord>();
+			reset();
+		}
+
+		/**
+		 * Appends the record of one AdNetworkReport entry, which reports on yesterday's bids, to the history.
+		 */
+		public void add(AdNetworkReportEntry pReportEntry){
+			AdNetworkKey key = pReportEntry.getKey();
+			int bidCount = pReportEntry.getBidCount();
+			int winCount = pReportEntry.getWinCount();
+			double totalCost = pReportEntry.getCost() / 1000;
+			int row = gameRecords.add(startInfo.getSimulationID(), day - 1, key.getCampaignId(), key.getAdType(),
+					key.getDevice(), key.getPublisher(), key.getGender(), ImpressionRecords.genderSegment(key.getGender()),
+					key.getIncome(), ImpressionRecords.incomeSegment(key.getIncome()), key.getAge(),
+					ImpressionRecords.ageSegment(key.getAge()), bidCount, winCount, totalCost, totalCost / winCount,
+					bidCount - winCount);
+			addToStats(row);
+		}
+
+		/**
+		 * Updates the aggregate index in O(1) with a row of gameRecords.
+		 * All additions to gameRecords must go through here so statistics stay consistent.
+		 */
+		private void addToStats(int row){
+			if (!ownsStatsIndex) {
+				statsIndex = new ImpressionStatsIndex(statsIndex);
+				ownsStatsIndex = true;
+			}
+			statsIndex.add(gameRecords.mktGender(row), gameRecords.mktAge(row), gameRecords.mktIncome(row),
+					gameRecords.adType(row), gameRecords.device(row), gameRecords.publisher(row),
+					gameRecords.costImpr(row), gameRecords.lostCount(row) == 0, gameNumber);
+		}
+
+		/**
+		 * Records in the history, historic and own.
+		 */
+		public int size(){
+			return historicCount + gameRecords.size();
 		}
 
 		/**
 		* Method to filter impression bid entries that are proven to be successful (bids = wons, or as implemented, 
 		* rEntry.lostCount == 0). This filter is applied for each specific target profile by checking the combination of 
 		* age, income and gender. The if sequence goes from the most specific cases to the most general ones. Finally,
-		* a statistical summary is created using a DescriptiveStatistics object from the org.apache.commons.math3 package.
+		* a statistical summary is read from the aggregate index, so the cost does not depend on the history size.
 		*
 		* This method became obsolete during the development and was replaced by getStatsPerAllCriteria
 		**/
 		public BasicStatisticValues getStatsPerSegment(MarketSegment sGender, MarketSegment sAge, MarketSegment sIncome){
-			DescriptiveStatistics statsCalc = new DescriptiveStatistics();
 			BasicStatisticValues returnVal = new BasicStatisticValues();
 
-			if(sGender != null && sAge != null && sIncome != null){
-				for(ImpressionRecord rEntry : impressionList) {
-					if(rEntry.mktSegGender == sGender && rEntry.mktSegAge == sAge && rEntry.mktSegIncome == sIncome && rEntry.lostCount == 0) {
-						statsCalc.addValue(rEntry.costImpr);
-					}
-				}
-			}
-			else if (sGender != null && sAge != null) {
-				for(ImpressionRecord rEntry : impressionList) {
-					if(rEntry.mktSegGender == sGender && rEntry.mktSegAge == sAge && rEntry.lostCount == 0) {
-						statsCalc.addValue(rEntry.costImpr);
-					}
-				}
+			// No segment given: no filter applies, as before nothing is reported
+			if(sGender == null && sAge == null && sIncome == null){
+				return returnVal;
 			}
-			else if (sAge != null && sIncome != null) {
-				for(ImpressionRecord rEntry : impressionList) {
-					if(rEntry.mktSegAge == sAge && rEntry.mktSegIncome == sIncome && rEntry.lostCount == 0) {
-						statsCalc.addValue(rEntry.costImpr);
-					}
-				}
-			}
-			else if (sGender != null && sIncome != null) {
-				for(ImpressionRecord rEntry : impressionList) {
-					if(rEntry.mktSegGender == sGender && rEntry.mktSegIncome == sIncome && rEntry.lostCount == 0) {
-						statsCalc.addValue(rEntry.costImpr);
-					}
-				}
-			}
-			else if (sGender != null) {
-				for(ImpressionRecord rEntry : impressionList) {
-					if(rEntry.mktSegGender == sGender && rEntry.lostCount == 0) {
-						statsCalc.addValue(rEntry.costImpr);
-					}
-				}
-			}
-			else if (sAge != null) {
-				for(ImpressionRecord rEntry : impressionList) {
-					if(rEntry.mktSegAge == sAge && rEntry.lostCount == 0) {
-						statsCalc.addValue(rEntry.costImpr);
-					}
-				}
-			}
-			else if (sIncome != null) {
-				for(ImpressionRecord rEntry : impressionList) {
-					if(rEntry.mktSegIncome == sIncome && rEntry.lostCount == 0) {
-						statsCalc.addValue(rEntry.costImpr);
-					}
-				}
-			}
-
-			if(statsCalc.getN() > 0){
-				returnVal.mean = statsCalc.getMean();
-				returnVal.std = statsCalc.getStandardDeviation();
-				returnVal.var = statsCalc.getVariance();
-				returnVal.max = statsCalc.getMax();
-				returnVal.min = statsCalc.getMin();
+			int cell = statsIndex.lookup(sGender, sAge, sIncome, null, null, null, true);
+
+			if(statsIndex.getN(cell) > 0){
+				returnVal.mean = statsIndex.getMean(cell);
+				returnVal.std = statsIndex.getStandardDeviation(cell);
+				returnVal.var = statsIndex.getVariance(cell);
+				returnVal.max = statsIndex.getMax(cell);
+				returnVal.min = statsIndex.getMin(cell);
 			}
 
 			return returnVal;
@@ -2189,13 +2433,12 @@ public class AgentNAMM extends Agent {
 		* Method to filter impression bid entries that are proven to be successful (bids = wons, or as implemented, 
 		* rEntry.lostCount == 0). This filter is applied for each specific target profile by checking the combination of 
 		* age, income and gender. The if sequence goes from the most specific cases to the most general ones. Finally,
-		* a statistical summary is created using a DescriptiveStatistics object from the org.apache.commons.math3 package.
+		* a statistical summary is read from the aggregate index instead of scanning gameRecords.
 		*
 		* This method was changed few times during the competition since filters were not working as expected, apparently due to
 		* a file encoding issue.
 		**/
 		public BasicStatisticValues getStatsPerAllCriteria(AdxQuery pQuery){
-			DescriptiveStatistics statsCalc = new DescriptiveStatistics();
 			BasicStatisticValues returnVal = new BasicStatisticValues();
 			MarketSegment sGender, sAge, sIncome;
 
@@ -2229,80 +2472,18 @@ public class AgentNAMM extends Agent {
 				sIncome = null;
 			}
 
-			// System.out.println("#####STATSALLCRITERIA##### " + pQuery.toString());
-
-			if(sGender != null && sAge != null && sIncome != null){
-				// System.out.print("#####STATSALLCRITERIA##### Gender + Age + Income");
-				for(ImpressionRecord rEntry : impressionList) {
-					if(rEntry.mktSegGender == sGender && rEntry.mktSegAge == sAge && rEntry.mktSegIncome == sIncome && rEntry.adType == pQuery.getAdType() && rEntry.dev == pQuery.getDevice()) {
-						//  && rEntry.pub == pQuery.getPublisher() && rEntry.lostCount == 0
-						statsCalc.addValue(rEntry.costImpr);
-						//System.out.print(".");
-					}
-				}
-			}
-			else if (sGender != null && sAge != null) {
-				System.out.print("#####STATSALLCRITERIA##### Gender + Age");
-				for(ImpressionRecord rEntry : impressionList) {
-					if(rEntry.mktSegGender == sGender && rEntry.mktSegAge == sAge && rEntry.adType == pQuery.getAdType() && rEntry.dev == pQuery.getDevice()) {
-						statsCalc.addValue(rEntry.costImpr);
-						System.out.print(".");
-					}
-				}
-			}
-			else if (sAge != null && sIncome != null) {
-				System.out.print("#####STATSALLCRITERIA##### Age + Income");
-				for(ImpressionRecord rEntry : impressionList) {
-					if(rEntry.mktSegAge == sAge && rEntry.mktSegIncome == sIncome && rEntry.adType == pQuery.getAdType() && rEntry.dev == pQuery.getDevice()) {
-						statsCalc.addValue(rEntry.costImpr);
-						System.out.print(".");
-					}
-				}
-			}
-			else if (sGender != null && sIncome != null) {
-				System.out.print("#####STATSALLCRITERIA##### Gender + Income");
-				for(ImpressionRecord rEntry : impressionList) {
-					if(rEntry.mktSegGender == sGender && rEntry.mktSegIncome == sIncome && rEntry.adType == pQuery.getAdType() && rEntry.dev == pQuery.getDevice()) {
-						statsCalc.addValue(rEntry.costImpr);
-						System.out.print(".");
-					}
-				}
-			}
-			else if (sGender != null) {
-				System.out.print("#####STATSALLCRITERIA##### Gender");
-				for(ImpressionRecord rEntry : impressionList) {
-					if(rEntry.mktSegGender == sGender && rEntry.adType == pQuery.getAdType() && rEntry.dev == pQuery.getDevice()) {
-						statsCalc.addValue(rEntry.costImpr);
-						System.out.print(".");
-					}
-				}
-			}
-			else if (sAge != null) {
-				System.out.print("#####STATSALLCRITERIA##### Age");
-				for(ImpressionRecord rEntry : impressionList) {
-					if(rEntry.mktSegAge == sAge && rEntry.adType == pQuery.getAdType() && rEntry.dev == pQuery.getDevice()) {
-						statsCalc.addValue(rEntry.costImpr);
-						System.out.print(".");
-					}
-				}
-			}
-			else if (sIncome != null) {
-				System.out.print("#####STATSALLCRITERIA##### Income");
-				for(ImpressionRecord rEntry : impressionList) {
-					if(rEntry.mktSegIncome == sIncome && rEntry.adType == pQuery.getAdType() && rEntry.dev == pQuery.getDevice()) {
-						statsCalc.addValue(rEntry.costImpr);
-						System.out.print(".");
-					}
-				}
+			// Unknown segment queries have no filter to apply and fall back to the defaults below
+			int cell = -1;
+			if(sGender != null || sAge != null || sIncome != null){
+				cell = statsIndex.lookup(sGender, sAge, sIncome, pQuery.getAdType(), pQuery.getDevice(), null, false);
 			}
 
-			// System.out.println("#####STATSALLCRITERIA##### Items added: " + statsCalc.getN());
-			if(statsCalc.getN() > 0) {
-				returnVal.mean = statsCalc.getMean();
-				returnVal.std = statsCalc.getStandardDeviation();
-				returnVal.var = statsCalc.getVariance();
-				returnVal.max = statsCalc.getMax();
-				returnVal.min = statsCalc.getMin();
+			if(statsIndex.getN(cell) > 0) {
+				returnVal.mean = statsIndex.getMean(cell);
+				returnVal.std = statsIndex.getStandardDeviation(cell);
+				returnVal.var = statsIndex.getVariance(cell);
+				returnVal.max = statsIndex.getMax(cell);
+				returnVal.min = statsIndex.getMin(cell);
 			}
 			else {
 				returnVal.mean = 0.000005;
@@ -2316,164 +2497,68 @@ public class AgentNAMM extends Agent {
 		}
 
 		/**
-		 * Method to save a file with the historic impressions bidding data. It basically opens the file stream and write each
-		 * line using the toCsv method from the ImpressionRecord class.
+		 * Empties the history at the start of a game. Everything kept so far was saved to the journal and comes
+		 * back through the next snapshot.
 		 */
-		public void saveFile(){
-			String workingDir = System.getProperty("user.dir");
-			String fName = workingDir + "/BHFull.csv";
-			String fLine;
-			System.out.println("#####SAVEFILE##### Starting file save. Length:" + impressionList.size());
-			try {
-				FileWriter csvFw = new FileWriter(fName);
-				csvFw.write("GameId,BidDay,CampId,AdType,Device,Publisher,Gender,MktGender,Income,MktIncome,Age,MktAge,BidCount,WinCount,TotalCost,CostImpr,LostCount" + System.lineSeparator());
-				for(ImpressionRecord sRecord : impressionList){
-					fLine = sRecord.toCsv();
-					if(fLine != null) {csvFw.write(fLine + System.lineSeparator());}
-				}
-				csvFw.close();
-			} catch(IOException ex){
-				System.out.println("##### ERR Writing the CSV File #####");
-				ex.printStackTrace();
-			}
+		public void reset(){
+			gameRecords = new ImpressionRecords();
+			statsIndex = new ImpressionStatsIndex();
+			ownsStatsIndex = true;
+			historicCount = 0;
+			flushedCount = 0;
+			gameNumber = 0;
 		}
 
 		/**
-		* This method reads the BHFull.csv file from the running directory to feed the impression bid strategy with
-		* historic data from previous games.
-		*
-		* This methods was changed several times during the competition as per inconsistencies identified at runtime
-		* that turned out to be a file encoding issue. It was fiexed using the .equals method from Strings.
-		**/
-		public void loadFile(){
-			String workingDir = System.getProperty("user.dir");
-			String fName = workingDir + "/BHFull.csv";
-			String fLine;
-			BufferedReader br;
-			ImpressionRecord iRecord;
-			AdType fAdType;
-			Device fDevice;
-			Gender fGender;
-			Income fIncome;
-			Age fAge;
-			String readValue;
-
-			try {
-				File fileDir = new File(fName);
-				BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(fileDir), "UTF8"));
-
-				fLine = in.readLine(); // Ignores the first line that contains the headers
-				while ((fLine = in.readLine()) != null) {
-					String[] fValues = fLine.split(",");
-					// 0:GameId,1:BidDay,2:CampId,3:AdType,4:Device,5:Publisher,6:Gender,7:MktGender,8:Income,9:MktIncome,10:Age,11:MktAge,12:BidCount,13:WinCount,14:TotalCost,15:CostImpr,16:LostCount
-					if(fValues[3].equals("text")) { fAdType = AdType.text; } else { fAdType = AdType.video; }
-					if(fValues[4].equals("pc")) { fDevice = Device.pc; } else { fDevice = Device.mobile; }
-					if(fValues[6].equals("male")) { fGender = Gender.male; } else { fGender = Gender.female; }
-					if(fValues[8].equals("low")) { fIncome = Income.low; } else if(fValues[8].equals("medium")) { fIncome = Income.medium; }
-					else if(fValues[8].equals("high")) { fIncome = Income.high; } else { fIncome = Income.very_high; }
-					if(fValues[10].equals("Age_18_24")) { fAge = Age.Age_18_24; } else if(fValues[10].equals("Age_25_34")) { fAge = Age.Age_25_34; }
-					else if(fValues[10].equals("Age_35_44")) { fAge = Age.Age_35_44; } else if(fValues[10].equals("Age_45_54")) { fAge = Age.Age_45_54; }
-					else if(fValues[10].equals("Age_55_64")) { fAge = Age.Age_55_64; } else { fAge = Age.Age_65_PLUS; }
-					iRecord = new ImpressionRecord(Integer.parseInt(fValues[0]), Integer.parseInt(fValues[1]), Integer.parseInt(fValues[2]),
-							fAdType, fDevice, fValues[5].toString(), fGender, fIncome, fAge, Integer.parseInt(fValues[12]), Integer.parseInt(fValues[13]), Double.parseDouble(fValues[14]));
-					impressionBidHistory.impressionList.add(iRecord);
-					// System.out.println("#####CSVLINE##### - " + fValues[3] + "," + fValues[4] + "," + fValues[6] + "," + fValues[8] + "," + fValues[10]);
-					// System.out.println("#####CSVLINE##### [] " + fAdType.toString() + "," + fDevice.toString() + "," + fGender.toString() + "," + fIncome.toString() + "," + fAge.toString());
-				}
-				System.out.println("#####LOADFILE##### Load file complete: " + impressionBidHistory.impressionList.size());
-				in.close();
-			}
-			catch (IOException ex) {
-				System.out.println("#####LOADFILE##### EXCEPTION WHEN READING THE CSV!!!!!!");
-				ex.printStackTrace();
+		 * Puts the historic records of the shared history in front of the records collected so far in this game,
+		 * without copying either the records or, until this game adds one, the aggregate index. Records already
+		 * saved are part of the shared history and are dropped from gameRecords.
+		 */
+		public void install(SharedHistory history){
+			ImpressionRecords current = gameRecords;
+			gameRecords = new ImpressionRecords(current.size() - flushedCount);
+			statsIndex = history.stats();
+			ownsStatsIndex = false;
+			historicCount = history.impressionCount();
+			gameNumber = history.gameCount();
+			for(int row = flushedCount; row < current.size(); row++){
+				addToStats(gameRecords.add(current, row));
 			}
-		}
-	}
-
-	/**
-	 * Class to store a single line of data coming from the AdNet Report.
-	 * This class is used within Impression History to have a collection of historic records. This allows the
-	 * calculation of statistics and other indices to take decisions during the game.
-	 */
-	private class ImpressionRecord {
-		public int simId = 0;
-		public int bidDay = 0;
-		public int campId = 0;
-		public AdType adType = AdType.text;
-		public Device dev = Device.pc;
-		public String pub = "";
-		public Gender segGender = Gender.male;
-		public MarketSegment mktSegGender = MarketSegment.MALE;
-		public Income segIncome = Income.medium;
-		public MarketSegment mktSegIncome = MarketSegment.HIGH_INCOME;
-		public Age segAge = Age.Age_18_24;
-		public MarketSegment mktSegAge = MarketSegment.YOUNG;
-		public int bidCount = 0;
-		public int winCount = 0;
-		public double totalCost = 0;
-		public double costImpr = 0;
-		public int lostCount = 0;
-
-		/**
-		* Constructor using each property as parameter
-		**/
-		public ImpressionRecord(int pSimId, int pBidDay, int pCampId, AdType pAdType, Device pDev, String pPub, Gender pSegGender,
-								Income pSegIncome, Age pSegAge, int pBidCount, int pWinCount, double pTotalCost){
-			simId = pSimId;
-			bidDay = pBidDay;
-			campId = pCampId;
-			adType = pAdType;
-			dev = pDev;
-			pub = pPub;
-			segGender = pSegGender;
-			mktSegGender = (segGender == Gender.male)? MarketSegment.MALE : MarketSegment.FEMALE;
-			segIncome = pSegIncome;
-			mktSegIncome = (segIncome == Income.high || segIncome == Income.very_high) ? MarketSegment.HIGH_INCOME : MarketSegment.LOW_INCOME;
-			segAge = pSegAge;
-			mktSegAge = (segAge == Age.Age_18_24 || segAge == Age.Age_25_34 || segAge == Age.Age_35_44) ? MarketSegment.YOUNG : MarketSegment.OLD;
-			bidCount = pBidCount;
-			winCount = pWinCount;
-			totalCost = pTotalCost / 1000;
-			costImpr = pTotalCost / pWinCount;
-			lostCount = pBidCount - pWinCount;
+			flushedCount = 0;
 		}
 
 		/**
-		* Constructor using only the Report entry as parameter. All values are extracted within this method.
-		**/
-		public ImpressionRecord(AdNetworkReportEntry pReportEntry){
-			simId = startInfo.getSimulationID();
-			bidDay = day -1;
-			campId = pReportEntry.getKey().getCampaignId();
-			adType = pReportEntry.getKey().getAdType();
-			dev = pReportEntry.getKey().getDevice();
-			pub = pReportEntry.getKey().getPublisher();
-			segGender = pReportEntry.getKey().getGender();
-			mktSegGender = (segGender == Gender.male)? MarketSegment.MALE : MarketSegment.FEMALE;
-			segIncome = pReportEntry.getKey().getIncome();
-			mktSegIncome = (segIncome == Income.high || segIncome == Income.very_high) ? MarketSegment.HIGH_INCOME : MarketSegment.LOW_INCOME;
-			segAge = pReportEntry.getKey().getAge();
-			mktSegAge = (segAge == Age.Age_18_24 || segAge == Age.Age_25_34 || segAge == Age.Age_35_44) ? MarketSegment.YOUNG : MarketSegment.OLD;
-			bidCount = pReportEntry.getBidCount();
-			winCount = pReportEntry.getWinCount();
-			totalCost = pReportEntry.getCost() / 1000;
-			costImpr = totalCost / winCount;
-			lostCount = bidCount - winCount;
+		 * Collects the records added since the history was loaded or last saved, marking them as saved. Runs on
+		 * the agent thread; the returned batch is then written by saveFile on the I/O thread.
+		 */
+		public ImpressionHistoryStore.Builder takeUnsaved(){
+			ImpressionHistoryStore.Builder builder = new ImpressionHistoryStore.Builder(
+					new ImpressionRecords(gameRecords.size() - flushedCount));
+			ImpressionRecords.Cursor cursor = gameRecords.cursor(flushedCount);
+			while(cursor.next()){
+				// Records without a cost were never written to the history file
+				if(cursor.totalCost() > 0.00000000001) {
+					builder.add(gameRecords, cursor.row());
+				}
+			}
+			flushedCount = gameRecords.size();
+			return builder;
 		}
 
 		/**
-		* Method to help with the file writing action by concatenating each value separated by a comma in a specified order.
-		**/
-		public String toCsv(){
-			if(totalCost > 0.00000000001) {
-				return simId + "," + bidDay + "," + campId + "," + adType.toString() + "," +
-						dev.toString() + "," + pub + "," + segGender.toString() + "," + mktSegGender.toString() + "," +
-						segIncome.toString() + "," + mktSegIncome.toString() + "," + segAge.toString() + "," +
-						mktSegAge.toString() + "," + bidCount + "," + winCount + "," + totalCost + "," + costImpr + "," + lostCount;
-			}
-			else {
-				return null;
+		 * Method to save the impression bidding data of one game, as one new segment of the history journal (see
+		 * HistoryJournal), so the cost of saving does not grow with the size of the history. Use
+		 * ImpressionHistoryStore's export command on the compacted base (BHFull-<stamp>.bin) to get BHFull.csv back
+		 * for the R scripts.
+		 */
+		public void saveFile(ImpressionHistoryStore.Builder batch, int simId){
+			AgentLog.HISTORY.info("#####SAVEFILE##### Starting file save. New records:%d", batch.size());
+			try {
+				historyJournal.appendImpressions(batch, simId);
+			} catch(IOException ex){
+				AgentLog.HISTORY.warning("##### ERR Writing the history File #####", ex);
 			}
+			historyJournal.compactIfNeeded();
 		}
 	}
 
@@ -2481,7 +2566,7 @@ public class AgentNAMM extends Agent {
 	* Structure to ease the manipulation of different statistical reports from a collection of values. Used to ease
 	* the manipulation of org.apache.commons.math3 operations.
 	**/
-	private class BasicStatisticValues {
+	class BasicStatisticValues {
 		public double mean;
 		public double std;
 		public double var;
@@ -2494,32 +2579,29 @@ public class AgentNAMM extends Agent {
 	}
 
 
-	public void campaignSaveFile(){
-		String workingDir = System.getProperty("user.dir");
-		String fName = workingDir + "\\CmpLog.csv";
-		// TODO ALUN: fix so it doesn't print header every time
-		//CSV file header
-		final String FILE_HEADER = "game,id,dayStart,dayEnd,reachImps,targetSegment,videoCoef,mobileCoef," +
-				"adxCost,targetedImps,untargetedImps,budget,revenue,profitEstimate,cmpBid,impressionTarget," +
-				"uncorrectedProfitEstimate,costEstimate,estImpCost,estUcsCost,qualityChange,estQualityChange," +
-				"ucsCost,estCostAcc,estProfitAcc,uncorrectedProffitAcc,estQualityChangeAcc,impTargetFulfillment," +
-				"bidVs2ndRatio,profit,profitPerImpression,reachFulfillment,estUcsCostAcc";
-		try {
-			FileWriter csvFw = new FileWriter(fName, true);
-			// TODO: include FILEHEADER when writing new file
-			//csvFw.write(FILE_HEADER + System.lineSeparator());
-
-			//Add a new line separator after the header
-			for (Map.Entry<Integer, CampaignData> entry : myCampaigns.entrySet()) {
-				CampaignData campaign = entry.getValue();
-				csvFw.append(campaign.toWrite() + System.lineSeparator());
-			}
+	/**
+	 * Campaign log rows for this game's campaigns
+	 */
+	public CampaignLogStore.Builder campaignLog(){
+		CampaignLogStore.Builder rows = new CampaignLogStore.Builder();
+		for (Map.Entry<Integer, CampaignData> entry : myCampaigns.entrySet()) {
+			CampaignData campaign = entry.getValue();
+			campaign.addTo(rows);
+		}
+		return rows;
+	}
 
-			csvFw.close();
-			System.out.println("Printed campaign csv successfully");
+	/**
+	 * Saves one game's campaign log rows as a new segment of the campaign log in the history journal
+	 */
+	public void campaignSaveFile(CampaignLogStore.Builder rows, int simId){
+		try {
+			historyJournal.appendCampaigns(rows, simId);
+			AgentLog.HISTORY.info("Saved campaign log successfully");
 		} catch(IOException ex){
-			System.out.println("##### ERR Writing the CSV File #####");
+			AgentLog.HISTORY.warning("##### ERR Writing the campaign log #####", ex);
 		}
+		historyJournal.compactIfNeeded();
 	}
 
 }
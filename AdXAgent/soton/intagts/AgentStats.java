@@ -0,0 +1,123 @@
+package soton.intagts;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Throughput and memory counters of one agent instance, for hosts running several agents in one JVM.
+ *
+ * The agent updates its counters on the consumer thread of its EventPipeline (one writer), the host reads them
+ * from any thread. Messages are only counted; time and allocation are sampled once per game, at setup and when it
+ * finishes, both applied on that thread, so the counters cost nothing measurable per message. Allocation is what
+ * the pipeline's consumer thread allocated during the agent's games, which on a host is the agent's own garbage:
+ * every agent has its own "namm-events" thread. What the agentware thread allocates to receive the messages is
+ * not counted.
+ *
+ * Every instance is registered on creation and stays listed while its agent is alive.
+ */
+class AgentStats {
+
+	private static final List<WeakReference<AgentStats>> INSTANCES = new ArrayList<WeakReference<AgentStats>>();
+
+	private volatile String name = "?";
+	private volatile long messages;
+	private volatile long games;
+	private volatile long gameNanos;
+	private volatile long allocatedBytes;
+	private volatile int overlayRecords;
+
+	/* Samples taken at the start of the running game, 0 when no game is running */
+	private long gameStart;
+	private long allocatedStart;
+
+	AgentStats() {
+		synchronized (INSTANCES) {
+			INSTANCES.add(new WeakReference<AgentStats>(this));
+		}
+	}
+
+	/**
+	 * Statistics of every agent of the JVM still alive, in creation order.
+	 */
+	static List<AgentStats> instances() {
+		List<AgentStats> live = new ArrayList<AgentStats>();
+		synchronized (INSTANCES) {
+			for (Iterator<WeakReference<AgentStats>> it = INSTANCES.iterator(); it.hasNext();) {
+				AgentStats stats = it.next().get();
+				if (stats == null) {
+					it.remove();
+				} else {
+					live.add(stats);
+				}
+			}
+		}
+		return live;
+	}
+
+	/**
+	 * Bytes allocated by the calling thread so far, 0 on JVMs that do not report it.
+	 */
+	static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	void gameStarted(String agentName) {
+		if (agentName != null) {
+			name = agentName;
+		}
+		gameStart = System.nanoTime();
+		allocatedStart = allocatedBytes();
+	}
+
+	void messageReceived() {
+		messages++;
+	}
+
+	/**
+	 * @param overlay records the agent holds on top of the shared history
+	 */
+	void gameFinished(int overlay) {
+		if (gameStart != 0) {
+			gameNanos += System.nanoTime() - gameStart;
+			allocatedBytes += allocatedBytes() - allocatedStart;
+			games++;
+			gameStart = 0;
+		}
+		overlayRecords = overlay;
+	}
+
+	String name() {
+		return name;
+	}
+
+	long messages() {
+		return messages;
+	}
+
+	long games() {
+		return games;
+	}
+
+	/**
+	 * Wall time of the finished games, from setup to the end of the game.
+	 */
+	long gameNanos() {
+		return gameNanos;
+	}
+
+	long allocatedBytesTotal() {
+		return allocatedBytes;
+	}
+
+	int overlayRecords() {
+		return overlayRecords;
+	}
+}
@@ -0,0 +1,218 @@
+package soton.intagts;
+
+import java.util.Arrays;
+
+import edu.umich.eecs.tac.props.Ad;
+import tau.tac.adx.props.AdxBidBundle;
+import tau.tac.adx.props.AdxQuery;
+
+/**
+ * Builds AdxBidBundles from bids recorded in reusable arrays, allocating a bundle only when it has to.
+ *
+ * A build records its query bids and per campaign daily limits between {@link #begin()} and {@link #finish()}.
+ * Recording allocates nothing, so a build abandoned at its deadline costs no garbage. finish() then compares the
+ * bids with those of the last bundle it returned:
+ * <ul>
+ * <li>identical bids return that same bundle;</li>
+ * <li>if only bids, weights or limits changed and that bundle was never sent, it is updated in place;</li>
+ * <li>otherwise a new bundle is created.</li>
+ * </ul>
+ * A bundle is never modified once {@link #sent(AdxBidBundle)} has been called for it, because the transport or
+ * anyone capturing the message may still read it. Daily limits are written once per campaign, at the end of the
+ * bundle.
+ */
+class BidBundleBuilder {
+
+	/* The agent does not use ads; one instance serves every entry */
+	private static final Ad NO_AD = new Ad(null);
+
+	/* Bids being recorded, and the bids of the last bundle returned */
+	private Bids current = new Bids();
+	private Bids previous = new Bids();
+
+	private AdxBidBundle last;
+	private boolean lastSent;
+
+	/* How finish() produced its bundles, for the statistics */
+	private long created;
+	private long updated;
+	private long reused;
+
+	/**
+	 * Starts recording a new set of bids.
+	 */
+	void begin() {
+		current.clear();
+	}
+
+	/**
+	 * Records a bid for query on behalf of campaignId.
+	 */
+	void bid(AdxQuery query, double bid, int campaignId, int weight) {
+		current.addBid(query, bid, campaignId, weight);
+	}
+
+	/**
+	 * Sets the daily impression and budget limit of campaignId; a later call for the same campaign replaces it.
+	 */
+	void campaignLimit(int campaignId, int impressions, double budget) {
+		current.setLimit(campaignId, impressions, budget);
+	}
+
+	/**
+	 * The bundle for the recorded bids.
+	 */
+	AdxBidBundle finish() {
+		if (last != null && current.sameBids(previous)) {
+			reused++;
+		} else if (last != null && !lastSent && current.sameLayout(previous)) {
+			current.update(last);
+			updated++;
+		} else {
+			last = current.create();
+			lastSent = false;
+			created++;
+		}
+		Bids swap = previous;
+		previous = current;
+		current = swap;
+		return last;
+	}
+
+	/**
+	 * Marks bundle as handed to the transport; it is not modified from now on.
+	 */
+	void sent(AdxBidBundle bundle) {
+		if (bundle == last) {
+			lastSent = true;
+		}
+	}
+
+	/**
+	 * Bundles created, updated in place and reused unchanged so far.
+	 */
+	String summary() {
+		return "created=" + created + ", updated=" + updated + ", reused=" + reused;
+	}
+
+	/**
+	 * One set of bids in struct of arrays form: query bids first, then one limit per campaign.
+	 */
+	private static class Bids {
+		AdxQuery[] queries = new AdxQuery[64];
+		double[] bids = new double[64];
+		int[] campaigns = new int[64];
+		int[] weights = new int[64];
+		int size;
+
+		int[] limitCampaigns = new int[8];
+		int[] limitImpressions = new int[8];
+		double[] limitBudgets = new double[8];
+		int limits;
+
+		void clear() {
+			Arrays.fill(queries, 0, size, null);
+			size = 0;
+			limits = 0;
+		}
+
+		void addBid(AdxQuery query, double bid, int campaignId, int weight) {
+			if (size == queries.length) {
+				queries = Arrays.copyOf(queries, 2 * size);
+				bids = Arrays.copyOf(bids, 2 * size);
+				campaigns = Arrays.copyOf(campaigns, 2 * size);
+				weights = Arrays.copyOf(weights, 2 * size);
+			}
+			queries[size] = query;
+			bids[size] = bid;
+			campaigns[size] = campaignId;
+			weights[size] = weight;
+			size++;
+		}
+
+		void setLimit(int campaignId, int impressions, double budget) {
+			int i = 0;
+			while (i < limits && limitCampaigns[i] != campaignId) {
+				i++;
+			}
+			if (i == limits) {
+				if (limits == limitCampaigns.length) {
+					limitCampaigns = Arrays.copyOf(limitCampaigns, 2 * limits);
+					limitImpressions = Arrays.copyOf(limitImpressions, 2 * limits);
+					limitBudgets = Arrays.copyOf(limitBudgets, 2 * limits);
+				}
+				limits++;
+			}
+			limitCampaigns[i] = campaignId;
+			limitImpressions[i] = impressions;
+			limitBudgets[i] = budget;
+		}
+
+		/**
+		 * Same queries and campaigns in the same order, so a bundle of one can be turned into the other by index.
+		 */
+		boolean sameLayout(Bids other) {
+			if (size != other.size || limits != other.limits) {
+				return false;
+			}
+			for (int i = 0; i < size; i++) {
+				if (queries[i] != other.queries[i] || campaigns[i] != other.campaigns[i]) {
+					return false;
+				}
+			}
+			for (int i = 0; i < limits; i++) {
+				if (limitCampaigns[i] != other.limitCampaigns[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		boolean sameBids(Bids other) {
+			if (!sameLayout(other)) {
+				return false;
+			}
+			for (int i = 0; i < size; i++) {
+				if (!same(bids[i], other.bids[i]) || weights[i] != other.weights[i]) {
+					return false;
+				}
+			}
+			for (int i = 0; i < limits; i++) {
+				if (limitImpressions[i] != other.limitImpressions[i] || !same(limitBudgets[i], other.limitBudgets[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		AdxBidBundle create() {
+			AdxBidBundle bundle = new AdxBidBundle();
+			for (int i = 0; i < size; i++) {
+				bundle.addQuery(queries[i], bids[i], NO_AD, campaigns[i], weights[i]);
+			}
+			for (int i = 0; i < limits; i++) {
+				bundle.setCampaignDailyLimit(limitCampaigns[i], limitImpressions[i], limitBudgets[i]);
+			}
+			return bundle;
+		}
+
+		/**
+		 * Writes the values into bundle, which was created from bids with the same layout.
+		 */
+		void update(AdxBidBundle bundle) {
+			for (int i = 0; i < size; i++) {
+				bundle.setBid(i, bids[i]);
+				bundle.getEntry(i).setWeight(weights[i]);
+			}
+			for (int i = 0; i < limits; i++) {
+				AdxBidBundle.BidEntry entry = bundle.getEntry(size + i);
+				entry.setWeight(limitImpressions[i]);
+				entry.setDailyLimit(limitBudgets[i]);
+			}
+		}
+
+		private static boolean same(double a, double b) {
+			return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+		}
+	}
+}
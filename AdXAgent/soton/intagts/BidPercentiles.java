@@ -0,0 +1,77 @@
+package soton.intagts;
+
+import java.util.Arrays;
+
+/**
+ * A growing sample of campaign bids per impression that answers any percentile in O(1).
+ *
+ * Values are kept sorted as they are added (binary search and one array copy), so a percentile is an index
+ * computation instead of the sort DescriptiveStatistics does on every call. Percentiles and the maximum are exactly
+ * those of DescriptiveStatistics.getPercentile and getMax over the same values: NaN values are ignored, the legacy
+ * estimation interpolates between the two values around position p (n + 1) / 100, and an empty sample gives NaN.
+ * There are at most a few thousand campaigns in the history, so the exact sample is as small as a sketch would be.
+ */
+class BidPercentiles {
+
+	private double[] sorted = new double[16];
+	/* Values stored in sorted (NaN excluded), and every value added */
+	private int size;
+	private int count;
+
+	void add(double value) {
+		count++;
+		if (Double.isNaN(value)) {
+			return;
+		}
+		if (size == sorted.length) {
+			sorted = Arrays.copyOf(sorted, 2 * size);
+		}
+		int at = Arrays.binarySearch(sorted, 0, size, value);
+		if (at < 0) {
+			at = -at - 1;
+		}
+		System.arraycopy(sorted, at, sorted, at + 1, size - at);
+		sorted[at] = value;
+		size++;
+	}
+
+	void clear() {
+		size = 0;
+		count = 0;
+	}
+
+	/**
+	 * Values added, including NaN.
+	 */
+	int count() {
+		return count;
+	}
+
+	/**
+	 * The p-th percentile, 0 < p <= 100.
+	 */
+	double percentile(double p) {
+		if (size == 0) {
+			return Double.NaN;
+		}
+		if (size == 1) {
+			return sorted[0];
+		}
+		double pos = (p / 100) * (size + 1);
+		double fpos = Math.floor(pos);
+		int intPos = (int) fpos;
+		if (pos < 1) {
+			return sorted[0];
+		}
+		if (pos >= size) {
+			return sorted[size - 1];
+		}
+		double lower = sorted[intPos - 1];
+		double upper = sorted[intPos];
+		return lower + (pos - fpos) * (upper - lower);
+	}
+
+	double max() {
+		return size == 0 ? Double.NaN : sorted[size - 1];
+	}
+}
@@ -0,0 +1,99 @@
+package soton.intagts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Campaign lifecycle index keyed by day.
+ *
+ * Each campaign is registered once, when it is allocated, into the bucket of every day it runs plus the
+ * buckets of its first and last day. Campaigns last at most a few days, so registration is cheap, and the
+ * per-day questions the agent asks ("active on day d", "ended on day d", "overlapping [a,b]") are answered
+ * in time proportional to the answer instead of the number of campaigns seen in the game.
+ */
+class CampaignDayIndex<T> {
+
+	private final List<List<T>> activeByDay = new ArrayList<List<T>>();
+	private final List<List<T>> startingByDay = new ArrayList<List<T>>();
+	private final List<List<T>> endingByDay = new ArrayList<List<T>>();
+	private int size;
+
+	/**
+	 * Registers a campaign running from dayStart to dayEnd (both inclusive).
+	 */
+	public void add(T campaign, long dayStart, long dayEnd) {
+		int start = (int) Math.max(0, dayStart);
+		int end = (int) Math.max(start, dayEnd);
+		ensureDay(end);
+		for (int d = start; d <= end; d++) {
+			activeByDay.get(d).add(campaign);
+		}
+		startingByDay.get(start).add(campaign);
+		endingByDay.get(end).add(campaign);
+		size++;
+	}
+
+	public void clear() {
+		activeByDay.clear();
+		startingByDay.clear();
+		endingByDay.clear();
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Campaigns with dayStart <= day <= dayEnd, in the order they were added.
+	 */
+	public List<T> activeOn(long day) {
+		return bucket(activeByDay, day);
+	}
+
+	/**
+	 * Campaigns whose last day is day.
+	 */
+	public List<T> endedOn(long day) {
+		return bucket(endingByDay, day);
+	}
+
+	/**
+	 * Campaigns whose last day is before day.
+	 */
+	public List<T> endedBefore(long day) {
+		List<T> ended = new ArrayList<T>();
+		for (int d = 0; d < Math.min(day, endingByDay.size()); d++) {
+			ended.addAll(endingByDay.get(d));
+		}
+		return ended;
+	}
+
+	/**
+	 * Campaigns running on at least one day of [from, to]. Each campaign is reported once: either it is
+	 * already active on the first day or it starts later within the range.
+	 */
+	public List<T> overlapping(long from, long to) {
+		List<T> overlapping = new ArrayList<T>(activeOn(from));
+		for (long d = Math.max(0, from + 1); d <= to && d < startingByDay.size(); d++) {
+			overlapping.addAll(startingByDay.get((int) d));
+		}
+		return overlapping;
+	}
+
+	private List<T> bucket(List<List<T>> buckets, long day) {
+		if (day < 0 || day >= buckets.size()) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(buckets.get((int) day));
+	}
+
+	private void ensureDay(int day) {
+		while (activeByDay.size() <= day) {
+			activeByDay.add(new ArrayList<T>());
+			startingByDay.add(new ArrayList<T>());
+			endingByDay.add(new ArrayList<T>());
+		}
+	}
+}
@@ -0,0 +1,325 @@
+package soton.intagts;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+import tau.tac.adx.report.adn.MarketSegment;
+
+/**
+ * Versioned columnar binary file for the campaign log (the same 33 fields as CmpLog.csv).
+ *
+ * Layout (big endian):
+ *   int magic, int version, int rows, then one contiguous column per field, in CSV order: game, id, dayStart and
+ *   dayEnd as ints, reachImps as a long, the target segment as a byte SegmentMask, impressionTarget as a long and
+ *   every other field as a double.
+ *
+ * A file is read with one bulk read and every value is a direct buffer access - there is no text to parse and the
+ * target segment is stored as the campaign's own, not as text. Campaign logs are small, so they are read onto the
+ * heap rather than mapped; segments can then be deleted as soon as they are compacted.
+ *
+ * Usage as a tool:
+ *   java soton.intagts.CampaignLogStore import CmpLog.csv CmpLog.bin
+ *   java soton.intagts.CampaignLogStore export CmpLog.bin CmpLog.csv
+ */
+class CampaignLogStore {
+
+	static final int MAGIC = 0x4E414D43; // "NAMC"
+	static final int VERSION = 1;
+
+	static final String CSV_HEADER = "game,id,dayStart,dayEnd,reachImps,targetSegment,videoCoef,mobileCoef," +
+			"adxCost,targetedImps,untargetedImps,budget,revenue,profitEstimate,cmpBid,impressionTarget," +
+			"uncorrectedProfitEstimate,costEstimate,estImpCost,estUcsCost,qualityChange,estQualityChange," +
+			"ucsCost,estCostAcc,estProfitAcc,uncorrectedProffitAcc,estQualityChangeAcc,impTargetFulfillment," +
+			"bidVs2ndRatio,profit,profitPerImpression,reachFulfillment,estUcsCostAcc";
+
+	/* The double columns, indices into Builder.add's values, in CSV order */
+	static final int VIDEO_COEF = 0, MOBILE_COEF = 1, ADX_COST = 2, TARGETED_IMPS = 3, UNTARGETED_IMPS = 4,
+			BUDGET = 5, REVENUE = 6, PROFIT_ESTIMATE = 7, CMP_BID = 8, UNCORRECTED_PROFIT_ESTIMATE = 9,
+			COST_ESTIMATE = 10, EST_IMP_COST = 11, EST_UCS_COST = 12, QUALITY_CHANGE = 13, EST_QUALITY_CHANGE = 14,
+			UCS_COST = 15, EST_COST_ACC = 16, EST_PROFIT_ACC = 17, UNCORRECTED_PROFIT_ACC = 18,
+			EST_QUALITY_CHANGE_ACC = 19, IMP_TARGET_FULFILLMENT = 20, BID_VS_2ND_RATIO = 21, PROFIT = 22,
+			PROFIT_PER_IMPRESSION = 23, REACH_FULFILLMENT = 24, EST_UCS_COST_ACC = 25;
+	static final int DOUBLES = 26;
+
+	/* Position of the double columns in a CSV row; impressionTarget (15) sits between CMP_BID and the rest */
+	private static final int[] CSV_FIELD = new int[DOUBLES];
+
+	static {
+		for (int c = 0; c < DOUBLES; c++) {
+			CSV_FIELD[c] = c <= CMP_BID ? 6 + c : 7 + c;
+		}
+	}
+
+	private final ByteBuffer buffer;
+	private final int rows;
+
+	/* Start of each column in the buffer */
+	private final int gameCol, idCol, dayStartCol, dayEndCol, reachImpsCol, segmentCol, impressionTargetCol,
+			doublesCol;
+
+	private CampaignLogStore(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.limit() < 12 || buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not a campaign log file");
+		}
+		int version = buffer.getInt(4);
+		if (version != VERSION) {
+			throw new IOException("Unsupported campaign log version " + version);
+		}
+		rows = buffer.getInt(8);
+		gameCol = 12;
+		idCol = gameCol + 4 * rows;
+		dayStartCol = idCol + 4 * rows;
+		dayEndCol = dayStartCol + 4 * rows;
+		reachImpsCol = dayEndCol + 4 * rows;
+		segmentCol = reachImpsCol + 8 * rows;
+		impressionTargetCol = segmentCol + rows;
+		doublesCol = impressionTargetCol + 8 * rows;
+		if (doublesCol + 8 * DOUBLES * rows > buffer.limit()) {
+			throw new IOException("Truncated campaign log file");
+		}
+	}
+
+	/**
+	 * Reads a campaign log file. A .csv file (the log written before the binary format) is converted in memory,
+	 * skipping the rows that cannot be parsed.
+	 */
+	public static CampaignLogStore open(File file) throws IOException {
+		if (file.getName().endsWith(".csv")) {
+			Builder builder = new Builder();
+			importCsv(file, builder);
+			return builder.toStore();
+		}
+		return new CampaignLogStore(ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+	}
+
+	public int size() { return rows; }
+	public int game(int row) { return buffer.getInt(gameCol + 4 * row); }
+	public int id(int row) { return buffer.getInt(idCol + 4 * row); }
+	public int dayStart(int row) { return buffer.getInt(dayStartCol + 4 * row); }
+	public int dayEnd(int row) { return buffer.getInt(dayEndCol + 4 * row); }
+	public long reachImps(int row) { return buffer.getLong(reachImpsCol + 8 * row); }
+	public int segmentMask(int row) { return buffer.get(segmentCol + row); }
+	public long impressionTarget(int row) { return buffer.getLong(impressionTargetCol + 8 * row); }
+
+	/**
+	 * Value of one of the double columns (VIDEO_COEF ... EST_UCS_COST_ACC).
+	 */
+	public double value(int row, int column) {
+		return buffer.getDouble(doublesCol + 8 * (column * rows + row));
+	}
+
+	/**
+	 * Writes the rows back as CmpLog.csv text, for the R scripts.
+	 */
+	public void exportCsv(File csv) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csv), StandardCharsets.UTF_8));
+		try {
+			out.write(CSV_HEADER + System.lineSeparator());
+			for (int i = 0; i < rows; i++) {
+				String[] fields = new String[33];
+				fields[0] = String.valueOf(game(i));
+				fields[1] = String.valueOf(id(i));
+				fields[2] = String.valueOf(dayStart(i));
+				fields[3] = String.valueOf(dayEnd(i));
+				fields[4] = String.valueOf(reachImps(i));
+				fields[5] = SegmentMask.toSet(segmentMask(i)).toString().replace(',', ':');
+				fields[15] = String.valueOf(impressionTarget(i));
+				for (int c = 0; c < DOUBLES; c++) {
+					fields[CSV_FIELD[c]] = String.valueOf(value(i, c));
+				}
+				out.write(String.join(",", fields) + System.lineSeparator());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Parses a target segment as written to the campaign log, e.g. "[MALE: YOUNG]" or "[YOUNG- MALE]" in older logs.
+	 */
+	static Set<MarketSegment> segment(String text) {
+		Set<MarketSegment> segment = EnumSet.noneOf(MarketSegment.class);
+		for (String name : text.replace("[", "").replace("]", "").split("[:;-]")) {
+			if (!name.trim().isEmpty()) {
+				segment.add(MarketSegment.valueOf(name.trim()));
+			}
+		}
+		return segment;
+	}
+
+	/**
+	 * Accumulates rows column by column and writes them as a campaign log file.
+	 */
+	static class Builder {
+		private int rows;
+		private int[] game = new int[64], id = new int[64], dayStart = new int[64], dayEnd = new int[64];
+		private long[] reachImps = new long[64], impressionTarget = new long[64];
+		private byte[] segment = new byte[64];
+		private double[][] doubles = new double[DOUBLES][64];
+
+		public int size() {
+			return rows;
+		}
+
+		/**
+		 * Adds a row; values holds the double columns, indexed by VIDEO_COEF ... EST_UCS_COST_ACC.
+		 */
+		public void add(int pGame, int pId, long pDayStart, long pDayEnd, long pReachImps, int pSegmentMask,
+						long pImpressionTarget, double[] values) {
+			if (rows == game.length) {
+				grow(rows * 2);
+			}
+			game[rows] = pGame;
+			id[rows] = pId;
+			dayStart[rows] = (int) pDayStart;
+			dayEnd[rows] = (int) pDayEnd;
+			reachImps[rows] = pReachImps;
+			segment[rows] = (byte) pSegmentMask;
+			impressionTarget[rows] = pImpressionTarget;
+			for (int c = 0; c < DOUBLES; c++) {
+				doubles[c][rows] = values[c];
+			}
+			rows++;
+		}
+
+		/**
+		 * Copies one row of an existing file.
+		 */
+		public void add(CampaignLogStore store, int row) {
+			double[] values = new double[DOUBLES];
+			for (int c = 0; c < DOUBLES; c++) {
+				values[c] = store.value(row, c);
+			}
+			add(store.game(row), store.id(row), store.dayStart(row), store.dayEnd(row), store.reachImps(row),
+					store.segmentMask(row), store.impressionTarget(row), values);
+		}
+
+		/**
+		 * The rows as an in-memory store.
+		 */
+		public CampaignLogStore toStore() throws IOException {
+			return new CampaignLogStore(encode());
+		}
+
+		/**
+		 * Writes the file next to its destination and renames it over, so readers never see half a file.
+		 */
+		public void write(File file) throws IOException {
+			ByteBuffer out = encode();
+			File tmp = new File(file.getPath() + ".tmp");
+			FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			try {
+				while (out.hasRemaining()) {
+					channel.write(out);
+				}
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		private ByteBuffer encode() {
+			ByteBuffer out = ByteBuffer.allocate(12 + rows * (4 * 4 + 8 + 1 + 8 + 8 * DOUBLES));
+			out.putInt(MAGIC).putInt(VERSION).putInt(rows);
+			for (int i = 0; i < rows; i++) { out.putInt(game[i]); }
+			for (int i = 0; i < rows; i++) { out.putInt(id[i]); }
+			for (int i = 0; i < rows; i++) { out.putInt(dayStart[i]); }
+			for (int i = 0; i < rows; i++) { out.putInt(dayEnd[i]); }
+			for (int i = 0; i < rows; i++) { out.putLong(reachImps[i]); }
+			out.put(segment, 0, rows);
+			for (int i = 0; i < rows; i++) { out.putLong(impressionTarget[i]); }
+			for (int c = 0; c < DOUBLES; c++) {
+				for (int i = 0; i < rows; i++) { out.putDouble(doubles[c][i]); }
+			}
+			out.flip();
+			return out;
+		}
+
+		private void grow(int capacity) {
+			game = Arrays.copyOf(game, capacity);
+			id = Arrays.copyOf(id, capacity);
+			dayStart = Arrays.copyOf(dayStart, capacity);
+			dayEnd = Arrays.copyOf(dayEnd, capacity);
+			reachImps = Arrays.copyOf(reachImps, capacity);
+			segment = Arrays.copyOf(segment, capacity);
+			impressionTarget = Arrays.copyOf(impressionTarget, capacity);
+			for (int c = 0; c < DOUBLES; c++) {
+				doubles[c] = Arrays.copyOf(doubles[c], capacity);
+			}
+		}
+	}
+
+	/**
+	 * Reads CmpLog.csv into a builder. The first line is the header. Lines without the 33 fields of the current
+	 * layout, or that cannot be parsed (merge conflict markers, rows of older layouts), are skipped.
+	 *
+	 * @return the number of skipped lines
+	 */
+	static int importCsv(File csv, Builder builder) throws IOException {
+		int skipped = 0;
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(csv), StandardCharsets.UTF_8));
+		try {
+			String line = in.readLine(); // Ignores the first line that contains the headers
+			double[] values = new double[DOUBLES];
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split(",");
+				if (fields.length < 33) {
+					skipped++;
+					continue;
+				}
+				try {
+					for (int c = 0; c < DOUBLES; c++) {
+						values[c] = Double.parseDouble(fields[CSV_FIELD[c]]);
+					}
+					builder.add(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), Long.parseLong(fields[2]),
+							Long.parseLong(fields[3]), Long.parseLong(fields[4]), SegmentMask.of(segment(fields[5])),
+							Long.parseLong(fields[15]), values);
+				} catch (RuntimeException ex) {
+					// NumberFormatException or an unknown segment name
+					skipped++;
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return skipped;
+	}
+
+	/**
+	 * One-shot conversion between the CSV and binary campaign logs.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 3 && args[0].equals("import")) {
+			Builder builder = new Builder();
+			int skipped = importCsv(new File(args[1]), builder);
+			builder.write(new File(args[2]));
+			System.out.println("Imported " + builder.size() + " campaigns (" + skipped + " lines skipped)");
+		} else if (args.length == 3 && args[0].equals("export")) {
+			CampaignLogStore store = open(new File(args[1]));
+			store.exportCsv(new File(args[2]));
+			System.out.println("Exported " + store.size() + " campaigns");
+		} else {
+			System.out.println("Usage: CampaignLogStore import <CmpLog.csv> <CmpLog.bin>");
+			System.out.println("       CampaignLogStore export <CmpLog.bin> <CmpLog.csv>");
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package soton.intagts;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import se.sics.isl.transport.Transportable;
+import se.sics.tasim.aw.Message;
+
+/**
+ * AgentNAMM running without a server: messages are handed to it directly and everything it sends is kept in
+ * memory instead of being transported. Used by the benchmark and replay tools.
+ */
+class CapturingAgent extends AgentNAMM {
+
+	private final String name;
+	private final List<Message> sent = new ArrayList<Message>();
+
+	CapturingAgent(String name) {
+		// Handled on the caller's thread, so everything is sent by the time deliver returns
+		this(name, false);
+	}
+
+	/**
+	 * @param threaded handle messages on the event pipeline's thread, as on the server; see awaitEvents()
+	 */
+	CapturingAgent(String name, boolean threaded) {
+		super(threaded);
+		this.name = name;
+	}
+
+	/**
+	 * Delivers content as if it came from the server.
+	 */
+	void deliver(Transportable content) {
+		messageReceived(new Message("server", name, content));
+	}
+
+	/**
+	 * Messages sent by the agent so far, in order.
+	 */
+	List<Message> sent() {
+		return sent;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	protected void sendMessage(String receiver, Transportable content) {
+		sent.add(new Message(name, receiver, content));
+	}
+}
@@ -0,0 +1,265 @@
+package soton.intagts;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves the agent's work off the agentware's message thread. The agentware thread only puts each event (a message
+ * content or a game start or end) into a preallocated ring buffer and returns; one consumer thread takes the events
+ * out in the order they were put in and applies them to the agent, so the agent's state keeps a single writer and a
+ * slow estimator or a blocking sendMessage no longer holds up the next message.
+ *
+ * Derived work (building the speculative bid bundle) is a second stage on the consumer thread: a handler asks for
+ * it with derive() and it runs once the ring is empty, after every event received so far has been applied. A newer
+ * request replaces one that has not run yet, so a burst of reports builds the bundle once. Ordering, per simulated
+ * day: events are applied in arrival order, so the day's reports and notifications before the day's
+ * SimulationStatus, and derived work never runs ahead of an event that arrived before it. Derived work still
+ * pending when a later event arrives runs after that event; it must check it is still wanted (the agent's bundle
+ * build checks the day's inputs are complete).
+ *
+ * The ring holds CAPACITY events, days of messages. Should it ever be full the agentware thread waits for the
+ * consumer, counted in stalls(). Without a thread (synchronous) events are applied by the caller as they are put
+ * in, followed by any derived work, which is what the replay and simulation tools use.
+ *
+ * Whatever a handler or derived work throws, errors included, is logged and the consumer goes on with the next
+ * event. Should the consumer thread die anyway, the pipeline falls back to synchronous: the next publish or
+ * awaitIdle applies what is left in the ring on the caller's thread, so neither waits for a consumer that is gone.
+ *
+ * Queue depths and counters may be read from any thread.
+ */
+class EventPipeline {
+
+	/**
+	 * Applies one event to the agent, on the consumer thread.
+	 */
+	interface Handler {
+		void apply(Object event, long arrivedNanos);
+	}
+
+	static final int CAPACITY = 1024;
+	private static final int MASK = CAPACITY - 1;
+
+	private final Handler handler;
+	private final boolean threaded;
+	private final String threadName;
+
+	private final Object[] events = new Object[CAPACITY];
+	private final long[] arrived = new long[CAPACITY];
+	/* Events put in and taken out so far; each written by one thread only */
+	private volatile long published;
+	private volatile long consumed;
+	private volatile boolean consumerParked;
+	/* Set when the consumer thread has ended; from then on the publishing thread applies the events */
+	private volatile boolean consumerDead;
+	private Thread consumer;
+
+	/* Derived work waiting for the ring to empty; consumer thread only (the publishing thread once it died) */
+	private Runnable derived;
+
+	private volatile long maxDepth;
+	private volatile long stalls;
+	private volatile long derivedRuns;
+	private volatile long derivedReplaced;
+	private volatile boolean derivedPending;
+
+	/**
+	 * @param threaded false to apply events on the caller's thread
+	 */
+	EventPipeline(Handler handler, boolean threaded, String threadName) {
+		this.handler = handler;
+		this.threaded = threaded;
+		this.threadName = threadName;
+	}
+
+	/**
+	 * Puts event in the ring; called by one thread, the agentware's.
+	 */
+	void publish(Object event) {
+		long now = System.nanoTime();
+		if (!threaded) {
+			apply(event, now);
+			runDerived();
+			return;
+		}
+		if (consumer == null) {
+			startConsumer();
+		}
+		long sequence = published;
+		if (sequence - consumed >= CAPACITY) {
+			stalls++;
+			while (sequence - consumed >= CAPACITY && !consumerDead) {
+				LockSupport.unpark(consumer);
+				LockSupport.parkNanos(100000);
+			}
+		}
+		if (consumerDead) {
+			drainOnCaller();
+			apply(event, now);
+			runDerived();
+			return;
+		}
+		int slot = (int) sequence & MASK;
+		events[slot] = event;
+		arrived[slot] = now;
+		// The volatile write publishes the slot to the consumer
+		published = sequence + 1;
+		long depth = sequence + 1 - consumed;
+		if (depth > maxDepth) {
+			maxDepth = depth;
+		}
+		if (consumerParked) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	/**
+	 * Asks for work to run once every event received so far has been applied; replaces work asked for before
+	 * that has not run yet. Called from a handler.
+	 */
+	void derive(Runnable work) {
+		if (derived != null) {
+			derivedReplaced++;
+		}
+		derived = work;
+		derivedPending = true;
+	}
+
+	/**
+	 * Waits until every event published so far has been applied and no derived work is pending. Called by the
+	 * publishing thread.
+	 */
+	void awaitIdle() {
+		long target = published;
+		while ((consumed < target || derivedPending) && !consumerDead) {
+			LockSupport.unpark(consumer);
+			LockSupport.parkNanos(100000);
+		}
+		if (consumerDead) {
+			drainOnCaller();
+		}
+	}
+
+	/**
+	 * Events received and not applied yet.
+	 */
+	long depth() {
+		return published - consumed;
+	}
+
+	/**
+	 * Highest depth since the last resetMaxDepth().
+	 */
+	long maxDepth() {
+		return maxDepth;
+	}
+
+	void resetMaxDepth() {
+		maxDepth = depth();
+	}
+
+	/**
+	 * Times the agentware thread found the ring full and had to wait.
+	 */
+	long stalls() {
+		return stalls;
+	}
+
+	int derivedPending() {
+		return derivedPending ? 1 : 0;
+	}
+
+	long derivedRuns() {
+		return derivedRuns;
+	}
+
+	/**
+	 * Derived work replaced by a newer request before it ran.
+	 */
+	long derivedReplaced() {
+		return derivedReplaced;
+	}
+
+	private synchronized void startConsumer() {
+		consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					consume();
+				} finally {
+					consumerDead = true;
+					AgentLog.AGENT.warning("The %s thread died; events are applied on the caller's thread from now on",
+							threadName);
+				}
+			}
+		}, threadName);
+		consumer.setDaemon(true);
+		consumer.start();
+	}
+
+	private void consume() {
+		while (true) {
+			long sequence = consumed;
+			if (sequence == published) {
+				if (derived != null) {
+					runDerived();
+					continue;
+				}
+				consumerParked = true;
+				if (sequence == published) {
+					LockSupport.parkNanos(50000000);
+				}
+				consumerParked = false;
+				continue;
+			}
+			int slot = (int) sequence & MASK;
+			Object event = events[slot];
+			long arrivedNanos = arrived[slot];
+			events[slot] = null;
+			apply(event, arrivedNanos);
+			// Frees the slot for the agentware thread
+			consumed = sequence + 1;
+		}
+	}
+
+	/**
+	 * Applies, on the publishing thread, the events the dead consumer left in the ring and the derived work they
+	 * asked for.
+	 */
+	private void drainOnCaller() {
+		long sequence = consumed;
+		while (sequence < published) {
+			int slot = (int) sequence & MASK;
+			Object event = events[slot];
+			events[slot] = null;
+			if (event != null) {
+				apply(event, arrived[slot]);
+			}
+			consumed = ++sequence;
+		}
+		runDerived();
+		derivedPending = derived != null;
+	}
+
+	private void apply(Object event, long arrivedNanos) {
+		try {
+			handler.apply(event, arrivedNanos);
+		} catch (Throwable ex) {
+			// Errors too: an uncaught one would end the consumer thread with the agent still running
+			AgentLog.AGENT.warning("Exception thrown while applying " + event, ex);
+		}
+	}
+
+	private void runDerived() {
+		Runnable work = derived;
+		if (work == null) {
+			return;
+		}
+		derived = null;
+		try {
+			work.run();
+		} catch (Throwable ex) {
+			AgentLog.AGENT.warning("Exception thrown by derived work", ex);
+		}
+		derivedRuns++;
+		derivedPending = derived != null;
+	}
+}
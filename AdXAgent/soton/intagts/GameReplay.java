@@ -0,0 +1,448 @@
+package soton.intagts;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+import edu.umich.eecs.tac.Parser;
+import se.sics.isl.transport.Transportable;
+import se.sics.tasim.aw.Message;
+import se.sics.tasim.logtool.LogReader;
+import se.sics.tasim.logtool.ParticipantInfo;
+import se.sics.tasim.props.StartInfo;
+import tau.tac.adx.props.AdxBidBundle;
+import tau.tac.adx.props.AdxQuery;
+import tau.tac.adx.report.demand.AdNetBidMessage;
+
+/**
+ * Replays recorded games (.slg.gz server logs) through AgentNAMM as fast as it can process them.
+ *
+ * For every game the messages the server sent to one participant - addressed to it or broadcast to its role - are
+ * read from the log and delivered in their original order, without waiting for the clock. Everything the agent sends
+ * is captured instead of transported. The replay is open loop: the recorded reports are what the original agent
+ * got, they do not react to the bids of the agent being replayed.
+ *
+ * All games of a run share one agent, as on the server, and its history lives in a temporary copy of the history
+ * directory so replays never change the real files. Between games the replay waits for the history save, journal
+ * compaction and reload, and every game seeds the agent's random strategies from the seed and the game id, so two
+ * runs over the same logs produce the same messages. The digest printed per game is a CRC of everything the agent
+ * sent; compare it between runs to check a change does not alter the agent's decisions. The allocation column is
+ * what the agent thread allocated during the game, for changes that aim at less garbage.
+ *
+ * StartInfo is not in the logs, it is rebuilt from the log header and the day changes. The agent's logging is
+ * switched off unless --verbose is given.
+ *
+ * Usage (classes compiled with the jars in lib on the classpath):
+ *   java soton.intagts.GameReplay [--agent NAMM] [--history-dir .] [--seed 1] [--days] [--verbose]
+ *       [--dump dir] [--threaded] game1.slg.gz [dir-with-logs ...]
+ *
+ * --dump writes the canonical lines the digest is computed from to dir/gameN.txt, to see where two runs differ.
+ * --threaded hands the messages to the agent's event pipeline as the agentware does, instead of handling each one
+ * before the next is delivered; the day and alloc columns then show the cost of queueing the messages, and the digest
+ * should not change.
+ */
+class GameReplay {
+
+	/* Used when a log has too few day changes to measure the day length */
+	private static final int DEFAULT_SECONDS_PER_DAY = 10;
+
+	private final String agentName;
+	private final long seed;
+	private final boolean printDays;
+	private final boolean verbose;
+	private final File dumpDir;
+	private final boolean threaded;
+	private final PrintStream out;
+
+	GameReplay(String agentName, long seed, boolean printDays, boolean verbose, File dumpDir, boolean threaded,
+			PrintStream out) {
+		this.agentName = agentName;
+		this.seed = seed;
+		this.printDays = printDays;
+		this.verbose = verbose;
+		this.dumpDir = dumpDir;
+		this.threaded = threaded;
+		this.out = out;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String agentName = "NAMM";
+		File historyDir = new File(".");
+		long seed = 1;
+		boolean printDays = false;
+		boolean verbose = false;
+		File dumpDir = null;
+		boolean threaded = false;
+		List<File> logs = new ArrayList<File>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--agent")) { agentName = args[++i]; }
+			else if (args[i].equals("--history-dir")) { historyDir = new File(args[++i]); }
+			else if (args[i].equals("--seed")) { seed = Long.parseLong(args[++i]); }
+			else if (args[i].equals("--days")) { printDays = true; }
+			else if (args[i].equals("--verbose")) { verbose = true; }
+			else if (args[i].equals("--dump")) { dumpDir = new File(args[++i]); }
+			else if (args[i].equals("--threaded")) { threaded = true; }
+			else if (args[i].startsWith("--")) { throw new IllegalArgumentException("Unknown option " + args[i]); }
+			else { addLogs(new File(args[i]), logs); }
+		}
+		if (logs.isEmpty()) {
+			throw new IllegalArgumentException("No .slg.gz logs given");
+		}
+		new GameReplay(agentName, seed, printDays, verbose, dumpDir, threaded, System.out).run(logs, historyDir);
+	}
+
+	static void addLogs(File file, List<File> logs) {
+		File[] children = file.listFiles();
+		if (children == null) {
+			logs.add(file);
+			return;
+		}
+		Arrays.sort(children);
+		for (File child : children) {
+			if (child.getName().endsWith(".slg.gz")) {
+				logs.add(child);
+			}
+		}
+	}
+
+	/**
+	 * Replays logs in order with one agent whose history starts as a copy of historyDir.
+	 */
+	void run(List<File> logs, File historyDir) throws Exception {
+		File workDir = copyHistory(historyDir);
+		PrintStream stdout = System.out;
+		PrintStream stderr = System.err;
+		if (!verbose) {
+			// Measures the agent's decisions, not its console output
+			AgentLog.setLevel(Level.OFF);
+			PrintStream quiet = discardingStream();
+			System.setOut(quiet);
+			System.setErr(quiet);
+		}
+		try {
+			out.printf("%-16s %6s %5s %8s %11s %11s %12s %11s %9s %9s %8s %10s%n", "game", "simId", "days", "messages",
+					"parse ms", "replay ms", "mean day ms", "max day ms", "alloc MB", "bundles", "ucsBids", "digest");
+			CapturingAgent agent = null;
+			for (File log : logs) {
+				long parseStart = System.nanoTime();
+				RecordedGame game = RecordedGame.read(log, agentName);
+				long parseNanos = System.nanoTime() - parseStart;
+				if (game == null) {
+					out.println(log.getName() + ": no participant named " + agentName + ", skipped");
+					continue;
+				}
+				if (agent == null) {
+					String userDir = System.getProperty("user.dir");
+					System.setProperty("user.dir", workDir.getAbsolutePath());
+					try {
+						agent = new CapturingAgent(agentName, threaded);
+					} finally {
+						System.setProperty("user.dir", userDir);
+					}
+				}
+				replay(agent, log, game, parseNanos);
+			}
+			if (agent != null) {
+				agent.pendingHistory.get();
+				agent.historyJournal.awaitCompaction();
+				agent.releaseHistory();
+			}
+		} finally {
+			AgentLog.flush();
+			System.setOut(stdout);
+			System.setErr(stderr);
+			delete(workDir);
+		}
+	}
+
+	/**
+	 * Plays one game and prints its line of the report.
+	 */
+	private void replay(CapturingAgent agent, File log, RecordedGame game, long parseNanos) throws Exception {
+		// Same history for every run: wait for the load instead of starting the game without it
+		agent.pendingHistory.get();
+		agent.sent().clear();
+		agent.setRandomSeed(seed * 31 + game.startInfo.getSimulationID());
+
+		long[] dayNanos = new long[game.days + 1];
+		long allocStart = AgentStats.allocatedBytes();
+		long replayStart = System.nanoTime();
+		agent.simulationSetup();
+		agent.deliver(game.startInfo);
+		for (Event event : game.events) {
+			long start = System.nanoTime();
+			agent.deliver(event.content);
+			dayNanos[event.day] += System.nanoTime() - start;
+		}
+		agent.simulationFinished();
+		agent.awaitEvents();
+		long replayNanos = System.nanoTime() - replayStart;
+		long allocated = AgentStats.allocatedBytes() - allocStart;
+
+		// The save, any compaction it triggers and the reload for the next game all finish before it starts
+		agent.pendingHistory.get();
+		agent.historyJournal.awaitCompaction();
+		agent.prefetchHistory();
+
+		int bundles = 0;
+		int ucsBids = 0;
+		CRC32 digest = new CRC32();
+		PrintStream dump = null;
+		if (dumpDir != null) {
+			dumpDir.mkdirs();
+			dump = new PrintStream(new File(dumpDir, log.getName().replace(".slg.gz", ".txt")), "UTF-8");
+		}
+		for (Message message : agent.sent()) {
+			Transportable content = message.getContent();
+			if (content instanceof AdxBidBundle) {
+				bundles++;
+			} else if (content instanceof AdNetBidMessage) {
+				ucsBids++;
+			}
+			String line = canonical(message);
+			digest.update((line + "\n").getBytes(StandardCharsets.UTF_8));
+			if (dump != null) {
+				dump.println(line);
+			}
+		}
+		if (dump != null) {
+			dump.close();
+		}
+		long total = 0;
+		int worstDay = 0;
+		for (int d = 0; d < dayNanos.length; d++) {
+			total += dayNanos[d];
+			if (dayNanos[d] > dayNanos[worstDay]) {
+				worstDay = d;
+			}
+		}
+		out.printf("%-16s %6d %5d %8d %11.1f %11.1f %12.2f %11s %9.1f %9d %8d %10s%n", log.getName(),
+				game.startInfo.getSimulationID(), game.days, game.events.size(), millis(parseNanos),
+				millis(replayNanos), millis(total / dayNanos.length),
+				String.format("%.2f@%d", millis(dayNanos[worstDay]), worstDay), allocated / 1e6, bundles, ucsBids,
+				String.format("%08x", digest.getValue()));
+		if (printDays) {
+			for (int d = 0; d < dayNanos.length; d++) {
+				out.printf("    day %2d %10.3f ms%n", d, millis(dayNanos[d]));
+			}
+		}
+	}
+
+	/**
+	 * One line per sent message, independent of object identity and hash ordering. Bid bundles list every entry as
+	 * publisher|segment mask|device|ad type|bid|campaign|daily limit.
+	 */
+	static String canonical(Message message) {
+		Transportable content = message.getContent();
+		StringBuilder line = new StringBuilder(message.getReceiver()).append(' ')
+				.append(content.getClass().getSimpleName());
+		if (content instanceof AdxBidBundle) {
+			AdxBidBundle bundle = (AdxBidBundle) content;
+			for (int i = 0; i < bundle.size(); i++) {
+				AdxBidBundle.BidEntry entry = bundle.getEntry(i);
+				AdxQuery query = entry.getQuery();
+				line.append(' ').append(query.getPublisher())
+						.append('|').append(SegmentMask.of(query.getMarketSegments()))
+						.append('|').append(query.getDevice())
+						.append('|').append(query.getAdType())
+						.append('|').append(entry.getBid())
+						.append('|').append(entry.getCampaignId())
+						.append('|').append(entry.getDailyLimit());
+			}
+		} else if (content instanceof AdNetBidMessage) {
+			AdNetBidMessage bid = (AdNetBidMessage) content;
+			line.append(' ').append(bid.getCampaignId())
+					.append('|').append(bid.getUcsBid())
+					.append('|').append(bid.getCampaignBudget());
+		} else {
+			line.append(' ').append(content);
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Temporary working directory with copies of the history files the agent reads.
+	 */
+	static File copyHistory(File historyDir) throws IOException {
+		File dir = Files.createTempDirectory("namm-replay").toFile();
+		// Under the journal lock, so an agent running in historyDir does not compact while the files are copied
+		HistoryJournal journal = HistoryJournal.forDirectory(historyDir);
+		journal.lock();
+		try {
+			File[] files = historyDir.listFiles();
+			if (files != null) {
+				for (File source : files) {
+					String name = source.getName();
+					if (source.isFile() && (HistoryJournal.isBase(name) || name.equals("BHFull.csv")
+							|| name.equals("CmpLog.csv"))) {
+						Files.copy(source.toPath(), new File(dir, name).toPath());
+					}
+				}
+			}
+			File[] segments = new File(historyDir, "history").listFiles();
+			if (segments != null) {
+				File history = new File(dir, "history");
+				if (!history.mkdir()) {
+					throw new IOException("Cannot create " + history);
+				}
+				for (File segment : segments) {
+					Files.copy(segment.toPath(), new File(history, segment.getName()).toPath(),
+							StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+		} finally {
+			journal.unlock();
+		}
+		return dir;
+	}
+
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * A stream that drops everything written to it, to silence agents' console output.
+	 */
+	static PrintStream discardingStream() {
+		return new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		});
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+
+	/**
+	 * A message the server sent to the replayed agent on a given day.
+	 */
+	static class Event {
+		final int day;
+		final Transportable content;
+
+		Event(int day, Transportable content) {
+			this.day = day;
+			this.content = content;
+		}
+	}
+
+	/**
+	 * The messages one participant received during a recorded game, in log order.
+	 */
+	static class RecordedGame {
+		final StartInfo startInfo;
+		final List<Event> events;
+		final int days;
+
+		private RecordedGame(StartInfo startInfo, List<Event> events, int days) {
+			this.startInfo = startInfo;
+			this.events = events;
+			this.days = days;
+		}
+
+		/**
+		 * Reads the game in log, or returns null when agentName did not play in it.
+		 */
+		static RecordedGame read(File log, String agentName) throws IOException, ParseException {
+			InputStream in = new GZIPInputStream(new BufferedInputStream(new FileInputStream(log)));
+			try {
+				LogReader reader = new LogReader(in);
+				ParticipantInfo participant = null;
+				for (ParticipantInfo info : reader.getParticipants()) {
+					if (info.getName().equals(agentName)) {
+						participant = info;
+					}
+				}
+				if (participant == null) {
+					return null;
+				}
+				Collector collector = new Collector(reader, participant);
+				collector.start();
+
+				int secondsPerDay = collector.secondsPerDay();
+				StartInfo startInfo = new StartInfo(reader.getSimulationID(), reader.getStartTime(),
+						reader.getSimulationLength(), secondsPerDay);
+				return new RecordedGame(startInfo, collector.events, collector.day);
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Collects the messages addressed to one participant or broadcast to its role, tagged with the current day.
+	 */
+	private static class Collector extends Parser {
+		private final int index;
+		private final int role;
+		final List<Event> events = new ArrayList<Event>();
+		int day;
+		private long firstDayTime = -1;
+		private long lastDayTime;
+		private int dayChanges;
+
+		Collector(LogReader reader, ParticipantInfo participant) {
+			super(reader);
+			this.index = participant.getIndex();
+			this.role = participant.getRole();
+		}
+
+		@Override
+		protected void message(int sender, int receiver, Transportable content) {
+			if (receiver == index) {
+				events.add(new Event(day, content));
+			}
+		}
+
+		@Override
+		protected void messageToRole(int sender, int role, Transportable content) {
+			if (role == this.role) {
+				events.add(new Event(day, content));
+			}
+		}
+
+		@Override
+		protected void nextDay(int date, long serverTime) {
+			day = date;
+			if (firstDayTime < 0) {
+				firstDayTime = serverTime;
+			} else {
+				dayChanges++;
+			}
+			lastDayTime = serverTime;
+		}
+
+		int secondsPerDay() {
+			if (dayChanges == 0) {
+				return DEFAULT_SECONDS_PER_DAY;
+			}
+			return (int) Math.max(1, Math.round((lastDayTime - firstDayTime) / 1000.0 / dayChanges));
+		}
+	}
+}
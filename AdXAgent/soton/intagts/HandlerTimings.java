@@ -0,0 +1,319 @@
+package soton.intagts;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Time the agent spends handling each type of message, and how long after SimulationStatus arrives the bid bundle
+ * is sent (StatusToBundle), the margin the agent has against the server's deadline. Queued is the time messages
+ * wait in the EventPipeline before their handler starts.
+ *
+ * Every message type gets a LatencyHistogram of its handling times, created when the first message of the type
+ * arrives, so handlers added to the agent are covered without changes here. Recording is two System.nanoTime()
+ * calls, a map lookup and a histogram increment on the agent's message thread. The current game is kept apart
+ * from the earlier ones: finishGame returns its table (one row per type, times in microseconds) and adds it to the
+ * totals.
+ *
+ * Registered with the platform MBean server as soton.intagts:type=HandlerTimings,agent=...,instance=n, with the
+ * attributes Games, Summary (table of all games) and, per type, &lt;Type&gt;Count, MeanMicros, P50Micros,
+ * P99Micros and MaxMicros over all games including the current one. With a pipeline set, its queue depths are
+ * attributes too: IntakeDepth, IntakeMaxDepth (since the last game ended), IntakeStalls, DerivedPending, DerivedRuns
+ * and DerivedReplaced.
+ */
+class HandlerTimings implements DynamicMBean {
+
+	static final String STATUS_TO_BUNDLE = "StatusToBundle";
+	static final String QUEUED = "Queued";
+	static final String TABLE_HEADER = "handler\tcount\tmeanMicros\tp50Micros\tp90Micros\tp99Micros\tmaxMicros";
+
+	private static final String[] MEASURES = { "Count", "MeanMicros", "P50Micros", "P99Micros", "MaxMicros" };
+	private static final String[] PIPELINE = { "IntakeDepth", "IntakeMaxDepth", "IntakeStalls", "DerivedPending",
+			"DerivedRuns", "DerivedReplaced" };
+	private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+	/**
+	 * Handling times of one message type, in this game and in the games before.
+	 */
+	private static class Timing {
+		final String name;
+		final LatencyHistogram game = new LatencyHistogram();
+		final LatencyHistogram total = new LatencyHistogram();
+
+		Timing(String name) {
+			this.name = name;
+		}
+
+		LatencyHistogram allGames() {
+			LatencyHistogram all = new LatencyHistogram();
+			all.add(total);
+			all.add(game);
+			return all;
+		}
+	}
+
+	private final Map<Class<?>, Timing> byType = new ConcurrentHashMap<Class<?>, Timing>();
+	/* Every timing in the order first seen, StatusToBundle and Queued first */
+	private final List<Timing> timings = new CopyOnWriteArrayList<Timing>();
+	private final Timing statusToBundle = new Timing(STATUS_TO_BUNDLE);
+	private final Timing queued = new Timing(QUEUED);
+	private volatile EventPipeline pipeline;
+	private long statusArrived;
+	private volatile int games;
+	private ObjectName objectName;
+
+	HandlerTimings() {
+		timings.add(statusToBundle);
+		timings.add(queued);
+	}
+
+	/**
+	 * Adds the queue depths of pipeline to the MBean attributes.
+	 */
+	void setPipeline(EventPipeline pipeline) {
+		this.pipeline = pipeline;
+	}
+
+	/**
+	 * Records the handling of a message of type that started at System.nanoTime() start.
+	 */
+	void handled(Class<?> type, long start) {
+		long nanos = System.nanoTime() - start;
+		Timing timing = byType.get(type);
+		if (timing == null) {
+			timing = new Timing(type.getSimpleName());
+			byType.put(type, timing);
+			timings.add(timing);
+		}
+		timing.game.record(nanos);
+	}
+
+	/**
+	 * Records how long a message waited before its handler started.
+	 */
+	void queued(long nanos) {
+		queued.game.record(nanos);
+	}
+
+	/**
+	 * SimulationStatus arrived at System.nanoTime() start.
+	 */
+	void statusArrived(long start) {
+		statusArrived = start;
+	}
+
+	/**
+	 * The bid bundle was sent; records the time since SimulationStatus arrived, if it has.
+	 */
+	void bundleSent() {
+		if (statusArrived != 0) {
+			statusToBundle.game.record(System.nanoTime() - statusArrived);
+			statusArrived = 0;
+		}
+	}
+
+	/**
+	 * Table of the game that just finished (TABLE_HEADER and a row per message type that arrived), which is then
+	 * added to the totals.
+	 */
+	String finishGame() {
+		StringBuilder table = new StringBuilder(TABLE_HEADER).append('\n');
+		for (Timing timing : timings) {
+			if (timing.game.count() > 0) {
+				appendRow(table, timing.name, timing.game);
+			}
+			timing.total.add(timing.game);
+			timing.game.reset();
+		}
+		statusArrived = 0;
+		games++;
+		return table.toString();
+	}
+
+	/**
+	 * Table of all games, including the one being played.
+	 */
+	String summary() {
+		StringBuilder table = new StringBuilder(TABLE_HEADER).append('\n');
+		for (Timing timing : timings) {
+			LatencyHistogram all = timing.allGames();
+			if (all.count() > 0) {
+				appendRow(table, timing.name, all);
+			}
+		}
+		return table.toString();
+	}
+
+	private static void appendRow(StringBuilder table, String name, LatencyHistogram histogram) {
+		table.append(name).append('\t').append(histogram.count())
+				.append('\t').append(micros(histogram.mean()))
+				.append('\t').append(micros(histogram.percentile(50)))
+				.append('\t').append(micros(histogram.percentile(90)))
+				.append('\t').append(micros(histogram.percentile(99)))
+				.append('\t').append(micros(histogram.max()))
+				.append('\n');
+	}
+
+	private static double micros(double nanos) {
+		return Math.round(nanos / 100.0) / 10.0;
+	}
+
+	/**
+	 * Writes a table to file, creating its folder.
+	 */
+	static void write(File file, String table) throws IOException {
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+		try {
+			out.write(table);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Registers these timings with the platform MBean server, once; failures are logged, not thrown.
+	 */
+	void register(String agentName) {
+		if (objectName != null) {
+			return;
+		}
+		try {
+			ObjectName name = new ObjectName("soton.intagts:type=HandlerTimings,agent=" + ObjectName.quote(agentName)
+					+ ",instance=" + INSTANCES.incrementAndGet());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			objectName = name;
+		} catch (JMException ex) {
+			AgentLog.STATS.warning("Could not register handler timings: %s", ex);
+		}
+	}
+
+	void unregister() {
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (JMException ex) {
+				AgentLog.STATS.warning("Could not unregister handler timings: %s", ex);
+			}
+			objectName = null;
+		}
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		if (attribute.equals("Games")) {
+			return games;
+		}
+		if (attribute.equals("Summary")) {
+			return summary();
+		}
+		EventPipeline events = pipeline;
+		if (events != null) {
+			if (attribute.equals("IntakeDepth")) {
+				return events.depth();
+			} else if (attribute.equals("IntakeMaxDepth")) {
+				return events.maxDepth();
+			} else if (attribute.equals("IntakeStalls")) {
+				return events.stalls();
+			} else if (attribute.equals("DerivedPending")) {
+				return (long) events.derivedPending();
+			} else if (attribute.equals("DerivedRuns")) {
+				return events.derivedRuns();
+			} else if (attribute.equals("DerivedReplaced")) {
+				return events.derivedReplaced();
+			}
+		}
+		for (Timing timing : timings) {
+			if (attribute.startsWith(timing.name)) {
+				String measure = attribute.substring(timing.name.length());
+				LatencyHistogram all = timing.allGames();
+				if (measure.equals("Count")) {
+					return all.count();
+				} else if (measure.equals("MeanMicros")) {
+					return micros(all.mean());
+				} else if (measure.equals("P50Micros")) {
+					return micros(all.percentile(50));
+				} else if (measure.equals("P99Micros")) {
+					return micros(all.percentile(99));
+				} else if (measure.equals("MaxMicros")) {
+					return micros(all.max());
+				}
+			}
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			try {
+				list.add(new Attribute(attribute, getAttribute(attribute)));
+			} catch (AttributeNotFoundException ignored) {
+				// Left out, as the interface specifies
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName() + " is read only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	/**
+	 * Describes the attributes of the message types seen so far; types first seen later appear on the next call.
+	 */
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		attributes.add(new MBeanAttributeInfo("Games", "int", "Games finished", true, false, false));
+		attributes.add(new MBeanAttributeInfo("Summary", "java.lang.String", "Table of all games", true, false,
+				false));
+		if (pipeline != null) {
+			for (String name : PIPELINE) {
+				attributes.add(new MBeanAttributeInfo(name, "long", "Event pipeline " + name, true, false, false));
+			}
+		}
+		for (Timing timing : timings) {
+			for (String measure : MEASURES) {
+				attributes.add(new MBeanAttributeInfo(timing.name + measure,
+						measure.equals("Count") ? "long" : "double", measure + " of " + timing.name, true, false,
+						false));
+			}
+		}
+		return new MBeanInfo(getClass().getName(), "Message handling times of an agent",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+	}
+}
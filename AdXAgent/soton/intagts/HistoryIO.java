@@ -0,0 +1,95 @@
+package soton.intagts;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Single background thread for the history file work the agent used to do inside message handlers: loading the
+ * impression history and campaign log, and saving them at the end of a game.
+ *
+ * Tasks run one at a time in submission order, so a load submitted after a save always sees the data that save
+ * wrote. Every phase is timed, both while queued and while running, and the totals are available as a summary.
+ */
+class HistoryIO {
+
+	private final ExecutorService executor;
+
+	/* Phase name to {count, total queued nanos, total running nanos, last running nanos} */
+	private final Map<String, long[]> metrics = new LinkedHashMap<String, long[]>();
+
+	public HistoryIO() {
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "namm-history-io");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Queues task on the I/O thread. Failures are reported through the returned future.
+	 */
+	public <T> Future<T> submit(final String phase, final Callable<T> task) {
+		final long queued = System.nanoTime();
+		return executor.submit(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				long started = System.nanoTime();
+				try {
+					return task.call();
+				} finally {
+					long finished = System.nanoTime();
+					record(phase, started - queued, finished - started);
+					AgentLog.HISTORY.info("#####HISTORYIO##### %s: %s ms (queued %s ms)", phase,
+							millis(finished - started), millis(started - queued));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Records time spent outside the I/O thread, e.g. the agent waiting for or installing a result.
+	 */
+	public void record(String phase, long nanos) {
+		record(phase, 0, nanos);
+	}
+
+	/**
+	 * One line per phase: number of runs, mean queued time, mean and last running time.
+	 */
+	public synchronized String summary() {
+		StringBuilder out = new StringBuilder();
+		for (Map.Entry<String, long[]> entry : metrics.entrySet()) {
+			long[] m = entry.getValue();
+			out.append(entry.getKey()).append(": runs=").append(m[0])
+					.append(", queued=").append(millis(m[1] / m[0])).append(" ms")
+					.append(", mean=").append(millis(m[2] / m[0])).append(" ms")
+					.append(", last=").append(millis(m[3])).append(" ms")
+					.append(System.lineSeparator());
+		}
+		return out.toString();
+	}
+
+	private synchronized void record(String phase, long queuedNanos, long runNanos) {
+		long[] m = metrics.get(phase);
+		if (m == null) {
+			m = new long[4];
+			metrics.put(phase, m);
+		}
+		m[0]++;
+		m[1] += queuedNanos;
+		m[2] += runNanos;
+		m[3] = runNanos;
+	}
+
+	private static double millis(long nanos) {
+		return Math.round(nanos / 10000.0) / 100.0;
+	}
+}
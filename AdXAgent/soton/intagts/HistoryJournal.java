@@ -0,0 +1,569 @@
+package soton.intagts;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only journal for the data the agent keeps between games.
+ *
+ * Instead of rewriting BHFull and CmpLog after every game, the records produced by one game are written as a new
+ * segment in the history directory (each segment is written to a temp file and renamed, so a crash never leaves
+ * a half written segment behind). Segment names start with a stamp, zero padded and unique in the directory, so
+ * name order is write order. Readers load the base file followed by every segment written after it.
+ *
+ * Once enough segments have piled up a background thread merges the base and the segments into a new base,
+ * dropping duplicated records and the impression records of games outside the journal's HistoryRetention (if it
+ * has limits). The new base never replaces a file: it gets a name of its own, BHFull-&lt;stamp&gt;.bin (CmpLog-...
+ * for campaigns), whose stamp is that of the newest segment merged into it. The base is the versioned file with
+ * the highest stamp (BHFull.bin, as written by the import and rebuild tools, until the first compaction), and
+ * only segments with a higher stamp follow it. The files it supersedes are deleted; a file that cannot be deleted
+ * yet (on Windows, while some agent still has it mapped) is ignored by readers and deleted at a later compaction.
+ * The base keeps the records in the order they were appended, which is the order HistoryRetention numbers the
+ * games in.
+ *
+ * Listing, writing a segment and compacting hold the journal lock (see lock): a lock shared by the threads of the
+ * JVM using the directory, and a file lock on history.lock against other JVMs, e.g. the agents runCAgents.bat
+ * starts. Agents of the same JVM working in the same directory also share one journal (see forDirectory).
+ */
+class HistoryJournal {
+
+	/* Number of segments of each kind that triggers a compaction */
+	static final int COMPACT_AFTER = 8;
+
+	private static final String IMPRESSION_PREFIX = "bh-";
+	private static final String CAMPAIGN_PREFIX = "cmp-";
+	private static final int STAMP_DIGITS = 13;
+
+	/**
+	 * The files of one kind of history: the base written by the tools, its versioned successors and the segments.
+	 */
+	private static final class Kind {
+		final String baseName;
+		final String segmentPrefix;
+
+		Kind(String baseName, String segmentPrefix) {
+			this.baseName = baseName;
+			this.segmentPrefix = segmentPrefix;
+		}
+	}
+
+	private static final Kind IMPRESSIONS = new Kind("BHFull", IMPRESSION_PREFIX);
+	private static final Kind CAMPAIGNS = new Kind("CmpLog", CAMPAIGN_PREFIX);
+
+	private final File workingDir;
+	private final File impressionBase;
+	private final File campaignBase;
+	private final File directory;
+	private final File lockFile;
+	private final HistoryRetention retention;
+	private final ExecutorService compactor;
+
+	private final DirectoryLock directoryLock;
+
+	/**
+	 * The journal lock of one directory, shared by every journal of the JVM using it: the threads take the
+	 * reentrant lock, and the outermost holder also holds the file lock that keeps the other JVMs out.
+	 */
+	private static final class DirectoryLock {
+		final ReentrantLock threads = new ReentrantLock();
+		/* Open while a thread holds the journal lock; guarded by threads */
+		FileChannel channel;
+		FileLock file;
+	}
+
+	/* Journal of each working directory, by canonical path */
+	private static final Map<String, HistoryJournal> JOURNALS = new HashMap<String, HistoryJournal>();
+	/* Lock of each working directory, by canonical path */
+	private static final Map<String, DirectoryLock> LOCKS = new HashMap<String, DirectoryLock>();
+
+	/**
+	 * The journal of workingDir, shared by everyone in the JVM using that directory.
+	 */
+	public static HistoryJournal forDirectory(File workingDir) {
+		String key = canonicalPath(workingDir);
+		synchronized (JOURNALS) {
+			HistoryJournal journal = JOURNALS.get(key);
+			if (journal == null) {
+				journal = new HistoryJournal(workingDir);
+				JOURNALS.put(key, journal);
+			}
+			return journal;
+		}
+	}
+
+	public HistoryJournal(File workingDir) {
+		this(workingDir, HistoryRetention.configured());
+	}
+
+	public HistoryJournal(File workingDir, HistoryRetention retention) {
+		this.workingDir = workingDir;
+		this.retention = retention;
+		impressionBase = new File(workingDir, IMPRESSIONS.baseName + ".bin");
+		campaignBase = new File(workingDir, CAMPAIGNS.baseName + ".bin");
+		directory = new File(workingDir, "history");
+		lockFile = new File(workingDir, "history.lock");
+		String key = canonicalPath(workingDir);
+		synchronized (LOCKS) {
+			DirectoryLock lock = LOCKS.get(key);
+			if (lock == null) {
+				lock = new DirectoryLock();
+				LOCKS.put(key, lock);
+			}
+			directoryLock = lock;
+		}
+		compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "namm-history-compactor");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * BHFull.bin, the impression base the tools write; compactions supersede it with versioned files.
+	 */
+	public File getImpressionBase() {
+		return impressionBase;
+	}
+
+	/**
+	 * CmpLog.bin, the campaign base the tools write.
+	 */
+	public File getCampaignBase() {
+		return campaignBase;
+	}
+
+	public HistoryRetention getRetention() {
+		return retention;
+	}
+
+	/**
+	 * Takes the journal lock: no other thread or JVM lists, writes or compacts the directory until unlock. Held
+	 * while files are listed and mapped, so no compaction deletes them in between. Reentrant; every lock must be
+	 * matched by one unlock on the same journal.
+	 */
+	public void lock() throws IOException {
+		DirectoryLock lock = directoryLock;
+		lock.threads.lock();
+		if (lock.file != null) {
+			return;
+		}
+		try {
+			lock.channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			lock.file = lock.channel.lock();
+		} catch (IOException | RuntimeException ex) {
+			closeLockFile();
+			lock.threads.unlock();
+			throw ex;
+		}
+	}
+
+	public void unlock() {
+		DirectoryLock lock = directoryLock;
+		if (lock.threads.getHoldCount() == 1) {
+			closeLockFile();
+		}
+		lock.threads.unlock();
+	}
+
+	/* Closing the channel releases the file lock */
+	private void closeLockFile() {
+		DirectoryLock lock = directoryLock;
+		lock.file = null;
+		if (lock.channel != null) {
+			try {
+				lock.channel.close();
+			} catch (IOException ex) {
+				AgentLog.HISTORY.warning("Could not release %s: %s", lockFile, ex);
+			}
+			lock.channel = null;
+		}
+	}
+
+	/**
+	 * Whether there is an impression base, BHFull.bin or a versioned one.
+	 */
+	public boolean hasImpressionBase() throws IOException {
+		lock();
+		try {
+			return base(IMPRESSIONS) != null;
+		} finally {
+			unlock();
+		}
+	}
+
+	public boolean hasCampaignBase() throws IOException {
+		lock();
+		try {
+			return base(CAMPAIGNS) != null;
+		} finally {
+			unlock();
+		}
+	}
+
+	/**
+	 * Impression files to load, oldest first: the base (when present) and then every segment written after it.
+	 * Only valid while the caller holds the journal lock; open the files before unlocking.
+	 */
+	public List<File> impressionFiles() throws IOException {
+		return files(IMPRESSIONS);
+	}
+
+	/**
+	 * Campaign log files to load, oldest first, under the same conditions.
+	 */
+	public List<File> campaignFiles() throws IOException {
+		return files(CAMPAIGNS);
+	}
+
+	/**
+	 * Writes one batch of impression records as a new segment.
+	 */
+	public void appendImpressions(ImpressionHistoryStore.Builder batch, int simId) throws IOException {
+		if (batch.size() == 0) {
+			return;
+		}
+		lock();
+		try {
+			batch.write(newSegment(IMPRESSIONS, simId));
+		} finally {
+			unlock();
+		}
+	}
+
+	/**
+	 * Writes one batch of campaign log rows as a new segment.
+	 */
+	public void appendCampaigns(CampaignLogStore.Builder batch, int simId) throws IOException {
+		if (batch.size() == 0) {
+			return;
+		}
+		lock();
+		try {
+			batch.write(newSegment(CAMPAIGNS, simId));
+		} finally {
+			unlock();
+		}
+	}
+
+	/**
+	 * Schedules a compaction on the background thread when enough segments are waiting.
+	 */
+	public void compactIfNeeded() {
+		compactor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					lock();
+					try {
+						if (segments(IMPRESSIONS).size() >= COMPACT_AFTER) {
+							compactImpressions();
+						}
+						if (segments(CAMPAIGNS).size() >= COMPACT_AFTER) {
+							compactCampaigns();
+						}
+					} finally {
+						unlock();
+					}
+				} catch (IOException ex) {
+					AgentLog.HISTORY.warning("##### ERR Compacting the history #####", ex);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Waits until every compaction scheduled so far has finished.
+	 */
+	public void awaitCompaction() throws InterruptedException, ExecutionException {
+		compactor.submit(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}).get();
+	}
+
+	/**
+	 * Merges the impression base and all current segments into a new base, keeping the first copy of each record
+	 * of the games the retention keeps.
+	 */
+	void compactImpressions() throws IOException {
+		lock();
+		try {
+			deleteSuperseded(IMPRESSIONS);
+			List<File> merged = files(IMPRESSIONS);
+			List<ImpressionHistoryStore> stores = new ArrayList<ImpressionHistoryStore>();
+			for (File file : merged) {
+				stores.add(ImpressionHistoryStore.open(file));
+			}
+			int oldestGame = retention.oldestGame(stores);
+			HistoryRetention.GameSequence sequence = new HistoryRetention.GameSequence();
+			ImpressionHistoryStore.Builder builder = new ImpressionHistoryStore.Builder();
+			Set<String> seen = new HashSet<String>();
+			int evicted = 0;
+			for (ImpressionHistoryStore store : stores) {
+				for (int i = 0; i < store.size(); i++) {
+					if (sequence.next(store.gameId(i)) < oldestGame) {
+						evicted++;
+					} else if (seen.add(store.recordKey(i))) {
+						builder.add(store, i);
+					}
+				}
+			}
+			File base = newBase(IMPRESSIONS, merged);
+			if (base == null) {
+				return;
+			}
+			try {
+				builder.write(base);
+			} catch (IOException ex) {
+				retryLater(base, ex);
+				return;
+			}
+			deleteSuperseded(IMPRESSIONS);
+			AgentLog.HISTORY.info("#####COMPACT##### Impression history: %d files, %d records, %d evicted (%s)",
+					merged.size(), builder.size(), evicted, retention);
+		} finally {
+			unlock();
+		}
+	}
+
+	/**
+	 * Merges the campaign base and the campaign segments into a new base, dropping rows already present (same game
+	 * and campaign id). Segments still in CSV, from before the binary log, are converted on the way.
+	 */
+	void compactCampaigns() throws IOException {
+		lock();
+		try {
+			deleteSuperseded(CAMPAIGNS);
+			List<File> merged = files(CAMPAIGNS);
+			CampaignLogStore.Builder builder = new CampaignLogStore.Builder();
+			Set<Long> seen = new HashSet<Long>();
+			for (File file : merged) {
+				CampaignLogStore store = CampaignLogStore.open(file);
+				for (int i = 0; i < store.size(); i++) {
+					if (seen.add(((long) store.game(i) << 32) | (store.id(i) & 0xFFFFFFFFL))) {
+						builder.add(store, i);
+					}
+				}
+			}
+			File base = newBase(CAMPAIGNS, merged);
+			if (base == null) {
+				return;
+			}
+			try {
+				builder.write(base);
+			} catch (IOException ex) {
+				retryLater(base, ex);
+				return;
+			}
+			deleteSuperseded(CAMPAIGNS);
+			AgentLog.HISTORY.info("#####COMPACT##### Campaign log: %d files, %d rows", merged.size(),
+					builder.size());
+		} finally {
+			unlock();
+		}
+	}
+
+	/**
+	 * Name of the base that merges files: stamped with the newest merged segment, null without a segment to merge.
+	 */
+	private File newBase(Kind kind, List<File> merged) {
+		long stamp = -1;
+		for (File file : merged) {
+			if (file.getName().startsWith(kind.segmentPrefix)) {
+				stamp = Math.max(stamp, segmentStamp(kind, file));
+			}
+		}
+		return stamp < 0 ? null : new File(workingDir, kind.baseName + "-" + String.format("%0" + STAMP_DIGITS + "d",
+				stamp) + ".bin");
+	}
+
+	/* The new base could not be written or renamed; the files stay as they are until the next compaction */
+	private void retryLater(File base, IOException ex) {
+		new File(base.getPath() + ".tmp").delete();
+		AgentLog.HISTORY.info("#####COMPACT##### Could not write %s (%s); retried at the next compaction",
+				base.getName(), ex);
+	}
+
+	/**
+	 * Deletes what the current base supersedes: older bases and the segments merged into it. A file that cannot
+	 * be deleted (still mapped) is left for the next compaction; readers already ignore it.
+	 */
+	private void deleteSuperseded(Kind kind) {
+		File base = base(kind);
+		if (base == null || base.equals(new File(workingDir, kind.baseName + ".bin"))) {
+			return;
+		}
+		long coverage = baseStamp(kind, base);
+		List<File> superseded = new ArrayList<File>();
+		File[] files = workingDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (!file.equals(base) && baseStamp(kind, file) >= -1) {
+					superseded.add(file);
+				}
+			}
+		}
+		for (File segment : allSegments(kind)) {
+			if (segmentStamp(kind, segment) <= coverage) {
+				superseded.add(segment);
+			}
+		}
+		for (File file : superseded) {
+			if (!file.delete() && file.exists()) {
+				AgentLog.HISTORY.info("#####COMPACT##### %s is still in use; deleted at the next compaction",
+						file.getName());
+			}
+		}
+	}
+
+	/* Base and segments to read, under the journal lock */
+	private List<File> files(Kind kind) throws IOException {
+		lock();
+		try {
+			List<File> files = new ArrayList<File>();
+			File base = base(kind);
+			if (base != null) {
+				files.add(base);
+			}
+			files.addAll(segments(kind));
+			return files;
+		} finally {
+			unlock();
+		}
+	}
+
+	/**
+	 * The versioned base with the highest stamp, else BHFull.bin (CmpLog.bin) if it exists, else null.
+	 */
+	private File base(Kind kind) {
+		File best = null;
+		long bestStamp = -1;
+		File[] files = workingDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				long stamp = baseStamp(kind, file);
+				if (stamp > bestStamp) {
+					best = file;
+					bestStamp = stamp;
+				}
+			}
+		}
+		if (best != null) {
+			return best;
+		}
+		File plain = new File(workingDir, kind.baseName + ".bin");
+		return plain.isFile() ? plain : null;
+	}
+
+	/**
+	 * Stamp of a versioned base of kind, -1 for the plain base and -2 for any other file.
+	 */
+	private static long baseStamp(Kind kind, File file) {
+		String name = file.getName();
+		if (name.equals(kind.baseName + ".bin")) {
+			return -1;
+		}
+		String prefix = kind.baseName + "-";
+		if (!name.startsWith(prefix) || !name.endsWith(".bin")
+				|| name.length() != prefix.length() + STAMP_DIGITS + ".bin".length()) {
+			return -2;
+		}
+		try {
+			return Long.parseLong(name.substring(prefix.length(), prefix.length() + STAMP_DIGITS));
+		} catch (NumberFormatException ex) {
+			return -2;
+		}
+	}
+
+	private static long segmentStamp(Kind kind, File segment) {
+		return Long.parseLong(segment.getName().substring(kind.segmentPrefix.length(),
+				kind.segmentPrefix.length() + STAMP_DIGITS));
+	}
+
+	/**
+	 * Whether name is one of the base files of the history, plain or versioned.
+	 */
+	static boolean isBase(String name) {
+		File file = new File(name);
+		return baseStamp(IMPRESSIONS, file) >= -1 || baseStamp(CAMPAIGNS, file) >= -1;
+	}
+
+	/* Segments written after the current base, oldest first */
+	private List<File> segments(Kind kind) {
+		File base = base(kind);
+		long coverage = base == null ? -1 : baseStamp(kind, base);
+		List<File> segments = new ArrayList<File>();
+		for (File segment : allSegments(kind)) {
+			if (segmentStamp(kind, segment) > coverage) {
+				segments.add(segment);
+			}
+		}
+		return segments;
+	}
+
+	/* Every segment of kind in the directory, merged or not, oldest first */
+	private List<File> allSegments(Kind kind) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return new ArrayList<File>();
+		}
+		List<File> segments = new ArrayList<File>();
+		for (File file : files) {
+			if (file.getName().startsWith(kind.segmentPrefix) && !file.getName().endsWith(".tmp")) {
+				segments.add(file);
+			}
+		}
+		// Segment names start with a zero padded stamp, so name order is write order
+		File[] sorted = segments.toArray(new File[segments.size()]);
+		Arrays.sort(sorted);
+		return new ArrayList<File>(Arrays.asList(sorted));
+	}
+
+	/**
+	 * Name of a new segment, under the journal lock: its stamp is the current time or, if that is not above them,
+	 * one more than every segment and base already there, so it sorts after all of them.
+	 */
+	private File newSegment(Kind kind, int simId) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create history directory " + directory);
+		}
+		long stamp = System.currentTimeMillis();
+		File base = base(kind);
+		if (base != null) {
+			stamp = Math.max(stamp, baseStamp(kind, base) + 1);
+		}
+		for (File segment : allSegments(kind)) {
+			stamp = Math.max(stamp, segmentStamp(kind, segment) + 1);
+		}
+		return new File(directory, kind.segmentPrefix + String.format("%0" + STAMP_DIGITS + "d", stamp) + "-"
+				+ simId + ".bin");
+	}
+
+	private static String canonicalPath(File dir) {
+		try {
+			return dir.getCanonicalPath();
+		} catch (IOException ex) {
+			return dir.getAbsolutePath();
+		}
+	}
+}
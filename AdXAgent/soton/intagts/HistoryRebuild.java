@@ -0,0 +1,543 @@
+package soton.intagts;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import edu.umich.eecs.tac.Parser;
+import se.sics.isl.transport.Transportable;
+import se.sics.tasim.logtool.LogReader;
+import se.sics.tasim.logtool.ParticipantInfo;
+import tau.tac.adx.demand.CampaignStats;
+import tau.tac.adx.report.adn.AdNetworkKey;
+import tau.tac.adx.report.adn.AdNetworkReport;
+import tau.tac.adx.report.adn.AdNetworkReportEntry;
+import tau.tac.adx.report.adn.MarketSegment;
+import tau.tac.adx.report.demand.AdNetBidMessage;
+import tau.tac.adx.report.demand.AdNetworkDailyNotification;
+import tau.tac.adx.report.demand.CampaignOpportunityMessage;
+import tau.tac.adx.report.demand.CampaignReport;
+import tau.tac.adx.report.demand.CampaignReportEntry;
+import tau.tac.adx.report.demand.InitialCampaignMessage;
+
+/**
+ * Rebuilds the training data (BHFull.bin and CmpLog.bin) from the recorded games in ExecutionLogs instead of from
+ * what the live agent happened to save.
+ *
+ * Every log gives the records our agent would have written in that game: one impression record per AdNetworkReport
+ * entry with a cost, as the agent adds them, and one campaign log row per campaign it won. The campaign rows
+ * hold what the server reported - budget, bid, impressions, cost, UCS cost share, quality change, revenue from the
+ * effective reach ratio and the figures derived from them - with the agent's estimates (profitEstimate,
+ * costEstimate, ...) as NaN, because they were never sent to the server. Campaigns the agent did not bid on (the
+ * initial one, random allocations) get their budget as bid, as in the historic bid statistics.
+ *
+ * The records of each log are cached in the cache folder under the SHA-256 of the log's content and the agent, so
+ * a log is only parsed again when it changes. Which logs are unchanged is decided from an index of path, size and
+ * modification time, so unchanged logs are not even read. New and changed logs are parsed in parallel; the output
+ * is then merged from the cache, in log order, keeping the first copy of each impression record (game, bid day,
+ * campaign, ad type, device, publisher and user attributes) and campaign (game and id). With --merge the history
+ * of a working directory is merged first, so rows the live agent saved, with its estimates, win over rebuilt ones.
+ *
+ * Usage (classes compiled with the jars in lib on the classpath):
+ *   java soton.intagts.HistoryRebuild [--agent NAMM] [--out .] [--cache history-cache] [--merge dir]
+ *       [--threads n] ../ExecutionLogs [game.slg.gz ...]
+ *
+ * The output is written as BHFull.bin and CmpLog.bin in the --out folder, each replaced in one rename.
+ */
+class HistoryRebuild {
+
+	/* Part of every cache key: change it when the records derived from a log change */
+	private static final String FORMAT = "1";
+	private static final String INDEX = "index.tsv";
+
+	private final String agentName;
+	private final File cacheDir;
+	/* Content hash of each log, by path, size and modification time; guarded by itself */
+	private final Map<String, String> index = new HashMap<String, String>();
+
+	HistoryRebuild(String agentName, File cacheDir) {
+		this.agentName = agentName;
+		this.cacheDir = cacheDir;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String agentName = "NAMM";
+		File outDir = new File(".");
+		File cacheDir = new File("history-cache");
+		File mergeDir = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<File> logs = new ArrayList<File>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--agent")) { agentName = args[++i]; }
+			else if (args[i].equals("--out")) { outDir = new File(args[++i]); }
+			else if (args[i].equals("--cache")) { cacheDir = new File(args[++i]); }
+			else if (args[i].equals("--merge")) { mergeDir = new File(args[++i]); }
+			else if (args[i].equals("--threads")) { threads = Integer.parseInt(args[++i]); }
+			else if (args[i].startsWith("--")) { throw new IllegalArgumentException("Unknown option " + args[i]); }
+			else { GameReplay.addLogs(new File(args[i]), logs); }
+		}
+		if (logs.isEmpty()) {
+			throw new IllegalArgumentException("No .slg.gz logs given");
+		}
+		new HistoryRebuild(agentName, cacheDir).run(logs, mergeDir, outDir, threads);
+	}
+
+	void run(List<File> logs, File mergeDir, File outDir, int threads) throws Exception {
+		long start = System.nanoTime();
+		if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+			throw new IOException("Cannot create " + cacheDir);
+		}
+		readIndex();
+
+		// Parse what is not cached yet
+		List<File> keys = new ArrayList<File>();
+		List<File> missing = new ArrayList<File>();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		int parsed = 0;
+		try {
+			List<Future<File>> results = new ArrayList<Future<File>>();
+			for (final File log : logs) {
+				results.add(pool.submit(new Callable<File>() {
+					@Override
+					public File call() throws Exception {
+						return cached(log);
+					}
+				}));
+			}
+			for (int i = 0; i < logs.size(); i++) {
+				File base = results.get(i).get();
+				keys.add(base);
+				if (!impressionsFile(base).exists() || !campaignsFile(base).exists()) {
+					missing.add(logs.get(i));
+				}
+			}
+			List<Future<Void>> parses = new ArrayList<Future<Void>>();
+			for (int i = 0; i < logs.size(); i++) {
+				final File log = logs.get(i);
+				final File base = keys.get(i);
+				if (missing.contains(log)) {
+					parses.add(pool.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							GameRecords records = parse(log, agentName);
+							records.impressions.write(impressionsFile(base));
+							records.campaigns.write(campaignsFile(base));
+							return null;
+						}
+					}));
+				}
+			}
+			for (Future<Void> parse : parses) {
+				parse.get();
+				parsed++;
+			}
+		} finally {
+			pool.shutdown();
+		}
+		writeIndex();
+		long parseNanos = System.nanoTime() - start;
+
+		// Merge, keeping the first copy of every record
+		ImpressionHistoryStore.Builder impressions = new ImpressionHistoryStore.Builder();
+		CampaignLogStore.Builder campaigns = new CampaignLogStore.Builder();
+		Set<String> seenImpressions = new HashSet<String>();
+		Set<Long> seenCampaigns = new HashSet<Long>();
+		int merged = 0;
+		if (mergeDir != null) {
+			HistoryJournal journal = HistoryJournal.forDirectory(mergeDir);
+			SharedHistory live = SharedHistory.read(journal);
+			for (ImpressionHistoryStore store : live.impressions()) {
+				merged += addNew(store, impressions, seenImpressions);
+			}
+			for (CampaignLogStore store : live.campaignLogs()) {
+				merged += addNew(store, campaigns, seenCampaigns);
+			}
+		}
+		int duplicates = 0;
+		for (File base : keys) {
+			ImpressionHistoryStore store = ImpressionHistoryStore.open(impressionsFile(base));
+			duplicates += store.size() - addNew(store, impressions, seenImpressions);
+			CampaignLogStore log = CampaignLogStore.open(campaignsFile(base));
+			duplicates += log.size() - addNew(log, campaigns, seenCampaigns);
+		}
+		if (!outDir.isDirectory() && !outDir.mkdirs()) {
+			throw new IOException("Cannot create " + outDir);
+		}
+		impressions.write(new File(outDir, "BHFull.bin"));
+		campaigns.write(new File(outDir, "CmpLog.bin"));
+
+		System.out.printf("%d logs: %d parsed in %.1f s, %d cached; %d rows from %s, %d duplicates dropped%n",
+				logs.size(), parsed, parseNanos / 1e9, logs.size() - missing.size(), merged,
+				mergeDir == null ? "no history" : mergeDir.getPath(), duplicates);
+		System.out.printf("Wrote %d impression records and %d campaigns of %s to %s in %.1f s%n", impressions.size(),
+				campaigns.size(), agentName, outDir, (System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * Base name of a log's cache files: the hash of its content, format and agent. The content hash is taken from
+	 * the index while the log's size and modification time are unchanged.
+	 */
+	private File cached(File log) throws IOException {
+		String id = log.getCanonicalPath() + "\t" + log.length() + "\t" + log.lastModified();
+		String hash;
+		synchronized (index) {
+			hash = index.get(id);
+		}
+		if (hash == null) {
+			hash = contentHash(log);
+			synchronized (index) {
+				index.put(id, hash);
+			}
+		}
+		return new File(cacheDir, hash + "-" + agentName.replaceAll("[^A-Za-z0-9_-]", "_") + "-v" + FORMAT);
+	}
+
+	private static File impressionsFile(File base) {
+		return new File(base.getPath() + ".imp.bin");
+	}
+
+	private static File campaignsFile(File base) {
+		return new File(base.getPath() + ".cmp.bin");
+	}
+
+	static String contentHash(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+		InputStream in = new DigestInputStream(new FileInputStream(file), digest);
+		try {
+			byte[] buffer = new byte[1 << 16];
+			while (in.read(buffer) >= 0) {
+				// digested while read
+			}
+		} finally {
+			in.close();
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	private void readIndex() throws IOException {
+		File file = new File(cacheDir, INDEX);
+		if (!file.exists()) {
+			return;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+				StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				// path, size, modification time, hash
+				int hash = line.lastIndexOf('\t');
+				if (hash > 0) {
+					index.put(line.substring(0, hash), line.substring(hash + 1));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void writeIndex() throws IOException {
+		File file = new File(cacheDir, INDEX);
+		File tmp = new File(cacheDir, INDEX + ".tmp");
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8));
+		try {
+			for (Map.Entry<String, String> entry : index.entrySet()) {
+				writer.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+		if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+			throw new IOException("Cannot replace " + file);
+		}
+	}
+
+	private static int addNew(ImpressionHistoryStore store, ImpressionHistoryStore.Builder builder, Set<String> seen) {
+		int added = 0;
+		for (int i = 0; i < store.size(); i++) {
+			if (seen.add(store.recordKey(i))) {
+				builder.add(store, i);
+				added++;
+			}
+		}
+		return added;
+	}
+
+	private static int addNew(CampaignLogStore store, CampaignLogStore.Builder builder, Set<Long> seen) {
+		int added = 0;
+		for (int i = 0; i < store.size(); i++) {
+			if (seen.add(((long) store.game(i) << 32) | (store.id(i) & 0xFFFFFFFFL))) {
+				builder.add(store, i);
+				added++;
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * The records agentName's history gets from one game; empty when it did not play in it.
+	 */
+	static GameRecords parse(File log, String agentName) throws IOException, ParseException {
+		InputStream in = new GZIPInputStream(new BufferedInputStream(new FileInputStream(log)));
+		try {
+			LogReader reader = new LogReader(in);
+			ParticipantInfo participant = null;
+			for (ParticipantInfo info : reader.getParticipants()) {
+				if (info.getName().equals(agentName)) {
+					participant = info;
+				}
+			}
+			GameRecords records = new GameRecords(reader.getSimulationID());
+			if (participant != null) {
+				RecordParser parser = new RecordParser(reader, participant, records);
+				parser.start();
+				parser.finish();
+			}
+			return records;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * The impression records and campaign log rows of one game.
+	 */
+	static class GameRecords {
+		final int game;
+		final ImpressionHistoryStore.Builder impressions = new ImpressionHistoryStore.Builder();
+		final CampaignLogStore.Builder campaigns = new CampaignLogStore.Builder();
+
+		GameRecords(int game) {
+			this.game = game;
+		}
+	}
+
+	/**
+	 * Follows one participant through a log: what the server sent it and the campaign bids it sent.
+	 */
+	private static class RecordParser extends Parser {
+		private final int index;
+		private final int role;
+		private final GameRecords records;
+		private int day;
+		/* Campaigns offered, by id, and the participant's bid on each */
+		private final Map<Integer, Campaign> offered = new HashMap<Integer, Campaign>();
+		private final Map<Integer, Long> bidMillis = new HashMap<Integer, Long>();
+		/* Campaigns the participant won, in the order won */
+		private final Map<Integer, Campaign> won = new LinkedHashMap<Integer, Campaign>();
+		/* Quality rating by day of the notification */
+		private final Map<Integer, Double> quality = new HashMap<Integer, Double>();
+
+		RecordParser(LogReader reader, ParticipantInfo participant, GameRecords records) {
+			super(reader);
+			this.index = participant.getIndex();
+			this.role = participant.getRole();
+			this.records = records;
+		}
+
+		@Override
+		protected void nextDay(int date, long serverTime) {
+			day = date;
+		}
+
+		@Override
+		protected void message(int sender, int receiver, Transportable content) {
+			if (sender == index && content instanceof AdNetBidMessage) {
+				AdNetBidMessage bid = (AdNetBidMessage) content;
+				if (bid.getCampaignBudget() != null) {
+					bidMillis.put(bid.getCampaignId(), bid.getCampaignBudget());
+				}
+			} else if (receiver == index) {
+				received(content);
+			}
+		}
+
+		@Override
+		protected void messageToRole(int sender, int role, Transportable content) {
+			if (role == this.role) {
+				received(content);
+			}
+		}
+
+		private void received(Transportable content) {
+			if (content instanceof InitialCampaignMessage) {
+				InitialCampaignMessage initial = (InitialCampaignMessage) content;
+				Campaign campaign = new Campaign(initial.getId(), initial.getDayStart(), initial.getDayEnd(),
+						initial.getReachImps(), initial.getTargetSegment(), initial.getVideoCoef(),
+						initial.getMobileCoef());
+				campaign.budget = initial.getBudgetMillis() / 1000.0;
+				won.put(campaign.id, campaign);
+			} else if (content instanceof CampaignOpportunityMessage) {
+				CampaignOpportunityMessage opportunity = (CampaignOpportunityMessage) content;
+				offered.put(opportunity.getId(), new Campaign(opportunity.getId(), opportunity.getDayStart(),
+						opportunity.getDayEnd(), opportunity.getReachImps(), opportunity.getTargetSegment(),
+						opportunity.getVideoCoef(), opportunity.getMobileCoef()));
+			} else if (content instanceof AdNetworkDailyNotification) {
+				AdNetworkDailyNotification notification = (AdNetworkDailyNotification) content;
+				quality.put(day, notification.getQualityScore());
+				Campaign campaign = offered.get(notification.getCampaignId());
+				// As the agent: the campaign is ours when we are charged for it
+				if (campaign != null && notification.getCostMillis() != 0) {
+					campaign.budget = notification.getCostMillis() / 1000.0;
+					won.put(campaign.id, campaign);
+				}
+				// The UCS price is split evenly over the campaigns running today
+				List<Campaign> running = new ArrayList<Campaign>();
+				for (Campaign ours : won.values()) {
+					if (ours.dayStart <= day && ours.dayEnd >= day) {
+						running.add(ours);
+					}
+				}
+				for (Campaign ours : running) {
+					ours.ucsCost += notification.getPrice() / running.size();
+				}
+			} else if (content instanceof CampaignReport) {
+				CampaignReport report = (CampaignReport) content;
+				for (int i = 0; i < report.size(); i++) {
+					CampaignReportEntry entry = report.getEntry(i);
+					Campaign campaign = won.get(entry.getKey().getCampaignId());
+					if (campaign != null) {
+						campaign.stats = entry.getCampaignStats();
+					}
+				}
+			} else if (content instanceof AdNetworkReport) {
+				AdNetworkReport report = (AdNetworkReport) content;
+				for (int i = 0; i < report.size(); i++) {
+					AdNetworkReportEntry entry = report.getEntry(i);
+					// As AgentNAMM.handleAdNetworkReport: the report is on yesterday, costs in CPM
+					if (entry.getCost() > 0.0001) {
+						AdNetworkKey key = entry.getKey();
+						double totalCost = entry.getCost() / 1000;
+						records.impressions.add(records.game, day - 1, key.getCampaignId(), key.getAdType(),
+								key.getDevice(), key.getPublisher(), key.getGender(),
+								ImpressionRecords.genderSegment(key.getGender()), key.getIncome(),
+								ImpressionRecords.incomeSegment(key.getIncome()), key.getAge(),
+								ImpressionRecords.ageSegment(key.getAge()), entry.getBidCount(), entry.getWinCount(),
+								totalCost,
+								totalCost / entry.getWinCount(), entry.getBidCount() - entry.getWinCount());
+					}
+				}
+			}
+		}
+
+		/**
+		 * Adds the campaign rows, once the whole game has been read.
+		 */
+		void finish() {
+			Map<Long, Integer> endingOn = new HashMap<Long, Integer>();
+			for (Campaign campaign : won.values()) {
+				Integer count = endingOn.get(campaign.dayEnd);
+				endingOn.put(campaign.dayEnd, count == null ? 1 : count + 1);
+			}
+			for (Campaign campaign : won.values()) {
+				double targeted = campaign.stats == null ? 0 : campaign.stats.getTargetedImps();
+				double other = campaign.stats == null ? 0 : campaign.stats.getOtherImps();
+				double cost = campaign.stats == null ? 0 : campaign.stats.getCost();
+				double imps = targeted + other;
+				Long bid = bidMillis.get(campaign.id);
+				double cmpBid = bid == null ? campaign.budget : bid / 1000.0;
+				double revenue = campaign.budget
+						* ImpressionTargetOptimizer.effectiveReachRatio((long) imps, campaign.reachImps);
+				double profit = revenue - cost;
+				// The change reported the day after the end, shared by the campaigns that ended with it
+				double before = qualityOn((int) campaign.dayEnd);
+				double after = qualityOn((int) campaign.dayEnd + 1);
+
+				double[] values = new double[CampaignLogStore.DOUBLES];
+				Arrays.fill(values, Double.NaN);
+				values[CampaignLogStore.VIDEO_COEF] = campaign.videoCoef;
+				values[CampaignLogStore.MOBILE_COEF] = campaign.mobileCoef;
+				values[CampaignLogStore.ADX_COST] = cost;
+				values[CampaignLogStore.TARGETED_IMPS] = targeted;
+				values[CampaignLogStore.UNTARGETED_IMPS] = other;
+				values[CampaignLogStore.BUDGET] = campaign.budget;
+				values[CampaignLogStore.REVENUE] = revenue;
+				values[CampaignLogStore.CMP_BID] = cmpBid;
+				values[CampaignLogStore.QUALITY_CHANGE] = (after - before) / endingOn.get(campaign.dayEnd);
+				values[CampaignLogStore.UCS_COST] = campaign.ucsCost;
+				values[CampaignLogStore.IMP_TARGET_FULFILLMENT] = imps / campaign.reachImps;
+				values[CampaignLogStore.BID_VS_2ND_RATIO] = cmpBid * after / campaign.budget;
+				values[CampaignLogStore.PROFIT] = profit;
+				values[CampaignLogStore.PROFIT_PER_IMPRESSION] = profit / imps;
+				values[CampaignLogStore.REACH_FULFILLMENT] = imps / campaign.reachImps;
+				// Without a target of its own a campaign aims at its reach
+				records.campaigns.add(records.game, campaign.id, campaign.dayStart, campaign.dayEnd,
+						campaign.reachImps, campaign.segmentMask, campaign.reachImps, values);
+			}
+		}
+
+		/**
+		 * Quality reported on day, or the last one before it.
+		 */
+		private double qualityOn(int day) {
+			for (int d = day; d >= 0; d--) {
+				Double q = quality.get(d);
+				if (q != null) {
+					return q;
+				}
+			}
+			return 1;
+		}
+	}
+
+	/**
+	 * A campaign of the game as the server described it, with what it was charged.
+	 */
+	private static class Campaign {
+		final int id;
+		final long dayStart;
+		final long dayEnd;
+		final long reachImps;
+		final int segmentMask;
+		final double videoCoef;
+		final double mobileCoef;
+		double budget;
+		double ucsCost;
+		CampaignStats stats;
+
+		Campaign(int id, long dayStart, long dayEnd, long reachImps, Set<MarketSegment> segment, double videoCoef,
+				double mobileCoef) {
+			this.id = id;
+			this.dayStart = dayStart;
+			this.dayEnd = dayEnd;
+			this.reachImps = reachImps;
+			this.segmentMask = SegmentMask.of(segment);
+			this.videoCoef = videoCoef;
+			this.mobileCoef = mobileCoef;
+		}
+	}
+}
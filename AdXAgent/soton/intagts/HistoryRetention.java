@@ -0,0 +1,138 @@
+package soton.intagts;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * How much of the impression history the agent keeps, and how fast old games lose weight in its statistics.
+ *
+ * Games are ordered by when the journal received them, not by simulation id: ids are only unique per server run,
+ * start again when a server restarts and are 0, 1, ... in simulated games. Loading the history reads the base
+ * file (in the order its records were appended) and then the segments in the order they were written, and every
+ * run of records of one game id is the next game (see GameSequence). The game played now comes after all of them.
+ *
+ * The history keeps the newest games that fit every limit set: maxRecords (records in total) and maxGames (games,
+ * which is also their age: a game older than maxGames games is evicted); 0 means no limit. Whole games are evicted,
+ * oldest first, but the newest game is always kept. Evicting is a comparison of the record's game against the
+ * oldest game kept (see oldestGame), so a record leaves the statistics when a snapshot is loaded and leaves
+ * the base at the next compaction, at O(1) each. Compaction deletes the evicted records, so both limits are off
+ * unless configured. There is no limit by date: records keep no time, only the order of their games.
+ *
+ * halfLife is the number of games after which a record counts half as much in the aggregates of
+ * ImpressionStatsIndex; 0 weights every record the same, as the agent did before. Decay never deletes anything, and
+ * it is off unless configured too.
+ *
+ * Read from config/namm1.conf: namm.history.maxRecords, namm.history.maxGames and namm.history.halfLife. Missing
+ * keys keep DEFAULTS, values below 0 are rejected.
+ */
+final class HistoryRetention {
+
+	static final HistoryRetention DEFAULTS = new HistoryRetention(0, 0, 0);
+	static final HistoryRetention UNBOUNDED = new HistoryRetention(0, 0, 0);
+
+	final int maxRecords;
+	final int maxGames;
+	final double halfLife;
+
+	HistoryRetention(int maxRecords, int maxGames, double halfLife) {
+		if (maxRecords < 0 || maxGames < 0 || !(halfLife >= 0)) {
+			throw new IllegalArgumentException("History retention limits must not be negative: maxRecords="
+					+ maxRecords + ", maxGames=" + maxGames + ", halfLife=" + halfLife);
+		}
+		this.maxRecords = maxRecords;
+		this.maxGames = maxGames;
+		this.halfLife = halfLife;
+	}
+
+	/**
+	 * The retention of the agent's configuration file.
+	 */
+	static HistoryRetention configured() {
+		return fromConfig(AgentLog.configuration());
+	}
+
+	static HistoryRetention fromConfig(Properties config) {
+		return new HistoryRetention(
+				Integer.parseInt(setting(config, "maxRecords", DEFAULTS.maxRecords)),
+				Integer.parseInt(setting(config, "maxGames", DEFAULTS.maxGames)),
+				Double.parseDouble(setting(config, "halfLife", DEFAULTS.halfLife)));
+	}
+
+	private static String setting(Properties config, String name, Object defaultValue) {
+		return config.getProperty("namm.history." + name, String.valueOf(defaultValue)).trim();
+	}
+
+	/**
+	 * Whether these limits can evict anything.
+	 */
+	boolean evicts() {
+		return maxRecords > 0 || maxGames > 0;
+	}
+
+	/**
+	 * Oldest game (as numbered by GameSequence over the stores, in order) kept under these limits; records of
+	 * older games are evicted. 0 when nothing is evicted.
+	 */
+	int oldestGame(List<ImpressionHistoryStore> stores) {
+		if (!evicts()) {
+			return 0;
+		}
+		// Records per game, read from the game id column only
+		GameSequence sequence = new GameSequence();
+		int[] records = new int[64];
+		for (ImpressionHistoryStore store : stores) {
+			for (int i = 0; i < store.size(); i++) {
+				int game = sequence.next(store.gameId(i));
+				if (game == records.length) {
+					records = Arrays.copyOf(records, 2 * records.length);
+				}
+				records[game]++;
+			}
+		}
+		int oldest = sequence.count();
+		long kept = 0;
+		while (oldest > 0) {
+			int games = sequence.count() - oldest;
+			if (games > 0 && ((maxGames > 0 && games >= maxGames)
+					|| (maxRecords > 0 && kept + records[oldest - 1] > maxRecords))) {
+				break;
+			}
+			oldest--;
+			kept += records[oldest];
+		}
+		return oldest;
+	}
+
+	@Override
+	public String toString() {
+		return "maxRecords=" + maxRecords + ",maxGames=" + maxGames + ",halfLife=" + halfLife;
+	}
+
+	/**
+	 * Numbers the games of records read in journal order: a record belongs to the same game as the one before it
+	 * while its game id is the same, and to the next game when the id changes.
+	 */
+	static final class GameSequence {
+		private int games;
+		private int lastId;
+
+		/**
+		 * The game of a record with game id gameId, read after all records passed here before.
+		 */
+		int next(int gameId) {
+			if (games == 0 || gameId != lastId) {
+				games++;
+				lastId = gameId;
+			}
+			return games - 1;
+		}
+
+		/**
+		 * Games seen so far, which is also the number of the next game.
+		 */
+		int count() {
+			return games;
+		}
+	}
+}
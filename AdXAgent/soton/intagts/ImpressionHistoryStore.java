@@ -0,0 +1,319 @@
+package soton.intagts;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import tau.tac.adx.ads.properties.AdType;
+import tau.tac.adx.devices.Device;
+import tau.tac.adx.report.adn.MarketSegment;
+import tau.tac.adx.users.properties.Age;
+import tau.tac.adx.users.properties.Gender;
+import tau.tac.adx.users.properties.Income;
+
+/**
+ * Versioned columnar binary file for the impression bid history (the same 17 fields as BHFull.csv).
+ *
+ * Layout (big endian):
+ *   int magic, int version, int rows, int publishers, publishers x (short length, UTF-8 bytes),
+ *   then one contiguous column per field, in CSV order. Enums are stored as byte ordinals, the publisher as
+ *   a short index into the dictionary, counts as ints and costs as doubles.
+ *
+ * Files are read through a memory mapping, so opening the history is a header read and every value is a
+ * direct buffer access - there is no text to parse.
+ *
+ * Usage as a tool:
+ *   java soton.intagts.ImpressionHistoryStore import BHFull.csv BHFull.bin
+ *   java soton.intagts.ImpressionHistoryStore export BHFull.bin BHFull.csv
+ */
+class ImpressionHistoryStore {
+
+	static final int MAGIC = 0x4E414D42; // "NAMB"
+	static final int VERSION = 1;
+
+	static final String CSV_HEADER = "GameId,BidDay,CampId,AdType,Device,Publisher,Gender,MktGender,Income,MktIncome," +
+			"Age,MktAge,BidCount,WinCount,TotalCost,CostImpr,LostCount";
+
+	private static final AdType[] AD_TYPES = AdType.values();
+	private static final Device[] DEVICES = Device.values();
+	private static final Gender[] GENDERS = Gender.values();
+	private static final Income[] INCOMES = Income.values();
+	private static final Age[] AGES = Age.values();
+	private static final MarketSegment[] SEGMENTS = MarketSegment.values();
+
+	private final ByteBuffer buffer;
+	private final int rows;
+	private final String[] publishers;
+
+	/* Start of each column in the buffer */
+	private final int gameIdCol, bidDayCol, campIdCol, adTypeCol, deviceCol, publisherCol, genderCol, mktGenderCol,
+			incomeCol, mktIncomeCol, ageCol, mktAgeCol, bidCountCol, winCountCol, totalCostCol, costImprCol, lostCountCol;
+
+	private ImpressionHistoryStore(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not an impression history file");
+		}
+		int version = buffer.getInt(4);
+		if (version != VERSION) {
+			throw new IOException("Unsupported impression history version " + version);
+		}
+		rows = buffer.getInt(8);
+		publishers = new String[buffer.getInt(12)];
+		int pos = 16;
+		for (int i = 0; i < publishers.length; i++) {
+			int length = buffer.getShort(pos) & 0xFFFF;
+			byte[] name = new byte[length];
+			for (int b = 0; b < length; b++) {
+				name[b] = buffer.get(pos + 2 + b);
+			}
+			publishers[i] = new String(name, StandardCharsets.UTF_8).intern();
+			pos += 2 + length;
+		}
+		gameIdCol = pos;
+		bidDayCol = gameIdCol + 4 * rows;
+		campIdCol = bidDayCol + 4 * rows;
+		adTypeCol = campIdCol + 4 * rows;
+		deviceCol = adTypeCol + rows;
+		publisherCol = deviceCol + rows;
+		genderCol = publisherCol + 2 * rows;
+		mktGenderCol = genderCol + rows;
+		incomeCol = mktGenderCol + rows;
+		mktIncomeCol = incomeCol + rows;
+		ageCol = mktIncomeCol + rows;
+		mktAgeCol = ageCol + rows;
+		bidCountCol = mktAgeCol + rows;
+		winCountCol = bidCountCol + 4 * rows;
+		totalCostCol = winCountCol + 4 * rows;
+		costImprCol = totalCostCol + 8 * rows;
+		lostCountCol = costImprCol + 8 * rows;
+		if (lostCountCol + 4 * rows > buffer.limit()) {
+			throw new IOException("Truncated impression history file");
+		}
+	}
+
+	/**
+	 * Memory maps an existing history file.
+	 */
+	public static ImpressionHistoryStore open(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new ImpressionHistoryStore(mapped);
+		} finally {
+			// The mapping stays valid after the channel is closed
+			channel.close();
+		}
+	}
+
+	public int size() { return rows; }
+	public int gameId(int row) { return buffer.getInt(gameIdCol + 4 * row); }
+	public int bidDay(int row) { return buffer.getInt(bidDayCol + 4 * row); }
+	public int campId(int row) { return buffer.getInt(campIdCol + 4 * row); }
+	public AdType adType(int row) { return AD_TYPES[buffer.get(adTypeCol + row)]; }
+	public Device device(int row) { return DEVICES[buffer.get(deviceCol + row)]; }
+	public String publisher(int row) { return publishers[buffer.getShort(publisherCol + 2 * row)]; }
+	public Gender gender(int row) { return GENDERS[buffer.get(genderCol + row)]; }
+	public MarketSegment mktGender(int row) { return SEGMENTS[buffer.get(mktGenderCol + row)]; }
+	public Income income(int row) { return INCOMES[buffer.get(incomeCol + row)]; }
+	public MarketSegment mktIncome(int row) { return SEGMENTS[buffer.get(mktIncomeCol + row)]; }
+	public Age age(int row) { return AGES[buffer.get(ageCol + row)]; }
+	public MarketSegment mktAge(int row) { return SEGMENTS[buffer.get(mktAgeCol + row)]; }
+	public int bidCount(int row) { return buffer.getInt(bidCountCol + 4 * row); }
+	public int winCount(int row) { return buffer.getInt(winCountCol + 4 * row); }
+	public double totalCost(int row) { return buffer.getDouble(totalCostCol + 8 * row); }
+	public double costImpr(int row) { return buffer.getDouble(costImprCol + 8 * row); }
+	public int lostCount(int row) { return buffer.getInt(lostCountCol + 4 * row); }
+
+	/**
+	 * Identity of a report entry: the same game, day, campaign and impression key is the same record.
+	 */
+	public String recordKey(int row) {
+		return gameId(row) + "," + bidDay(row) + "," + campId(row) + "," + adType(row) + "," + device(row) + ","
+				+ publisher(row) + "," + gender(row) + "," + income(row) + "," + age(row);
+	}
+
+	/**
+	 * Writes the rows back as BHFull.csv text, for the R scripts.
+	 */
+	public void exportCsv(File csv) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csv), StandardCharsets.UTF_8));
+		try {
+			out.write(CSV_HEADER + System.lineSeparator());
+			for (int i = 0; i < rows; i++) {
+				out.write(gameId(i) + "," + bidDay(i) + "," + campId(i) + "," + adType(i) + "," + device(i) + ","
+						+ publisher(i) + "," + gender(i) + "," + mktGender(i) + "," + income(i) + "," + mktIncome(i)
+						+ "," + age(i) + "," + mktAge(i) + "," + bidCount(i) + "," + winCount(i) + "," + totalCost(i)
+						+ "," + costImpr(i) + "," + lostCount(i) + System.lineSeparator());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Accumulates rows in an ImpressionRecords and writes them as a history file.
+	 */
+	static class Builder {
+		private final ImpressionRecords records;
+
+		Builder() {
+			this(new ImpressionRecords());
+		}
+
+		/**
+		 * Writes the rows of records, which the builder adds to.
+		 */
+		Builder(ImpressionRecords records) {
+			this.records = records;
+		}
+
+		public int size() {
+			return records.size();
+		}
+
+		/**
+		 * The market segments must be one of their pair each, see ImpressionRecords.add.
+		 */
+		public void add(int pGameId, int pBidDay, int pCampId, AdType pAdType, Device pDevice, String pPublisher,
+						Gender pGender, MarketSegment pMktGender, Income pIncome, MarketSegment pMktIncome, Age pAge,
+						MarketSegment pMktAge, int pBidCount, int pWinCount, double pTotalCost, double pCostImpr,
+						int pLostCount) {
+			records.add(pGameId, pBidDay, pCampId, pAdType, pDevice, pPublisher, pGender, pMktGender, pIncome,
+					pMktIncome, pAge, pMktAge, pBidCount, pWinCount, pTotalCost, pCostImpr, pLostCount);
+		}
+
+		/**
+		 * Copies one row of an existing file.
+		 */
+		public void add(ImpressionHistoryStore store, int row) {
+			records.add(store, row);
+		}
+
+		/**
+		 * Copies one row of records held in memory.
+		 */
+		public void add(ImpressionRecords source, int row) {
+			records.add(source, row);
+		}
+
+		/**
+		 * Writes the file next to its destination and renames it over, so readers never see half a file.
+		 */
+		public void write(File file) throws IOException {
+			int rows = records.size();
+			int dictionary = 0;
+			List<byte[]> names = new ArrayList<byte[]>();
+			for (String name : records.publishers()) {
+				byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+				names.add(bytes);
+				dictionary += 2 + bytes.length;
+			}
+			ByteBuffer out = ByteBuffer.allocate(16 + dictionary + rows * (4 * 3 + 2 + 2 + 6 + 4 * 3 + 8 * 2));
+			out.putInt(MAGIC).putInt(VERSION).putInt(rows).putInt(names.size());
+			for (byte[] bytes : names) {
+				out.putShort((short) bytes.length).put(bytes);
+			}
+			for (int i = 0; i < rows; i++) { out.putInt(records.gameId(i)); }
+			for (int i = 0; i < rows; i++) { out.putInt(records.bidDay(i)); }
+			for (int i = 0; i < rows; i++) { out.putInt(records.campId(i)); }
+			for (int i = 0; i < rows; i++) { out.put((byte) records.adType(i).ordinal()); }
+			for (int i = 0; i < rows; i++) { out.put((byte) records.device(i).ordinal()); }
+			for (int i = 0; i < rows; i++) { out.putShort((short) records.publisherIndex(i)); }
+			for (int i = 0; i < rows; i++) { out.put((byte) records.gender(i).ordinal()); }
+			for (int i = 0; i < rows; i++) { out.put((byte) records.mktGender(i).ordinal()); }
+			for (int i = 0; i < rows; i++) { out.put((byte) records.income(i).ordinal()); }
+			for (int i = 0; i < rows; i++) { out.put((byte) records.mktIncome(i).ordinal()); }
+			for (int i = 0; i < rows; i++) { out.put((byte) records.age(i).ordinal()); }
+			for (int i = 0; i < rows; i++) { out.put((byte) records.mktAge(i).ordinal()); }
+			for (int i = 0; i < rows; i++) { out.putInt(records.bidCount(i)); }
+			for (int i = 0; i < rows; i++) { out.putInt(records.winCount(i)); }
+			for (int i = 0; i < rows; i++) { out.putDouble(records.totalCost(i)); }
+			for (int i = 0; i < rows; i++) { out.putDouble(records.costImpr(i)); }
+			for (int i = 0; i < rows; i++) { out.putInt(records.lostCount(i)); }
+			out.flip();
+
+			File tmp = new File(file.getPath() + ".tmp");
+			FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			try {
+				while (out.hasRemaining()) {
+					channel.write(out);
+				}
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Reads BHFull.csv into a builder. Lines that cannot be parsed (truncated rows, merge conflict markers,
+	 * unknown enum names) are skipped instead of aborting the whole load.
+	 *
+	 * @return the number of skipped lines
+	 */
+	static int importCsv(File csv, Builder builder) throws IOException {
+		int skipped = 0;
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(csv), StandardCharsets.UTF_8));
+		try {
+			String fLine = in.readLine(); // Ignores the first line that contains the headers
+			while ((fLine = in.readLine()) != null) {
+				String[] fValues = fLine.split(",");
+				try {
+					// 0:GameId,1:BidDay,2:CampId,3:AdType,4:Device,5:Publisher,6:Gender,7:MktGender,8:Income,9:MktIncome,10:Age,11:MktAge,12:BidCount,13:WinCount,14:TotalCost,15:CostImpr,16:LostCount
+					builder.add(Integer.parseInt(fValues[0]), Integer.parseInt(fValues[1]), Integer.parseInt(fValues[2]),
+							AdType.valueOf(fValues[3]), Device.valueOf(fValues[4]), fValues[5],
+							Gender.valueOf(fValues[6]), MarketSegment.valueOf(fValues[7]),
+							Income.valueOf(fValues[8]), MarketSegment.valueOf(fValues[9]),
+							Age.valueOf(fValues[10]), MarketSegment.valueOf(fValues[11]),
+							Integer.parseInt(fValues[12]), Integer.parseInt(fValues[13]),
+							Double.parseDouble(fValues[14]), Double.parseDouble(fValues[15]), Integer.parseInt(fValues[16]));
+				} catch (RuntimeException ex) {
+					// NumberFormatException, IllegalArgumentException or a short line
+					skipped++;
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return skipped;
+	}
+
+	/**
+	 * One-shot conversion between the CSV and binary history files.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 3 && args[0].equals("import")) {
+			long start = System.nanoTime();
+			Builder builder = new Builder();
+			int skipped = importCsv(new File(args[1]), builder);
+			builder.write(new File(args[2]));
+			System.out.println("Imported " + builder.size() + " records (" + skipped + " malformed lines skipped) in "
+					+ (System.nanoTime() - start) / 1000000 + " ms");
+		} else if (args.length == 3 && args[0].equals("export")) {
+			ImpressionHistoryStore store = open(new File(args[1]));
+			store.exportCsv(new File(args[2]));
+			System.out.println("Exported " + store.size() + " records");
+		} else {
+			System.out.println("Usage: ImpressionHistoryStore import <BHFull.csv> <BHFull.bin>");
+			System.out.println("       ImpressionHistoryStore export <BHFull.bin> <BHFull.csv>");
+		}
+	}
+}
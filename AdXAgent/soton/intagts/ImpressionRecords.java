@@ -0,0 +1,279 @@
+package soton.intagts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import tau.tac.adx.ads.properties.AdType;
+import tau.tac.adx.devices.Device;
+import tau.tac.adx.report.adn.MarketSegment;
+import tau.tac.adx.users.properties.Age;
+import tau.tac.adx.users.properties.Gender;
+import tau.tac.adx.users.properties.Income;
+
+/**
+ * Impression records (the 17 fields of a BHFull row) in growable primitive columns, the in-memory counterpart of
+ * ImpressionHistoryStore: the agent's records of the running game, and the rows of a history file being built.
+ *
+ * Enums are byte ordinals, the three market segments one SegmentMask byte, the publisher a short index into a
+ * dictionary of interned names, counts int[] and costs double[] columns: about 48 bytes per record where an object
+ * per record with its enum and String references took about 100, and a scan reads a few dense arrays instead of
+ * following a reference per record. Rows are read by index or with a Cursor, neither of which allocates.
+ */
+final class ImpressionRecords {
+
+	private static final AdType[] AD_TYPES = AdType.values();
+	private static final Device[] DEVICES = Device.values();
+	private static final Gender[] GENDERS = Gender.values();
+	private static final Income[] INCOMES = Income.values();
+	private static final Age[] AGES = Age.values();
+
+	private static final int MALE = 1 << MarketSegment.MALE.ordinal();
+	private static final int FEMALE = 1 << MarketSegment.FEMALE.ordinal();
+	private static final int YOUNG = 1 << MarketSegment.YOUNG.ordinal();
+	private static final int OLD = 1 << MarketSegment.OLD.ordinal();
+	private static final int LOW_INCOME = 1 << MarketSegment.LOW_INCOME.ordinal();
+	private static final int HIGH_INCOME = 1 << MarketSegment.HIGH_INCOME.ordinal();
+
+	private int rows;
+	private int[] gameId, bidDay, campId;
+	private byte[] adType, device, gender, income, age;
+	/* SegmentMask of the market gender, income and age */
+	private byte[] segments;
+	private short[] publisher;
+	private int[] bidCount, winCount, lostCount;
+	private double[] totalCost, costImpr;
+
+	private final List<String> publisherNames = new ArrayList<String>();
+	private final Map<String, Short> publisherIds = new HashMap<String, Short>();
+
+	ImpressionRecords() {
+		this(1024);
+	}
+
+	ImpressionRecords(int capacity) {
+		allocate(Math.max(16, capacity));
+	}
+
+	/**
+	 * Market segments the agent derives from a user's attributes: MALE or FEMALE, YOUNG (up to 44) or OLD, and
+	 * HIGH_INCOME (high and very high) or LOW_INCOME.
+	 */
+	static MarketSegment genderSegment(Gender gender) {
+		return gender == Gender.male ? MarketSegment.MALE : MarketSegment.FEMALE;
+	}
+
+	static MarketSegment ageSegment(Age age) {
+		return (age == Age.Age_18_24 || age == Age.Age_25_34 || age == Age.Age_35_44) ?
+				MarketSegment.YOUNG : MarketSegment.OLD;
+	}
+
+	static MarketSegment incomeSegment(Income income) {
+		return (income == Income.high || income == Income.very_high) ?
+				MarketSegment.HIGH_INCOME : MarketSegment.LOW_INCOME;
+	}
+
+	/**
+	 * Appends a record and returns its row. The market segments must be one of their pair each (MALE or FEMALE,
+	 * LOW_INCOME or HIGH_INCOME, YOUNG or OLD); anything else is an IllegalArgumentException.
+	 */
+	int add(int pGameId, int pBidDay, int pCampId, AdType pAdType, Device pDevice, String pPublisher, Gender pGender,
+			MarketSegment pMktGender, Income pIncome, MarketSegment pMktIncome, Age pAge, MarketSegment pMktAge,
+			int pBidCount, int pWinCount, double pTotalCost, double pCostImpr, int pLostCount) {
+		int mask = segmentBit(pMktGender, MALE | FEMALE) | segmentBit(pMktIncome, LOW_INCOME | HIGH_INCOME)
+				| segmentBit(pMktAge, YOUNG | OLD);
+		if (rows == gameId.length) {
+			grow(rows * 2);
+		}
+		gameId[rows] = pGameId;
+		bidDay[rows] = pBidDay;
+		campId[rows] = pCampId;
+		adType[rows] = (byte) pAdType.ordinal();
+		device[rows] = (byte) pDevice.ordinal();
+		publisher[rows] = publisherId(pPublisher);
+		gender[rows] = (byte) pGender.ordinal();
+		income[rows] = (byte) pIncome.ordinal();
+		age[rows] = (byte) pAge.ordinal();
+		segments[rows] = (byte) mask;
+		bidCount[rows] = pBidCount;
+		winCount[rows] = pWinCount;
+		totalCost[rows] = pTotalCost;
+		costImpr[rows] = pCostImpr;
+		lostCount[rows] = pLostCount;
+		return rows++;
+	}
+
+	/**
+	 * Copies one row of other.
+	 */
+	int add(ImpressionRecords other, int row) {
+		if (rows == gameId.length) {
+			grow(rows * 2);
+		}
+		gameId[rows] = other.gameId[row];
+		bidDay[rows] = other.bidDay[row];
+		campId[rows] = other.campId[row];
+		adType[rows] = other.adType[row];
+		device[rows] = other.device[row];
+		publisher[rows] = other == this ? publisher[row] : publisherId(other.publisher(row));
+		gender[rows] = other.gender[row];
+		income[rows] = other.income[row];
+		age[rows] = other.age[row];
+		segments[rows] = other.segments[row];
+		bidCount[rows] = other.bidCount[row];
+		winCount[rows] = other.winCount[row];
+		totalCost[rows] = other.totalCost[row];
+		costImpr[rows] = other.costImpr[row];
+		lostCount[rows] = other.lostCount[row];
+		return rows++;
+	}
+
+	/**
+	 * Copies one row of a history file.
+	 */
+	int add(ImpressionHistoryStore store, int row) {
+		return add(store.gameId(row), store.bidDay(row), store.campId(row), store.adType(row), store.device(row),
+				store.publisher(row), store.gender(row), store.mktGender(row), store.income(row),
+				store.mktIncome(row), store.age(row), store.mktAge(row), store.bidCount(row), store.winCount(row),
+				store.totalCost(row), store.costImpr(row), store.lostCount(row));
+	}
+
+	int size() {
+		return rows;
+	}
+
+	int gameId(int row) { return gameId[row]; }
+	int bidDay(int row) { return bidDay[row]; }
+	int campId(int row) { return campId[row]; }
+	AdType adType(int row) { return AD_TYPES[adType[row]]; }
+	Device device(int row) { return DEVICES[device[row]]; }
+	String publisher(int row) { return publisherNames.get(publisher[row]); }
+	Gender gender(int row) { return GENDERS[gender[row]]; }
+	MarketSegment mktGender(int row) { return (segments[row] & MALE) != 0 ? MarketSegment.MALE : MarketSegment.FEMALE; }
+	Income income(int row) { return INCOMES[income[row]]; }
+	MarketSegment mktIncome(int row) { return (segments[row] & HIGH_INCOME) != 0 ? MarketSegment.HIGH_INCOME : MarketSegment.LOW_INCOME; }
+	Age age(int row) { return AGES[age[row]]; }
+	MarketSegment mktAge(int row) { return (segments[row] & YOUNG) != 0 ? MarketSegment.YOUNG : MarketSegment.OLD; }
+	int segmentMask(int row) { return segments[row]; }
+	int bidCount(int row) { return bidCount[row]; }
+	int winCount(int row) { return winCount[row]; }
+	double totalCost(int row) { return totalCost[row]; }
+	double costImpr(int row) { return costImpr[row]; }
+	int lostCount(int row) { return lostCount[row]; }
+
+	/**
+	 * Index of the row's publisher in publishers().
+	 */
+	int publisherIndex(int row) {
+		return publisher[row];
+	}
+
+	/**
+	 * The publisher dictionary, in order of first use.
+	 */
+	List<String> publishers() {
+		return publisherNames;
+	}
+
+	/**
+	 * A cursor before row from; reuse it with seek() to scan again without allocating.
+	 */
+	Cursor cursor(int from) {
+		Cursor cursor = new Cursor();
+		cursor.seek(from);
+		return cursor;
+	}
+
+	/**
+	 * Forward iteration over the rows, reading the columns of the current one:
+	 * {@code while (cursor.next()) { sum += cursor.costImpr(); }}
+	 * Rows added during the scan are visited as well.
+	 */
+	final class Cursor {
+		private int row;
+
+		void seek(int from) {
+			row = from - 1;
+		}
+
+		boolean next() {
+			return ++row < rows;
+		}
+
+		int row() { return row; }
+		int gameId() { return gameId[row]; }
+		int bidDay() { return bidDay[row]; }
+		int campId() { return campId[row]; }
+		AdType adType() { return AD_TYPES[adType[row]]; }
+		Device device() { return DEVICES[device[row]]; }
+		String publisher() { return publisherNames.get(publisher[row]); }
+		MarketSegment mktGender() { return ImpressionRecords.this.mktGender(row); }
+		MarketSegment mktIncome() { return ImpressionRecords.this.mktIncome(row); }
+		MarketSegment mktAge() { return ImpressionRecords.this.mktAge(row); }
+		int bidCount() { return bidCount[row]; }
+		int winCount() { return winCount[row]; }
+		double totalCost() { return totalCost[row]; }
+		double costImpr() { return costImpr[row]; }
+		int lostCount() { return lostCount[row]; }
+	}
+
+	private short publisherId(String name) {
+		Short id = publisherIds.get(name);
+		if (id == null) {
+			if (publisherNames.size() > Short.MAX_VALUE) {
+				throw new IllegalStateException("More than " + Short.MAX_VALUE + " publishers");
+			}
+			id = (short) publisherNames.size();
+			name = name.intern();
+			publisherIds.put(name, id);
+			publisherNames.add(name);
+		}
+		return id;
+	}
+
+	private static int segmentBit(MarketSegment segment, int pair) {
+		int bit = 1 << segment.ordinal();
+		if ((bit & pair) == 0) {
+			throw new IllegalArgumentException("Unexpected market segment " + segment);
+		}
+		return bit;
+	}
+
+	private void allocate(int capacity) {
+		gameId = new int[capacity];
+		bidDay = new int[capacity];
+		campId = new int[capacity];
+		adType = new byte[capacity];
+		device = new byte[capacity];
+		publisher = new short[capacity];
+		gender = new byte[capacity];
+		income = new byte[capacity];
+		age = new byte[capacity];
+		segments = new byte[capacity];
+		bidCount = new int[capacity];
+		winCount = new int[capacity];
+		totalCost = new double[capacity];
+		costImpr = new double[capacity];
+		lostCount = new int[capacity];
+	}
+
+	private void grow(int capacity) {
+		gameId = Arrays.copyOf(gameId, capacity);
+		bidDay = Arrays.copyOf(bidDay, capacity);
+		campId = Arrays.copyOf(campId, capacity);
+		adType = Arrays.copyOf(adType, capacity);
+		device = Arrays.copyOf(device, capacity);
+		publisher = Arrays.copyOf(publisher, capacity);
+		gender = Arrays.copyOf(gender, capacity);
+		income = Arrays.copyOf(income, capacity);
+		age = Arrays.copyOf(age, capacity);
+		segments = Arrays.copyOf(segments, capacity);
+		bidCount = Arrays.copyOf(bidCount, capacity);
+		winCount = Arrays.copyOf(winCount, capacity);
+		totalCost = Arrays.copyOf(totalCost, capacity);
+		costImpr = Arrays.copyOf(costImpr, capacity);
+		lostCount = Arrays.copyOf(lostCount, capacity);
+	}
+}
@@ -0,0 +1,259 @@
+package soton.intagts;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import tau.tac.adx.ads.properties.AdType;
+import tau.tac.adx.devices.Device;
+import tau.tac.adx.report.adn.MarketSegment;
+
+/**
+ * Keyed aggregate index over the impression bid history.
+ *
+ * Every combination of (gender, age, income, ad type, device, publisher) - where each dimension may also be
+ * "any" - owns a cell holding running count, mean, variance (Welford), min and max of the cost per impression.
+ * A second set of cells only accumulates records where every bid was won (lostCount == 0).
+ *
+ * The cells are one flat array: a block of CELLS_PER_PUBLISHER cells per publisher slot (slot 0 is "any
+ * publisher"), ordered by gender, age, income, ad type and device, each with an all-records and a won-everything
+ * cell next to each other. Adding a record touches 2^5 cells (each of the other five dimensions either its own
+ * value or "any") in two publisher slots, its own and slot 0, so 64 cells, and 64 more when it won everything.
+ * Updates are O(1) and lookups are a single array access regardless of the history size.
+ *
+ * No bidding decision reads these statistics: AgentNAMM only logs them at FINE (the #####BIDIMPRHISTORY##### and
+ * "old" impression bid lines). The O(1) update is still paid on every record, for that log output only.
+ *
+ * With a half-life the mean and variance are weighted by the age of the record's game, so the recent games count
+ * most. Games are numbered in the order they were played (see HistoryRetention.GameSequence), never by simulation
+ * id. The weights are forward decayed: a record of game g weighs 2^((g - anchor) / halfLife), growing with the
+ * game rather than shrinking with time, so the records already in the index never need to be reweighted when a
+ * newer game adds its own. Only the ratio of two weights affects the statistics; the anchor (the oldest game kept
+ * when the index is built) keeps the weights in range. Count, min and max stay unweighted.
+ */
+class ImpressionStatsIndex {
+
+	private static final int GENDERS = 3;     // MALE, FEMALE, any
+	private static final int AGES = 3;        // YOUNG, OLD, any
+	private static final int INCOMES = 3;     // LOW_INCOME, HIGH_INCOME, any
+	private static final int AD_TYPES = AdType.values().length + 1;
+	private static final int DEVICES = Device.values().length + 1;
+	private static final int WON = 2;         // all records, records with lostCount == 0
+
+	private static final int ANY_GENDER = GENDERS - 1;
+	private static final int ANY_AGE = AGES - 1;
+	private static final int ANY_INCOME = INCOMES - 1;
+	private static final int ANY_AD_TYPE = AD_TYPES - 1;
+	private static final int ANY_DEVICE = DEVICES - 1;
+	private static final int ANY_PUBLISHER = 0;
+
+	/* Number of cells owned by a single publisher slot */
+	private static final int CELLS_PER_PUBLISHER = GENDERS * AGES * INCOMES * AD_TYPES * DEVICES * WON;
+
+	/* Weights are kept within e^-256 and e^256, far from overflowing the sums */
+	private static final double MAX_EXPONENT = 256;
+
+	/* Publisher name to slot, slot 0 is reserved for "any publisher" */
+	private final Map<String, Integer> publisherSlots = new HashMap<String, Integer>();
+
+	/* Natural log of the growth per game, 0 without decay */
+	private final double decayRate;
+	private final int anchorGame;
+
+	private long[] count;
+	private double[] weight;
+	private double[] mean;
+	private double[] m2;
+	private double[] min;
+	private double[] max;
+
+	public ImpressionStatsIndex() {
+		this(0, 0);
+	}
+
+	/**
+	 * @param halfLife games after which a record weighs half as much, 0 to weight every record the same
+	 * @param anchorGame number of the game whose records weigh 1, normally the oldest of the history
+	 */
+	public ImpressionStatsIndex(double halfLife, int anchorGame) {
+		decayRate = halfLife > 0 ? Math.log(2) / halfLife : 0;
+		this.anchorGame = anchorGame;
+		allocate(8);
+	}
+
+	/**
+	 * Independent copy of other, so a shared index can be extended without touching the original.
+	 */
+	public ImpressionStatsIndex(ImpressionStatsIndex other) {
+		publisherSlots.putAll(other.publisherSlots);
+		decayRate = other.decayRate;
+		anchorGame = other.anchorGame;
+		count = other.count.clone();
+		weight = other.weight.clone();
+		mean = other.mean.clone();
+		m2 = other.m2.clone();
+		min = other.min.clone();
+		max = other.max.clone();
+	}
+
+	/**
+	 * Removes every aggregate, keeping the publisher dictionary.
+	 */
+	public void clear() {
+		Arrays.fill(count, 0);
+		Arrays.fill(weight, 0);
+		Arrays.fill(mean, 0);
+		Arrays.fill(m2, 0);
+		Arrays.fill(min, Double.POSITIVE_INFINITY);
+		Arrays.fill(max, Double.NEGATIVE_INFINITY);
+	}
+
+	/**
+	 * Accumulates a single record of the game numbered game into every cell that matches it.
+	 */
+	public void add(MarketSegment gender, MarketSegment age, MarketSegment income, AdType adType, Device device,
+					String publisher, double costImpr, boolean wonAll, int game) {
+		int g = genderIndex(gender);
+		int a = ageIndex(age);
+		int i = incomeIndex(income);
+		int t = adType.ordinal();
+		int d = device.ordinal();
+		double w = weight(game);
+		accumulate(ANY_PUBLISHER, g, a, i, t, d, costImpr, wonAll, w);
+		accumulate(publisherSlot(publisher), g, a, i, t, d, costImpr, wonAll, w);
+	}
+
+	/**
+	 * Weight of the records of the game numbered game, 1 without decay.
+	 */
+	double weight(int game) {
+		if (decayRate == 0) {
+			return 1;
+		}
+		double exponent = decayRate * ((long) game - anchorGame);
+		return Math.exp(Math.max(-MAX_EXPONENT, Math.min(MAX_EXPONENT, exponent)));
+	}
+
+	/**
+	 * Finds the cell for the given criteria. Any argument may be null to mean "any value".
+	 *
+	 * @return the cell index, to be used with the getters below
+	 */
+	public int lookup(MarketSegment gender, MarketSegment age, MarketSegment income, AdType adType, Device device,
+					  String publisher, boolean wonAll) {
+		int p = ANY_PUBLISHER;
+		if (publisher != null) {
+			Integer slot = publisherSlots.get(publisher);
+			if (slot == null) {
+				return -1;
+			}
+			p = slot;
+		}
+		return cell(p,
+				gender == null ? ANY_GENDER : genderIndex(gender),
+				age == null ? ANY_AGE : ageIndex(age),
+				income == null ? ANY_INCOME : incomeIndex(income),
+				adType == null ? ANY_AD_TYPE : adType.ordinal(),
+				device == null ? ANY_DEVICE : device.ordinal(),
+				wonAll ? 1 : 0);
+	}
+
+	public long getN(int cell) {
+		return cell < 0 ? 0 : count[cell];
+	}
+
+	public double getMean(int cell) {
+		return getN(cell) == 0 ? Double.NaN : mean[cell];
+	}
+
+	/* Bias-corrected variance, the weighted variance times n / (n - 1); without decay the same definition as
+	 * DescriptiveStatistics.getVariance() */
+	public double getVariance(int cell) {
+		long n = getN(cell);
+		if (n == 0) {
+			return Double.NaN;
+		}
+		return n == 1 ? 0 : m2[cell] / (weight[cell] - weight[cell] / n);
+	}
+
+	public double getStandardDeviation(int cell) {
+		return Math.sqrt(getVariance(cell));
+	}
+
+	public double getMin(int cell) {
+		return getN(cell) == 0 ? Double.NaN : min[cell];
+	}
+
+	public double getMax(int cell) {
+		return getN(cell) == 0 ? Double.NaN : max[cell];
+	}
+
+	private void accumulate(int p, int g, int a, int i, int t, int d, double costImpr, boolean wonAll, double w) {
+		for (int mask = 0; mask < 32; mask++) {
+			int cell = cell(p,
+					(mask & 1) != 0 ? ANY_GENDER : g,
+					(mask & 2) != 0 ? ANY_AGE : a,
+					(mask & 4) != 0 ? ANY_INCOME : i,
+					(mask & 8) != 0 ? ANY_AD_TYPE : t,
+					(mask & 16) != 0 ? ANY_DEVICE : d,
+					0);
+			accumulate(cell, costImpr, w);
+			if (wonAll) {
+				accumulate(cell + 1, costImpr, w);
+			}
+		}
+	}
+
+	/* Weighted Welford (West, 1979); with w = 1 exactly the unweighted update */
+	private void accumulate(int cell, double value, double w) {
+		count[cell]++;
+		double total = weight[cell] += w;
+		double delta = value - mean[cell];
+		mean[cell] += delta * w / total;
+		m2[cell] += w * delta * (value - mean[cell]);
+		if (value < min[cell]) { min[cell] = value; }
+		if (value > max[cell]) { max[cell] = value; }
+	}
+
+	private int publisherSlot(String publisher) {
+		Integer slot = publisherSlots.get(publisher);
+		if (slot == null) {
+			slot = publisherSlots.size() + 1;
+			publisherSlots.put(publisher, slot);
+			if ((slot + 1) * CELLS_PER_PUBLISHER > count.length) {
+				allocate(2 * (slot + 1));
+			}
+		}
+		return slot;
+	}
+
+	private void allocate(int publishers) {
+		int oldSize = count == null ? 0 : count.length;
+		int size = publishers * CELLS_PER_PUBLISHER;
+		count = count == null ? new long[size] : Arrays.copyOf(count, size);
+		weight = weight == null ? new double[size] : Arrays.copyOf(weight, size);
+		mean = mean == null ? new double[size] : Arrays.copyOf(mean, size);
+		m2 = m2 == null ? new double[size] : Arrays.copyOf(m2, size);
+		min = min == null ? new double[size] : Arrays.copyOf(min, size);
+		max = max == null ? new double[size] : Arrays.copyOf(max, size);
+		Arrays.fill(min, oldSize, size, Double.POSITIVE_INFINITY);
+		Arrays.fill(max, oldSize, size, Double.NEGATIVE_INFINITY);
+	}
+
+	private static int cell(int publisher, int gender, int age, int income, int adType, int device, int won) {
+		return (((((publisher * GENDERS + gender) * AGES + age) * INCOMES + income) * AD_TYPES + adType)
+				* DEVICES + device) * WON + won;
+	}
+
+	private static int genderIndex(MarketSegment gender) {
+		return gender == MarketSegment.MALE ? 0 : 1;
+	}
+
+	private static int ageIndex(MarketSegment age) {
+		return age == MarketSegment.YOUNG ? 0 : 1;
+	}
+
+	private static int incomeIndex(MarketSegment income) {
+		return income == MarketSegment.LOW_INCOME ? 0 : 1;
+	}
+}
@@ -0,0 +1,143 @@
+package soton.intagts;
+
+/**
+ * Chooses the impression target that maximises a campaign's estimated profit
+ *
+ *   profit(T) = budget * ERR(T) + (quality(T) - quality) * revenueRemaining - cost(T)
+ *
+ * over targets between 0.6 and 2 times the campaign reach, where ERR is the effective reach ratio of T impressions,
+ * quality(T) the quality score after the campaign and cost(T) the estimated cost of the days left.
+ *
+ * Everything that does not depend on the target (the cost already paid, the UCS cost and per impression cost of the
+ * remaining days, the revenue still to earn in the game) is evaluated once by the agent and passed in, so a profit
+ * costs a few arithmetic operations. The cost is linear in the daily target, T / (dayEnd - dayStart) rounded down,
+ * and ERR is an arctangent: its slope 2 / (1 + (a x - b)^2) falls off on both sides of x = b / a. The profit
+ * therefore has at most one interior maximum, where the slope of the revenue equals the cost per impression, and it
+ * is found in closed form. The best target is that maximum or an end of the range, refined to whole daily targets,
+ * so the target has a resolution of one impression for the price of a few profit evaluations.
+ *
+ * The agent only uses it while its estimators have this form (AgentNAMM.closedFormApplies); the test compares it
+ * with every target of the range.
+ */
+class ImpressionTargetOptimizer {
+
+	/* Shape of the effective reach ratio curve */
+	static final double ERR_A = 4.08577;
+	static final double ERR_B = 3.08577;
+
+	/* Weight of a campaign's ERR in the quality score update */
+	static final double QUALITY_RATE = 0.6;
+
+	/* Range of targets, as multiples of the campaign reach */
+	static final double MIN_MULTIPLIER = 0.6;
+	static final double MAX_MULTIPLIER = 2;
+
+	private final long reachImps;
+	private final double budget;
+	private final double quality;
+	private final double revenueRemaining;
+	private final double fixedCost;
+	private final double dailyTargetCost;
+	private final long campaignLength;
+
+	/**
+	 * @param quality current quality score
+	 * @param revenueRemaining revenue expected for the rest of the game per unit of quality
+	 * @param fixedCost cost independent of the target: impressions already paid plus UCS for the days left
+	 * @param dailyTargetCost cost of one impression of daily target, summed over the days left
+	 * @param campaignLength dayEnd - dayStart, the divisor of the daily target
+	 */
+	ImpressionTargetOptimizer(long reachImps, double budget, double quality, double revenueRemaining, double fixedCost,
+			double dailyTargetCost, long campaignLength) {
+		this.reachImps = reachImps;
+		this.budget = budget;
+		this.quality = quality;
+		this.revenueRemaining = revenueRemaining;
+		this.fixedCost = fixedCost;
+		this.dailyTargetCost = dailyTargetCost;
+		this.campaignLength = campaignLength;
+	}
+
+	/**
+	 * Effective reach ratio of target impressions for a campaign of reachImps.
+	 */
+	static double effectiveReachRatio(long target, long reachImps) {
+		double fracComplete = (double) target / (double) reachImps;
+		return (2 / ERR_A) * ((Math.atan((ERR_A * fracComplete) - ERR_B)) - Math.atan(-ERR_B));
+	}
+
+	long lowest() {
+		return (long) (reachImps * MIN_MULTIPLIER);
+	}
+
+	long highest() {
+		return (long) (reachImps * MAX_MULTIPLIER);
+	}
+
+	/**
+	 * Quality score after the campaign reaches target.
+	 */
+	double quality(long target) {
+		return (1 - QUALITY_RATE) * quality + QUALITY_RATE * effectiveReachRatio(target, reachImps);
+	}
+
+	double cost(long target) {
+		return fixedCost + dailyTargetCost * (target / campaignLength);
+	}
+
+	double profit(long target) {
+		double err = effectiveReachRatio(target, reachImps);
+		double estQuality = (1 - QUALITY_RATE) * quality + QUALITY_RATE * err;
+		return budget * err + (estQuality - quality) * revenueRemaining - cost(target);
+	}
+
+	/**
+	 * The target in [lowest(), highest()] with the highest profit; the lowest such target on a tie.
+	 */
+	long optimize() {
+		long lo = lowest();
+		long hi = highest();
+		long best = better(lo, blockEnd(lo, lo, hi));
+		best = better(best, hi);
+		// hi may start a daily target that costs more than its few impressions earn, so the end of the one before
+		best = better(best, blockEnd(hi - campaignLength, lo, hi));
+
+		// d profit / d ERR, and the cost of one more impression of target ignoring the rounding of the daily target
+		double weight = budget + QUALITY_RATE * revenueRemaining;
+		double slope = dailyTargetCost / campaignLength;
+		if (weight > 0 && slope > 0) {
+			// d profit / dT = weight * 2 / (reach * (1 + (a T / reach - b)^2)) - slope is zero where
+			// (a T / reach - b)^2 = 2 weight / (reach * slope) - 1; the larger root is the maximum
+			double squared = 2 * weight / (reachImps * slope) - 1;
+			if (squared > 0) {
+				double peak = reachImps * (ERR_B + Math.sqrt(squared)) / ERR_A;
+				if (peak > lo && peak < hi) {
+					// The cost only changes between daily targets and ERR grows within one, so the best target near
+					// the peak is the last of its daily target or of a neighbouring one
+					long near = (long) peak;
+					best = better(best, blockEnd(near - campaignLength, lo, hi));
+					best = better(best, blockEnd(near, lo, hi));
+					best = better(best, blockEnd(near + campaignLength, lo, hi));
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * The last target with the same daily target as target, within [lo, hi].
+	 */
+	private long blockEnd(long target, long lo, long hi) {
+		long end = (Math.max(0, target) / campaignLength) * campaignLength + campaignLength - 1;
+		return Math.max(lo, Math.min(hi, end));
+	}
+
+	private long better(long best, long candidate) {
+		double candidateProfit = profit(candidate);
+		double bestProfit = profit(best);
+		if (candidateProfit > bestProfit || (candidateProfit == bestProfit && candidate < best)) {
+			return candidate;
+		}
+		return best;
+	}
+}
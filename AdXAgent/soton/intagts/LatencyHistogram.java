@@ -0,0 +1,97 @@
+package soton.intagts;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of durations in nanoseconds with a fixed relative precision, in the manner of HdrHistogram: every
+ * power of two is split into 16 buckets, so a percentile is off by at most 1/16 of its value while recording is a
+ * shift and an increment. Durations from 0 to about an hour (2^42 ns) are kept; longer ones count as the longest.
+ *
+ * One thread records. Other threads may read, seeing counts at most a few records behind.
+ */
+class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final long MAX_VALUE = (1L << 42) - 1;
+	private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+	private final long[] counts = new long[BUCKETS];
+	private long count;
+	private long sum;
+	private long max;
+
+	void record(long nanos) {
+		long value = nanos < 0 ? 0 : Math.min(nanos, MAX_VALUE);
+		counts[index(value)]++;
+		count++;
+		sum += value;
+		if (value > max) {
+			max = value;
+		}
+	}
+
+	/**
+	 * Adds every duration recorded in other.
+	 */
+	void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		sum += other.sum;
+		max = Math.max(max, other.max);
+	}
+
+	void reset() {
+		Arrays.fill(counts, 0);
+		count = 0;
+		sum = 0;
+		max = 0;
+	}
+
+	long count() {
+		return count;
+	}
+
+	long max() {
+		return max;
+	}
+
+	double mean() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * Smallest recorded duration that at least percent % of the durations do not exceed, as the top of its bucket
+	 * (never above max); 0 when nothing was recorded.
+	 */
+	long percentile(double percent) {
+		long rank = (long) Math.ceil(count * percent / 100);
+		if (rank < 1) {
+			rank = 1;
+		}
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(highestInBucket(i), max);
+			}
+		}
+		return max;
+	}
+
+	/* Values below 2 * SUB have a bucket each; above, the top SUB_BITS + 1 bits select the bucket */
+	private static int index(long value) {
+		int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+		return shift * SUB + (int) (value >>> shift);
+	}
+
+	private static long highestInBucket(int index) {
+		if (index < 2 * SUB) {
+			return index;
+		}
+		int shift = index / SUB - 1;
+		return ((long) (index - shift * SUB + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,371 @@
+package soton.intagts;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import edu.umich.eecs.tac.Parser;
+import edu.umich.eecs.tac.props.BankStatus;
+import se.sics.isl.transport.Transportable;
+import se.sics.tasim.logtool.LogReader;
+import se.sics.tasim.logtool.ParticipantInfo;
+import tau.tac.adx.demand.CampaignStats;
+import tau.tac.adx.report.adn.AdNetworkKey;
+import tau.tac.adx.report.adn.AdNetworkReport;
+import tau.tac.adx.report.adn.AdNetworkReportEntry;
+import tau.tac.adx.report.adn.MarketSegment;
+import tau.tac.adx.report.demand.AdNetworkDailyNotification;
+import tau.tac.adx.report.demand.CampaignOpportunityMessage;
+import tau.tac.adx.report.demand.CampaignReport;
+import tau.tac.adx.report.demand.CampaignReportEntry;
+import tau.tac.adx.report.demand.InitialCampaignMessage;
+
+/**
+ * Turns recorded games (.slg.gz server logs) into tab separated tables for the R scripts, reading each log once.
+ *
+ * This replaces running se.sics.tasim.logtool.Main with GeneralHandler per game and parsing its text output again
+ * in LogParserDF.R: the log is read with the same tasim classes, every message is written to its table as it is
+ * read, and the logs are spread over a thread pool. Each game gets a folder with one file per table, every file
+ * with a header line and the game and day in the first columns so the games of an archive can be bound together:
+ * <ul>
+ * <li>bank.tsv - day, agent, balance (as GeneralHandler's -bank);</li>
+ * <li>ucs.tsv - day, agent, service level and price of the UCS (-ucs);</li>
+ * <li>ratings.tsv - day, agent, quality rating (-rating);</li>
+ * <li>campaigns.tsv - day, agent and the campaign report of one campaign: targeted and other impressions, cost
+ * (-campaign);</li>
+ * <li>adnet.tsv - day, agent and one AdNetworkReport entry: campaign, publisher, user attributes, device, ad type,
+ * bids, wins and cost (-adnet);</li>
+ * <li>opportunities.tsv - every campaign of the game: day offered, start, end, reach, target segment, video and
+ * mobile coefficients, winner and budget.</li>
+ * </ul>
+ * The day is the day the server sent the message on, as in GeneralHandler's output. A folder is complete once
+ * all its files exist: they are written under temporary names and renamed at the end of the game.
+ *
+ * Usage (classes compiled with the jars in lib on the classpath):
+ *   java soton.intagts.LogTables [--out tables] [--threads n] game1.slg.gz [dir-with-logs ...]
+ */
+class LogTables {
+
+	static final String[] TABLES = { "bank", "ucs", "ratings", "campaigns", "adnet", "opportunities" };
+
+	private final File outDir;
+
+	LogTables(File outDir) {
+		this.outDir = outDir;
+	}
+
+	public static void main(String[] args) throws Exception {
+		File outDir = new File("tables");
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<File> logs = new ArrayList<File>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--out")) { outDir = new File(args[++i]); }
+			else if (args[i].equals("--threads")) { threads = Integer.parseInt(args[++i]); }
+			else if (args[i].startsWith("--")) { throw new IllegalArgumentException("Unknown option " + args[i]); }
+			else { GameReplay.addLogs(new File(args[i]), logs); }
+		}
+		if (logs.isEmpty()) {
+			throw new IllegalArgumentException("No .slg.gz logs given");
+		}
+
+		final LogTables tables = new LogTables(outDir);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			long start = System.nanoTime();
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for (final File log : logs) {
+				results.add(pool.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						long gameStart = System.nanoTime();
+						int[] rows = tables.write(log);
+						return String.format("%-16s %7.1f %6d %6d %6d %8d %8d %6d", log.getName(),
+								(System.nanoTime() - gameStart) / 1e6, rows[0], rows[1], rows[2], rows[3], rows[4],
+								rows[5]);
+					}
+				}));
+			}
+			System.out.printf("%-16s %7s %6s %6s %6s %8s %8s %6s%n", "game", "ms", "bank", "ucs", "rating",
+					"campaign", "adnet", "opps");
+			int failed = 0;
+			for (int i = 0; i < results.size(); i++) {
+				try {
+					System.out.println(results.get(i).get());
+				} catch (Exception ex) {
+					System.out.println(logs.get(i).getName() + ": " + ex.getCause());
+					failed++;
+				}
+			}
+			System.out.printf("%d logs in %.1f s on %d threads, %d failed, tables in %s%n", logs.size(),
+					(System.nanoTime() - start) / 1e9, threads, failed, outDir);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Folder the tables of a log are written to: the log's name without .slg.gz.
+	 */
+	File gameDir(File log) {
+		String name = log.getName();
+		if (name.endsWith(".slg.gz")) {
+			name = name.substring(0, name.length() - ".slg.gz".length());
+		}
+		return new File(outDir, name);
+	}
+
+	/**
+	 * Writes the tables of one log, replacing those of an earlier run.
+	 *
+	 * @return rows written per table, in the order of TABLES
+	 */
+	int[] write(File log) throws IOException, ParseException {
+		File dir = gameDir(log);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		Writer[] writers = new Writer[TABLES.length];
+		InputStream in = new GZIPInputStream(new BufferedInputStream(new FileInputStream(log)));
+		try {
+			for (int t = 0; t < TABLES.length; t++) {
+				writers[t] = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+						new File(dir, TABLES[t] + ".tsv.tmp")), StandardCharsets.UTF_8), 1 << 16);
+			}
+			LogReader reader = new LogReader(in);
+			TableParser parser = new TableParser(reader, writers);
+			parser.start();
+			parser.finish();
+			for (Writer writer : writers) {
+				writer.close();
+			}
+			for (String table : TABLES) {
+				File done = new File(dir, table + ".tsv");
+				if (done.exists() && !done.delete() || !new File(dir, table + ".tsv.tmp").renameTo(done)) {
+					throw new IOException("Cannot replace " + done);
+				}
+			}
+			return parser.rows;
+		} finally {
+			in.close();
+			for (Writer writer : writers) {
+				if (writer != null) {
+					writer.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes every message of interest to its table while the log is read.
+	 */
+	private static class TableParser extends Parser {
+		private static final int BANK = 0;
+		private static final int UCS = 1;
+		private static final int RATINGS = 2;
+		private static final int CAMPAIGNS = 3;
+		private static final int ADNET = 4;
+		private static final int OPPORTUNITIES = 5;
+
+		private final Writer[] writers;
+		private final int[] rows = new int[TABLES.length];
+		private final String game;
+		/* Participant names by index, and by address (the server names winners by address) */
+		private final String[] names;
+		private final Map<String, String> namesByAddress = new HashMap<String, String>();
+		/* Campaigns by id in the order they were offered; written at the end, when the winners are known */
+		private final Map<Integer, Opportunity> opportunities = new LinkedHashMap<Integer, Opportunity>();
+		private final StringBuilder line = new StringBuilder();
+		private int day;
+
+		TableParser(LogReader reader, Writer[] writers) throws IOException {
+			super(reader);
+			this.writers = writers;
+			this.game = String.valueOf(reader.getSimulationID());
+			int count = 0;
+			for (ParticipantInfo info : reader.getParticipants()) {
+				count = Math.max(count, info.getIndex() + 1);
+			}
+			names = new String[count];
+			for (ParticipantInfo info : reader.getParticipants()) {
+				names[info.getIndex()] = info.getName();
+				namesByAddress.put(info.getAddress(), info.getName());
+			}
+			header(BANK, "balance");
+			header(UCS, "level\tprice");
+			header(RATINGS, "quality");
+			header(CAMPAIGNS, "campaign\ttargetedImps\tuntargetedImps\tcost");
+			header(ADNET, "campaign\tpublisher\tgender\tage\tincome\tdevice\tadType\tbids\twins\tcost");
+			line.setLength(0);
+			line.append("game\tcampaign\tdayOffered\tdayStart\tdayEnd\treach\tsegment\tvideoCoef\tmobileCoef\twinner"
+					+ "\tbudget\n");
+			write(OPPORTUNITIES, false);
+		}
+
+		@Override
+		protected void nextDay(int date, long serverTime) {
+			day = date;
+		}
+
+		@Override
+		protected void message(int sender, int receiver, Transportable content) {
+			String agent = receiver >= 0 && receiver < names.length ? names[receiver] : String.valueOf(receiver);
+			try {
+				if (content instanceof BankStatus) {
+					row(agent).append(((BankStatus) content).getAccountBalance());
+					write(BANK, true);
+				} else if (content instanceof AdNetworkDailyNotification) {
+					notification(agent, (AdNetworkDailyNotification) content);
+				} else if (content instanceof CampaignReport) {
+					CampaignReport report = (CampaignReport) content;
+					for (int i = 0; i < report.size(); i++) {
+						CampaignReportEntry entry = report.getEntry(i);
+						CampaignStats stats = entry.getCampaignStats();
+						row(agent).append(entry.getKey().getCampaignId()).append('\t').append(stats.getTargetedImps())
+								.append('\t').append(stats.getOtherImps()).append('\t').append(stats.getCost());
+						write(CAMPAIGNS, true);
+					}
+				} else if (content instanceof AdNetworkReport) {
+					AdNetworkReport report = (AdNetworkReport) content;
+					for (int i = 0; i < report.size(); i++) {
+						AdNetworkReportEntry entry = report.getEntry(i);
+						AdNetworkKey key = entry.getKey();
+						row(agent).append(key.getCampaignId()).append('\t').append(key.getPublisher()).append('\t')
+								.append(key.getGender()).append('\t').append(key.getAge()).append('\t')
+								.append(key.getIncome()).append('\t').append(key.getDevice()).append('\t')
+								.append(key.getAdType()).append('\t').append(entry.getBidCount()).append('\t')
+								.append(entry.getWinCount()).append('\t').append(entry.getCost());
+						write(ADNET, true);
+					}
+				} else if (content instanceof CampaignOpportunityMessage) {
+					opportunity((CampaignOpportunityMessage) content);
+				} else if (content instanceof InitialCampaignMessage) {
+					InitialCampaignMessage initial = (InitialCampaignMessage) content;
+					Opportunity campaign = new Opportunity(day, initial.getDayStart(), initial.getDayEnd(),
+							initial.getReachImps(), initial.getTargetSegment(), initial.getVideoCoef(),
+							initial.getMobileCoef());
+					campaign.winner = agent;
+					campaign.budgetMillis = initial.getBudgetMillis();
+					opportunities.put(initial.getId(), campaign);
+				}
+			} catch (IOException ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+
+		@Override
+		protected void messageToRole(int sender, int role, Transportable content) {
+			if (content instanceof CampaignOpportunityMessage) {
+				opportunity((CampaignOpportunityMessage) content);
+			}
+		}
+
+		/**
+		 * Writes the campaigns, once the log has been read.
+		 */
+		void finish() throws IOException {
+			for (Map.Entry<Integer, Opportunity> entry : opportunities.entrySet()) {
+				Opportunity campaign = entry.getValue();
+				line.setLength(0);
+				line.append(game).append('\t').append(entry.getKey()).append('\t').append(campaign.dayOffered)
+						.append('\t').append(campaign.dayStart).append('\t').append(campaign.dayEnd).append('\t')
+						.append(campaign.reach).append('\t').append(campaign.segment).append('\t')
+						.append(campaign.videoCoef).append('\t').append(campaign.mobileCoef).append('\t')
+						.append(campaign.winner == null ? "" : campaign.winner).append('\t')
+						.append(campaign.winner == null ? "" : String.valueOf(campaign.budgetMillis / 1000.0));
+				write(OPPORTUNITIES, true);
+			}
+		}
+
+		private void notification(String agent, AdNetworkDailyNotification notification) throws IOException {
+			row(agent).append(notification.getServiceLevel()).append('\t').append(notification.getPrice());
+			write(UCS, true);
+			row(agent).append(notification.getQualityScore());
+			write(RATINGS, true);
+			// Every agent hears the winner, only the winner gets the budget
+			Opportunity campaign = opportunities.get(notification.getCampaignId());
+			if (campaign != null && notification.getCostMillis() != 0) {
+				String winner = namesByAddress.get(notification.getWinner());
+				campaign.winner = winner == null ? notification.getWinner() : winner;
+				campaign.budgetMillis = notification.getCostMillis();
+			}
+		}
+
+		private void opportunity(CampaignOpportunityMessage message) {
+			if (!opportunities.containsKey(message.getId())) {
+				opportunities.put(message.getId(), new Opportunity(day, message.getDayStart(), message.getDayEnd(),
+						message.getReachImps(), message.getTargetSegment(), message.getVideoCoef(),
+						message.getMobileCoef()));
+			}
+		}
+
+		private void header(int table, String columns) throws IOException {
+			line.setLength(0);
+			line.append("game\tday\tagent\t").append(columns).append('\n');
+			write(table, false);
+		}
+
+		private StringBuilder row(String agent) {
+			line.setLength(0);
+			return line.append(game).append('\t').append(day).append('\t').append(agent).append('\t');
+		}
+
+		private void write(int table, boolean isRow) throws IOException {
+			if (isRow) {
+				line.append('\n');
+				rows[table]++;
+			}
+			writers[table].append(line);
+		}
+	}
+
+	/**
+	 * A campaign offered in the game, with its winner once known.
+	 */
+	private static class Opportunity {
+		final int dayOffered;
+		final long dayStart;
+		final long dayEnd;
+		final long reach;
+		final String segment;
+		final double videoCoef;
+		final double mobileCoef;
+		String winner;
+		long budgetMillis;
+
+		Opportunity(int dayOffered, long dayStart, long dayEnd, long reach, Iterable<MarketSegment> segments,
+				double videoCoef, double mobileCoef) {
+			this.dayOffered = dayOffered;
+			this.dayStart = dayStart;
+			this.dayEnd = dayEnd;
+			this.reach = reach;
+			StringBuilder text = new StringBuilder();
+			for (MarketSegment segment : segments) {
+				if (text.length() > 0) {
+					text.append('|');
+				}
+				text.append(segment);
+			}
+			this.segment = text.toString();
+			this.videoCoef = videoCoef;
+			this.mobileCoef = mobileCoef;
+		}
+	}
+}
@@ -0,0 +1,1109 @@
+package soton.intagts;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Level;
+
+import edu.umich.eecs.tac.props.BankStatus;
+import se.sics.isl.transport.Transportable;
+import se.sics.tasim.aw.Message;
+import se.sics.tasim.props.SimulationStatus;
+import se.sics.tasim.props.StartInfo;
+import tau.tac.adx.ads.properties.AdType;
+import tau.tac.adx.agents.DummyAdNetwork;
+import tau.tac.adx.agents.SampleAdNetwork;
+import tau.tac.adx.demand.CampaignStats;
+import tau.tac.adx.devices.Device;
+import tau.tac.adx.props.AdxBidBundle;
+import tau.tac.adx.props.PublisherCatalogEntry;
+import tau.tac.adx.report.adn.AdNetworkKey;
+import tau.tac.adx.report.adn.AdNetworkReport;
+import tau.tac.adx.report.adn.AdNetworkReportEntry;
+import tau.tac.adx.report.adn.MarketSegment;
+import tau.tac.adx.report.demand.AdNetBidMessage;
+import tau.tac.adx.report.demand.AdNetworkDailyNotification;
+import tau.tac.adx.report.demand.CampaignOpportunityMessage;
+import tau.tac.adx.report.demand.CampaignReport;
+import tau.tac.adx.report.demand.InitialCampaignMessage;
+import tau.tac.adx.report.publisher.AdxPublisherReport;
+import tau.tac.adx.report.publisher.AdxPublisherReportEntry;
+import tau.tac.adx.users.properties.Age;
+import tau.tac.adx.users.properties.Gender;
+import tau.tac.adx.users.properties.Income;
+
+/**
+ * Plays complete 60 day AdX games in process, as fast as the agents decide, so AgentNAMM can be evaluated against
+ * the built-in competitors (SampleAdNetwork and DummyAdNetwork from the adx jar) without the server.
+ *
+ * The simulator takes the server's place. Every day it sends each agent the messages the server sends, in the
+ * server's order: reports on yesterday, the daily notification, the next campaign opportunity, the bank status
+ * and SimulationStatus. Then it takes what the agent sent back and runs the market:
+ * <ul>
+ * <li>the campaign auction, won by the lowest bid per quality, at the second lowest bid times the winner's
+ * quality;</li>
+ * <li>the UCS auction, where the k-th highest bid gets service level 0.9^k and pays the level times the next
+ * bid;</li>
+ * <li>the impressions of the day, each a second price auction with reserve between the entries the agents' bid
+ * bundles have for the user's query.</li>
+ * </ul>
+ * Campaigns pay budget times effective reach ratio when they end, and quality moves 0.6 of the way to that ratio,
+ * as in the game specification.
+ *
+ * It is a model of the server, not a copy. Users are drawn from the segment populations of the game with
+ * MarketSegment.usersInMarketSegments, with no continuation or visit model. The six publishers of a game are drawn
+ * from the server's 18; their daily impressions, video share and reserve baselines were measured from the
+ * publisher reports in ExecutionLogs. A fixed quarter of the impressions are mobile, because the logs do not record
+ * it. Campaign auctions with no valid bid assign the campaign to a random agent at the highest valid budget.
+ *
+ * NAMM keeps one agent over all games, as on a server, with its history in a temporary copy of the history
+ * directory. Competitors are created fresh for each game. Market and NAMM randomness are seeded from the seed and
+ * the game number; the built-in agents seed themselves, so two runs agree only in distribution.
+ *
+ * Usage (classes compiled with the jars in lib on the classpath):
+ *   java soton.intagts.MarketSimulator [--games 100] [--sample 4] [--dummy 3] [--seed 1] [--history-dir .]
+ *       [--verbose]
+ */
+class MarketSimulator {
+
+	static final int GAME_DAYS = SyntheticData.GAME_DAYS;
+
+	/* Receivers the agents address their bids to; the simulator routes by message type instead */
+	static final String DEMAND_ADDRESS = "demand";
+	static final String ADX_ADDRESS = "adx";
+
+	private static final String NONE = "NONE";
+	private static final int SECONDS_PER_DAY = 10;
+
+	/* Publishers of the server configuration: mean impressions per day, share of video impressions and reserve
+	 * price baseline (CPM), measured from the publisher reports in ExecutionLogs */
+	private static final String[] PUBLISHERS = { "amazon", "ask", "bestbuy", "cnet", "cnn", "ebay", "ehow", "fox",
+			"hfn", "msn", "nyt", "sears", "target", "tripadvisor", "wallmart", "weather", "webmd", "yahoo" };
+	private static final double[] IMPRESSIONS_PER_DAY = { 2826, 1488, 513, 3942, 982, 1981, 565, 1050, 2242, 4384,
+			738, 491, 709, 519, 4823, 1344, 686, 3712 };
+	private static final double[] VIDEO_SHARE = { 0.387, 0.352, 0.336, 0.343, 0.357, 0.332, 0.390, 0.428, 0.395,
+			0.433, 0.363, 0.308, 0.348, 0.354, 0.317, 0.290, 0.337, 0.306 };
+	private static final double[] RESERVE_BASELINE = { 0.162, 0.143, 0.105, 0.188, 0.202, 0.112, 0.074, 0.115, 0.128,
+			0.114, 0.152, 0.135, 0.089, 0.107, 0.151, 0.142, 0.100, 0.137 };
+	private static final int PUBLISHERS_PER_GAME = 6;
+	/* Relative day to day spread of a publisher's impressions */
+	private static final double IMPRESSION_NOISE = 0.05;
+	private static final double MOBILE_SHARE = 0.25;
+
+	private static final int[] CAMPAIGN_LENGTHS = { 3, 5, 10 };
+	private static final double[] REACH_FACTORS = { 0.2, 0.5, 0.8 };
+	private static final int INITIAL_CAMPAIGN_LENGTH = 5;
+	private static final double INITIAL_REACH_FACTOR = 0.5;
+	/* Campaigns are only offered if they end before the last day */
+	private static final int LAST_CAMPAIGN_DAY = GAME_DAYS - 2;
+
+	private static final double UCS_LEVEL_RATIO = 0.9;
+	private static final double QUALITY_LEARNING_RATE = 0.6;
+	private static final double ERR_A = 4.08577;
+	private static final double ERR_B = 3.08577;
+
+	/* Impression bids are CPM; the bank charges per impression */
+	private static final double CPM = 1000;
+
+	private final long seed;
+	private final int samples;
+	private final int dummies;
+	private final boolean verbose;
+	private final PrintStream out;
+
+	MarketSimulator(long seed, int samples, int dummies, boolean verbose, PrintStream out) {
+		this.seed = seed;
+		this.samples = samples;
+		this.dummies = dummies;
+		this.verbose = verbose;
+		this.out = out;
+	}
+
+	long seed() {
+		return seed;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int games = 100;
+		int samples = 4;
+		int dummies = 3;
+		long seed = 1;
+		File historyDir = new File(".");
+		boolean verbose = false;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--games")) { games = Integer.parseInt(args[++i]); }
+			else if (args[i].equals("--sample")) { samples = Integer.parseInt(args[++i]); }
+			else if (args[i].equals("--dummy")) { dummies = Integer.parseInt(args[++i]); }
+			else if (args[i].equals("--seed")) { seed = Long.parseLong(args[++i]); }
+			else if (args[i].equals("--history-dir")) { historyDir = new File(args[++i]); }
+			else if (args[i].equals("--verbose")) { verbose = true; }
+			else { throw new IllegalArgumentException("Unknown option " + args[i]); }
+		}
+		new MarketSimulator(seed, samples, dummies, verbose, System.out).run(games, historyDir);
+	}
+
+	/**
+	 * Plays games in a row with one NAMM agent whose history starts as a copy of historyDir, and prints one line per
+	 * game and a summary.
+	 */
+	void run(int games, File historyDir) throws Exception {
+		File workDir = GameReplay.copyHistory(historyDir);
+		PrintStream stdout = System.out;
+		PrintStream stderr = System.err;
+		if (!verbose) {
+			// The built-in agents print every message they get
+			AgentLog.setLevel(Level.OFF);
+			System.setOut(GameReplay.discardingStream());
+			System.setErr(GameReplay.discardingStream());
+		}
+		NammParticipant namm = null;
+		try {
+			namm = createNamm(workDir, seed);
+
+			out.printf("%6s %9s %11s %8s %5s %5s %11s %12s%n", "game", "ms", "balance", "quality", "won", "rank",
+					"best other", "mean others");
+			double balanceSum = 0;
+			int rankSum = 0;
+			int firsts = 0;
+			long runStart = System.nanoTime();
+			for (int g = 1; g <= games; g++) {
+				GameResult result = play(namm, g);
+				balanceSum += result.balance;
+				rankSum += result.rank;
+				if (result.rank == 1) {
+					firsts++;
+				}
+				out.printf("%6d %9.1f %11.3f %8.3f %5d %5d %11.3f %12.3f%n", g, result.nanos / 1e6, result.balance,
+						result.quality, result.campaignsWon, result.rank, result.bestOther, result.meanOthers);
+			}
+			double seconds = (System.nanoTime() - runStart) / 1e9;
+			out.printf("%d games in %.1f s (%.0f games/hour): mean balance %.3f, mean rank %.2f, first in %d%n", games,
+					seconds, games / seconds * 3600, balanceSum / games, (double) rankSum / games, firsts);
+		} finally {
+			if (namm != null) {
+				namm.close();
+			}
+			AgentLog.flush();
+			System.setOut(stdout);
+			System.setErr(stderr);
+			GameReplay.delete(workDir);
+		}
+	}
+
+	/**
+	 * Plays game number g of this simulator's seed with namm against fresh competitors. The market and NAMM are
+	 * seeded from the seed and g alone, so the same game can be played again with another agent configuration.
+	 */
+	GameResult play(NammParticipant namm, int g) throws Exception {
+		List<Participant> participants = new ArrayList<Participant>();
+		participants.add(namm);
+		for (int i = 1; i <= samples; i++) {
+			participants.add(new SampleCompetitor("sample" + i));
+		}
+		for (int i = 1; i <= dummies; i++) {
+			participants.add(new DummyCompetitor("dummy" + i));
+		}
+
+		long start = System.nanoTime();
+		Game game = new Game(g, new Random(seed * 1000003 + g), participants);
+		game.play();
+		long nanos = System.nanoTime() - start;
+
+		Bidder ours = game.bidders.get(0);
+		double best = Double.NEGATIVE_INFINITY;
+		double others = 0;
+		int rank = 1;
+		for (Bidder bidder : game.bidders.subList(1, game.bidders.size())) {
+			best = Math.max(best, bidder.balance);
+			others += bidder.balance;
+			if (bidder.balance > ours.balance) {
+				rank++;
+			}
+		}
+		return new GameResult(ours.balance, ours.quality, ours.campaignsWon, rank, best,
+				others / Math.max(1, game.bidders.size() - 1), nanos);
+	}
+
+	/**
+	 * Creates a NAMM agent whose history is the one in workDir. Agents find their history through user.dir, which
+	 * is switched for the creation, so agents are only created one at a time.
+	 */
+	static synchronized NammParticipant createNamm(File workDir, long seed) {
+		String userDir = System.getProperty("user.dir");
+		System.setProperty("user.dir", workDir.getAbsolutePath());
+		try {
+			return new NammParticipant(new CapturingAgent("NAMM"), seed);
+		} finally {
+			System.setProperty("user.dir", userDir);
+		}
+	}
+
+	/**
+	 * How NAMM did in one game.
+	 */
+	static class GameResult {
+		final double balance;
+		final double quality;
+		final int campaignsWon;
+		/* 1 when no competitor ended with more */
+		final int rank;
+		final double bestOther;
+		final double meanOthers;
+		final long nanos;
+
+		GameResult(double balance, double quality, int campaignsWon, int rank, double bestOther, double meanOthers,
+				long nanos) {
+			this.balance = balance;
+			this.quality = quality;
+			this.campaignsWon = campaignsWon;
+			this.rank = rank;
+			this.bestOther = bestOther;
+			this.meanOthers = meanOthers;
+			this.nanos = nanos;
+		}
+	}
+
+	/**
+	 * Effective reach ratio of a campaign that got effectiveImps of its reach, as in the game specification.
+	 */
+	static double effectiveReachRatio(double effectiveImps, long reach) {
+		double x = effectiveImps / reach;
+		return 2 / ERR_A * (Math.atan(ERR_A * x - ERR_B) - Math.atan(-ERR_B));
+	}
+
+	/**
+	 * An agent taking part in simulated games: the simulator hands it the server's messages and reads back what it
+	 * sent.
+	 */
+	interface Participant {
+		String getName();
+
+		void startGame(int simulationId);
+
+		void deliver(Transportable content);
+
+		/**
+		 * Messages sent since the list was last cleared; the simulator clears it after reading.
+		 */
+		List<Message> sent();
+
+		void endGame() throws Exception;
+	}
+
+	/**
+	 * The agent under evaluation. Like the replay it waits for the history save and reload between games, so every
+	 * game starts from the same history whatever the timing.
+	 */
+	static class NammParticipant implements Participant {
+		final CapturingAgent agent;
+		private final long seed;
+
+		NammParticipant(CapturingAgent agent, long seed) {
+			this.agent = agent;
+			this.seed = seed;
+		}
+
+		@Override
+		public String getName() {
+			return agent.getName();
+		}
+
+		@Override
+		public void startGame(int simulationId) {
+			try {
+				agent.pendingHistory.get();
+			} catch (Exception ex) {
+				// The agent falls back to an empty history itself
+				AgentLog.HISTORY.warning("History load failed: " + ex);
+			}
+			agent.sent().clear();
+			agent.setRandomSeed(seed * 31 + simulationId);
+			agent.simulationSetup();
+		}
+
+		@Override
+		public void deliver(Transportable content) {
+			agent.deliver(content);
+		}
+
+		@Override
+		public List<Message> sent() {
+			return agent.sent();
+		}
+
+		@Override
+		public void endGame() throws Exception {
+			agent.simulationFinished();
+			agent.pendingHistory.get();
+			agent.historyJournal.awaitCompaction();
+			agent.prefetchHistory();
+		}
+
+		void close() throws Exception {
+			agent.pendingHistory.get();
+			agent.historyJournal.awaitCompaction();
+			agent.releaseHistory();
+		}
+	}
+
+	/**
+	 * The adx jar's sample agent, bidding on UCS and on campaigns and spreading its bids over its campaigns' queries.
+	 */
+	private static class SampleCompetitor extends SampleAdNetwork implements Participant {
+		private final String name;
+		private final List<Message> sent = new ArrayList<Message>();
+
+		SampleCompetitor(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public void startGame(int simulationId) {
+			simulationSetup();
+		}
+
+		@Override
+		public void deliver(Transportable content) {
+			messageReceived(new Message("server", name, content));
+		}
+
+		@Override
+		public List<Message> sent() {
+			return sent;
+		}
+
+		@Override
+		public void endGame() {
+			simulationFinished();
+		}
+
+		@Override
+		protected void sendMessage(String receiver, Transportable content) {
+			sent.add(new Message(name, receiver, content));
+		}
+	}
+
+	/**
+	 * The adx jar's dummy agent, with random campaign bids and flat impression bids.
+	 */
+	private static class DummyCompetitor extends DummyAdNetwork implements Participant {
+		private final String name;
+		private final List<Message> sent = new ArrayList<Message>();
+
+		DummyCompetitor(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public void startGame(int simulationId) {
+			simulationSetup();
+		}
+
+		@Override
+		public void deliver(Transportable content) {
+			messageReceived(new Message("server", name, content));
+		}
+
+		@Override
+		public List<Message> sent() {
+			return sent;
+		}
+
+		@Override
+		public void endGame() {
+			simulationFinished();
+		}
+
+		@Override
+		protected void sendMessage(String receiver, Transportable content) {
+			sent.add(new Message(name, receiver, content));
+		}
+	}
+
+	/**
+	 * The server addresses the initial campaign message to its demand and AdX agents, which the agents answer to;
+	 * the public constructor leaves them unset.
+	 */
+	private static class InitialCampaign extends InitialCampaignMessage {
+		private static final long serialVersionUID = 1L;
+
+		InitialCampaign(SimCampaign campaign) {
+			super(campaign.id, campaign.reach, campaign.dayStart, campaign.dayEnd, SegmentMask.toSet(campaign.mask),
+					campaign.videoCoef, campaign.mobileCoef, Math.round(campaign.budget * 1000));
+		}
+
+		@Override
+		public String getDemandAgentAddress() {
+			return DEMAND_ADDRESS;
+		}
+
+		@Override
+		public String getAdxAgentAddress() {
+			return ADX_ADDRESS;
+		}
+	}
+
+	/**
+	 * A campaign of the game with what it has been delivered so far.
+	 */
+	static class SimCampaign {
+		final int id;
+		final long reach;
+		final int dayStart;
+		final int dayEnd;
+		final int mask;
+		final double videoCoef;
+		final double mobileCoef;
+
+		Bidder owner;
+		double budget;
+
+		double targetedImps;
+		double otherImps;
+		double cost;
+		int wins;
+
+		/* Today's deliveries and the limits the owner's bundle set, unlimited unless set */
+		int winsToday;
+		double costToday;
+		double dailyImpressionLimit = Double.POSITIVE_INFINITY;
+		double dailyBudgetLimit = Double.POSITIVE_INFINITY;
+		double totalImpressionLimit = Double.POSITIVE_INFINITY;
+		double totalBudgetLimit = Double.POSITIVE_INFINITY;
+
+		SimCampaign(int id, long reach, int dayStart, int dayEnd, int mask, double videoCoef, double mobileCoef) {
+			this.id = id;
+			this.reach = reach;
+			this.dayStart = dayStart;
+			this.dayEnd = dayEnd;
+			this.mask = mask;
+			this.videoCoef = videoCoef;
+			this.mobileCoef = mobileCoef;
+		}
+
+		/**
+		 * Whether the campaign's bids take part in auctions of day.
+		 */
+		boolean biddable(int day) {
+			return day >= dayStart && day <= dayEnd && winsToday < dailyImpressionLimit
+					&& costToday < dailyBudgetLimit && wins < totalImpressionLimit && cost < totalBudgetLimit;
+		}
+
+		void clearLimits() {
+			dailyImpressionLimit = Double.POSITIVE_INFINITY;
+			dailyBudgetLimit = Double.POSITIVE_INFINITY;
+			totalImpressionLimit = Double.POSITIVE_INFINITY;
+			totalBudgetLimit = Double.POSITIVE_INFINITY;
+		}
+	}
+
+	/**
+	 * A bid entry that can serve an impression: its campaign, CPM bid and sampling weight.
+	 */
+	private static class Entry {
+		final SimCampaign campaign;
+		final double bid;
+		final int weight;
+
+		Entry(SimCampaign campaign, double bid, int weight) {
+			this.campaign = campaign;
+			this.bid = bid;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * What the market knows about one agent in a game.
+	 */
+	static class Bidder {
+		final Participant participant;
+		final String name;
+
+		double balance;
+		double quality = 1;
+		int campaignsWon;
+
+		/* UCS result in force today */
+		double ucsLevel;
+		double ucsPrice;
+		/* Bids sent today */
+		double ucsBid;
+		Long campaignBidMillis;
+
+		/* The last bundle received, and the entries in force today per [bucket][user slot] */
+		AdxBidBundle received;
+		Entry[][][] entries;
+
+		/* Today's auctions for the AdNetworkReport, by report key */
+		AdNetworkReport adNetReport = new AdNetworkReport();
+		final Map<Long, AdNetworkReportEntry> adNetEntries = new HashMap<Long, AdNetworkReportEntry>();
+
+		/* Campaign won and its budget, for tomorrow's notification */
+		SimCampaign wonToday;
+
+		Bidder(Participant participant) {
+			this.participant = participant;
+			this.name = participant.getName();
+		}
+	}
+
+	/**
+	 * One game: the market state and the day loop.
+	 */
+	static class Game {
+		private static final Entry[] NO_ENTRIES = new Entry[0];
+
+		final int simulationId;
+		final Random random;
+		final List<Bidder> bidders = new ArrayList<Bidder>();
+
+		/* Publishers of this game, indexes into PUBLISHERS */
+		private final int[] publishers;
+		private final SyntheticData.Catalog catalog = new SyntheticData.Catalog();
+		private final Map<String, Integer> publisherIndex = new HashMap<String, Integer>();
+
+		/* User slots: 0 is the unknown user, 1.. the segments of MarketSegment.usersInMarketSegments with all
+		 * three attributes fixed */
+		private final int[] slotMask;
+		/* Per user: slot and attribute index for the AdNetworkReport (see attributes) */
+		private final int[] userSlot;
+		private final int[] userAttributes;
+
+		private final List<SimCampaign> campaigns = new ArrayList<SimCampaign>();
+		private final Set<Integer> campaignIds = new HashSet<Integer>();
+		/* Offered today and offered yesterday */
+		private SimCampaign opportunity;
+		private SimCampaign auctioned;
+
+		/* Yesterday's impressions per publisher and ad type, for the publisher report */
+		private int[] publisherImpressions;
+		private int[] publisherVideo;
+
+		Game(int simulationId, Random random, List<Participant> participants) {
+			this.simulationId = simulationId;
+			this.random = random;
+			for (Participant participant : participants) {
+				bidders.add(new Bidder(participant));
+			}
+
+			int[] order = new int[PUBLISHERS.length];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+			}
+			for (int i = 0; i < PUBLISHERS_PER_GAME; i++) {
+				int j = i + random.nextInt(order.length - i);
+				int swap = order[i];
+				order[i] = order[j];
+				order[j] = swap;
+			}
+			publishers = Arrays.copyOf(order, PUBLISHERS_PER_GAME);
+			for (int i = 0; i < publishers.length; i++) {
+				catalog.add(PUBLISHERS[publishers[i]]);
+				publisherIndex.put(PUBLISHERS[publishers[i]], i);
+			}
+			publisherImpressions = new int[publishers.length];
+			publisherVideo = new int[publishers.length];
+
+			List<Integer> masks = new ArrayList<Integer>();
+			Map<Integer, Integer> population = new HashMap<Integer, Integer>();
+			for (Map.Entry<Set<MarketSegment>, Integer> segment : MarketSegment.usersInMarketSegments().entrySet()) {
+				if (segment.getKey().size() == 3) {
+					int mask = SegmentMask.of(segment.getKey());
+					masks.add(mask);
+					population.put(mask, segment.getValue());
+				}
+			}
+			// Map order is not defined; the users must be the same in every run
+			Collections.sort(masks);
+			slotMask = new int[masks.size() + 1];
+			int users = 0;
+			for (int i = 0; i < masks.size(); i++) {
+				slotMask[i + 1] = masks.get(i);
+				users += population.get(masks.get(i));
+			}
+			userSlot = new int[users];
+			userAttributes = new int[users];
+			int u = 0;
+			for (int i = 0; i < masks.size(); i++) {
+				Set<MarketSegment> segment = SegmentMask.toSet(masks.get(i));
+				for (int n = population.get(masks.get(i)); n > 0; n--, u++) {
+					userSlot[u] = i + 1;
+					userAttributes[u] = attributes(segment);
+				}
+			}
+		}
+
+		/**
+		 * Plays the 60 days and the end of the game.
+		 */
+		void play() throws Exception {
+			StartInfo startInfo = new StartInfo(simulationId, 0, GAME_DAYS * SECONDS_PER_DAY * 1000, SECONDS_PER_DAY);
+			for (Bidder bidder : bidders) {
+				bidder.participant.startGame(simulationId);
+				bidder.participant.deliver(startInfo);
+			}
+
+			for (Bidder bidder : bidders) {
+				SimCampaign initial = newCampaign(1, INITIAL_CAMPAIGN_LENGTH, INITIAL_REACH_FACTOR);
+				initial.owner = bidder;
+				initial.budget = initial.reach / CPM;
+				campaigns.add(initial);
+				bidder.participant.deliver(catalog);
+				bidder.participant.deliver(new InitialCampaign(initial));
+			}
+			for (int day = 0; day <= GAME_DAYS; day++) {
+				if (day > 0) {
+					sendReports(day);
+				}
+				offerCampaign(day);
+				for (Bidder bidder : bidders) {
+					bidder.participant.deliver(new BankStatus(bidder.balance));
+					if (day > 0) {
+						bidder.participant.deliver(publisherReport());
+						if (bidder.adNetReport.size() > 0) {
+							bidder.participant.deliver(bidder.adNetReport);
+						}
+					}
+				}
+				for (Bidder bidder : bidders) {
+					bidder.adNetReport = new AdNetworkReport();
+					bidder.adNetEntries.clear();
+					bidder.participant.deliver(new SimulationStatus(day, 0, day == GAME_DAYS));
+					collect(bidder);
+				}
+				if (day == GAME_DAYS) {
+					break;
+				}
+				runImpressions(day);
+				settleCampaigns(day);
+				auctionCampaign();
+				auctionUcs();
+				for (Bidder bidder : bidders) {
+					// Also when the bundle is the same: limits and entries of campaigns won today change with the day
+					if (bidder.received != null) {
+						activate(bidder, bidder.received);
+					}
+				}
+			}
+			for (Bidder bidder : bidders) {
+				bidder.participant.endGame();
+			}
+		}
+
+		/**
+		 * Campaign reports on the campaigns that ran yesterday, then the daily notification.
+		 */
+		private void sendReports(int day) {
+			for (Bidder bidder : bidders) {
+				CampaignReport report = new CampaignReport();
+				for (SimCampaign campaign : campaigns) {
+					if (campaign.owner == bidder && campaign.dayStart <= day - 1 && campaign.dayEnd >= day - 1) {
+						report.addStatsEntry(campaign.id,
+								new CampaignStats(campaign.targetedImps, campaign.otherImps, campaign.cost));
+					}
+				}
+				if (report.size() > 0) {
+					bidder.participant.deliver(report);
+				}
+			}
+			for (Bidder bidder : bidders) {
+				SimCampaign won = bidder.wonToday;
+				bidder.participant.deliver(new AdNetworkDailyNotification(day, bidder.ucsLevel, bidder.ucsPrice,
+						bidder.quality, auctioned == null ? 0 : auctioned.id,
+						auctioned == null || auctioned.owner == null ? NONE : auctioned.owner.name,
+						won == null ? 0 : Math.round(won.budget * 1000)));
+				bidder.wonToday = null;
+			}
+		}
+
+		/**
+		 * Announces today's campaign opportunity, if a campaign starting the day after tomorrow still fits the game.
+		 */
+		private void offerCampaign(int day) {
+			auctioned = null;
+			opportunity = null;
+			SimCampaign campaign = newCampaign(day + 2, CAMPAIGN_LENGTHS[random.nextInt(CAMPAIGN_LENGTHS.length)],
+					REACH_FACTORS[random.nextInt(REACH_FACTORS.length)]);
+			if (campaign.dayEnd > LAST_CAMPAIGN_DAY) {
+				return;
+			}
+			opportunity = campaign;
+			CampaignOpportunityMessage message = new CampaignOpportunityMessage(campaign.id, campaign.reach,
+					campaign.dayStart, campaign.dayEnd, SegmentMask.toSet(campaign.mask), campaign.videoCoef,
+					campaign.mobileCoef, day);
+			for (Bidder bidder : bidders) {
+				bidder.participant.deliver(message);
+			}
+		}
+
+		private SimCampaign newCampaign(int dayStart, int length, double reachFactor) {
+			int mask;
+			do {
+				mask = random.nextInt(SegmentMask.MASKS);
+			} while (SegmentMask.population(mask) == 0);
+			int id;
+			do {
+				id = 1 + random.nextInt(Integer.MAX_VALUE - 1);
+			} while (!campaignIds.add(id));
+			long reach = Math.round(SegmentMask.population(mask) * length * reachFactor);
+			return new SimCampaign(id, reach, dayStart, dayStart + length - 1, mask, 2 + random.nextDouble(),
+					1.5 + random.nextDouble());
+		}
+
+		/**
+		 * Takes the bids the agent sent today.
+		 */
+		private void collect(Bidder bidder) {
+			bidder.ucsBid = 0;
+			bidder.campaignBidMillis = null;
+			for (Message message : bidder.participant.sent()) {
+				Transportable content = message.getContent();
+				if (content instanceof AdNetBidMessage) {
+					AdNetBidMessage bid = (AdNetBidMessage) content;
+					bidder.ucsBid = bid.getUcsBid();
+					if (opportunity != null && bid.getCampaignId() == opportunity.id) {
+						bidder.campaignBidMillis = bid.getCampaignBudget();
+					}
+				} else if (content instanceof AdxBidBundle) {
+					bidder.received = (AdxBidBundle) content;
+				}
+			}
+			bidder.participant.sent().clear();
+		}
+
+		/**
+		 * Today's opportunity goes to the lowest bid per quality among the valid bids, for the second lowest bid
+		 * per quality times the winner's quality, or the highest valid budget if it was the only bid. Without valid
+		 * bids it goes to a random agent at the highest valid budget.
+		 */
+		private void auctionCampaign() {
+			SimCampaign campaign = opportunity;
+			if (campaign == null) {
+				return;
+			}
+			Bidder winner = null;
+			double lowest = Double.POSITIVE_INFINITY;
+			double second = Double.POSITIVE_INFINITY;
+			int offset = random.nextInt(bidders.size());
+			for (int i = 0; i < bidders.size(); i++) {
+				Bidder bidder = bidders.get((offset + i) % bidders.size());
+				if (bidder.campaignBidMillis == null) {
+					continue;
+				}
+				double bid = bidder.campaignBidMillis / 1000.0;
+				if (bid < 0.0001 * campaign.reach / bidder.quality || bid > 0.001 * campaign.reach * bidder.quality) {
+					continue;
+				}
+				double effective = bid / bidder.quality;
+				if (effective < lowest) {
+					second = lowest;
+					lowest = effective;
+					winner = bidder;
+				} else if (effective < second) {
+					second = effective;
+				}
+			}
+			if (winner == null) {
+				winner = bidders.get(random.nextInt(bidders.size()));
+				campaign.budget = 0.001 * campaign.reach * winner.quality;
+			} else if (second == Double.POSITIVE_INFINITY) {
+				campaign.budget = 0.001 * campaign.reach * winner.quality;
+			} else {
+				campaign.budget = second * winner.quality;
+			}
+			campaign.owner = winner;
+			winner.campaignsWon++;
+			winner.wonToday = campaign;
+			campaigns.add(campaign);
+			auctioned = campaign;
+		}
+
+		/**
+		 * Tomorrow's UCS levels: the k-th highest bid gets 0.9^k and pays that level times the next bid.
+		 */
+		private void auctionUcs() {
+			List<Bidder> ranking = new ArrayList<Bidder>(bidders);
+			// Ties go to a random agent
+			Collections.shuffle(ranking, random);
+			Collections.sort(ranking, new Comparator<Bidder>() {
+				@Override
+				public int compare(Bidder a, Bidder b) {
+					return Double.compare(b.ucsBid, a.ucsBid);
+				}
+			});
+			double level = 1;
+			for (int k = 0; k < ranking.size(); k++) {
+				Bidder bidder = ranking.get(k);
+				bidder.ucsLevel = level;
+				bidder.ucsPrice = k + 1 < ranking.size() ? level * ranking.get(k + 1).ucsBid : 0;
+				bidder.balance -= bidder.ucsPrice;
+				level *= UCS_LEVEL_RATIO;
+			}
+		}
+
+		/**
+		 * Makes bundle the one in force from tomorrow: indexes its entries by publisher, device, ad type and the user
+		 * segments they match, and applies its campaign limits.
+		 */
+		private void activate(Bidder bidder, AdxBidBundle bundle) {
+			Map<Integer, SimCampaign> own = new HashMap<Integer, SimCampaign>();
+			for (SimCampaign campaign : campaigns) {
+				if (campaign.owner == bidder) {
+					own.put(campaign.id, campaign);
+					campaign.clearLimits();
+				}
+			}
+			List<List<List<Entry>>> lists = new ArrayList<List<List<Entry>>>();
+			for (int b = 0; b < publishers.length * 4; b++) {
+				List<List<Entry>> bySlot = new ArrayList<List<Entry>>();
+				for (int s = 0; s < slotMask.length; s++) {
+					bySlot.add(new ArrayList<Entry>());
+				}
+				lists.add(bySlot);
+			}
+			for (int i = 0; i < bundle.size(); i++) {
+				AdxBidBundle.BidEntry entry = bundle.getEntry(i);
+				String publisher = entry.getQuery().getPublisher();
+				SimCampaign campaign = own.get(entry.getCampaignId());
+				if (campaign == null) {
+					continue;
+				}
+				if (publisher.startsWith(AdxBidBundle.CMP_DSL)) {
+					campaign.dailyImpressionLimit = entry.getWeight();
+					campaign.dailyBudgetLimit = entry.getDailyLimit();
+					continue;
+				}
+				if (publisher.startsWith(AdxBidBundle.CMP_TSL)) {
+					campaign.totalImpressionLimit = entry.getWeight();
+					campaign.totalBudgetLimit = entry.getDailyLimit();
+					continue;
+				}
+				Integer p = publisherIndex.get(publisher);
+				if (p == null || entry.getBid() <= 0 || entry.getWeight() <= 0) {
+					continue;
+				}
+				int bucket = bucket(p, entry.getQuery().getDevice() == Device.mobile,
+						entry.getQuery().getAdType() == AdType.video);
+				int mask = SegmentMask.of(entry.getQuery().getMarketSegments());
+				for (int s = 0; s < slotMask.length; s++) {
+					// An entry serves every user whose known segments include its segments
+					if ((mask & ~slotMask[s]) == 0) {
+						lists.get(bucket).get(s).add(new Entry(campaign, entry.getBid(), entry.getWeight()));
+					}
+				}
+			}
+			Entry[][][] entries = new Entry[lists.size()][slotMask.length][];
+			for (int b = 0; b < lists.size(); b++) {
+				for (int s = 0; s < slotMask.length; s++) {
+					List<Entry> list = lists.get(b).get(s);
+					entries[b][s] = list.isEmpty() ? NO_ENTRIES : list.toArray(new Entry[list.size()]);
+				}
+			}
+			bidder.entries = entries;
+		}
+
+		/**
+		 * The impressions of day: every publisher's visits, each sold in a second price auction with reserve among
+		 * one entry per agent. An agent sees the user's segments with its UCS level, otherwise the unknown user.
+		 */
+		private void runImpressions(int day) {
+			for (SimCampaign campaign : campaigns) {
+				campaign.winsToday = 0;
+				campaign.costToday = 0;
+			}
+			Arrays.fill(publisherImpressions, 0);
+			Arrays.fill(publisherVideo, 0);
+			int n = bidders.size();
+			Entry[] chosen = new Entry[n];
+			for (int p = 0; p < publishers.length; p++) {
+				int publisher = publishers[p];
+				double reserve = RESERVE_BASELINE[publisher];
+				int impressions = (int) Math.max(0, Math.round(IMPRESSIONS_PER_DAY[publisher]
+						* (1 + IMPRESSION_NOISE * random.nextGaussian())));
+				publisherImpressions[p] = impressions;
+				for (int i = 0; i < impressions; i++) {
+					int user = random.nextInt(userSlot.length);
+					boolean video = random.nextDouble() < VIDEO_SHARE[publisher];
+					boolean mobile = random.nextDouble() < MOBILE_SHARE;
+					if (video) {
+						publisherVideo[p]++;
+					}
+					int bucket = bucket(p, mobile, video);
+
+					int winner = -1;
+					double first = 0;
+					double second = reserve;
+					int offset = random.nextInt(n);
+					for (int k = 0; k < n; k++) {
+						int b = (offset + k) % n;
+						Bidder bidder = bidders.get(b);
+						chosen[b] = null;
+						if (bidder.entries == null) {
+							continue;
+						}
+						int slot = random.nextDouble() < bidder.ucsLevel ? userSlot[user] : 0;
+						Entry entry = pick(bidder.entries[bucket][slot], day, random);
+						if (entry == null) {
+							continue;
+						}
+						chosen[b] = entry;
+						if (entry.bid > first) {
+							second = Math.max(second, first);
+							first = entry.bid;
+							winner = b;
+						} else if (entry.bid > second) {
+							second = entry.bid;
+						}
+					}
+					if (winner >= 0 && first < reserve) {
+						winner = -1;
+					}
+					for (int b = 0; b < n; b++) {
+						if (chosen[b] != null) {
+							record(bidders.get(b), chosen[b], user, p, mobile, video, b == winner, second);
+						}
+					}
+					if (winner >= 0) {
+						deliver(chosen[winner].campaign, user, mobile, video, second / CPM);
+					}
+				}
+			}
+		}
+
+		private void deliver(SimCampaign campaign, int user, boolean mobile, boolean video, double price) {
+			double imps = (video ? campaign.videoCoef : 1) * (mobile ? campaign.mobileCoef : 1);
+			if ((campaign.mask & ~slotMask[userSlot[user]]) == 0) {
+				campaign.targetedImps += imps;
+			} else {
+				campaign.otherImps += imps;
+			}
+			campaign.cost += price;
+			campaign.costToday += price;
+			campaign.wins++;
+			campaign.winsToday++;
+			campaign.owner.balance -= price;
+		}
+
+		/**
+		 * Counts a bid in the agent's AdNetworkReport, and the price if it won.
+		 */
+		private void record(Bidder bidder, Entry entry, int user, int publisher, boolean mobile, boolean video,
+							boolean won, double price) {
+			long code = ((long) entry.campaign.id << 20)
+					| (((userAttributes[user] * publishers.length + publisher) * 2 + (mobile ? 1 : 0)) * 2
+					+ (video ? 1 : 0));
+			AdNetworkReportEntry reportEntry = bidder.adNetEntries.get(code);
+			if (reportEntry == null) {
+				AdNetworkKey key = new AdNetworkKey();
+				int attributes = userAttributes[user];
+				key.setGender(Gender.values()[attributes / 24]);
+				key.setAge(Age.values()[attributes / 4 % 6]);
+				key.setIncome(Income.values()[attributes % 4]);
+				key.setPublisher(PUBLISHERS[publishers[publisher]]);
+				key.setDevice(mobile ? Device.mobile : Device.pc);
+				key.setAdType(video ? AdType.video : AdType.text);
+				key.setCampaignId(entry.campaign.id);
+				reportEntry = bidder.adNetReport.addReportEntry(key);
+				bidder.adNetEntries.put(code, reportEntry);
+			}
+			reportEntry.setBidCount(reportEntry.getBidCount() + 1);
+			if (won) {
+				reportEntry.setWinCount(reportEntry.getWinCount() + 1);
+				reportEntry.setCost(reportEntry.getCost() + price);
+			}
+		}
+
+		/**
+		 * Pays the campaigns ending today and updates their owners' quality.
+		 */
+		private void settleCampaigns(int day) {
+			for (SimCampaign campaign : campaigns) {
+				if (campaign.dayEnd == day && campaign.owner != null) {
+					double err = effectiveReachRatio(campaign.targetedImps, campaign.reach);
+					campaign.owner.balance += campaign.budget * err;
+					campaign.owner.quality = (1 - QUALITY_LEARNING_RATE) * campaign.owner.quality
+							+ QUALITY_LEARNING_RATE * err;
+				}
+			}
+		}
+
+		/**
+		 * Yesterday's impressions and video share of every publisher of the game.
+		 */
+		private AdxPublisherReport publisherReport() {
+			AdxPublisherReport report = new AdxPublisherReport();
+			for (int p = 0; p < publishers.length; p++) {
+				PublisherCatalogEntry key = new PublisherCatalogEntry(PUBLISHERS[publishers[p]]);
+				AdxPublisherReportEntry entry = new AdxPublisherReportEntry(key);
+				entry.setPopularity(publisherImpressions[p]);
+				Map<AdType, Integer> orientation = new EnumMap<AdType, Integer>(AdType.class);
+				orientation.put(AdType.video, publisherVideo[p]);
+				orientation.put(AdType.text, publisherImpressions[p] - publisherVideo[p]);
+				entry.setAdTypeOrientation(orientation);
+				entry.setReservePriceBaseline(RESERVE_BASELINE[publishers[p]]);
+				report.addPublisherReportEntry(key, entry);
+			}
+			return report;
+		}
+
+		/**
+		 * Picks one of entries whose campaign can still bid, by weight, or null if none can.
+		 */
+		private static Entry pick(Entry[] candidates, int day, Random random) {
+			int total = 0;
+			for (Entry entry : candidates) {
+				if (entry.campaign.biddable(day)) {
+					total += entry.weight;
+				}
+			}
+			if (total == 0) {
+				return null;
+			}
+			int r = random.nextInt(total);
+			for (Entry entry : candidates) {
+				if (entry.campaign.biddable(day)) {
+					r -= entry.weight;
+					if (r < 0) {
+						return entry;
+					}
+				}
+			}
+			return null;
+		}
+
+		private static int bucket(int publisher, boolean mobile, boolean video) {
+			return (publisher * 2 + (mobile ? 1 : 0)) * 2 + (video ? 1 : 0);
+		}
+
+		/**
+		 * Gender, age and income of a new user of segment, drawn within the segment, as gender * 24 + age * 4 +
+		 * income over the enum ordinals.
+		 */
+		private int attributes(Set<MarketSegment> segment) {
+			Gender gender = segment.contains(MarketSegment.MALE) ? Gender.male : Gender.female;
+			int age = random.nextInt(3) + (segment.contains(MarketSegment.YOUNG) ? 0 : 3);
+			int income = random.nextInt(2) + (segment.contains(MarketSegment.LOW_INCOME) ? 0 : 2);
+			return gender.ordinal() * 24 + age * 4 + income;
+		}
+	}
+}
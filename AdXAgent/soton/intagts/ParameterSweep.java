@@ -0,0 +1,402 @@
+package soton.intagts;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+
+/**
+ * Evaluates many StrategyParameters vectors on simulated games in parallel and ranks them by NAMM's profit.
+ *
+ * The vectors are the defaults, the cartesian product of the --grid values on top of the defaults, and --random
+ * vectors drawn uniformly from the ranges of the --vary keys (all keys if not given). Every vector plays the same
+ * games: game g is MarketSimulator's game g for the seed, so vectors differ in the agent, not in the market.
+ *
+ * The (vector, game) evaluations are split over a fork/join pool, one agent per worker thread. The agents share
+ * one read-only copy of the history and do not save their games to it, so an evaluation does not depend on which
+ * evaluations ran before it on the same thread. Results are appended to the cache file keyed by the vector's hash
+ * and the game, and a later sweep over overlapping vectors only plays what is missing. The built-in competitors
+ * seed themselves, so a game played again only agrees in distribution; the cache keeps the first result.
+ *
+ * The report lists the vectors by mean balance, with its standard error, the mean quality at the end of the game,
+ * mean campaigns won and mean rank among the agents.
+ *
+ * Recorded games are not used: a replay is open loop (see GameReplay), so its reports, bank status and quality
+ * are those of the recorded agent whatever the vector bids.
+ *
+ * Usage (classes compiled with the jars in lib on the classpath):
+ *   java soton.intagts.ParameterSweep [--games 20] [--grid startDays=3,5,7 ...] [--random 50]
+ *       [--vary ucsScale,impBidFactor] [--threads n] [--top 20] [--sample 4] [--dummy 3] [--seed 1]
+ *       [--history-dir .] [--cache sweep-cache.tsv]
+ */
+class ParameterSweep {
+
+	private static final String DEFAULT_CACHE = "sweep-cache.tsv";
+
+	private final MarketSimulator simulator;
+	private final String gamePrefix;
+	private final int threads;
+	private final PrintStream out;
+
+	/* Evaluations finished so far, by cache key; guarded by itself */
+	private final Map<String, MarketSimulator.GameResult> results = new HashMap<String, MarketSimulator.GameResult>();
+	private Writer cacheWriter;
+
+	ParameterSweep(long seed, int samples, int dummies, int threads, PrintStream out) {
+		this.simulator = new MarketSimulator(seed, samples, dummies, false, out);
+		this.gamePrefix = "sim:" + seed + ":" + samples + ":" + dummies + ":";
+		this.threads = threads;
+		this.out = out;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int games = 20;
+		int randomVectors = 0;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int top = 20;
+		int samples = 4;
+		int dummies = 3;
+		long seed = 1;
+		File historyDir = new File(".");
+		File cacheFile = new File(DEFAULT_CACHE);
+		Map<StrategyParameters.Key, double[]> grid = new HashMap<StrategyParameters.Key, double[]>();
+		List<StrategyParameters.Key> vary = new ArrayList<StrategyParameters.Key>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--games")) { games = Integer.parseInt(args[++i]); }
+			else if (args[i].equals("--grid")) { parseGrid(args[++i], grid); }
+			else if (args[i].equals("--random")) { randomVectors = Integer.parseInt(args[++i]); }
+			else if (args[i].equals("--vary")) {
+				for (String name : args[++i].split(",")) {
+					vary.add(StrategyParameters.Key.forName(name.trim()));
+				}
+			}
+			else if (args[i].equals("--threads")) { threads = Integer.parseInt(args[++i]); }
+			else if (args[i].equals("--top")) { top = Integer.parseInt(args[++i]); }
+			else if (args[i].equals("--sample")) { samples = Integer.parseInt(args[++i]); }
+			else if (args[i].equals("--dummy")) { dummies = Integer.parseInt(args[++i]); }
+			else if (args[i].equals("--seed")) { seed = Long.parseLong(args[++i]); }
+			else if (args[i].equals("--history-dir")) { historyDir = new File(args[++i]); }
+			else if (args[i].equals("--cache")) { cacheFile = new File(args[++i]); }
+			else { throw new IllegalArgumentException("Unknown option " + args[i]); }
+		}
+		if (vary.isEmpty()) {
+			for (StrategyParameters.Key key : StrategyParameters.Key.values()) {
+				vary.add(key);
+			}
+		}
+
+		Set<StrategyParameters> vectors = new LinkedHashSet<StrategyParameters>();
+		vectors.add(StrategyParameters.DEFAULTS);
+		vectors.addAll(gridVectors(grid));
+		vectors.addAll(randomVectors(randomVectors, vary, new Random(seed)));
+
+		ParameterSweep sweep = new ParameterSweep(seed, samples, dummies, threads, System.out);
+		List<Summary> ranked = sweep.run(new ArrayList<StrategyParameters>(vectors), games, historyDir, cacheFile);
+		sweep.report(ranked, top);
+	}
+
+	/**
+	 * Plays every vector on games 1 to games, reusing the results in cacheFile, and returns the vectors best first.
+	 */
+	List<Summary> run(List<StrategyParameters> vectors, int games, File historyDir, File cacheFile)
+			throws Exception {
+		int cached = loadCache(cacheFile);
+		List<Evaluation> missing = new ArrayList<Evaluation>();
+		for (StrategyParameters vector : vectors) {
+			for (int g = 1; g <= games; g++) {
+				Evaluation evaluation = new Evaluation(vector, g);
+				if (!results.containsKey(evaluation.key)) {
+					missing.add(evaluation);
+				}
+			}
+		}
+		out.printf("%d vectors x %d games: %d cached (%d results in %s), %d to play on %d threads%n", vectors.size(),
+				games, vectors.size() * games - missing.size(), cached, cacheFile, missing.size(), threads);
+
+		if (!missing.isEmpty()) {
+			play(missing, historyDir, cacheFile);
+		}
+
+		List<Summary> summaries = new ArrayList<Summary>();
+		for (StrategyParameters vector : vectors) {
+			Summary summary = new Summary(vector);
+			for (int g = 1; g <= games; g++) {
+				summary.add(results.get(new Evaluation(vector, g).key));
+			}
+			summaries.add(summary);
+		}
+		Collections.sort(summaries, new Comparator<Summary>() {
+			@Override
+			public int compare(Summary a, Summary b) {
+				return Double.compare(b.meanBalance(), a.meanBalance());
+			}
+		});
+		return summaries;
+	}
+
+	void report(List<Summary> ranked, int top) {
+		out.printf("%4s %16s %11s %9s %8s %6s %6s  %s%n", "rank", "hash", "balance", "stderr", "quality", "won",
+				"place", "parameters");
+		for (int i = 0; i < ranked.size(); i++) {
+			Summary summary = ranked.get(i);
+			// The defaults are always listed, as the baseline
+			if (i < top || summary.vector.equals(StrategyParameters.DEFAULTS)) {
+				out.printf("%4d %16s %11.3f %9.3f %8.3f %6.1f %6.2f  %s%n", i + 1, summary.vector.hash(),
+						summary.meanBalance(), summary.standardError(), summary.quality / summary.games,
+						(double) summary.campaignsWon / summary.games, (double) summary.rank / summary.games,
+						summary.vector.describeChanges());
+			}
+		}
+	}
+
+	private void play(List<Evaluation> evaluations, File historyDir, File cacheFile) throws Exception {
+		final File workDir = GameReplay.copyHistory(historyDir);
+		final List<MarketSimulator.NammParticipant> agents = new ArrayList<MarketSimulator.NammParticipant>();
+		PrintStream stdout = System.out;
+		PrintStream stderr = System.err;
+		// The built-in agents print every message they get
+		AgentLog.setLevel(Level.OFF);
+		System.setOut(GameReplay.discardingStream());
+		System.setErr(GameReplay.discardingStream());
+		cacheWriter = new OutputStreamWriter(new FileOutputStream(cacheFile, true), StandardCharsets.UTF_8);
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			// One agent per worker thread, created on first use
+			ThreadLocal<MarketSimulator.NammParticipant> agent = new ThreadLocal<MarketSimulator.NammParticipant>() {
+				@Override
+				protected MarketSimulator.NammParticipant initialValue() {
+					MarketSimulator.NammParticipant namm = MarketSimulator.createNamm(workDir, simulator.seed());
+					namm.agent.setHistoryWritable(false);
+					synchronized (agents) {
+						agents.add(namm);
+					}
+					return namm;
+				}
+			};
+			long start = System.nanoTime();
+			pool.invoke(new EvaluationTask(evaluations, 0, evaluations.size(), agent));
+			double seconds = (System.nanoTime() - start) / 1e9;
+			stdout.printf("Played %d games in %.1f s (%.0f games/hour) with %d agents%n", evaluations.size(), seconds,
+					evaluations.size() / seconds * 3600, agents.size());
+		} finally {
+			pool.shutdown();
+			for (MarketSimulator.NammParticipant namm : agents) {
+				namm.close();
+			}
+			cacheWriter.close();
+			cacheWriter = null;
+			AgentLog.flush();
+			System.setOut(stdout);
+			System.setErr(stderr);
+			GameReplay.delete(workDir);
+		}
+	}
+
+	/**
+	 * Splits a range of evaluations in halves down to single games, each played on the worker that runs it.
+	 */
+	private class EvaluationTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<Evaluation> evaluations;
+		private final int from;
+		private final int to;
+		private final ThreadLocal<MarketSimulator.NammParticipant> agent;
+
+		EvaluationTask(List<Evaluation> evaluations, int from, int to,
+				ThreadLocal<MarketSimulator.NammParticipant> agent) {
+			this.evaluations = evaluations;
+			this.from = from;
+			this.to = to;
+			this.agent = agent;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new EvaluationTask(evaluations, from, middle, agent),
+						new EvaluationTask(evaluations, middle, to, agent));
+				return;
+			}
+			Evaluation evaluation = evaluations.get(from);
+			MarketSimulator.NammParticipant namm = agent.get();
+			namm.agent.setParameters(evaluation.vector);
+			try {
+				record(evaluation.key, simulator.play(namm, evaluation.game));
+			} catch (Exception ex) {
+				throw new IllegalStateException("Game " + evaluation.game + " failed with " + evaluation.vector, ex);
+			}
+		}
+	}
+
+	private void record(String key, MarketSimulator.GameResult result) {
+		synchronized (results) {
+			results.put(key, result);
+			try {
+				cacheWriter.write(key + "\t" + result.balance + "\t" + result.quality + "\t" + result.campaignsWon
+						+ "\t" + result.rank + "\n");
+				cacheWriter.flush();
+			} catch (IOException ex) {
+				// The sweep goes on, the result is only lost for later sweeps
+				AgentLog.HISTORY.warning("Cannot write the sweep cache: " + ex);
+			}
+		}
+	}
+
+	/**
+	 * Reads the results of earlier sweeps; unreadable lines are skipped.
+	 *
+	 * @return number of results read
+	 */
+	private int loadCache(File cacheFile) throws IOException {
+		if (!cacheFile.exists()) {
+			return 0;
+		}
+		int count = 0;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile),
+				StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				// vector hash, game, balance, quality, campaigns won, rank
+				String[] fields = line.split("\t");
+				if (fields.length != 6) {
+					continue;
+				}
+				try {
+					results.put(fields[0] + "\t" + fields[1], new MarketSimulator.GameResult(
+							Double.parseDouble(fields[2]), Double.parseDouble(fields[3]), Integer.parseInt(fields[4]),
+							Integer.parseInt(fields[5]), 0, 0, 0));
+					count++;
+				} catch (NumberFormatException ex) {
+					// a line cut short by an interrupted sweep
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return count;
+	}
+
+	private static void parseGrid(String text, Map<StrategyParameters.Key, double[]> grid) {
+		int equals = text.indexOf('=');
+		if (equals < 0) {
+			throw new IllegalArgumentException("Expected --grid name=value,value..., got " + text);
+		}
+		String[] values = text.substring(equals + 1).split(",");
+		double[] parsed = new double[values.length];
+		for (int i = 0; i < values.length; i++) {
+			parsed[i] = Double.parseDouble(values[i].trim());
+		}
+		grid.put(StrategyParameters.Key.forName(text.substring(0, equals).trim()), parsed);
+	}
+
+	/**
+	 * Every combination of the grid values, the other keys at their defaults; empty without a grid.
+	 */
+	static List<StrategyParameters> gridVectors(Map<StrategyParameters.Key, double[]> grid) {
+		List<StrategyParameters> vectors = new ArrayList<StrategyParameters>();
+		if (grid.isEmpty()) {
+			return vectors;
+		}
+		vectors.add(StrategyParameters.DEFAULTS);
+		for (Map.Entry<StrategyParameters.Key, double[]> axis : grid.entrySet()) {
+			List<StrategyParameters> expanded = new ArrayList<StrategyParameters>();
+			for (StrategyParameters vector : vectors) {
+				for (double value : axis.getValue()) {
+					expanded.add(vector.with(axis.getKey(), value));
+				}
+			}
+			vectors = expanded;
+		}
+		return vectors;
+	}
+
+	/**
+	 * count vectors with the keys in vary drawn uniformly from their ranges, the others at their defaults.
+	 */
+	static List<StrategyParameters> randomVectors(int count, List<StrategyParameters.Key> vary, Random random) {
+		List<StrategyParameters> vectors = new ArrayList<StrategyParameters>();
+		for (int i = 0; i < count; i++) {
+			StrategyParameters vector = StrategyParameters.DEFAULTS;
+			for (StrategyParameters.Key key : vary) {
+				vector = vector.with(key, key.min + random.nextDouble() * (key.max - key.min));
+			}
+			vectors.add(vector);
+		}
+		return vectors;
+	}
+
+	/**
+	 * One vector on one game, with the key it is cached under.
+	 */
+	private class Evaluation {
+		final StrategyParameters vector;
+		final int game;
+		final String key;
+
+		Evaluation(StrategyParameters vector, int game) {
+			this.vector = vector;
+			this.game = game;
+			this.key = vector.hash() + "\t" + gamePrefix + game;
+		}
+	}
+
+	/**
+	 * Totals of one vector over its games.
+	 */
+	static class Summary {
+		final StrategyParameters vector;
+		int games;
+		double balance;
+		double balanceSquares;
+		double quality;
+		int campaignsWon;
+		int rank;
+
+		Summary(StrategyParameters vector) {
+			this.vector = vector;
+		}
+
+		void add(MarketSimulator.GameResult result) {
+			games++;
+			balance += result.balance;
+			balanceSquares += result.balance * result.balance;
+			quality += result.quality;
+			campaignsWon += result.campaignsWon;
+			rank += result.rank;
+		}
+
+		double meanBalance() {
+			return balance / games;
+		}
+
+		double standardError() {
+			if (games < 2) {
+				return 0;
+			}
+			double mean = meanBalance();
+			double variance = Math.max(0, (balanceSquares - games * mean * mean) / (games - 1));
+			return Math.sqrt(variance / games);
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package soton.intagts;
+
+import java.util.Arrays;
+
+/**
+ * Sparse match matrix between the query space (rows) and the campaigns bidding in a bundle (columns).
+ *
+ * A campaign matches the queries of its target segment (see {@link QueryTemplates}). Only rows with at least one
+ * matching campaign are stored. Campaigns with the same target segment match the same queries, so each segment's
+ * columns are stored once and all of its rows point at them. Building and walking the matrix costs time linear in
+ * the matching rows plus the campaigns, however many campaigns run at once. The arrays are reused between builds,
+ * so a build allocates only when it grows.
+ */
+class QueryCampaignMatrix {
+
+	private final QueryTemplates templates;
+
+	/* Columns grouped by segment mask, in column order within a group */
+	private int[] columns = new int[16];
+	/* Per segment mask: number of columns, then start of its group in columns */
+	private final int[] maskCount = new int[SegmentMask.MASKS];
+	private final int[] maskStart = new int[SegmentMask.MASKS];
+	private final int[] maskNext = new int[SegmentMask.MASKS];
+
+	/* Per row: query index in the space and its range in columns */
+	private int[] rowQuery = new int[64];
+	private int[] rowStart = new int[64];
+	private int[] rowEnd = new int[64];
+	private int rows;
+
+	QueryCampaignMatrix(QueryTemplates templates) {
+		this.templates = templates;
+	}
+
+	/**
+	 * Rebuilds the matrix for count campaigns, the target segment mask of column c being masks[c].
+	 */
+	void build(int[] masks, int count) {
+		Arrays.fill(maskCount, 0);
+		for (int c = 0; c < count; c++) {
+			maskCount[masks[c]]++;
+		}
+		int offset = 0;
+		for (int mask = 0; mask < SegmentMask.MASKS; mask++) {
+			maskStart[mask] = offset;
+			offset += maskCount[mask];
+		}
+		if (columns.length < count) {
+			columns = new int[Math.max(count, 2 * columns.length)];
+		}
+		System.arraycopy(maskStart, 0, maskNext, 0, SegmentMask.MASKS);
+		for (int c = 0; c < count; c++) {
+			columns[maskNext[masks[c]]++] = c;
+		}
+
+		rows = 0;
+		for (int mask = 0; mask < SegmentMask.MASKS; mask++) {
+			if (maskCount[mask] == 0) {
+				continue;
+			}
+			for (int query : templates.indices(mask)) {
+				if (rows == rowQuery.length) {
+					rowQuery = Arrays.copyOf(rowQuery, 2 * rows);
+					rowStart = Arrays.copyOf(rowStart, 2 * rows);
+					rowEnd = Arrays.copyOf(rowEnd, 2 * rows);
+				}
+				rowQuery[rows] = query;
+				rowStart[rows] = maskStart[mask];
+				rowEnd[rows] = maskStart[mask] + maskCount[mask];
+				rows++;
+			}
+		}
+	}
+
+	/**
+	 * Rows with at least one matching campaign, grouped by segment and in template order within a segment.
+	 */
+	int rows() {
+		return rows;
+	}
+
+	/**
+	 * Index in the query space of row.
+	 */
+	int query(int row) {
+		return rowQuery[row];
+	}
+
+	/**
+	 * The campaigns matching row are column(k) for start(row) <= k < end(row).
+	 */
+	int start(int row) {
+		return rowStart[row];
+	}
+
+	int end(int row) {
+		return rowEnd[row];
+	}
+
+	int column(int k) {
+		return columns[k];
+	}
+}
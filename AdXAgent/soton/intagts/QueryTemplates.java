@@ -0,0 +1,135 @@
+package soton.intagts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import tau.tac.adx.ads.properties.AdType;
+import tau.tac.adx.devices.Device;
+import tau.tac.adx.props.AdxQuery;
+import tau.tac.adx.report.adn.MarketSegment;
+
+/**
+ * The query space of a game and the queries a campaign bids on, built once per publisher catalog.
+ *
+ * The space holds the queries from the agent's query space generation followed by the queries of every segment a
+ * campaign can target, each query once. A campaign targeting a segment bids on that segment's queries: for each
+ * publisher, mobile/text, mobile/video, pc/text and pc/video, in that order. Campaigns with the same target segment
+ * share one array.
+ *
+ * The arrays and the queries in them are shared, so callers must not modify either.
+ */
+class QueryTemplates {
+
+	private final String[] publishers;
+
+	/* Every query, addressed by its index */
+	private final List<AdxQuery> space = new ArrayList<AdxQuery>();
+	/* Per index in space: whether the query is for pc and for text ads, read without touching the query */
+	private boolean[] pc = new boolean[64];
+	private boolean[] text = new boolean[64];
+	/* publisher|segment mask|device|ad type to index in space */
+	private final Map<String, Integer> index = new HashMap<String, Integer>();
+
+	/* Per SegmentMask: indices in space of the segment's queries, and the queries themselves */
+	private final int[][] indicesBySegment = new int[SegmentMask.MASKS][];
+	private final AdxQuery[][] bySegment = new AdxQuery[SegmentMask.MASKS][];
+
+	QueryTemplates(String[] publishers, AdxQuery[] generated) {
+		this.publishers = publishers.clone();
+		for (AdxQuery query : generated) {
+			String key = key(query.getPublisher(), SegmentMask.of(query.getMarketSegments()), query.getDevice(),
+					query.getAdType());
+			if (!index.containsKey(key)) {
+				index.put(key, space.size());
+				add(query);
+			}
+		}
+		// Every segment a campaign can target, so no campaign allocates queries during the game
+		for (int mask = 0; mask < SegmentMask.MASKS; mask++) {
+			if (SegmentMask.population(mask) > 0) {
+				build(mask);
+			}
+		}
+	}
+
+	/**
+	 * Queries for a campaign targeting segment.
+	 */
+	AdxQuery[] forSegment(Set<MarketSegment> segment) {
+		int mask = SegmentMask.of(segment);
+		if (bySegment[mask] == null) {
+			build(mask);
+		}
+		return bySegment[mask];
+	}
+
+	/**
+	 * Indices in the space of the queries for a campaign targeting the segment mask.
+	 */
+	int[] indices(int mask) {
+		if (indicesBySegment[mask] == null) {
+			build(mask);
+		}
+		return indicesBySegment[mask];
+	}
+
+	AdxQuery query(int i) {
+		return space.get(i);
+	}
+
+	boolean pc(int i) {
+		return pc[i];
+	}
+
+	boolean text(int i) {
+		return text[i];
+	}
+
+	int size() {
+		return space.size();
+	}
+
+	private void add(AdxQuery query) {
+		int i = space.size();
+		if (i == pc.length) {
+			pc = Arrays.copyOf(pc, 2 * i);
+			text = Arrays.copyOf(text, 2 * i);
+		}
+		pc[i] = query.getDevice() == Device.pc;
+		text[i] = query.getAdType() == AdType.text;
+		space.add(query);
+	}
+
+	private void build(int mask) {
+		Set<MarketSegment> segment = SegmentMask.toSet(mask);
+		int[] indices = new int[publishers.length * 4];
+		AdxQuery[] queries = new AdxQuery[indices.length];
+		int i = 0;
+		for (String publisher : publishers) {
+			for (Device device : new Device[] { Device.mobile, Device.pc }) {
+				for (AdType adType : new AdType[] { AdType.text, AdType.video }) {
+					String key = key(publisher, mask, device, adType);
+					Integer existing = index.get(key);
+					if (existing == null) {
+						existing = space.size();
+						index.put(key, existing);
+						add(new AdxQuery(publisher, segment, device, adType));
+					}
+					indices[i] = existing;
+					queries[i] = space.get(existing);
+					i++;
+				}
+			}
+		}
+		indicesBySegment[mask] = indices;
+		bySegment[mask] = queries;
+	}
+
+	private static String key(String publisher, int mask, Device device, AdType adType) {
+		return publisher + '|' + mask + '|' + device + '|' + adType;
+	}
+}
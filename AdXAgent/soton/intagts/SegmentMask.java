@@ -0,0 +1,104 @@
+package soton.intagts;
+
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+
+import tau.tac.adx.report.adn.MarketSegment;
+
+/**
+ * Encodes a campaign target segment (a set of {@link MarketSegment}) as a 6 bit mask, one bit per
+ * MarketSegment ordinal, and precomputes the tables the impression cost estimator needs per mask:
+ * the number of users in the segment and whether two segments compete for the same users.
+ */
+final class SegmentMask {
+
+	static final int MASKS = 1 << 6;
+
+	private static final int MALE = bit(MarketSegment.MALE);
+	private static final int FEMALE = bit(MarketSegment.FEMALE);
+	private static final int YOUNG = bit(MarketSegment.YOUNG);
+	private static final int OLD = bit(MarketSegment.OLD);
+	private static final int LOW_INCOME = bit(MarketSegment.LOW_INCOME);
+	private static final int HIGH_INCOME = bit(MarketSegment.HIGH_INCOME);
+
+	/* Users in the segment of each mask, 0 when the mask is not a valid segment */
+	private static final double[] POPULATION = new double[MASKS];
+
+	/* COMPETES[ours * MASKS + theirs] */
+	private static final boolean[] COMPETES = new boolean[MASKS * MASKS];
+
+	static {
+		for (Map.Entry<Set<MarketSegment>, Integer> entry : MarketSegment.usersInMarketSegments().entrySet()) {
+			POPULATION[of(entry.getKey())] = entry.getValue();
+		}
+		for (int ours = 0; ours < MASKS; ours++) {
+			for (int theirs = 0; theirs < MASKS; theirs++) {
+				COMPETES[ours * MASKS + theirs] = competesSlow(ours, theirs);
+			}
+		}
+	}
+
+	private SegmentMask() {
+	}
+
+	static int of(Set<MarketSegment> segment) {
+		int mask = 0;
+		for (MarketSegment s : segment) {
+			mask |= bit(s);
+		}
+		return mask;
+	}
+
+	static Set<MarketSegment> toSet(int mask) {
+		Set<MarketSegment> segment = EnumSet.noneOf(MarketSegment.class);
+		for (MarketSegment s : MarketSegment.values()) {
+			if ((mask & bit(s)) != 0) {
+				segment.add(s);
+			}
+		}
+		return segment;
+	}
+
+	static double population(int mask) {
+		return POPULATION[mask];
+	}
+
+	/**
+	 * True when a campaign targeting theirs bids for users our campaign targets as well.
+	 */
+	static boolean competes(int ours, int theirs) {
+		return COMPETES[ours * MASKS + theirs];
+	}
+
+	/**
+	 * Same decision the estimator used to take with its if/else tree: for every attribute our segment fixes
+	 * (gender, then age, then income) the other segment must not fix the opposite value. An empty segment
+	 * competes with nothing. Fills COMPETES; SegmentMaskTest checks the table against it.
+	 */
+	static boolean competesSlow(int ours, int theirs) {
+		if ((ours & (MALE | FEMALE | YOUNG | OLD | LOW_INCOME | HIGH_INCOME)) == 0) {
+			return false;
+		}
+		if ((ours & MALE) != 0) {
+			if ((theirs & FEMALE) != 0) { return false; }
+		} else if ((ours & FEMALE) != 0) {
+			if ((theirs & MALE) != 0) { return false; }
+		}
+		if ((ours & OLD) != 0) {
+			if ((theirs & YOUNG) != 0) { return false; }
+		} else if ((ours & YOUNG) != 0) {
+			if ((theirs & OLD) != 0) { return false; }
+		}
+		if ((ours & HIGH_INCOME) != 0) {
+			if ((theirs & LOW_INCOME) != 0) { return false; }
+		} else if ((ours & LOW_INCOME) != 0) {
+			if ((theirs & HIGH_INCOME) != 0) { return false; }
+		}
+		return true;
+	}
+
+	private static int bit(MarketSegment segment) {
+		return 1 << segment.ordinal();
+	}
+}
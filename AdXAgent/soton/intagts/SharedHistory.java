@@ -0,0 +1,280 @@
+package soton.intagts;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Read-only history of previous games, shared by every agent of the JVM that keeps its history in the same
+ * directory.
+ *
+ * A snapshot is the impression files and campaign logs of the journal at one point in time, with everything the
+ * agents derive from them: the aggregate index of the impressions and the percentiles of the historic campaign
+ * bids. The impression files stay memory mapped - no record is copied onto the heap - and the derived data is
+ * built once per snapshot instead of once per agent. Nothing in a snapshot changes after it is published, so any
+ * number of agents read it concurrently without locking. What an agent learns during a game goes to its own
+ * overlay (see AgentNAMM.ImpressionHistory), never into the snapshot.
+ *
+ * Only the impression records of the games the journal's HistoryRetention keeps go into the aggregate index,
+ * weighted by the age of their game; evicted records stay in the files until the next compaction drops them.
+ *
+ * Snapshots are reference counted. Every acquire must be matched by one release; while at least one agent holds
+ * the latest snapshot of a directory, acquiring it again is a lookup as long as the journal files are unchanged.
+ * Once the last holder releases it the snapshot leaves the cache, and its mappings go with the last reference.
+ */
+class SharedHistory {
+
+	/* Latest snapshot of each journal, only while it is held */
+	private static final Map<HistoryJournal, SharedHistory> CACHE = new HashMap<HistoryJournal, SharedHistory>();
+
+	private final String version;
+	private final List<ImpressionHistoryStore> impressions;
+	private final int impressionCount;
+	private final int evictedCount;
+	private final int gameCount;
+	private final ImpressionStatsIndex stats;
+	private final List<CampaignLogStore> campaignLogs;
+	private final int campaignCount;
+	private final BidPercentiles unprofitableBids;
+	private final BidPercentiles wonBids;
+
+	/* Guarded by CACHE */
+	private int references = 1;
+
+	private SharedHistory(String version, List<ImpressionHistoryStore> impressions, List<CampaignLogStore> campaignLogs,
+						  HistoryRetention retention) {
+		this.version = version;
+		this.impressions = Collections.unmodifiableList(impressions);
+		this.campaignLogs = Collections.unmodifiableList(campaignLogs);
+
+		int oldestGame = retention.oldestGame(impressions);
+		stats = new ImpressionStatsIndex(retention.halfLife, oldestGame);
+		HistoryRetention.GameSequence sequence = new HistoryRetention.GameSequence();
+		int records = 0;
+		int evicted = 0;
+		for (ImpressionHistoryStore store : impressions) {
+			for (int i = 0; i < store.size(); i++) {
+				int game = sequence.next(store.gameId(i));
+				if (game < oldestGame) {
+					evicted++;
+					continue;
+				}
+				// Same derived values as the agent's own records, which the history was once loaded into
+				int winCount = store.winCount(i);
+				stats.add(ImpressionRecords.genderSegment(store.gender(i)), ImpressionRecords.ageSegment(store.age(i)),
+						ImpressionRecords.incomeSegment(store.income(i)), store.adType(i), store.device(i),
+						store.publisher(i), store.totalCost(i) / winCount, store.bidCount(i) - winCount == 0, game);
+				records++;
+			}
+		}
+		impressionCount = records;
+		evictedCount = evicted;
+		gameCount = sequence.count();
+
+		unprofitableBids = new BidPercentiles();
+		wonBids = new BidPercentiles();
+		int campaigns = 0;
+		for (CampaignLogStore log : campaignLogs) {
+			for (int i = 0; i < log.size(); i++) {
+				double cmpBid = log.value(i, CampaignLogStore.CMP_BID);
+				if (log.value(i, CampaignLogStore.PROFIT) < 0) {
+					unprofitableBids.add(cmpBid / (log.value(i, CampaignLogStore.TARGETED_IMPS)
+							+ log.value(i, CampaignLogStore.UNTARGETED_IMPS)));
+				}
+				// for non randomly assigned campaigns
+				if ((log.value(i, CampaignLogStore.BUDGET) - cmpBid) > 0.001) {
+					wonBids.add(cmpBid / log.reachImps(i));
+				}
+			}
+			campaigns += log.size();
+		}
+		campaignCount = campaigns;
+	}
+
+	/**
+	 * The snapshot of the journal's current files, loaded only if no agent holds it already. The caller owns one
+	 * reference and must release it.
+	 */
+	static SharedHistory acquire(HistoryJournal journal) throws IOException {
+		// The journal lock keeps a compaction (of this or another agent) from deleting the files before they are
+		// mapped, and lets only one agent at a time load the history of a directory
+		journal.lock();
+		try {
+			convertLegacyFiles(journal);
+			List<File> impressionFiles = journal.impressionFiles();
+			List<File> campaignFiles = journal.campaignFiles();
+			String version = version(impressionFiles, campaignFiles);
+			synchronized (CACHE) {
+				SharedHistory cached = CACHE.get(journal);
+				if (cached != null && cached.version.equals(version)) {
+					cached.references++;
+					return cached;
+				}
+			}
+			SharedHistory loaded = read(version, impressionFiles, campaignFiles, journal.getRetention());
+			synchronized (CACHE) {
+				CACHE.put(journal, loaded);
+			}
+			return loaded;
+		} finally {
+			journal.unlock();
+		}
+	}
+
+	/**
+	 * Loads the journal's current files into a new snapshot that is not shared with anyone, e.g. to time the load.
+	 */
+	static SharedHistory read(HistoryJournal journal) throws IOException {
+		journal.lock();
+		try {
+			convertLegacyFiles(journal);
+			List<File> impressionFiles = journal.impressionFiles();
+			List<File> campaignFiles = journal.campaignFiles();
+			return read(version(impressionFiles, campaignFiles), impressionFiles, campaignFiles,
+					journal.getRetention());
+		} finally {
+			journal.unlock();
+		}
+	}
+
+	/**
+	 * A snapshot without any history, for an agent whose history could not be read.
+	 */
+	static SharedHistory empty() {
+		return new SharedHistory("", new ArrayList<ImpressionHistoryStore>(), new ArrayList<CampaignLogStore>(),
+				HistoryRetention.UNBOUNDED);
+	}
+
+	/**
+	 * Gives back one reference. The snapshot must not be used through it afterwards.
+	 */
+	void release() {
+		synchronized (CACHE) {
+			if (references <= 0) {
+				throw new IllegalStateException("Shared history released more often than acquired");
+			}
+			if (--references == 0) {
+				CACHE.values().remove(this);
+			}
+		}
+	}
+
+	/**
+	 * Impression records in the aggregate index, those of the games the retention keeps.
+	 */
+	int impressionCount() {
+		return impressionCount;
+	}
+
+	/**
+	 * Impression records still in the files but outside the retention.
+	 */
+	int evictedCount() {
+		return evictedCount;
+	}
+
+	/**
+	 * Games in the impression files, in the numbering of HistoryRetention.GameSequence; also the number the game
+	 * played next has in the aggregate index.
+	 */
+	int gameCount() {
+		return gameCount;
+	}
+
+	/**
+	 * Mapped impression files, oldest first.
+	 */
+	List<ImpressionHistoryStore> impressions() {
+		return impressions;
+	}
+
+	/**
+	 * Aggregates of the retained impression records. Shared: copy it before adding records.
+	 */
+	ImpressionStatsIndex stats() {
+		return stats;
+	}
+
+	int campaignCount() {
+		return campaignCount;
+	}
+
+	List<CampaignLogStore> campaignLogs() {
+		return campaignLogs;
+	}
+
+	/**
+	 * Bid per delivered impression of the historic campaigns that made a loss. Shared: never add to it.
+	 */
+	BidPercentiles unprofitableBids() {
+		return unprofitableBids;
+	}
+
+	/**
+	 * Bid per reach impression of the historic campaigns won by bidding. Shared: never add to it.
+	 */
+	BidPercentiles wonBids() {
+		return wonBids;
+	}
+
+	private static SharedHistory read(String version, List<File> impressionFiles, List<File> campaignFiles,
+									  HistoryRetention retention) throws IOException {
+		List<ImpressionHistoryStore> impressions = new ArrayList<ImpressionHistoryStore>();
+		for (File file : impressionFiles) {
+			impressions.add(ImpressionHistoryStore.open(file));
+		}
+		List<CampaignLogStore> campaignLogs = new ArrayList<CampaignLogStore>();
+		for (File file : campaignFiles) {
+			campaignLogs.add(CampaignLogStore.open(file));
+		}
+		return new SharedHistory(version, impressions, campaignLogs, retention);
+	}
+
+	/**
+	 * When only BHFull.csv or CmpLog.csv exists (first run after an upgrade, no base of either form yet) it is
+	 * converted once, skipping malformed lines, and the binary file is used from then on.
+	 */
+	private static void convertLegacyFiles(HistoryJournal journal) throws IOException {
+		File binFile = journal.getImpressionBase();
+		File csvFile = new File(binFile.getParentFile(), "BHFull.csv");
+		if (!journal.hasImpressionBase() && csvFile.exists()) {
+			ImpressionHistoryStore.Builder builder = new ImpressionHistoryStore.Builder();
+			int skipped = ImpressionHistoryStore.importCsv(csvFile, builder);
+			builder.write(binFile);
+			AgentLog.HISTORY.info("#####LOADFILE##### Converted BHFull.csv: %d records, %d malformed lines skipped",
+					builder.size(), skipped);
+		}
+		File campaignBinFile = journal.getCampaignBase();
+		File campaignCsvFile = new File(campaignBinFile.getParentFile(), "CmpLog.csv");
+		if (!journal.hasCampaignBase() && campaignCsvFile.exists()) {
+			CampaignLogStore.Builder builder = new CampaignLogStore.Builder();
+			int skipped = CampaignLogStore.importCsv(campaignCsvFile, builder);
+			builder.write(campaignBinFile);
+			AgentLog.HISTORY.info("#####LOADFILE##### Converted CmpLog.csv: %d campaigns, %d lines skipped",
+					builder.size(), skipped);
+		}
+	}
+
+	/**
+	 * Identifies the contents of the files: files are only ever replaced by a rename or appended as new segments,
+	 * so the same names, sizes and modification times mean the same history.
+	 */
+	private static String version(List<File> impressionFiles, List<File> campaignFiles) {
+		StringBuilder version = new StringBuilder();
+		for (File file : impressionFiles) {
+			version.append(file.getPath()).append(':').append(file.length()).append(':')
+					.append(file.lastModified()).append(';');
+		}
+		version.append('|');
+		for (File file : campaignFiles) {
+			version.append(file.getPath()).append(':').append(file.length()).append(':')
+					.append(file.lastModified()).append(';');
+		}
+		return version.toString();
+	}
+}
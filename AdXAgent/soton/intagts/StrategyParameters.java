@@ -0,0 +1,190 @@
+package soton.intagts;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The constants of AgentNAMM's bidding strategies as one immutable vector, so they can be varied without editing
+ * the agent. DEFAULTS holds the values the agent always played with.
+ *
+ * A vector is written as name=value pairs separated by commas, e.g. "startDays=4,ucsScale=0.2"; names not given
+ * keep their defaults. The agent reads the vector from the namm.parameters system property when it is created;
+ * the sweep tools set it per agent instead. Every key has the range the sweep draws from, and values outside it
+ * are rejected so a typo does not quietly play a broken strategy.
+ */
+final class StrategyParameters {
+
+	enum Key {
+		/* Days on which the campaign starting strategy bids */
+		START_DAYS("startDays", 5, 0, 20, true),
+		/* Minimum weight of the historic bids against this game's in the lowest campaign bid */
+		HISTORIC_FRAC("historicFrac", 0.5, 0, 1, false),
+		/* Campaign bid per reach impression while fewer than three campaigns are owned, cut by 10% per bid */
+		CMP_BID_PER_IMP("cmpBidPerImp", 0.8, 0.1, 1.5, false),
+		/* Bounds of the reach perceptron that scales the impression bids */
+		REACH_PERCEPTRON_MIN("reachPerceptronMin", 0.5, 0.1, 1, false),
+		REACH_PERCEPTRON_MAX("reachPerceptronMax", 2, 1, 4, false),
+		/* UCS bid on the first ten days, and the scale of the cube root of the running campaigns afterwards */
+		UCS_INIT_BID("ucsInitBid", 0.25, 0, 1, false),
+		UCS_SCALE("ucsScale", 0.17, 0, 0.6, false),
+		/* Impression bid (CPM) per unit of a campaign's estimated impression cost */
+		IMP_BID_FACTOR("impBidFactor", 500, 100, 1500, false),
+		/* Confidence of the lowest and percentage of failure of the highest campaign bid */
+		LOW_BID_CONFIDENCE("lowBidConfidence", 30, 5, 95, true),
+		HIGH_BID_FAILURE("highBidFailure", 95, 50, 100, true);
+
+		final String name;
+		final double defaultValue;
+		final double min;
+		final double max;
+		final boolean integral;
+
+		Key(String name, double defaultValue, double min, double max, boolean integral) {
+			this.name = name;
+			this.defaultValue = defaultValue;
+			this.min = min;
+			this.max = max;
+			this.integral = integral;
+		}
+
+		static Key forName(String name) {
+			for (Key key : values()) {
+				if (key.name.equals(name)) {
+					return key;
+				}
+			}
+			throw new IllegalArgumentException("Unknown strategy parameter " + name);
+		}
+	}
+
+	static final StrategyParameters DEFAULTS = new StrategyParameters(defaultValues());
+
+	private final double[] values;
+
+	private StrategyParameters(double[] values) {
+		this.values = values;
+	}
+
+	/**
+	 * The vector of the namm.parameters system property, DEFAULTS when it is not set.
+	 */
+	static StrategyParameters fromSystemProperty() {
+		String text = System.getProperty("namm.parameters");
+		return text == null ? DEFAULTS : parse(text);
+	}
+
+	/**
+	 * Parses name=value pairs separated by commas; an empty text is DEFAULTS.
+	 */
+	static StrategyParameters parse(String text) {
+		StrategyParameters parameters = DEFAULTS;
+		for (String pair : text.split(",")) {
+			pair = pair.trim();
+			if (pair.isEmpty()) {
+				continue;
+			}
+			int equals = pair.indexOf('=');
+			if (equals < 0) {
+				throw new IllegalArgumentException("Expected name=value, got " + pair);
+			}
+			parameters = parameters.with(Key.forName(pair.substring(0, equals).trim()),
+					Double.parseDouble(pair.substring(equals + 1).trim()));
+		}
+		return parameters;
+	}
+
+	double get(Key key) {
+		return values[key.ordinal()];
+	}
+
+	int getInt(Key key) {
+		return (int) Math.round(values[key.ordinal()]);
+	}
+
+	/**
+	 * A copy with key set to value, rounded if the key is integral.
+	 */
+	StrategyParameters with(Key key, double value) {
+		if (key.integral) {
+			value = Math.round(value);
+		}
+		if (!(value >= key.min && value <= key.max)) {
+			throw new IllegalArgumentException(key.name + "=" + value + " is outside [" + key.min + ", " + key.max
+					+ "]");
+		}
+		double[] copy = values.clone();
+		copy[key.ordinal()] = value;
+		return new StrategyParameters(copy);
+	}
+
+	/**
+	 * Short content hash of the vector, the same in every JVM for the same values.
+	 */
+	String hash() {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(toString().getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for (int i = 0; i < 8; i++) {
+				hex.append(String.format("%02x", digest[i]));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Only the values that differ from DEFAULTS, "defaults" if none does.
+	 */
+	String describeChanges() {
+		StringBuilder text = new StringBuilder();
+		for (Key key : Key.values()) {
+			if (get(key) != key.defaultValue) {
+				if (text.length() > 0) {
+					text.append(',');
+				}
+				text.append(key.name).append('=').append(format(key, get(key)));
+			}
+		}
+		return text.length() == 0 ? "defaults" : text.toString();
+	}
+
+	/**
+	 * Every value, in the form parse reads.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		for (Key key : Key.values()) {
+			if (text.length() > 0) {
+				text.append(',');
+			}
+			text.append(key.name).append('=').append(format(key, get(key)));
+		}
+		return text.toString();
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof StrategyParameters && Arrays.equals(values, ((StrategyParameters) other).values);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(values);
+	}
+
+	private static String format(Key key, double value) {
+		return key.integral ? String.valueOf((long) value) : String.valueOf(value);
+	}
+
+	private static double[] defaultValues() {
+		double[] values = new double[Key.values().length];
+		for (Key key : Key.values()) {
+			values[key.ordinal()] = key.defaultValue;
+		}
+		return values;
+	}
+}
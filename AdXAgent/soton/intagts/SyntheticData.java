@@ -0,0 +1,230 @@
+package soton.intagts;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import tau.tac.adx.props.PublisherCatalog;
+import tau.tac.adx.props.PublisherCatalogEntry;
+import tau.tac.adx.report.adn.MarketSegment;
+
+/**
+ * Generates impression history and campaign log data of any size whose distributions follow the real files.
+ *
+ * Impression rows are drawn from the rows of BHFull.csv, so the joint distribution of publisher, device, ad type,
+ * user attributes and bid/win counts is preserved, and their cost is scaled by log-normal noise with the spread of
+ * log(CostImpr) measured in the file. Campaigns are drawn from the rows of CmpLog.csv the same way, with columns
+ * looked up by header name so logs with or without the game column both work. Game, day and campaign ids are synthetic.
+ */
+class SyntheticData {
+
+	/* Columns of the campaign log, in the order the agent writes them */
+	static final String[] CAMPAIGN_LOG_COLUMNS = CampaignLogStore.CSV_HEADER.split(",");
+
+	static final String CAMPAIGN_LOG_HEADER = CampaignLogStore.CSV_HEADER;
+
+	/* Days in a game, as in the server configuration */
+	static final int GAME_DAYS = 60;
+
+	private final Random random;
+	private final ImpressionHistoryStore impressions;
+	private final double logCostSpread;
+	private final int rowsPerGame;
+	private final List<String[]> campaigns;
+	private final String[] campaignColumns;
+
+	private SyntheticData(long seed, ImpressionHistoryStore impressions, List<String[]> campaigns,
+						  String[] campaignColumns) {
+		this.random = new Random(seed);
+		this.impressions = impressions;
+		this.campaigns = campaigns;
+		this.campaignColumns = campaignColumns;
+
+		double sum = 0;
+		double sumSq = 0;
+		int n = 0;
+		Set<Integer> games = new HashSet<Integer>();
+		for (int i = 0; i < impressions.size(); i++) {
+			games.add(impressions.gameId(i));
+			if (impressions.costImpr(i) > 0) {
+				double log = Math.log(impressions.costImpr(i));
+				sum += log;
+				sumSq += log * log;
+				n++;
+			}
+		}
+		logCostSpread = n > 1 ? Math.sqrt(Math.max(0, (sumSq - sum * sum / n) / (n - 1))) : 0;
+		rowsPerGame = Math.max(1, impressions.size() / Math.max(1, games.size()));
+	}
+
+	/**
+	 * Reads the real history files the distributions are sampled from. Malformed lines are skipped.
+	 */
+	static SyntheticData fit(File impressionCsv, File campaignCsv, long seed) throws IOException {
+		ImpressionHistoryStore.Builder builder = new ImpressionHistoryStore.Builder();
+		ImpressionHistoryStore.importCsv(impressionCsv, builder);
+		if (builder.size() == 0) {
+			throw new IOException("No impression records in " + impressionCsv);
+		}
+		File sample = File.createTempFile("namm-sample", ".bin");
+		sample.deleteOnExit();
+		builder.write(sample);
+
+		List<String[]> campaigns = new ArrayList<String[]>();
+		String[] columns;
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(campaignCsv), StandardCharsets.UTF_8));
+		try {
+			String line = in.readLine();
+			if (line == null) {
+				throw new IOException("Empty campaign log " + campaignCsv);
+			}
+			columns = line.split(",");
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split(",");
+				if (fields.length >= columns.length && isCampaign(fields, columns)) {
+					campaigns.add(fields);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		if (campaigns.isEmpty()) {
+			throw new IOException("No campaigns in " + campaignCsv);
+		}
+		return new SyntheticData(seed, ImpressionHistoryStore.open(sample), campaigns, columns);
+	}
+
+	/**
+	 * Impression records of one game, about as many as a real game produces.
+	 */
+	int rowsPerGame() {
+		return rowsPerGame;
+	}
+
+	/**
+	 * Appends rows synthetic impression records spread over consecutive games starting at firstGame.
+	 */
+	void impressions(int rows, int firstGame, ImpressionHistoryStore.Builder out) {
+		for (int i = 0; i < rows; i++) {
+			int r = random.nextInt(impressions.size());
+			double scale = Math.exp(random.nextGaussian() * logCostSpread);
+			out.add(firstGame + i / rowsPerGame, random.nextInt(GAME_DAYS), random.nextInt(1000),
+					impressions.adType(r), impressions.device(r), impressions.publisher(r),
+					impressions.gender(r), impressions.mktGender(r), impressions.income(r), impressions.mktIncome(r),
+					impressions.age(r), impressions.mktAge(r), impressions.bidCount(r), impressions.winCount(r),
+					impressions.totalCost(r) * scale, impressions.costImpr(r) * scale, impressions.lostCount(r));
+		}
+	}
+
+	/**
+	 * Campaign log rows (without header) in the format the agent writes, spread over games starting at firstGame.
+	 */
+	List<String> campaignLogRows(int rows, int firstGame) {
+		List<String> out = new ArrayList<String>(rows);
+		for (int i = 0; i < rows; i++) {
+			String[] source = campaigns.get(random.nextInt(campaigns.size()));
+			StringBuilder row = new StringBuilder();
+			row.append(firstGame + i / 10).append(',').append(i);
+			for (int c = 2; c < CAMPAIGN_LOG_COLUMNS.length; c++) {
+				row.append(',').append(field(source, CAMPAIGN_LOG_COLUMNS[c]));
+			}
+			out.add(row.toString());
+		}
+		return out;
+	}
+
+	/**
+	 * A campaign with the shape of a real one: reach, length, target segment, coefficients and budget.
+	 */
+	Campaign campaign(int id, int dayStart) {
+		String[] source = campaigns.get(random.nextInt(campaigns.size()));
+		int length = (int) (Long.parseLong(field(source, "dayEnd")) - Long.parseLong(field(source, "dayStart")));
+		return new Campaign(id, Long.parseLong(field(source, "reachImps")), dayStart, dayStart + length,
+				CampaignLogStore.segment(field(source, "targetSegment")), Double.parseDouble(field(source, "videoCoef")),
+				Double.parseDouble(field(source, "mobileCoef")), Double.parseDouble(field(source, "budget")));
+	}
+
+	/**
+	 * Publisher catalog with every publisher seen in the impression history.
+	 */
+	Catalog catalog() {
+		Catalog catalog = new Catalog();
+		Set<String> seen = new LinkedHashSet<String>();
+		for (int i = 0; i < impressions.size(); i++) {
+			if (seen.add(impressions.publisher(i))) {
+				catalog.add(impressions.publisher(i));
+			}
+		}
+		return catalog;
+	}
+
+	Random random() {
+		return random;
+	}
+
+	private String field(String[] row, String column) {
+		int index = Arrays.asList(campaignColumns).indexOf(column);
+		return index < 0 ? "0" : row[index];
+	}
+
+	private static boolean isCampaign(String[] fields, String[] columns) {
+		try {
+			List<String> names = Arrays.asList(columns);
+			Long.parseLong(fields[names.indexOf("reachImps")]);
+			Long.parseLong(fields[names.indexOf("dayStart")]);
+			Long.parseLong(fields[names.indexOf("dayEnd")]);
+			Double.parseDouble(fields[names.indexOf("budget")]);
+			CampaignLogStore.segment(fields[names.indexOf("targetSegment")]);
+			return true;
+		} catch (RuntimeException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Campaign attributes as announced by the server.
+	 */
+	static class Campaign {
+		final int id;
+		final long reachImps;
+		final int dayStart;
+		final int dayEnd;
+		final Set<MarketSegment> targetSegment;
+		final double videoCoef;
+		final double mobileCoef;
+		final double budget;
+
+		Campaign(int id, long reachImps, int dayStart, int dayEnd, Set<MarketSegment> targetSegment, double videoCoef,
+				 double mobileCoef, double budget) {
+			this.id = id;
+			this.reachImps = reachImps;
+			this.dayStart = dayStart;
+			this.dayEnd = dayEnd;
+			this.targetSegment = targetSegment;
+			this.videoCoef = videoCoef;
+			this.mobileCoef = mobileCoef;
+			this.budget = budget;
+		}
+	}
+
+	/**
+	 * Publisher catalog built from names only; the server's catalog is built from full publisher definitions.
+	 */
+	static class Catalog extends PublisherCatalog {
+		private static final long serialVersionUID = 1L;
+
+		void add(String publisher) {
+			addEntry(new PublisherCatalogEntry(publisher));
+		}
+	}
+}
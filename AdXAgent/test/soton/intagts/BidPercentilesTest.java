@@ -0,0 +1,60 @@
+package soton.intagts;
+
+import java.util.Random;
+
+import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+
+/**
+ * BidPercentiles against DescriptiveStatistics, which the agent used before.
+ */
+final class BidPercentilesTest {
+
+	private static final double[] PERCENTILES = { 0.5, 1, 5, 10, 25, 33.3, 50, 66.7, 75, 90, 95, 99, 99.5, 100 };
+
+	private BidPercentilesTest() {
+	}
+
+	static void testMatchesDescriptiveStatistics() {
+		Random random = new Random(1);
+		for (int sample = 0; sample < 200; sample++) {
+			BidPercentiles percentiles = new BidPercentiles();
+			DescriptiveStatistics statistics = new DescriptiveStatistics();
+			int size = random.nextInt(300);
+			for (int i = 0; i < size; i++) {
+				// Some NaN bids, and repeated values as the history has
+				double value = random.nextInt(20) == 0 ? Double.NaN
+						: random.nextBoolean() ? random.nextInt(10) / 1000.0 : random.nextDouble() / 100;
+				percentiles.add(value);
+				statistics.addValue(value);
+			}
+			TestRunner.check(percentiles.count() == size, "count %d, expected %d", percentiles.count(), size);
+			for (double p : PERCENTILES) {
+				check(statistics.getPercentile(p), percentiles.percentile(p), "percentile " + p + " of " + size);
+			}
+			check(statistics.getMax(), percentiles.max(), "max of " + size);
+		}
+	}
+
+	static void testEmptyAndCleared() {
+		BidPercentiles percentiles = new BidPercentiles();
+		TestRunner.check(Double.isNaN(percentiles.percentile(50)) && Double.isNaN(percentiles.max()),
+				"empty sample not NaN");
+		percentiles.add(Double.NaN);
+		TestRunner.check(Double.isNaN(percentiles.percentile(50)) && percentiles.count() == 1,
+				"sample of one NaN");
+		percentiles.add(0.004);
+		percentiles.clear();
+		TestRunner.check(Double.isNaN(percentiles.max()) && percentiles.count() == 0, "cleared sample not empty");
+		percentiles.add(0.004);
+		check(0.004, percentiles.percentile(1), "single value");
+	}
+
+	/* Both NaN, or exactly equal up to rounding of the interpolation */
+	private static void check(double expected, double actual, String what) {
+		if (Double.isNaN(expected)) {
+			TestRunner.check(Double.isNaN(actual), "%s: expected NaN, got %s", what, actual);
+		} else {
+			TestRunner.checkClose(expected, actual, 1e-15, what);
+		}
+	}
+}
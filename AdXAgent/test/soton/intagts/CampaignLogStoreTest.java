@@ -0,0 +1,107 @@
+package soton.intagts;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * CampaignLogStore: rows written by the builder read back, through the binary file, the in-memory store and the CSV.
+ */
+final class CampaignLogStoreTest {
+
+	private CampaignLogStoreTest() {
+	}
+
+	static void testBinaryRoundTrip() throws IOException {
+		File dir = TestRunner.tempDir();
+		try {
+			CampaignLogStore.Builder builder = new CampaignLogStore.Builder();
+			Random random = new Random(1);
+			// More rows than the builder's first capacity, so it grows
+			for (int i = 0; i < 150; i++) {
+				add(builder, random, i);
+			}
+			File file = new File(dir, "CmpLog.bin");
+			builder.write(file);
+			checkSame(builder.toStore(), CampaignLogStore.open(file));
+			checkRows(CampaignLogStore.open(file), new Random(1));
+		} finally {
+			TestRunner.delete(dir);
+		}
+	}
+
+	static void testCsvRoundTrip() throws IOException {
+		File dir = TestRunner.tempDir();
+		try {
+			CampaignLogStore.Builder builder = new CampaignLogStore.Builder();
+			Random random = new Random(2);
+			for (int i = 0; i < 40; i++) {
+				add(builder, random, i);
+			}
+			CampaignLogStore store = builder.toStore();
+			File csv = new File(dir, "CmpLog.csv");
+			store.exportCsv(csv);
+			CampaignLogStore.Builder imported = new CampaignLogStore.Builder();
+			int skipped = CampaignLogStore.importCsv(csv, imported);
+			TestRunner.check(skipped == 0, "%d lines of the exported csv skipped", skipped);
+			checkSame(store, imported.toStore());
+		} finally {
+			TestRunner.delete(dir);
+		}
+	}
+
+	/**
+	 * Both ways of writing a target segment in the older logs parse to the same mask.
+	 */
+	static void testSegmentNames() {
+		int mask = SegmentMask.of(CampaignLogStore.segment("[MALE: YOUNG]"));
+		TestRunner.check(mask == SegmentMask.of(CampaignLogStore.segment("[YOUNG- MALE]")), "segment spellings differ");
+		TestRunner.check(SegmentMask.toSet(mask).size() == 2, "segment %s", SegmentMask.toSet(mask));
+		TestRunner.check(CampaignLogStore.segment("[]").isEmpty(), "empty segment not empty");
+	}
+
+	/* Adds row i, its values drawn from random */
+	private static void add(CampaignLogStore.Builder builder, Random random, int i) {
+		double[] values = new double[CampaignLogStore.DOUBLES];
+		for (int c = 0; c < values.length; c++) {
+			values[c] = random.nextGaussian() * 100;
+		}
+		int dayStart = 1 + random.nextInt(55);
+		builder.add(100 + i / 10, i, dayStart, dayStart + random.nextInt(10), 500 + random.nextInt(10000),
+				random.nextInt(SegmentMask.MASKS), random.nextInt(20000), values);
+	}
+
+	/* Checks the rows of store are those add drew from random */
+	private static void checkRows(CampaignLogStore store, Random random) {
+		TestRunner.check(store.size() == 150, "%d rows", store.size());
+		for (int i = 0; i < store.size(); i++) {
+			for (int c = 0; c < CampaignLogStore.DOUBLES; c++) {
+				double value = random.nextGaussian() * 100;
+				TestRunner.check(store.value(i, c) == value, "row %d column %d: %s, expected %s", i, c,
+						store.value(i, c), value);
+			}
+			int dayStart = 1 + random.nextInt(55);
+			int dayEnd = dayStart + random.nextInt(10);
+			long reach = 500 + random.nextInt(10000);
+			int mask = random.nextInt(SegmentMask.MASKS);
+			long target = random.nextInt(20000);
+			TestRunner.check(store.game(i) == 100 + i / 10 && store.id(i) == i && store.dayStart(i) == dayStart
+					&& store.dayEnd(i) == dayEnd && store.reachImps(i) == reach && store.segmentMask(i) == mask
+					&& store.impressionTarget(i) == target, "row %d differs", i);
+		}
+	}
+
+	private static void checkSame(CampaignLogStore expected, CampaignLogStore actual) {
+		TestRunner.check(actual.size() == expected.size(), "%d rows, expected %d", actual.size(), expected.size());
+		for (int i = 0; i < expected.size(); i++) {
+			TestRunner.check(actual.game(i) == expected.game(i) && actual.id(i) == expected.id(i)
+					&& actual.dayStart(i) == expected.dayStart(i) && actual.dayEnd(i) == expected.dayEnd(i)
+					&& actual.reachImps(i) == expected.reachImps(i) && actual.segmentMask(i) == expected.segmentMask(i)
+					&& actual.impressionTarget(i) == expected.impressionTarget(i), "row %d differs", i);
+			for (int c = 0; c < CampaignLogStore.DOUBLES; c++) {
+				TestRunner.check(actual.value(i, c) == expected.value(i, c), "row %d column %d: %s, expected %s", i,
+						c, actual.value(i, c), expected.value(i, c));
+			}
+		}
+	}
+}
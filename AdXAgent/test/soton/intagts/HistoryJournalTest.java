@@ -0,0 +1,125 @@
+package soton.intagts;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import tau.tac.adx.ads.properties.AdType;
+import tau.tac.adx.devices.Device;
+import tau.tac.adx.report.adn.MarketSegment;
+import tau.tac.adx.users.properties.Age;
+import tau.tac.adx.users.properties.Gender;
+import tau.tac.adx.users.properties.Income;
+
+/**
+ * HistoryJournal compaction: a record written twice is kept once, the games beyond the retention are evicted, and the
+ * merged files make way for a versioned base.
+ */
+final class HistoryJournalTest {
+
+	private HistoryJournalTest() {
+	}
+
+	static void testCompactionDeduplicatesAndEvicts() throws IOException {
+		File dir = TestRunner.tempDir();
+		try {
+			HistoryJournal journal = new HistoryJournal(dir, new HistoryRetention(0, 2, 0));
+			journal.appendImpressions(records(101, 5), 1);
+			journal.appendImpressions(records(102, 7), 2);
+			// The same game saved again, e.g. by a replay
+			journal.appendImpressions(records(102, 7), 2);
+			journal.appendImpressions(records(103, 3), 3);
+			TestRunner.check(journal.impressionFiles().size() == 4, "files before compaction: %s",
+					journal.impressionFiles());
+
+			journal.compactImpressions();
+			List<File> files = journal.impressionFiles();
+			TestRunner.check(files.size() == 1, "files after compaction: %s", files);
+			File base = files.get(0);
+			TestRunner.check(base.getName().matches("BHFull-\\d{13}\\.bin") && HistoryJournal.isBase(base.getName()),
+					"base %s", base.getName());
+			String[] segments = new File(dir, "history").list();
+			TestRunner.check(segments == null || segments.length == 0, "merged segments left: %s",
+					segments == null ? "" : String.join(" ", segments));
+
+			ImpressionHistoryStore store = ImpressionHistoryStore.open(base);
+			TestRunner.check(store.size() == 10, "%d records, expected the 7 + 3 of the last two games", store.size());
+			Set<String> keys = new HashSet<String>();
+			for (int i = 0; i < store.size(); i++) {
+				TestRunner.check(store.gameId(i) != 101, "record %d of the evicted game kept", i);
+				TestRunner.check(keys.add(store.recordKey(i)), "record %s kept twice", store.recordKey(i));
+			}
+			TestRunner.check(store.gameId(0) == 102 && store.gameId(store.size() - 1) == 103,
+					"records out of journal order");
+
+			// Games saved after the compaction are read after the base
+			journal.appendImpressions(records(104, 2), 4);
+			files = journal.impressionFiles();
+			TestRunner.check(files.size() == 2 && files.get(0).equals(base)
+					&& files.get(1).getParentFile().getName().equals("history"), "files after one more game: %s", files);
+		} finally {
+			TestRunner.delete(dir);
+		}
+	}
+
+	static void testCompactionWithoutSegmentsKeepsBase() throws IOException {
+		File dir = TestRunner.tempDir();
+		try {
+			records(101, 4).write(new File(dir, "BHFull.bin"));
+			HistoryJournal journal = new HistoryJournal(dir, HistoryRetention.UNBOUNDED);
+			journal.compactImpressions();
+			List<File> files = journal.impressionFiles();
+			TestRunner.check(files.size() == 1 && files.get(0).getName().equals("BHFull.bin"), "files %s", files);
+			TestRunner.check(journal.hasImpressionBase(), "base not found");
+		} finally {
+			TestRunner.delete(dir);
+		}
+	}
+
+	static void testCampaignCompactionDeduplicates() throws IOException {
+		File dir = TestRunner.tempDir();
+		try {
+			HistoryJournal journal = new HistoryJournal(dir, HistoryRetention.UNBOUNDED);
+			journal.appendCampaigns(campaigns(101, 0, 4), 1);
+			// Campaigns 2 and 3 logged again, then two new ones
+			journal.appendCampaigns(campaigns(101, 2, 6), 1);
+			journal.appendCampaigns(campaigns(102, 0, 3), 2);
+			journal.compactCampaigns();
+
+			List<File> files = journal.campaignFiles();
+			TestRunner.check(files.size() == 1 && files.get(0).getName().matches("CmpLog-\\d{13}\\.bin"),
+					"files after compaction: %s", files);
+			CampaignLogStore store = CampaignLogStore.open(files.get(0));
+			TestRunner.check(store.size() == 9, "%d rows, expected 6 + 3", store.size());
+			Set<Long> keys = new HashSet<Long>();
+			for (int i = 0; i < store.size(); i++) {
+				TestRunner.check(keys.add(((long) store.game(i) << 32) | store.id(i)), "game %d campaign %d kept twice",
+						store.game(i), store.id(i));
+			}
+		} finally {
+			TestRunner.delete(dir);
+		}
+	}
+
+	/* count distinct records of game */
+	private static ImpressionHistoryStore.Builder records(int game, int count) {
+		ImpressionHistoryStore.Builder builder = new ImpressionHistoryStore.Builder();
+		for (int day = 0; day < count; day++) {
+			builder.add(game, day, 7, AdType.text, Device.pc, "yahoo", Gender.male, MarketSegment.MALE, Income.low,
+					MarketSegment.LOW_INCOME, Age.Age_18_24, MarketSegment.YOUNG, 10, 4, 0.02, 0.005, 6);
+		}
+		return builder;
+	}
+
+	/* Campaigns from (inclusive) to to (exclusive) of game */
+	private static CampaignLogStore.Builder campaigns(int game, int from, int to) {
+		CampaignLogStore.Builder builder = new CampaignLogStore.Builder();
+		for (int id = from; id < to; id++) {
+			builder.add(game, id, 1, 5, 1000, SegmentMask.of(CampaignLogStore.segment("[MALE: YOUNG]")), 1200,
+					new double[CampaignLogStore.DOUBLES]);
+		}
+		return builder;
+	}
+}
@@ -0,0 +1,176 @@
+package soton.intagts;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import tau.tac.adx.ads.properties.AdType;
+import tau.tac.adx.devices.Device;
+import tau.tac.adx.report.adn.MarketSegment;
+import tau.tac.adx.users.properties.Age;
+import tau.tac.adx.users.properties.Gender;
+import tau.tac.adx.users.properties.Income;
+
+/**
+ * ImpressionHistoryStore: rows written by the builder read back column by column, through the binary file and
+ * through the CSV the R scripts use.
+ */
+final class ImpressionHistoryStoreTest {
+
+	private static final String[] PUBLISHERS = { "yahoo", "cnn", "nyt", "hfn", "msn", "fox", "amazon", "ebay" };
+
+	private ImpressionHistoryStoreTest() {
+	}
+
+	static void testBinaryRoundTrip() throws IOException {
+		File dir = TestRunner.tempDir();
+		try {
+			ImpressionHistoryStore.Builder builder = new ImpressionHistoryStore.Builder();
+			Expected expected = fill(builder, 500);
+			File file = new File(dir, "BHFull.bin");
+			builder.write(file);
+			TestRunner.check(!new File(dir, "BHFull.bin.tmp").exists(), "temp file left behind");
+			expected.check(ImpressionHistoryStore.open(file));
+		} finally {
+			TestRunner.delete(dir);
+		}
+	}
+
+	static void testCsvRoundTrip() throws IOException {
+		File dir = TestRunner.tempDir();
+		try {
+			ImpressionHistoryStore.Builder builder = new ImpressionHistoryStore.Builder();
+			Expected expected = fill(builder, 200);
+			File bin = new File(dir, "BHFull.bin");
+			builder.write(bin);
+			File csv = new File(dir, "BHFull.csv");
+			ImpressionHistoryStore.open(bin).exportCsv(csv);
+
+			ImpressionHistoryStore.Builder imported = new ImpressionHistoryStore.Builder();
+			int skipped = ImpressionHistoryStore.importCsv(csv, imported);
+			TestRunner.check(skipped == 0, "%d lines of the exported csv skipped", skipped);
+			File copy = new File(dir, "copy.bin");
+			imported.write(copy);
+			expected.check(ImpressionHistoryStore.open(copy));
+		} finally {
+			TestRunner.delete(dir);
+		}
+	}
+
+	/**
+	 * Lines that do not parse are skipped and counted; the others are kept.
+	 */
+	static void testImportSkipsMalformedLines() throws IOException {
+		File dir = TestRunner.tempDir();
+		try {
+			File csv = new File(dir, "BHFull.csv");
+			Writer out = new OutputStreamWriter(new FileOutputStream(csv), StandardCharsets.UTF_8);
+			try {
+				out.write("GameId,BidDay,CampId,AdType,Device,Publisher,Gender,MktGender,Income,MktIncome,Age,MktAge,"
+						+ "BidCount,WinCount,TotalCost,CostImpr,LostCount\n");
+				out.write("117,3,12,text,pc,yahoo,male,MALE,low,LOW_INCOME,Age_18_24,YOUNG,10,4,0.02,0.005,6\n");
+				out.write("<<<<<<< HEAD\n");
+				out.write("117,3,12,text,pc,yahoo,male,MALE,low,LOW_INCOME,Age_18_24\n");
+				out.write("117,3,12,banner,pc,yahoo,male,MALE,low,LOW_INCOME,Age_18_24,YOUNG,10,4,0.02,0.005,6\n");
+				out.write("117,4,12,video,mobile,cnn,female,FEMALE,high,HIGH_INCOME,Age_65_PLUS,OLD,8,8,0.04,0.005,0\n");
+			} finally {
+				out.close();
+			}
+			ImpressionHistoryStore.Builder builder = new ImpressionHistoryStore.Builder();
+			int skipped = ImpressionHistoryStore.importCsv(csv, builder);
+			TestRunner.check(skipped == 3, "skipped %d lines, expected 3", skipped);
+			TestRunner.check(builder.size() == 2, "kept %d rows, expected 2", builder.size());
+		} finally {
+			TestRunner.delete(dir);
+		}
+	}
+
+	/* Adds random rows to builder and returns them for comparison */
+	private static Expected fill(ImpressionHistoryStore.Builder builder, int rows) {
+		Random random = new Random(rows);
+		Expected expected = new Expected(rows);
+		for (int i = 0; i < rows; i++) {
+			expected.gameId[i] = 100 + i / 50;
+			expected.bidDay[i] = random.nextInt(61);
+			expected.campId[i] = random.nextInt(1000);
+			expected.adType[i] = AdType.values()[random.nextInt(AdType.values().length)];
+			expected.device[i] = Device.values()[random.nextInt(Device.values().length)];
+			expected.publisher[i] = PUBLISHERS[random.nextInt(PUBLISHERS.length)];
+			expected.gender[i] = Gender.values()[random.nextInt(Gender.values().length)];
+			expected.mktGender[i] = random.nextBoolean() ? MarketSegment.MALE : MarketSegment.FEMALE;
+			expected.income[i] = Income.values()[random.nextInt(Income.values().length)];
+			expected.mktIncome[i] = random.nextBoolean() ? MarketSegment.LOW_INCOME : MarketSegment.HIGH_INCOME;
+			expected.age[i] = Age.values()[random.nextInt(Age.values().length)];
+			expected.mktAge[i] = random.nextBoolean() ? MarketSegment.YOUNG : MarketSegment.OLD;
+			expected.bidCount[i] = random.nextInt(100);
+			expected.winCount[i] = random.nextInt(expected.bidCount[i] + 1);
+			expected.totalCost[i] = random.nextDouble() / 3;
+			expected.costImpr[i] = random.nextDouble() / 1000;
+			expected.lostCount[i] = expected.bidCount[i] - expected.winCount[i];
+			builder.add(expected.gameId[i], expected.bidDay[i], expected.campId[i], expected.adType[i],
+					expected.device[i], expected.publisher[i], expected.gender[i], expected.mktGender[i],
+					expected.income[i], expected.mktIncome[i], expected.age[i], expected.mktAge[i],
+					expected.bidCount[i], expected.winCount[i], expected.totalCost[i], expected.costImpr[i],
+					expected.lostCount[i]);
+		}
+		return expected;
+	}
+
+	/**
+	 * The rows added, one array per column.
+	 */
+	private static final class Expected {
+		final int[] gameId, bidDay, campId, bidCount, winCount, lostCount;
+		final AdType[] adType;
+		final Device[] device;
+		final String[] publisher;
+		final Gender[] gender;
+		final Income[] income;
+		final Age[] age;
+		final MarketSegment[] mktGender, mktIncome, mktAge;
+		final double[] totalCost, costImpr;
+
+		Expected(int rows) {
+			gameId = new int[rows];
+			bidDay = new int[rows];
+			campId = new int[rows];
+			bidCount = new int[rows];
+			winCount = new int[rows];
+			lostCount = new int[rows];
+			adType = new AdType[rows];
+			device = new Device[rows];
+			publisher = new String[rows];
+			gender = new Gender[rows];
+			income = new Income[rows];
+			age = new Age[rows];
+			mktGender = new MarketSegment[rows];
+			mktIncome = new MarketSegment[rows];
+			mktAge = new MarketSegment[rows];
+			totalCost = new double[rows];
+			costImpr = new double[rows];
+		}
+
+		void check(ImpressionHistoryStore store) {
+			TestRunner.check(store.size() == gameId.length, "%d rows read, %d written", store.size(), gameId.length);
+			for (int i = 0; i < gameId.length; i++) {
+				TestRunner.check(store.gameId(i) == gameId[i] && store.bidDay(i) == bidDay[i]
+						&& store.campId(i) == campId[i], "row %d: game, day or campaign differs", i);
+				TestRunner.check(store.adType(i) == adType[i] && store.device(i) == device[i]
+						&& store.publisher(i).equals(publisher[i]), "row %d: ad type, device or publisher differs", i);
+				TestRunner.check(store.gender(i) == gender[i] && store.income(i) == income[i] && store.age(i) == age[i],
+						"row %d: user attributes differ", i);
+				TestRunner.check(store.mktGender(i) == mktGender[i] && store.mktIncome(i) == mktIncome[i]
+						&& store.mktAge(i) == mktAge[i], "row %d: market segments differ", i);
+				TestRunner.check(store.bidCount(i) == bidCount[i] && store.winCount(i) == winCount[i]
+						&& store.lostCount(i) == lostCount[i], "row %d: counts differ", i);
+				TestRunner.check(store.totalCost(i) == totalCost[i] && store.costImpr(i) == costImpr[i],
+						"row %d: costs differ: %s %s, expected %s %s", i, store.totalCost(i), store.costImpr(i),
+						totalCost[i], costImpr[i]);
+			}
+		}
+	}
+}
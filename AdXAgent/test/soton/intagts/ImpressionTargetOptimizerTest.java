@@ -0,0 +1,84 @@
+package soton.intagts;
+
+import java.util.Random;
+
+/**
+ * ImpressionTargetOptimizer against a sweep over every target of its range, with the profit evaluated here from
+ * the definition: the agent's estimators cost 0.0006 per impression of daily target and 0.15 of UCS a day.
+ */
+final class ImpressionTargetOptimizerTest {
+
+	private static final double COST_PER_IMPRESSION = 0.0006;
+	private static final double UCS_COST = 0.15;
+
+	private ImpressionTargetOptimizerTest() {
+	}
+
+	/**
+	 * Campaigns of random reach, length, budget, quality and remaining revenue, with the peak of the profit inside,
+	 * below and above the range of targets.
+	 */
+	static void testOptimumMatchesSweep() {
+		Random random = new Random(1);
+		for (int n = 0; n < 400; n++) {
+			long reach = 100 + random.nextInt(12000);
+			long length = 1 + random.nextInt(10);
+			long daysLeft = 1 + random.nextInt((int) length + 1);
+			double budget = reach * 0.003 * random.nextDouble();
+			double quality = 1.2 * random.nextDouble();
+			double revenueRemaining = random.nextInt(4) == 0 ? -20 * random.nextDouble() : 200 * random.nextDouble();
+			double fixedCost = budget * random.nextDouble() + UCS_COST * daysLeft;
+			checkCampaign(reach, length, budget, quality, revenueRemaining, fixedCost,
+					COST_PER_IMPRESSION * daysLeft);
+		}
+	}
+
+	/**
+	 * Nothing to earn (the cost decides, so the lowest target wins) and nothing to pay (the highest target wins).
+	 */
+	static void testDegenerateProfits() {
+		checkCampaign(1000, 5, 0, 0.9, 0, 3, COST_PER_IMPRESSION * 6);
+		checkCampaign(1000, 5, 2, 0.9, 50, 0, 0);
+		checkCampaign(1, 1, 0.001, 1, 0, 0, COST_PER_IMPRESSION);
+	}
+
+	private static void checkCampaign(long reach, long length, double budget, double quality, double revenueRemaining,
+			double fixedCost, double dailyTargetCost) {
+		ImpressionTargetOptimizer optimizer = new ImpressionTargetOptimizer(reach, budget, quality, revenueRemaining,
+				fixedCost, dailyTargetCost, length);
+		long lowest = (long) (reach * 0.6);
+		long highest = (long) (reach * 2);
+		long best = lowest;
+		double bestProfit = Double.NEGATIVE_INFINITY;
+		for (long target = lowest; target <= highest; target++) {
+			double profit = profit(target, reach, length, budget, quality, revenueRemaining, fixedCost,
+					dailyTargetCost);
+			if (profit > bestProfit) {
+				best = target;
+				bestProfit = profit;
+			}
+		}
+
+		long target = optimizer.optimize();
+		String campaign = String.format("reach %d, length %d, budget %s, quality %s, revenue %s, fixed %s, daily %s",
+				reach, length, budget, quality, revenueRemaining, fixedCost, dailyTargetCost);
+		TestRunner.check(target >= lowest && target <= highest, "target %d outside [%d, %d] for %s", target, lowest,
+				highest, campaign);
+		double profit = profit(target, reach, length, budget, quality, revenueRemaining, fixedCost, dailyTargetCost);
+		TestRunner.checkClose(profit, optimizer.profit(target), 1e-12, "optimizer profit of " + campaign);
+		TestRunner.check(profit >= bestProfit - 1e-12 * Math.max(1, Math.abs(bestProfit)),
+				"target %d has profit %s, the sweep found %d with %s for %s", target, profit, best, bestProfit,
+				campaign);
+	}
+
+	/* Estimated profit of target, from the definition in ImpressionTargetOptimizer */
+	private static double profit(long target, long reach, long length, double budget, double quality,
+			double revenueRemaining, double fixedCost, double dailyTargetCost) {
+		double a = 4.08577;
+		double b = 3.08577;
+		double err = (2 / a) * (Math.atan(a * target / (double) reach - b) - Math.atan(-b));
+		double qualityAfter = 0.4 * quality + 0.6 * err;
+		double cost = fixedCost + dailyTargetCost * (target / length);
+		return budget * err + (qualityAfter - quality) * revenueRemaining - cost;
+	}
+}
@@ -0,0 +1,92 @@
+package soton.intagts;
+
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+
+import tau.tac.adx.report.adn.MarketSegment;
+
+/**
+ * SegmentMask's tables against the decisions they replace.
+ */
+final class SegmentMaskTest {
+
+	private SegmentMaskTest() {
+	}
+
+	static void testCompetesMatchesSlowPath() {
+		for (int ours = 0; ours < SegmentMask.MASKS; ours++) {
+			for (int theirs = 0; theirs < SegmentMask.MASKS; theirs++) {
+				TestRunner.check(SegmentMask.competes(ours, theirs) == SegmentMask.competesSlow(ours, theirs),
+						"competes(%s, %s) differs from the slow path", SegmentMask.toSet(ours), SegmentMask.toSet(theirs));
+			}
+		}
+	}
+
+	/**
+	 * For the segments a campaign can target (at most one value of each attribute), two segments compete unless they
+	 * fix opposite values of an attribute.
+	 */
+	static void testCompetesMatchesSets() {
+		for (int ours = 0; ours < SegmentMask.MASKS; ours++) {
+			Set<MarketSegment> ourSegment = SegmentMask.toSet(ours);
+			if (!isTargetable(ourSegment)) {
+				continue;
+			}
+			for (int theirs = 0; theirs < SegmentMask.MASKS; theirs++) {
+				Set<MarketSegment> theirSegment = SegmentMask.toSet(theirs);
+				boolean expected = !ourSegment.isEmpty();
+				for (MarketSegment s : ourSegment) {
+					if (theirSegment.contains(opposite(s))) {
+						expected = false;
+					}
+				}
+				TestRunner.check(SegmentMask.competes(ours, theirs) == expected, "competes(%s, %s): expected %s",
+						ourSegment, theirSegment, expected);
+			}
+		}
+	}
+
+	static void testSetRoundTrip() {
+		for (int mask = 0; mask < SegmentMask.MASKS; mask++) {
+			TestRunner.check(SegmentMask.of(SegmentMask.toSet(mask)) == mask, "mask %d", mask);
+		}
+		TestRunner.check(SegmentMask.of(EnumSet.allOf(MarketSegment.class)) == SegmentMask.MASKS - 1,
+				"every segment is not the full mask");
+	}
+
+	static void testPopulation() {
+		Map<Set<MarketSegment>, Integer> users = MarketSegment.usersInMarketSegments();
+		for (int mask = 0; mask < SegmentMask.MASKS; mask++) {
+			Integer expected = users.get(SegmentMask.toSet(mask));
+			TestRunner.check(SegmentMask.population(mask) == (expected == null ? 0 : expected),
+					"population of %s: %s, expected %s", SegmentMask.toSet(mask), SegmentMask.population(mask), expected);
+		}
+	}
+
+	private static boolean isTargetable(Set<MarketSegment> segment) {
+		for (MarketSegment s : segment) {
+			if (segment.contains(opposite(s))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static MarketSegment opposite(MarketSegment segment) {
+		switch (segment) {
+		case MALE:
+			return MarketSegment.FEMALE;
+		case FEMALE:
+			return MarketSegment.MALE;
+		case YOUNG:
+			return MarketSegment.OLD;
+		case OLD:
+			return MarketSegment.YOUNG;
+		case LOW_INCOME:
+			return MarketSegment.HIGH_INCOME;
+		default:
+			return MarketSegment.LOW_INCOME;
+		}
+	}
+}
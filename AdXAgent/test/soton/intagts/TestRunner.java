@@ -0,0 +1,103 @@
+package soton.intagts;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Runs the agent's tests: every static testXxx() method of the classes in TESTS. A test fails by throwing, usually
+ * through check(); there is no test library, so the tests run wherever the agent compiles (see runTests.sh).
+ *
+ * The tests live in the agent's package, so they can reach its package-private classes.
+ */
+final class TestRunner {
+
+	private static final Class<?>[] TESTS = {
+			BidPercentilesTest.class,
+			CampaignLogStoreTest.class,
+			HistoryJournalTest.class,
+			ImpressionHistoryStoreTest.class,
+			ImpressionTargetOptimizerTest.class,
+			SegmentMaskTest.class,
+	};
+
+	private TestRunner() {
+	}
+
+	public static void main(String[] args) {
+		int run = 0;
+		int failed = 0;
+		for (Class<?> test : TESTS) {
+			Method[] methods = test.getDeclaredMethods();
+			// Declaration order is not guaranteed; name order keeps the output stable
+			Arrays.sort(methods, new Comparator<Method>() {
+				@Override
+				public int compare(Method a, Method b) {
+					return a.getName().compareTo(b.getName());
+				}
+			});
+			for (Method method : methods) {
+				if (!method.getName().startsWith("test") || !Modifier.isStatic(method.getModifiers())
+						|| method.getParameterTypes().length != 0) {
+					continue;
+				}
+				run++;
+				String name = test.getSimpleName() + "." + method.getName();
+				long start = System.nanoTime();
+				try {
+					method.setAccessible(true);
+					method.invoke(null);
+					System.out.printf("ok    %-60s %8.1f ms%n", name, (System.nanoTime() - start) / 1e6);
+				} catch (InvocationTargetException ex) {
+					failed++;
+					System.out.printf("FAIL  %s: %s%n", name, ex.getCause());
+					ex.getCause().printStackTrace(System.out);
+				} catch (IllegalAccessException ex) {
+					failed++;
+					System.out.printf("FAIL  %s: %s%n", name, ex);
+				}
+			}
+		}
+		System.out.printf("%d tests, %d failed%n", run, failed);
+		System.exit(failed == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Fails the test with the formatted message unless condition holds.
+	 */
+	static void check(boolean condition, String format, Object... args) {
+		if (!condition) {
+			throw new AssertionError(String.format(format, args));
+		}
+	}
+
+	/**
+	 * Fails the test unless actual is within tolerance (relative, and absolute below 1) of expected.
+	 */
+	static void checkClose(double expected, double actual, double tolerance, String what) {
+		double scale = Math.max(1, Math.max(Math.abs(expected), Math.abs(actual)));
+		check(Math.abs(expected - actual) <= tolerance * scale, "%s: expected %s, got %s", what, expected, actual);
+	}
+
+	/**
+	 * A new empty directory; the test deletes it with delete() when done.
+	 */
+	static File tempDir() throws IOException {
+		return Files.createTempDirectory("namm-test").toFile();
+	}
+
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}